@@ -0,0 +1,723 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Framing layer of an HTTP/2 (RFC 9113) connection, shared by the server side, which
+ * serves the clients, and the client side, which sends requests to the remote hosts.
+ * The thread which calls run reads the frames sent by the peer: the connection-level
+ * frames are handled here, and the header blocks are handed to the subclass once they
+ * are complete. The frames are written by the stream threads and the reader thread,
+ * one frame at a time, under a lock. The locks are ReentrantLocks rather than monitors,
+ * so the virtual threads which wait for them, or write under them, don't pin their carrier.
+ * Flow control is enforced in both directions: the DATA frames sent wait for the send
+ * windows of the connection and the stream, while the received data is buffered by the
+ * streams up to their receive windows, which are reopened as the data is consumed.
+ * The connection receive window is reopened as soon as the data arrives, since the
+ * stream windows already limit the amount of buffered data.
+ * @author Juliano
+ * @param <S> Type of the streams.
+ */
+public abstract class AbstractHttp2Connection<S extends AbstractHttp2Stream> {
+
+	static final byte[] PREFACE = "PRI * HTTP/2.0\r\n\r\nSM\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	static final int FRAME_HEADER_LENGTH = 9;
+
+	static final int TYPE_DATA = 0x0;
+	static final int TYPE_HEADERS = 0x1;
+	static final int TYPE_PRIORITY = 0x2;
+	static final int TYPE_RST_STREAM = 0x3;
+	static final int TYPE_SETTINGS = 0x4;
+	static final int TYPE_PUSH_PROMISE = 0x5;
+	static final int TYPE_PING = 0x6;
+	static final int TYPE_GOAWAY = 0x7;
+	static final int TYPE_WINDOW_UPDATE = 0x8;
+	static final int TYPE_CONTINUATION = 0x9;
+
+	static final int FLAG_END_STREAM = 0x1;
+	static final int FLAG_ACK = 0x1;
+	static final int FLAG_END_HEADERS = 0x4;
+	static final int FLAG_PADDED = 0x8;
+	static final int FLAG_PRIORITY = 0x20;
+
+	static final int NO_ERROR = 0x0;
+	static final int PROTOCOL_ERROR = 0x1;
+	static final int INTERNAL_ERROR = 0x2;
+	static final int FLOW_CONTROL_ERROR = 0x3;
+	static final int STREAM_CLOSED = 0x5;
+	static final int FRAME_SIZE_ERROR = 0x6;
+	static final int REFUSED_STREAM = 0x7;
+	static final int CANCEL = 0x8;
+	static final int COMPRESSION_ERROR = 0x9;
+	static final int ENHANCE_YOUR_CALM = 0xb;
+
+	static final int SETTINGS_HEADER_TABLE_SIZE = 0x1;
+	static final int SETTINGS_ENABLE_PUSH = 0x2;
+	static final int SETTINGS_MAX_CONCURRENT_STREAMS = 0x3;
+	static final int SETTINGS_INITIAL_WINDOW_SIZE = 0x4;
+	static final int SETTINGS_MAX_FRAME_SIZE = 0x5;
+
+	static final int DEFAULT_WINDOW_SIZE = 65535;
+	static final int MAX_FRAME_SIZE = 1024 * 16;
+	static final int HEADER_TABLE_SIZE = 4096;
+
+	/**
+	 * Receive window of each stream, i.e. the amount of data buffered by a stream.
+	 */
+	static final int STREAM_WINDOW_SIZE = 1024 * 256;
+
+	/**
+	 * Receive window of the connection, shared by every stream.
+	 */
+	static final int CONNECTION_WINDOW_SIZE = 1024 * 1024;
+
+	private static final int MAX_WINDOW_SIZE = Integer.MAX_VALUE;
+	private static final int MAX_HEADER_BLOCK_SIZE = 1024 * 64;
+
+	/**
+	 * Time a stream waits for the peer to open its send window.
+	 */
+	private static final long SEND_TIMEOUT = 60000;
+
+	protected Socket socket;
+	protected InputStream inputStream;
+	protected OutputStream outputStream;
+	protected BufferPool bufferPool;
+
+	protected Map<Integer, S> streams;
+
+	/**
+	 * Highest identifier of the streams opened so far, by either side.
+	 */
+	protected volatile int lastStreamId;
+
+	private HpackDecoder decoder;
+
+	private final ReentrantLock writeLock = new ReentrantLock();
+	private ByteBuffer pooledFrameBuffer;
+	private byte[] frameBuffer;
+	private int peerMaxFrameSize;
+
+	// Guarded by the window lock, whose condition is signalled when the send windows open
+	private final ReentrantLock windowLock = new ReentrantLock();
+	private final Condition windowOpened = windowLock.newCondition();
+	private long connectionSendWindow;
+	private int initialSendWindow;
+	private volatile boolean closed;
+
+	// Only accessed by the reader thread
+	private int connectionReceiveWindow;
+	private int connectionConsumed;
+
+	/**
+	 * Constructor. The buffer used to write the frames is taken from the pool until the connection is closed.
+	 * @param socket The socket, after the TLS handshake.
+	 * @param bufferPool Pool from which the buffers are taken.
+	 * @throws IOException If the streams of the socket could not be obtained.
+	 */
+	protected AbstractHttp2Connection(Socket socket, BufferPool bufferPool) throws IOException {
+		this.socket = socket;
+		this.bufferPool = bufferPool;
+		inputStream = socket.getInputStream();
+		outputStream = socket.getOutputStream();
+		decoder = new HpackDecoder(HEADER_TABLE_SIZE);
+		streams = new ConcurrentHashMap<>();
+		peerMaxFrameSize = MAX_FRAME_SIZE;
+		connectionSendWindow = DEFAULT_WINDOW_SIZE;
+		initialSendWindow = DEFAULT_WINDOW_SIZE;
+		connectionReceiveWindow = CONNECTION_WINDOW_SIZE;
+		pooledFrameBuffer = bufferPool.acquire(FRAME_HEADER_LENGTH + MAX_FRAME_SIZE);
+		frameBuffer = pooledFrameBuffer.array();
+	}
+
+	/**
+	 * Handles the connection until it is closed by the peer or an error occurs.
+	 * @param buffer Buffer used to read the frames. Must hold at least a frame header and 16 KB of payload.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	public void run(byte[] buffer) throws IOException {
+		try {
+			startConnection(buffer);
+			readFrames(buffer);
+		} catch (Http2Exception e) {
+			goAway(e.getErrorCode());
+		} catch (ProtocolException e) {
+			goAway(PROTOCOL_ERROR);
+		} catch (EOFException e) {
+			// The peer closed the connection
+		} finally {
+			close();
+		}
+	}
+
+	/**
+	 * Exchanges the connection prefaces.
+	 * @param buffer Buffer which may be used to read the preface of the peer.
+	 * @throws IOException If an I/O error occurs, or the preface of the peer is invalid.
+	 */
+	protected abstract void startConnection(byte[] buffer) throws IOException;
+
+	/**
+	 * Handles a complete header block, which either opens a stream or belongs to an open one.
+	 * @param fields The decoded fields.
+	 * @param streamId The stream of the block.
+	 * @param endStream Whether the block ends the stream.
+	 * @throws IOException If the block causes a connection error, or the frames answering it could not be written.
+	 */
+	protected abstract void handleHeaders(List<String[]> fields, int streamId, boolean endStream) throws IOException;
+
+	/**
+	 * Called when no frame arrives before the socket timeout.
+	 * @return True to keep waiting for frames, false to end the connection.
+	 */
+	protected abstract boolean readTimedOut();
+
+	/**
+	 * Called when the peer announces the end of the connection. The peer will not process
+	 * the streams above the last stream identifier.
+	 * @param lastProcessedStreamId Last stream identifier processed by the peer.
+	 */
+	protected abstract void goAwayReceived(int lastProcessedStreamId);
+
+	/**
+	 * Called for each parameter of a SETTINGS frame not handled by the framing layer.
+	 */
+	protected void settingReceived(int identifier, int value) {
+	}
+
+	/**
+	 * Called for each RST_STREAM frame received from the peer.
+	 * @throws IOException If the peer resets too many streams, which ends the connection.
+	 */
+	protected void resetReceived() throws IOException {
+	}
+
+	private void readFrames(byte[] buffer) throws IOException {
+		byte[] headerBlock = null;
+		int headerBlockLength = 0;
+		int headerBlockStreamId = 0;
+		int headerBlockFlags = 0;
+		while(true) {
+			try {
+				// Only the wait for a new frame may time out, the rest of the frame is expected to follow
+				readFully(buffer, 0, 1);
+			} catch (SocketTimeoutException e) {
+				if (headerBlock == null && !readTimedOut()) {
+					goAway(NO_ERROR);
+					return;
+				}
+				continue;
+			}
+			readFully(buffer, 1, FRAME_HEADER_LENGTH - 1);
+			int length = ((buffer[0] & 0xff) << 16) | ((buffer[1] & 0xff) << 8) | (buffer[2] & 0xff);
+			int type = buffer[3] & 0xff;
+			int flags = buffer[4] & 0xff;
+			int streamId = readInt(buffer, 5) & 0x7fffffff;
+			if (length > MAX_FRAME_SIZE) {
+				throw new Http2Exception(FRAME_SIZE_ERROR, "Frame too large: " + length);
+			}
+			readFully(buffer, 0, length);
+			if (headerBlock != null && (type != TYPE_CONTINUATION || streamId != headerBlockStreamId)) {
+				throw new Http2Exception(PROTOCOL_ERROR, "Header block interrupted");
+			}
+			switch (type) {
+			case TYPE_DATA:
+				handleData(buffer, length, flags, streamId);
+				break;
+			case TYPE_HEADERS:
+				if (streamId == 0) {
+					throw new Http2Exception(PROTOCOL_ERROR, "HEADERS on stream 0");
+				}
+				int offset = 0;
+				int end = length;
+				if ((flags & FLAG_PADDED) != 0) {
+					end -= paddingLength(buffer, length);
+					offset++;
+				}
+				if ((flags & FLAG_PRIORITY) != 0) {
+					offset += 5;
+				}
+				if (offset > end) {
+					throw new Http2Exception(PROTOCOL_ERROR, "Invalid HEADERS frame");
+				}
+				headerBlock = new byte[Math.max(end - offset, 1024)];
+				System.arraycopy(buffer, offset, headerBlock, 0, end - offset);
+				headerBlockLength = end - offset;
+				headerBlockStreamId = streamId;
+				headerBlockFlags = flags;
+				break;
+			case TYPE_CONTINUATION:
+				if (headerBlock == null) {
+					throw new Http2Exception(PROTOCOL_ERROR, "Unexpected CONTINUATION frame");
+				}
+				if (headerBlockLength + length > MAX_HEADER_BLOCK_SIZE) {
+					throw new Http2Exception(PROTOCOL_ERROR, "Header block too large");
+				}
+				if (headerBlockLength + length > headerBlock.length) {
+					byte[] newHeaderBlock = new byte[Math.max(headerBlockLength + length, headerBlock.length * 2)];
+					System.arraycopy(headerBlock, 0, newHeaderBlock, 0, headerBlockLength);
+					headerBlock = newHeaderBlock;
+				}
+				System.arraycopy(buffer, 0, headerBlock, headerBlockLength, length);
+				headerBlockLength += length;
+				flags |= headerBlockFlags & FLAG_END_STREAM;
+				break;
+			case TYPE_PRIORITY:
+				if (streamId == 0 || length != 5) {
+					throw new Http2Exception(PROTOCOL_ERROR, "Invalid PRIORITY frame");
+				}
+				break;
+			case TYPE_RST_STREAM:
+				if (streamId == 0 || length != 4) {
+					throw new Http2Exception(PROTOCOL_ERROR, "Invalid RST_STREAM frame");
+				}
+				if (streamId > lastStreamId) {
+					throw new Http2Exception(PROTOCOL_ERROR, "RST_STREAM on idle stream");
+				}
+				S resetStream = streams.remove(streamId);
+				if (resetStream != null) {
+					resetStream.reset();
+					wakeUpSenders();
+				}
+				resetReceived();
+				break;
+			case TYPE_SETTINGS:
+				handleSettings(buffer, length, flags, streamId);
+				break;
+			case TYPE_PUSH_PROMISE:
+				// Neither the clients nor the remote hosts, to which push is disabled, may send it
+				throw new Http2Exception(PROTOCOL_ERROR, "Unexpected PUSH_PROMISE frame");
+			case TYPE_PING:
+				if (streamId != 0 || length != 8) {
+					throw new Http2Exception(streamId != 0 ? PROTOCOL_ERROR : FRAME_SIZE_ERROR, "Invalid PING frame");
+				}
+				if ((flags & FLAG_ACK) == 0) {
+					writeFrame(TYPE_PING, FLAG_ACK, 0, buffer, 0, 8);
+				}
+				break;
+			case TYPE_GOAWAY:
+				if (streamId != 0 || length < 8) {
+					throw new Http2Exception(PROTOCOL_ERROR, "Invalid GOAWAY frame");
+				}
+				goAwayReceived(readInt(buffer, 0) & 0x7fffffff);
+				break;
+			case TYPE_WINDOW_UPDATE:
+				handleWindowUpdate(buffer, length, streamId);
+				break;
+			default:
+				// Unknown frame types are ignored
+				break;
+			}
+			if (headerBlock != null && (flags & FLAG_END_HEADERS) != 0) {
+				List<String[]> fields;
+				try {
+					fields = decoder.decode(headerBlock, 0, headerBlockLength);
+				} catch (ProtocolException e) {
+					throw new Http2Exception(COMPRESSION_ERROR, e.getMessage());
+				}
+				handleHeaders(fields, headerBlockStreamId, (flags & FLAG_END_STREAM) != 0);
+				headerBlock = null;
+			}
+		}
+	}
+
+	private void handleData(byte[] buffer, int length, int flags, int streamId) throws IOException {
+		if (streamId == 0) {
+			throw new Http2Exception(PROTOCOL_ERROR, "DATA on stream 0");
+		}
+		int offset = 0;
+		int end = length;
+		if ((flags & FLAG_PADDED) != 0) {
+			end -= paddingLength(buffer, length);
+			offset = 1;
+		}
+		// The whole frame, padding included, counts against the receive windows
+		connectionReceiveWindow -= length;
+		if (connectionReceiveWindow < 0) {
+			throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection receive window exceeded");
+		}
+		connectionConsumed += length;
+		if (connectionConsumed >= CONNECTION_WINDOW_SIZE / 2) {
+			sendWindowUpdate(0, connectionConsumed);
+			connectionReceiveWindow += connectionConsumed;
+			connectionConsumed = 0;
+		}
+		S stream = streams.get(streamId);
+		if (stream == null) {
+			if (streamId > lastStreamId) {
+				throw new Http2Exception(PROTOCOL_ERROR, "DATA on idle stream");
+			}
+			sendReset(streamId, STREAM_CLOSED);
+			return;
+		}
+		int errorCode = stream.receiveData(buffer, offset, end - offset, length, (flags & FLAG_END_STREAM) != 0);
+		if (errorCode != NO_ERROR) {
+			resetStream(stream, errorCode);
+		}
+	}
+
+	private void handleSettings(byte[] buffer, int length, int flags, int streamId) throws IOException {
+		if (streamId != 0) {
+			throw new Http2Exception(PROTOCOL_ERROR, "SETTINGS on a stream");
+		}
+		if ((flags & FLAG_ACK) != 0) {
+			if (length != 0) {
+				throw new Http2Exception(FRAME_SIZE_ERROR, "SETTINGS ack with payload");
+			}
+			return;
+		}
+		if (length % 6 != 0) {
+			throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid SETTINGS frame");
+		}
+		for (int i = 0; i < length; i += 6) {
+			int identifier = ((buffer[i] & 0xff) << 8) | (buffer[i + 1] & 0xff);
+			int value = readInt(buffer, i + 2);
+			if (identifier == SETTINGS_INITIAL_WINDOW_SIZE) {
+				if (value < 0) {
+					throw new Http2Exception(FLOW_CONTROL_ERROR, "Invalid initial window size");
+				}
+				windowLock.lock();
+				try {
+					// The difference applies to the windows of the open streams
+					int delta = value - initialSendWindow;
+					initialSendWindow = value;
+					for (S stream : streams.values()) {
+						if (!stream.addSendWindow(delta)) {
+							throw new Http2Exception(FLOW_CONTROL_ERROR, "Stream window overflow");
+						}
+					}
+					windowOpened.signalAll();
+				} finally {
+					windowLock.unlock();
+				}
+			} else if (identifier == SETTINGS_MAX_FRAME_SIZE) {
+				if (value < MAX_FRAME_SIZE || value > 0xffffff) {
+					throw new Http2Exception(PROTOCOL_ERROR, "Invalid max frame size");
+				}
+				// The frames sent are never larger than the frame buffer
+				peerMaxFrameSize = Math.min(value, MAX_FRAME_SIZE);
+			} else {
+				settingReceived(identifier, value);
+			}
+		}
+		writeFrame(TYPE_SETTINGS, FLAG_ACK, 0, buffer, 0, 0);
+	}
+
+	private void handleWindowUpdate(byte[] buffer, int length, int streamId) throws IOException {
+		if (length != 4) {
+			throw new Http2Exception(FRAME_SIZE_ERROR, "Invalid WINDOW_UPDATE frame");
+		}
+		int increment = readInt(buffer, 0) & 0x7fffffff;
+		if (streamId == 0) {
+			if (increment == 0) {
+				throw new Http2Exception(PROTOCOL_ERROR, "Zero window increment");
+			}
+			windowLock.lock();
+			try {
+				connectionSendWindow += increment;
+				if (connectionSendWindow > MAX_WINDOW_SIZE) {
+					throw new Http2Exception(FLOW_CONTROL_ERROR, "Connection window overflow");
+				}
+				windowOpened.signalAll();
+			} finally {
+				windowLock.unlock();
+			}
+			return;
+		}
+		S stream = streams.get(streamId);
+		if (stream == null) {
+			if (streamId > lastStreamId) {
+				throw new Http2Exception(PROTOCOL_ERROR, "WINDOW_UPDATE on idle stream");
+			}
+			return;
+		}
+		if (increment == 0) {
+			resetStream(stream, PROTOCOL_ERROR);
+			return;
+		}
+		boolean valid;
+		windowLock.lock();
+		try {
+			valid = stream.addSendWindow(increment);
+			windowOpened.signalAll();
+		} finally {
+			windowLock.unlock();
+		}
+		if (!valid) {
+			resetStream(stream, FLOW_CONTROL_ERROR);
+		}
+	}
+
+	/**
+	 * Registers a new stream, whose send window starts with the initial window size announced by the peer.
+	 * @param stream The stream.
+	 */
+	protected void addStream(S stream) {
+		windowLock.lock();
+		try {
+			stream.addSendWindow(initialSendWindow);
+		} finally {
+			windowLock.unlock();
+		}
+		streams.put(stream.getId(), stream);
+	}
+
+	/**
+	 * Takes part of the send windows of the connection and of a stream, waiting for the
+	 * peer to open them if they are exhausted.
+	 * @param stream The stream which sends data.
+	 * @param length Amount of data the stream wants to send.
+	 * @return Amount of data the stream may send, between one and the length or the maximum frame size.
+	 * @throws IOException If the stream was reset, the connection closed, or the peer did not open the windows in time.
+	 */
+	int reserveSendWindow(AbstractHttp2Stream stream, int length) throws IOException {
+		windowLock.lock();
+		try {
+			long timeout = TimeUnit.MILLISECONDS.toNanos(SEND_TIMEOUT);
+			while(!closed && !stream.isReset() && (connectionSendWindow <= 0 || stream.getSendWindow() <= 0)) {
+				if (timeout <= 0) {
+					throw new SocketTimeoutException("Send window closed");
+				}
+				try {
+					timeout = windowOpened.awaitNanos(timeout);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				}
+			}
+			if (closed || stream.isReset()) {
+				throw new IOException("Stream " + stream.getId() + " reset");
+			}
+			int reserved = (int) Math.min(Math.min(length, peerMaxFrameSize), Math.min(connectionSendWindow, stream.getSendWindow()));
+			connectionSendWindow -= reserved;
+			stream.addSendWindow(-reserved);
+			return reserved;
+		} finally {
+			windowLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes a frame with a single write call.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	void writeFrame(int type, int flags, int streamId, byte[] payload, int offset, int length) throws IOException {
+		writeLock.lock();
+		try {
+			if (frameBuffer == null) {
+				throw new IOException("Connection closed");
+			}
+			frameBuffer[0] = (byte) (length >>> 16);
+			frameBuffer[1] = (byte) (length >>> 8);
+			frameBuffer[2] = (byte) length;
+			frameBuffer[3] = (byte) type;
+			frameBuffer[4] = (byte) flags;
+			putInt(frameBuffer, 5, streamId);
+			System.arraycopy(payload, offset, frameBuffer, FRAME_HEADER_LENGTH, length);
+			outputStream.write(frameBuffer, 0, FRAME_HEADER_LENGTH + length);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Writes a header block, split in a HEADERS frame and as many CONTINUATION frames as
+	 * needed. The frames are written under the lock, so no other frame is interleaved.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	void writeHeaders(int streamId, byte[] block, int length, boolean endStream) throws IOException {
+		writeLock.lock();
+		try {
+			int offset = 0;
+			int type = TYPE_HEADERS;
+			do {
+				int frameLength = Math.min(length - offset, peerMaxFrameSize);
+				int flags = offset + frameLength == length ? FLAG_END_HEADERS : 0;
+				if (type == TYPE_HEADERS && endStream) {
+					flags |= FLAG_END_STREAM;
+				}
+				writeFrame(type, flags, streamId, block, offset, frameLength);
+				offset += frameLength;
+				type = TYPE_CONTINUATION;
+			} while(offset < length);
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	/**
+	 * Get the lock held while frames are written. Holding it keeps the other threads from
+	 * writing, e.g. while a stream identifier is allocated and its HEADERS frame written.
+	 * @return The lock.
+	 */
+	protected ReentrantLock getWriteLock() {
+		return writeLock;
+	}
+
+	void sendWindowUpdate(int streamId, int increment) throws IOException {
+		byte[] payload = new byte[4];
+		putInt(payload, 0, increment);
+		writeFrame(TYPE_WINDOW_UPDATE, 0, streamId, payload, 0, 4);
+	}
+
+	void sendReset(int streamId, int errorCode) throws IOException {
+		byte[] payload = new byte[4];
+		putInt(payload, 0, errorCode);
+		writeFrame(TYPE_RST_STREAM, 0, streamId, payload, 0, 4);
+	}
+
+	/**
+	 * Called by a stream once it is over, so it stops counting against the concurrency limit.
+	 * @param stream The stream.
+	 */
+	void streamClosed(AbstractHttp2Stream stream) {
+		streams.remove(stream.getId(), stream);
+	}
+
+	/**
+	 * Resets a stream from the reader thread, after an error caused by the peer.
+	 */
+	protected void resetStream(S stream, int errorCode) throws IOException {
+		streams.remove(stream.getId());
+		stream.reset();
+		wakeUpSenders();
+		sendReset(stream.getId(), errorCode);
+	}
+
+	/**
+	 * Returns whether the connection is closed.
+	 * @return True if, and only if, the connection was closed.
+	 */
+	public boolean isClosed() {
+		return closed;
+	}
+
+	protected void wakeUpSenders() {
+		windowLock.lock();
+		try {
+			windowOpened.signalAll();
+		} finally {
+			windowLock.unlock();
+		}
+	}
+
+	/**
+	 * Sends a GOAWAY frame, ignoring any error since the connection is about to be closed.
+	 * @param errorCode The error code.
+	 */
+	protected void goAway(int errorCode) {
+		byte[] payload = new byte[8];
+		putInt(payload, 0, lastStreamId);
+		putInt(payload, 4, errorCode);
+		try {
+			writeFrame(TYPE_GOAWAY, 0, 0, payload, 0, payload.length);
+		} catch (IOException e) {
+			// The connection is being closed anyway
+		}
+	}
+
+	/**
+	 * Closes the connection, resetting the streams still running, and returns the frame
+	 * buffer to the pool. May be called more than once.
+	 */
+	public void close() {
+		windowLock.lock();
+		try {
+			closed = true;
+			windowOpened.signalAll();
+		} finally {
+			windowLock.unlock();
+		}
+		List<S> remaining = new ArrayList<>(streams.values());
+		streams.clear();
+		for (S stream : remaining) {
+			stream.reset();
+		}
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		// A thread still writing holds the lock until its write fails on the closed socket
+		writeLock.lock();
+		try {
+			if (frameBuffer != null) {
+				frameBuffer = null;
+				bufferPool.release(pooledFrameBuffer);
+			}
+		} finally {
+			writeLock.unlock();
+		}
+	}
+
+	private int paddingLength(byte[] buffer, int length) throws Http2Exception {
+		int padding = length > 0 ? buffer[0] & 0xff : 0;
+		if (length == 0 || padding >= length) {
+			throw new Http2Exception(PROTOCOL_ERROR, "Invalid padding");
+		}
+		return padding;
+	}
+
+	protected void readFully(byte[] buffer, int offset, int length) throws IOException {
+		while(length > 0) {
+			int readResult = inputStream.read(buffer, offset, length);
+			if (readResult < 0) {
+				throw new EOFException();
+			}
+			offset += readResult;
+			length -= readResult;
+		}
+	}
+
+	protected static void putSetting(byte[] buffer, int offset, int identifier, int value) {
+		buffer[offset] = (byte) (identifier >>> 8);
+		buffer[offset + 1] = (byte) identifier;
+		putInt(buffer, offset + 2, value);
+	}
+
+	private static int readInt(byte[] buffer, int offset) {
+		return ((buffer[offset] & 0xff) << 24) | ((buffer[offset + 1] & 0xff) << 16) | ((buffer[offset + 2] & 0xff) << 8) | (buffer[offset + 3] & 0xff);
+	}
+
+	private static void putInt(byte[] buffer, int offset, int value) {
+		buffer[offset] = (byte) (value >>> 24);
+		buffer[offset + 1] = (byte) (value >>> 16);
+		buffer[offset + 2] = (byte) (value >>> 8);
+		buffer[offset + 3] = (byte) value;
+	}
+
+	/**
+	 * Connection error, which ends the connection with a GOAWAY frame.
+	 */
+	static class Http2Exception extends ProtocolException {
+
+		private static final long serialVersionUID = 1L;
+
+		private final int errorCode;
+
+		Http2Exception(int errorCode, String message) {
+			super(message);
+			this.errorCode = errorCode;
+		}
+
+		int getErrorCode() {
+			return errorCode;
+		}
+
+	}
+
+}
@@ -0,0 +1,210 @@
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stream of an HTTP/2 connection, as seen by the framing layer. The data received from
+ * the peer is stored by the reader thread of the connection, up to the stream receive
+ * window, until it is read by the thread which handles the stream; the window is reopened
+ * as the data is read. The data sent waits for the send windows of the stream and the
+ * connection.
+ * @author Juliano
+ */
+public abstract class AbstractHttp2Stream {
+
+	private static final long RECEIVE_TIMEOUT = 10000;
+
+	protected AbstractHttp2Connection<?> connection;
+	protected int id;
+
+	/**
+	 * Length announced for the received data, or null if it is not known.
+	 */
+	protected Long expectedLength;
+
+	/**
+	 * Lock of the state of the stream. Its condition is signalled when the state changes,
+	 * e.g. when data arrives or the stream is reset.
+	 */
+	protected final ReentrantLock lock = new ReentrantLock();
+	protected final Condition stateChanged = lock.newCondition();
+
+	// Data received from the peer, guarded by the lock
+	private ArrayDeque<byte[]> dataChunks;
+	private int chunkOffset;
+	private long received;
+	private boolean inputEnded;
+	private int receiveWindow;
+	private int consumed;
+
+	protected volatile boolean reset;
+
+	// Guarded by the connection
+	private long sendWindow;
+
+	/**
+	 * Constructor.
+	 * @param connection The connection which carries the stream.
+	 * @param id The stream identifier.
+	 */
+	protected AbstractHttp2Stream(AbstractHttp2Connection<?> connection, int id) {
+		this.connection = connection;
+		this.id = id;
+		dataChunks = new ArrayDeque<>();
+		receiveWindow = AbstractHttp2Connection.STREAM_WINDOW_SIZE;
+	}
+
+	/**
+	 * Stores data received from the peer. Called by the reader thread.
+	 * @param data Buffer holding the data, which is copied.
+	 * @param offset Offset of the data.
+	 * @param length Length of the data.
+	 * @param flowControlledLength Length of the frame, padding included, counted against the receive window.
+	 * @param endStream Whether the data ends the stream.
+	 * @return NO_ERROR, or the error code with which the stream must be reset.
+	 */
+	int receiveData(byte[] data, int offset, int length, int flowControlledLength, boolean endStream) {
+		lock.lock();
+		try {
+			if (inputEnded) {
+				return AbstractHttp2Connection.STREAM_CLOSED;
+			}
+			receiveWindow -= flowControlledLength;
+			if (receiveWindow < 0) {
+				return AbstractHttp2Connection.FLOW_CONTROL_ERROR;
+			}
+			received += length;
+			if (expectedLength != null && (received > expectedLength || (endStream && received != expectedLength))) {
+				return AbstractHttp2Connection.PROTOCOL_ERROR;
+			}
+			if (length > 0) {
+				dataChunks.add(Arrays.copyOfRange(data, offset, offset + length));
+			}
+			// The padding is given back along with the data
+			consumed += flowControlledLength - length;
+			inputEnded = endStream;
+			stateChanged.signalAll();
+			return AbstractHttp2Connection.NO_ERROR;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Returns whether the peer ended its side of the stream.
+	 * @return True if, and only if, no more data will be received.
+	 */
+	boolean isInputEnded() {
+		lock.lock();
+		try {
+			return inputEnded;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads data received from the peer, waiting for the peer to send it.
+	 * @return The number of bytes read, or -1 at the end of the stream.
+	 * @throws IOException If the stream was reset or the peer did not send the data in time.
+	 */
+	protected int readData(byte[] buffer, int offset, int length) throws IOException {
+		int readResult;
+		int increment = 0;
+		lock.lock();
+		try {
+			long timeout = TimeUnit.MILLISECONDS.toNanos(RECEIVE_TIMEOUT);
+			while(dataChunks.isEmpty() && !inputEnded && !reset) {
+				if (timeout <= 0) {
+					throw new SocketTimeoutException("Data not received on stream " + id);
+				}
+				try {
+					timeout = stateChanged.awaitNanos(timeout);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				}
+			}
+			// The data received before a reset is still delivered
+			if (dataChunks.isEmpty()) {
+				if (inputEnded) {
+					return -1;
+				}
+				throw new IOException("Stream " + id + " reset");
+			}
+			byte[] chunk = dataChunks.peek();
+			readResult = Math.min(length, chunk.length - chunkOffset);
+			System.arraycopy(chunk, chunkOffset, buffer, offset, readResult);
+			chunkOffset += readResult;
+			if (chunkOffset == chunk.length) {
+				dataChunks.poll();
+				chunkOffset = 0;
+			}
+			consumed += readResult;
+			if (consumed >= AbstractHttp2Connection.STREAM_WINDOW_SIZE / 2 && !inputEnded) {
+				increment = consumed;
+				receiveWindow += consumed;
+				consumed = 0;
+			}
+		} finally {
+			lock.unlock();
+		}
+		if (increment > 0) {
+			connection.sendWindowUpdate(id, increment);
+		}
+		return readResult;
+	}
+
+	/**
+	 * Sends data in DATA frames, as the send windows allow.
+	 * @throws IOException If the stream was reset, or the data could not be written.
+	 */
+	protected void sendData(byte[] data, int offset, int length) throws IOException {
+		while(length > 0) {
+			int frameLength = connection.reserveSendWindow(this, length);
+			connection.writeFrame(AbstractHttp2Connection.TYPE_DATA, 0, id, data, offset, frameLength);
+			offset += frameLength;
+			length -= frameLength;
+		}
+	}
+
+	/**
+	 * Marks the stream as reset, waking up the threads waiting for it.
+	 */
+	void reset() {
+		lock.lock();
+		try {
+			reset = true;
+			stateChanged.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	boolean isReset() {
+		return reset;
+	}
+
+	int getId() {
+		return id;
+	}
+
+	long getSendWindow() {
+		return sendWindow;
+	}
+
+	/**
+	 * Changes the send window. Must be called while holding the window lock of the connection.
+	 * @param delta The increment, which may be negative.
+	 * @return False if the window grew beyond its maximum size.
+	 */
+	boolean addSendWindow(long delta) {
+		sendWindow += delta;
+		return sendWindow <= Integer.MAX_VALUE;
+	}
+
+}
@@ -0,0 +1,125 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fetch of a whole resource, run by the executor of the blocking engine after a range
+ * request, so the next ranges of the resource can be served by the ResponseCache. The
+ * response is only recorded: it is not sent to any client, except to the concurrent
+ * requests of the whole resource, which share it as they would share the response of a
+ * client request. The request goes through an HTTP/1.1 connection of the pool.
+ * @author Juliano
+ */
+public class BackgroundFetch implements Runnable {
+
+	private static final int BUFFER_SIZE = 1024 * 16;
+
+	private ResponseCache responseCache;
+	private ResponseCache.Fetch fetch;
+	private UpstreamConnectionPool pool;
+	private BufferPool bufferPool;
+	private RelayStatistics statistics;
+	private String host;
+	private int port;
+	private boolean useSSL;
+	private String resource;
+	private Map<String, List<String>> requestHeaders;
+
+	/**
+	 * Constructor.
+	 * @param responseCache The cache in which the response is stored.
+	 * @param fetch The fetch registered for the resource, which is ended by the task.
+	 * @param pool Pool of the connections to the remote hosts.
+	 * @param bufferPool Pool from which the relay buffer is taken.
+	 * @param statistics Counters of the relayed data.
+	 * @param host Remote host name.
+	 * @param port Remote host port.
+	 * @param useSSL Whether the remote host is reached through TLS.
+	 * @param resource The path and query of the resource.
+	 * @param requestHeaders The header fields of the request, without Range.
+	 */
+	public BackgroundFetch(ResponseCache responseCache, ResponseCache.Fetch fetch, UpstreamConnectionPool pool, BufferPool bufferPool, RelayStatistics statistics,
+			String host, int port, boolean useSSL, String resource, Map<String, List<String>> requestHeaders) {
+		this.responseCache = responseCache;
+		this.fetch = fetch;
+		this.pool = pool;
+		this.bufferPool = bufferPool;
+		this.statistics = statistics;
+		this.host = host;
+		this.port = port;
+		this.useSSL = useSSL;
+		this.resource = resource;
+		this.requestHeaders = requestHeaders;
+	}
+
+	public void run() {
+		ByteBuffer pooledBuffer = bufferPool.acquire(BUFFER_SIZE);
+		UpstreamConnection connection = null;
+		boolean reusable = false;
+		try {
+			byte[] buffer = pooledBuffer.array();
+			connection = pool.acquire(host, port, useSSL);
+			InputStream inputStream = connection.getInputStream();
+			long requestTime = System.currentTimeMillis();
+			HeaderWriter headerWriter = new HeaderWriter();
+			headerWriter.writeRequestHeader("GET", resource, requestHeaders);
+			headerWriter.writeTo(connection.getOutputStream());
+			statistics.addUpstreamBytes(headerWriter.getLength());
+
+			// Interim responses are skipped
+			HeaderProcessor responseHeaderProcessor;
+			int statusCode;
+			do {
+				boolean headerProcessed = false;
+				responseHeaderProcessor = new HeaderProcessor(true);
+				while(!headerProcessed) {
+					int readResult = inputStream.read(buffer, 0, buffer.length);
+					if (readResult > 0) {
+						headerProcessed = responseHeaderProcessor.processInputData(buffer, 0, readResult);
+					} else {
+						throw new ProtocolException();
+					}
+				}
+				statusCode = responseHeaderProcessor.getResponseHeader().getStatusCode();
+			} while(statusCode >= 100 && statusCode < 200);
+			long responseTime = System.currentTimeMillis();
+
+			Long contentLength = responseHeaderProcessor.getContentLength();
+			boolean chunked = contentLength == null && responseHeaderProcessor.isChunkedEncoded();
+			ResponseCache.Recording recording = responseCache.startRecording(fetch.getKey(), "GET", requestHeaders, statusCode, responseHeaderProcessor.getHeaders(),
+					contentLength, chunked, null, requestTime, responseTime);
+			if (recording == null) {
+				// The response can't be stored after all, and the connection is closed rather than drained
+				return;
+			}
+			fetch.publish(recording);
+			if (statusCode == 204 || statusCode == 304) {
+				// No body
+			} else if (contentLength != null) {
+				HttpProcessor.sendBody(responseHeaderProcessor.getBodyBuffer(), contentLength, inputStream, recording, buffer);
+			} else if (chunked) {
+				HttpProcessor.sendChunkedBody(responseHeaderProcessor.getBodyBuffer(), inputStream, recording, buffer);
+			} else {
+				HttpProcessor.sendBody(responseHeaderProcessor.getBodyBuffer(), inputStream, recording, buffer);
+			}
+			responseCache.store(recording);
+			reusable = (contentLength != null || chunked) && responseHeaderProcessor.isPersistentConnection();
+		} catch (IOException e) {
+			e.printStackTrace();
+		} finally {
+			responseCache.endFetch(fetch);
+			if (connection != null) {
+				if (reusable) {
+					pool.release(connection);
+				} else {
+					connection.close();
+				}
+			}
+			bufferPool.release(pooledBuffer);
+		}
+	}
+
+}
@@ -0,0 +1,264 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Stream through which a response body is relayed to a client while a copy of it is
+ * kept for the ResponseCache. A chunked body is relayed as it is, and decoded in the
+ * copy. The copy is either kept in a heap buffer, which grows up to a maximum size, or
+ * written to a buffer of the expected body length, such as a region of a DiskCache
+ * segment. It is given up once the body grows beyond the limit, without disturbing the
+ * relay. The recorded body may be read while it is being written, by the clients which
+ * share the response. If the client to which the body is relayed goes away, the body
+ * is still recorded to its end, for the cache and for those clients.
+ * @author Juliano
+ */
+public class BodyRecorder extends OutputStream {
+
+	private static final int INITIAL_BUFFER_SIZE = 1024 * 4;
+
+	private OutputStream outputStream;
+	private int maxLength;
+	private boolean fixedLength;
+	private ChunkedStreamProcessor chunkedProcessor;
+
+	// The recorded data is guarded by the lock, which the readers wait on
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition dataRecorded = lock.newCondition();
+	private ByteBuffer data;
+	private int length;
+	private boolean abandoned;
+	private boolean finished;
+	private IOException relayException;
+
+	/**
+	 * Constructor for a body of unknown length, recorded in a heap buffer.
+	 * @param outputStream The stream to which the body is relayed. May be null, in which case the body is only recorded.
+	 * @param maxLength Maximum length of the recorded body.
+	 * @param chunked Whether the written bytes are chunked-encoded.
+	 */
+	public BodyRecorder(OutputStream outputStream, int maxLength, boolean chunked) {
+		this.outputStream = outputStream;
+		this.maxLength = maxLength;
+		if (chunked) {
+			chunkedProcessor = new ChunkedStreamProcessor(new ChunkedStreamProcessor.Listener() {
+				public void chunkData(byte[] data, int offset, int length) {
+					record(data, offset, length);
+				}
+			});
+		}
+		data = ByteBuffer.allocate(Math.min(INITIAL_BUFFER_SIZE, maxLength));
+	}
+
+	/**
+	 * Constructor for a body of known length, which is not chunked-encoded.
+	 * @param outputStream The stream to which the body is relayed. May be null, in which case the body is only recorded.
+	 * @param target The buffer in which the body is recorded, whose remaining room is the body length.
+	 */
+	public BodyRecorder(OutputStream outputStream, ByteBuffer target) {
+		this.outputStream = outputStream;
+		maxLength = target.remaining();
+		fixedLength = true;
+		data = target;
+	}
+
+	@Override
+	public void write(int b) throws IOException {
+		write(new byte[] { (byte) b }, 0, 1);
+	}
+
+	@Override
+	public void write(byte[] buffer, int offset, int length) throws IOException {
+		if (outputStream != null) {
+			try {
+				outputStream.write(buffer, offset, length);
+			} catch (IOException e) {
+				relayException = e;
+				outputStream = null;
+			}
+		}
+		if (!abandoned) {
+			if (chunkedProcessor != null) {
+				try {
+					chunkedProcessor.process(buffer, offset, length);
+				} catch (IOException e) {
+					abandon();
+				}
+			} else {
+				record(buffer, offset, length);
+			}
+		}
+		// Once the body is neither relayed nor recorded, there is no point in receiving the rest
+		if (abandoned && relayException != null) {
+			throw relayException;
+		}
+	}
+
+	private void record(byte[] buffer, int offset, int length) {
+		lock.lock();
+		try {
+			if (abandoned) {
+				return;
+			}
+			if (length > maxLength - this.length) {
+				abandon();
+				return;
+			}
+			if (length > data.remaining()) {
+				// Only the heap buffers are short of room
+				ByteBuffer larger = ByteBuffer.allocate((int) Math.min(maxLength, Math.max((long) data.capacity() * 2, this.length + length)));
+				data.flip();
+				larger.put(data);
+				data = larger;
+			}
+			data.put(buffer, offset, length);
+			this.length += length;
+			dataRecorded.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Gives up the recording. The readers waiting for more data get an IOException.
+	 */
+	public void abandon() {
+		lock.lock();
+		try {
+			if (!finished) {
+				abandoned = true;
+				data = null;
+				dataRecorded.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Marks the end of the body, which the readers get once they have read all the data.
+	 */
+	public void finish() {
+		lock.lock();
+		try {
+			finished = true;
+			dataRecorded.signalAll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads the recorded body, waiting for the data which is not written yet.
+	 * @param position Position of the data in the body.
+	 * @param buffer Buffer into which the data is read.
+	 * @param offset Offset of the data in the buffer.
+	 * @param length Maximum number of bytes read.
+	 * @return The number of bytes read, or -1 at the end of the complete body.
+	 * @throws IOException If the recording was given up or the body is incomplete.
+	 */
+	public int read(int position, byte[] buffer, int offset, int length) throws IOException {
+		ByteBuffer source;
+		int available;
+		lock.lock();
+		try {
+			try {
+				while(!abandoned && !finished && position >= this.length) {
+					dataRecorded.await();
+				}
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			}
+			if (abandoned) {
+				throw new IOException("The recording of the body was given up");
+			}
+			if (position >= this.length) {
+				if (!isComplete()) {
+					throw new IOException("Incomplete body");
+				}
+				return -1;
+			}
+			source = data.duplicate();
+			available = this.length - position;
+		} finally {
+			lock.unlock();
+		}
+		// The recorded data doesn't change, even when the heap buffer is replaced by a larger one
+		int readLength = Math.min(available, length);
+		source.position(position);
+		source.get(buffer, offset, readLength);
+		return readLength;
+	}
+
+	/**
+	 * @return True if the whole body was recorded: it did not exceed the maximum length,
+	 * it has the expected length if it was known and, if it is chunked, its last chunk
+	 * was written.
+	 */
+	public boolean isComplete() {
+		lock.lock();
+		try {
+			return !abandoned && (!fixedLength || !data.hasRemaining()) && (chunkedProcessor == null || chunkedProcessor.isComplete());
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The number of bytes recorded.
+	 */
+	public int getLength() {
+		lock.lock();
+		try {
+			return length;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * @return The length of the body, or null if it is unknown until its end.
+	 */
+	public Long getExpectedLength() {
+		return fixedLength ? Long.valueOf(maxLength) : null;
+	}
+
+	/**
+	 * @return The exception thrown when the body was relayed, or null if the whole body was relayed.
+	 */
+	public IOException getRelayException() {
+		return relayException;
+	}
+
+	/**
+	 * @return The recorded body, between the position and the limit of the returned buffer,
+	 * or null if the recording was given up.
+	 */
+	public ByteBuffer getBody() {
+		ByteBuffer body;
+		int length;
+		lock.lock();
+		try {
+			if (abandoned) {
+				return null;
+			}
+			body = data.duplicate();
+			length = this.length;
+		} finally {
+			lock.unlock();
+		}
+		body.flip();
+		if (!fixedLength && body.capacity() > length) {
+			// The room left by the growth of the buffer is not kept
+			ByteBuffer trimmed = ByteBuffer.allocate(length);
+			trimmed.put(body);
+			trimmed.flip();
+			return trimmed;
+		}
+		return body;
+	}
+
+}
@@ -0,0 +1,262 @@
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Pool of the buffers used to relay data between the clients and the remote hosts,
+ * shared by every connection. The buffers are grouped in a few size classes, each one
+ * with a bounded list of free heap buffers and another one of free direct buffers.
+ * A request is served by the smallest class which fits it; requests larger than the
+ * largest class are served by unpooled buffers.
+ * In leak detection mode, the pool remembers where each buffer was acquired and
+ * reports the buffers which are garbage collected without being released.
+ * @author Juliano
+ */
+public class BufferPool implements BufferPoolMBean {
+
+	private static final int[] SIZE_CLASSES = { 1024 * 4, 1024 * 16, 1024 * 32, 1024 * 64 };
+
+	private BlockingQueue<ByteBuffer>[] heapBuffers;
+	private BlockingQueue<ByteBuffer>[] directBuffers;
+	private int maxFreePerClass;
+
+	private boolean leakDetection;
+	private Map<Integer, List<LeakTracker>> trackers;
+	private ReferenceQueue<ByteBuffer> collectedBuffers;
+
+	private AtomicLong acquired;
+	private AtomicLong released;
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private AtomicLong leaks;
+
+	/**
+	 * Reference to an acquired buffer, which holds the stack trace of the acquisition.
+	 */
+	private static class LeakTracker extends WeakReference<ByteBuffer> {
+
+		private Integer key;
+		private Throwable origin;
+
+		LeakTracker(ByteBuffer buffer, ReferenceQueue<ByteBuffer> queue) {
+			super(buffer, queue);
+			key = System.identityHashCode(buffer);
+			origin = new Throwable("Buffer of " + buffer.capacity() + " bytes acquired here was never released");
+		}
+
+	}
+
+	/**
+	 * Constructor.
+	 * @param configuration Size of the pool and leak detection flag.
+	 */
+	@SuppressWarnings({ "unchecked", "rawtypes" })
+	public BufferPool(ProxyConfiguration configuration) {
+		maxFreePerClass = configuration.getBufferPoolSize();
+		leakDetection = configuration.isBufferLeakDetection();
+		heapBuffers = new BlockingQueue[SIZE_CLASSES.length];
+		directBuffers = new BlockingQueue[SIZE_CLASSES.length];
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			heapBuffers[i] = new ArrayBlockingQueue<>(Math.max(maxFreePerClass, 1));
+			directBuffers[i] = new ArrayBlockingQueue<>(Math.max(maxFreePerClass, 1));
+		}
+		trackers = new HashMap<>();
+		collectedBuffers = new ReferenceQueue<>();
+		acquired = new AtomicLong();
+		released = new AtomicLong();
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		leaks = new AtomicLong();
+		Metrics.register("BufferPool", this);
+	}
+
+	/**
+	 * Takes a heap buffer from the pool. Its array offset is zero, and its array
+	 * length is its capacity.
+	 * @param capacity Minimum capacity of the buffer.
+	 * @return The buffer, cleared.
+	 */
+	public ByteBuffer acquire(int capacity) {
+		return acquire(capacity, false);
+	}
+
+	/**
+	 * Takes a direct buffer from the pool.
+	 * @param capacity Minimum capacity of the buffer.
+	 * @return The buffer, cleared.
+	 */
+	public ByteBuffer acquireDirect(int capacity) {
+		return acquire(capacity, true);
+	}
+
+	/**
+	 * Returns a buffer to the pool. The caller must not use the buffer after this call.
+	 * Buffers which do not belong to a size class, and buffers which do not fit in the
+	 * pool, are left to the garbage collector. In leak detection mode, a buffer which is
+	 * not in use is reported and ignored, so it can't be handed to two connections.
+	 * @param buffer The buffer. May be null.
+	 */
+	public void release(ByteBuffer buffer) {
+		if (buffer == null) {
+			return;
+		}
+		if (leakDetection && !untrack(buffer)) {
+			new Throwable("Buffer of " + buffer.capacity() + " bytes released twice").printStackTrace();
+			return;
+		}
+		released.incrementAndGet();
+		int sizeClass = sizeClass(buffer.capacity());
+		if (sizeClass >= 0 && SIZE_CLASSES[sizeClass] == buffer.capacity() && maxFreePerClass > 0) {
+			buffer.clear();
+			(buffer.isDirect() ? directBuffers : heapBuffers)[sizeClass].offer(buffer);
+		}
+	}
+
+	@Override
+	public long getInUse() {
+		return acquired.get() - released.get();
+	}
+
+	@Override
+	public int getFree() {
+		int free = 0;
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			free += heapBuffers[i].size() + directBuffers[i].size();
+		}
+		return free;
+	}
+
+	@Override
+	public long getFreeBytes() {
+		long freeBytes = 0;
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			freeBytes += (long) SIZE_CLASSES[i] * (heapBuffers[i].size() + directBuffers[i].size());
+		}
+		return freeBytes;
+	}
+
+	@Override
+	public int getMaxFreePerClass() {
+		return maxFreePerClass;
+	}
+
+	@Override
+	public long getHits() {
+		return hits.get();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public long getLeaks() {
+		if (leakDetection) {
+			reportLeaks();
+		}
+		return leaks.get();
+	}
+
+	private ByteBuffer acquire(int capacity, boolean direct) {
+		acquired.incrementAndGet();
+		int sizeClass = sizeClass(capacity);
+		ByteBuffer buffer = null;
+		if (sizeClass >= 0) {
+			buffer = (direct ? directBuffers : heapBuffers)[sizeClass].poll();
+		}
+		if (buffer != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			int size = sizeClass >= 0 ? SIZE_CLASSES[sizeClass] : capacity;
+			buffer = direct ? ByteBuffer.allocateDirect(size) : ByteBuffer.allocate(size);
+		}
+		if (leakDetection) {
+			reportLeaks();
+			track(buffer);
+		}
+		return buffer;
+	}
+
+	private static int sizeClass(int capacity) {
+		for (int i = 0; i < SIZE_CLASSES.length; i++) {
+			if (capacity <= SIZE_CLASSES[i]) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private void track(ByteBuffer buffer) {
+		LeakTracker tracker = new LeakTracker(buffer, collectedBuffers);
+		synchronized (trackers) {
+			List<LeakTracker> bufferTrackers = trackers.get(tracker.key);
+			if (bufferTrackers == null) {
+				bufferTrackers = new ArrayList<>(1);
+				trackers.put(tracker.key, bufferTrackers);
+			}
+			bufferTrackers.add(tracker);
+		}
+	}
+
+	/**
+	 * @return False if the buffer was not tracked, i.e. not acquired or already released.
+	 */
+	private boolean untrack(ByteBuffer buffer) {
+		Integer key = System.identityHashCode(buffer);
+		boolean tracked = false;
+		synchronized (trackers) {
+			List<LeakTracker> bufferTrackers = trackers.get(key);
+			if (bufferTrackers != null) {
+				Iterator<LeakTracker> iterator = bufferTrackers.iterator();
+				while(iterator.hasNext()) {
+					if (iterator.next().get() == buffer) {
+						iterator.remove();
+						tracked = true;
+						break;
+					}
+				}
+				if (bufferTrackers.isEmpty()) {
+					trackers.remove(key);
+				}
+			}
+		}
+		return tracked;
+	}
+
+	/**
+	 * Reports the buffers which were garbage collected while still tracked, i.e. without being released.
+	 */
+	private void reportLeaks() {
+		LeakTracker tracker = (LeakTracker) collectedBuffers.poll();
+		while(tracker != null) {
+			boolean leaked = false;
+			synchronized (trackers) {
+				List<LeakTracker> bufferTrackers = trackers.get(tracker.key);
+				if (bufferTrackers != null) {
+					leaked = bufferTrackers.remove(tracker);
+					if (bufferTrackers.isEmpty()) {
+						trackers.remove(tracker.key);
+					}
+				}
+			}
+			if (leaked) {
+				leaks.incrementAndGet();
+				// Leaked buffers are not counted as in use forever
+				released.incrementAndGet();
+				tracker.origin.printStackTrace();
+			}
+			tracker = (LeakTracker) collectedBuffers.poll();
+		}
+	}
+
+}
@@ -0,0 +1,42 @@
+/**
+ * Management interface of the BufferPool.
+ * @author Juliano
+ */
+public interface BufferPoolMBean {
+
+	/**
+	 * @return Number of buffers acquired and not released yet.
+	 */
+	long getInUse();
+
+	/**
+	 * @return Number of free buffers kept in the pool.
+	 */
+	int getFree();
+
+	/**
+	 * @return Total capacity, in bytes, of the free buffers kept in the pool.
+	 */
+	long getFreeBytes();
+
+	/**
+	 * @return Maximum number of free buffers kept for each size class, heap and direct buffers apart.
+	 */
+	int getMaxFreePerClass();
+
+	/**
+	 * @return Number of buffers taken from the pool.
+	 */
+	long getHits();
+
+	/**
+	 * @return Number of buffers allocated because the pool had no free buffer of the requested size.
+	 */
+	long getMisses();
+
+	/**
+	 * @return Number of buffers garbage collected without being released. Only counted in leak detection mode.
+	 */
+	long getLeaks();
+
+}
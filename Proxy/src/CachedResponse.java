@@ -0,0 +1,199 @@
+import java.nio.ByteBuffer;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Response stored by the ResponseCache: the status, the end-to-end header fields and the
+ * body of a response to a GET request, along with the request fields selected by its
+ * Vary field. The age and the freshness lifetime are computed once, when the response is
+ * received, as described in RFC 9111 (section 4.2). The object is immutable: a response
+ * freshened by a revalidation is replaced by a new object, so the threads still sending
+ * the previous one are not disturbed. The body is a heap buffer for the responses kept
+ * in memory, and a region of a mapped segment file for the responses of the DiskCache.
+ * @author Juliano
+ */
+public class CachedResponse {
+
+	/**
+	 * Upper bound of the heuristic freshness lifetime, in milliseconds.
+	 */
+	private static final long MAX_HEURISTIC_LIFETIME = 24 * 60 * 60 * 1000;
+
+	private String key;
+	private int statusCode;
+	private Map<String, List<String>> headers;
+	private ByteBuffer body;
+	private Map<String, String> varyFields;
+	private long requestTime;
+	private long responseTime;
+	private long correctedInitialAge;
+	private long freshnessLifetime;
+	private boolean noCache;
+	private boolean mustRevalidate;
+	private String entityTag;
+	private String lastModified;
+
+	/**
+	 * Constructor.
+	 * @param key Key of the requested resource.
+	 * @param statusCode The response status code.
+	 * @param headers The end-to-end header fields of the response.
+	 * @param body The response body, between the position and the limit of the buffer, which must not change.
+	 * @param varyFields Values of the request fields named by the Vary field, keyed by their
+	 * lower case names, a missing field having a null value. Null if the response has no Vary field.
+	 * @param requestTime Time at which the request was sent.
+	 * @param responseTime Time at which the response was received.
+	 */
+	public CachedResponse(String key, int statusCode, Map<String, List<String>> headers, ByteBuffer body, Map<String, String> varyFields, long requestTime, long responseTime) {
+		this.key = key;
+		this.statusCode = statusCode;
+		this.headers = Collections.unmodifiableMap(headers);
+		this.body = body;
+		this.varyFields = varyFields;
+		this.requestTime = requestTime;
+		this.responseTime = responseTime;
+		entityTag = ResponseCache.getField(headers, "ETag");
+		lastModified = ResponseCache.getField(headers, "Last-Modified");
+
+		long date = ResponseCache.parseDate(ResponseCache.getField(headers, "Date"));
+		if (date < 0) {
+			date = responseTime;
+		}
+		long ageValue = ResponseCache.parseSeconds(ResponseCache.getField(headers, "Age"));
+		long apparentAge = Math.max(0, responseTime - date);
+		long correctedAgeValue = Math.max(0, ageValue) * 1000 + (responseTime - requestTime);
+		correctedInitialAge = Math.max(apparentAge, correctedAgeValue);
+
+		Map<String, String> cacheControl = ResponseCache.parseCacheControl(headers);
+		noCache = cacheControl.containsKey("no-cache");
+		mustRevalidate = cacheControl.containsKey("must-revalidate") || cacheControl.containsKey("proxy-revalidate") || cacheControl.containsKey("s-maxage");
+		long sharedMaxAge = ResponseCache.parseSeconds(cacheControl.get("s-maxage"));
+		long maxAge = ResponseCache.parseSeconds(cacheControl.get("max-age"));
+		String expires = ResponseCache.getField(headers, "Expires");
+		if (sharedMaxAge >= 0) {
+			freshnessLifetime = sharedMaxAge * 1000;
+		} else if (maxAge >= 0) {
+			freshnessLifetime = maxAge * 1000;
+		} else if (expires != null) {
+			// An invalid date means the response is already expired
+			long expiresTime = ResponseCache.parseDate(expires);
+			freshnessLifetime = expiresTime < 0 ? 0 : Math.max(0, expiresTime - date);
+		} else if (lastModified != null && ResponseCache.isHeuristicallyCacheable(statusCode)) {
+			// A tenth of the time since the last change, as suggested by RFC 9111 (section 4.2.2)
+			long lastModifiedTime = ResponseCache.parseDate(lastModified);
+			freshnessLifetime = lastModifiedTime < 0 ? 0 : Math.min(MAX_HEURISTIC_LIFETIME, Math.max(0, date - lastModifiedTime) / 10);
+		}
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public int getStatusCode() {
+		return statusCode;
+	}
+
+	/**
+	 * @return The end-to-end header fields, without Content-Length and Age, which are
+	 * computed when the response is sent. The map can't be changed.
+	 */
+	public Map<String, List<String>> getHeaders() {
+		return headers;
+	}
+
+	/**
+	 * @return A view of the body, whose position may be changed by the caller.
+	 */
+	public ByteBuffer getBody() {
+		return body.duplicate();
+	}
+
+	/**
+	 * @return The length of the body, in bytes.
+	 */
+	public int getBodyLength() {
+		return body.remaining();
+	}
+
+	/**
+	 * Get a copy of the response with another body.
+	 * @param body The body.
+	 * @return The new response.
+	 */
+	public CachedResponse withBody(ByteBuffer body) {
+		return new CachedResponse(key, statusCode, headers, body, varyFields, requestTime, responseTime);
+	}
+
+	public Map<String, String> getVaryFields() {
+		return varyFields;
+	}
+
+	public long getRequestTime() {
+		return requestTime;
+	}
+
+	public long getResponseTime() {
+		return responseTime;
+	}
+
+	/**
+	 * Get the current age of the response.
+	 * @param now The current time.
+	 * @return The age, in milliseconds.
+	 */
+	public long getAge(long now) {
+		return correctedInitialAge + Math.max(0, now - responseTime);
+	}
+
+	/**
+	 * @return The time, in milliseconds, during which the response may be served without
+	 * being validated with the remote host.
+	 */
+	public long getFreshnessLifetime() {
+		return freshnessLifetime;
+	}
+
+	/**
+	 * @return True if the response must be validated before every use.
+	 */
+	public boolean isNoCache() {
+		return noCache;
+	}
+
+	/**
+	 * @return True if the response must not be served once it is stale, even if the client accepts it.
+	 */
+	public boolean isMustRevalidate() {
+		return mustRevalidate;
+	}
+
+	public String getEntityTag() {
+		return entityTag;
+	}
+
+	public String getLastModified() {
+		return lastModified;
+	}
+
+	/**
+	 * @return True if the response has a validator with which a conditional request can be sent.
+	 */
+	public boolean hasValidator() {
+		return entityTag != null || lastModified != null;
+	}
+
+	/**
+	 * @return Approximate number of bytes held by the response, counted against the size of the cache.
+	 */
+	public long getWeight() {
+		long weight = key.length() + body.remaining();
+		for (Map.Entry<String, List<String>> field : headers.entrySet()) {
+			for (String value : field.getValue()) {
+				weight += field.getKey().length() + value.length() + 4;
+			}
+		}
+		return weight;
+	}
+
+}
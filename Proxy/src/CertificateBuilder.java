@@ -3,6 +3,7 @@ import java.io.FileInputStream;
 import java.io.IOException;
 import java.security.InvalidKeyException;
 import java.security.Key;
+import java.security.KeyPair;
 import java.security.KeyStore;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
@@ -10,24 +11,34 @@ import java.security.NoSuchProviderException;
 import java.security.PrivateKey;
 import java.security.SignatureException;
 import java.security.UnrecoverableEntryException;
-import java.security.UnrecoverableKeyException;
 import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-
-import sun.security.tools.keytool.CertAndKeyGen;
-import sun.security.x509.X500Name;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
 
 /**
  * SSL Certificates Builder.
  * @author Juliano
  */
 public class CertificateBuilder {
+
+	/**
+	 * Common second level labels of the country code domains, like "co.uk" or "com.br". There's
+	 * no list of public suffixes in the JDK, so wildcards are avoided for these suffixes only.
+	 */
+	private static final Set<String> SECOND_LEVEL_SUFFIXES = new HashSet<>(Arrays.asList("ac", "co", "com", "edu", "go", "gob", "gov", "mil", "ne", "net", "or", "org"));
 	
 	private char[] password;
 	private KeyStore keystore = null;
 	private CertificateKeyPair[] chainCertificatesKeysPairs = null;
 	private CertificateKeyPair signerCertificate = null;
+	private KeyPairPool keyPairPool = null;
+	private KeyPair sharedKeyPair = null;
+	private String leafKeyAlgorithm = null;
+	private LeafCertificateStore store = null;
+	private boolean wildcardCertificates = false;
 
 	/**
 	 * Constructor.
@@ -44,38 +55,127 @@ public class CertificateBuilder {
 	 * @throws SignatureException
 	 */
 	public CertificateBuilder(File keystoreFile, char[] password, String[] entriesAliases) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, IOException, InvalidKeyException, NoSuchProviderException, SignatureException {
+		this(keystoreFile, password, entriesAliases, new ProxyConfiguration());
+	}
+
+	/**
+	 * Constructor.
+	 * @param keystoreFile File containing the keystore in JKS format.
+	 * @param password Password of the keystore file.
+	 * @param entriesAliases Aliases of the parent certificates which will be used to sign the generated certs.
+	 * @param configuration Options of the leaf certificates generation.
+	 * @throws KeyStoreException
+	 * @throws NoSuchAlgorithmException
+	 * @throws CertificateException
+	 * @throws UnrecoverableEntryException
+	 * @throws IOException
+	 * @throws InvalidKeyException
+	 * @throws NoSuchProviderException
+	 * @throws SignatureException
+	 */
+	public CertificateBuilder(File keystoreFile, char[] password, String[] entriesAliases, ProxyConfiguration configuration) throws KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, IOException, InvalidKeyException, NoSuchProviderException, SignatureException {
 		this.password = password;
 		loadCertificates(keystoreFile, password, entriesAliases);
+		leafKeyAlgorithm = configuration.getLeafKeyAlgorithm();
+		wildcardCertificates = configuration.isWildcardCertificates();
+		if (configuration.getLeafStore() != null) {
+			store = new LeafCertificateStore(configuration.getLeafStore(), password);
+		}
+		if (configuration.isSharedLeafKey()) {
+			// Every leaf certificate is issued for the same key pair, so the pool is not needed
+			KeyPairPool generator = new KeyPairPool(configuration.getLeafKeyAlgorithm(), configuration.getLeafKeySize(), 0);
+			sharedKeyPair = generator.take();
+		} else {
+			// Without threads to fill it, the pool would stay empty
+			int keyPoolSize = configuration.getKeyPoolThreads() == 0 ? 0 : configuration.getKeyPoolSize();
+			keyPairPool = new KeyPairPool(configuration.getLeafKeyAlgorithm(), configuration.getLeafKeySize(), keyPoolSize);
+			keyPairPool.start(configuration.getKeyPoolThreads());
+			Metrics.register("KeyPairPool", keyPairPool);
+		}
 	}
 	
 	/**
-	 * Build a SSL Certificate for the specified host name.
-	 * The new certificate will be stored into the loaded keystore in memory,
-	 * but it won't be persisted on file.
+	 * Get the name of the certificate which will be used for the specified host. If the
+	 * wildcard certificates are enabled, hosts which share the same parent domain share
+	 * a single "*.parent" certificate, unless the parent domain looks like a public suffix
+	 * (like "co.uk"), for which browsers don't accept wildcards. Otherwise, the name is
+	 * the host itself.
+	 * @param host Host name.
+	 * @return The certificate name, to be passed to buildLeafCertificate.
+	 */
+	public String getCertificateName(String host) {
+		host = host.toLowerCase();
+		if (!wildcardCertificates || CommonCertificateUtilities.isIPAddress(host)) {
+			return host;
+		}
+		int separatorIndex = host.indexOf('.');
+		if (separatorIndex <= 0) {
+			return host;
+		}
+		String parent = host.substring(separatorIndex + 1);
+		String[] labels = parent.split("\\.");
+		if (labels.length < 2 || (labels.length == 2 && labels[1].length() == 2 && SECOND_LEVEL_SUFFIXES.contains(labels[0]))) {
+			return host;
+		}
+		return "*." + parent;
+	}
+
+	/**
+	 * Build a SSL Certificate for the specified host name, or for the wildcard name returned by getCertificateName.
+	 * The names are also added to the Subject Alternative Name extension: a wildcard certificate covers
+	 * both the "*.parent" and the "parent" names.
+	 * If the leaf certificate store is enabled, a valid certificate previously
+	 * stored for the host is reused, and newly built certificates are added to
+	 * the store. The key pair of a new certificate is the shared leaf key pair,
+	 * if enabled, or is taken from the pool of pre-generated key pairs.
 	 * @param canonicalName Host name.
+	 * @return The private key and the certificate chain of the host.
 	 * @throws NoSuchAlgorithmException
 	 * @throws NoSuchProviderException
 	 * @throws InvalidKeyException
 	 * @throws CertificateException
 	 * @throws SignatureException
 	 * @throws KeyStoreException
-	 * @throws UnrecoverableKeyException
 	 * @throws IOException
 	 */
-	public void buildLeafCertificate(String canonicalName) throws NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException, CertificateException, SignatureException, KeyStoreException, UnrecoverableKeyException, IOException {
+	public KeyStore.PrivateKeyEntry buildLeafCertificate(String canonicalName) throws NoSuchAlgorithmException, NoSuchProviderException, InvalidKeyException, CertificateException, SignatureException, KeyStoreException, IOException {
 		
-		CertAndKeyGen keyGen = new CertAndKeyGen("RSA", "SHA256WithRSA", null);
-		keyGen.generate(2048);
-		PrivateKey leafPrivateKey = keyGen.getPrivateKey();
+		Certificate[] issuerChain = new Certificate[chainCertificatesKeysPairs.length];
+		for (int i = 0; i < chainCertificatesKeysPairs.length; i++) {
+			issuerChain[i] = chainCertificatesKeysPairs[chainCertificatesKeysPairs.length - 1 - i].getCertificate();
+		}
+
+		if (store != null) {
+			KeyStore.PrivateKeyEntry entry = store.load(canonicalName, issuerChain, leafKeyAlgorithm);
+			if (entry != null) {
+				return entry;
+			}
+		}
+
+		KeyPair leafKeyPair = sharedKeyPair != null ? sharedKeyPair : keyPairPool.take();
+		PrivateKey leafPrivateKey = leafKeyPair.getPrivate();
 
-		X509Certificate leafCertificate = keyGen.getSelfCertificate(new X500Name("CN=" + canonicalName), (long) 365 * 24 * 60 * 60);
-		leafCertificate = CommonCertificateUtilities.buildSignedCertificate(leafCertificate, signerCertificate.getCertificate(), signerCertificate.getKey(), true);
+		String[] alternativeNames;
+		if (canonicalName.startsWith("*.")) {
+			alternativeNames = new String[] { canonicalName, canonicalName.substring(2) };
+		} else {
+			alternativeNames = new String[] { canonicalName };
+		}
+		X509Certificate leafCertificate = CommonCertificateUtilities.buildLeafCertificate(canonicalName, alternativeNames, leafKeyPair.getPublic(), (long) 365 * 24 * 60 * 60, signerCertificate.getCertificate(), signerCertificate.getKey());
 		Certificate[] certificateChain = new Certificate[chainCertificatesKeysPairs.length + 1];
 		certificateChain[0] = leafCertificate;
-		for (int i = 1; i <= chainCertificatesKeysPairs.length; i++) {
-			certificateChain[i] = chainCertificatesKeysPairs[chainCertificatesKeysPairs.length - i].getCertificate();
+		System.arraycopy(issuerChain, 0, certificateChain, 1, issuerChain.length);
+
+		if (store != null) {
+			try {
+				store.save(canonicalName, leafPrivateKey, certificateChain);
+			} catch (IOException e) {
+				// The certificate can still be used, it just won't survive a restart
+				e.printStackTrace();
+			}
 		}
-		keystore.setKeyEntry(canonicalName, leafPrivateKey, password, certificateChain);
+
+		return new KeyStore.PrivateKeyEntry(leafPrivateKey, certificateChain);
 		
 	}
 	
@@ -0,0 +1,372 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLEngineResult.HandshakeStatus;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+
+/**
+ * One side of a connection handled by the non-blocking engine. Wraps a SocketChannel
+ * and, optionally, the SSLEngine used to encrypt and decrypt the data exchanged through it.
+ * Decrypted data received from the network is accumulated in the input buffer, while data
+ * passed to the send method is queued in the output buffer until the channel accepts it.
+ * Both buffers are kept in "write mode" (i.e. their positions mark the end of the stored data).
+ * The buffers are taken from the BufferPool and returned to it when the endpoint is closed;
+ * the ones holding encrypted data are direct buffers, since they are only accessed by the channel
+ * and the SSLEngine.
+ * @author Juliano
+ */
+public class ChannelEndpoint {
+
+	private static final int DEFAULT_BUFFER_SIZE = 1024 * 16;
+
+	private SocketChannel channel;
+	private SelectionKey key;
+	private SSLEngine engine;
+	private BufferPool bufferPool;
+
+	private ByteBuffer applicationInput;
+	private ByteBuffer applicationOutput;
+	private ByteBuffer networkInput;
+	private ByteBuffer networkOutput;
+
+	private boolean inputClosed;
+	private boolean outputShutdown;
+
+	/**
+	 * Constructor.
+	 * @param channel The channel in non-blocking mode.
+	 * @param bufferPool Pool from which the buffers are taken.
+	 */
+	public ChannelEndpoint(SocketChannel channel, BufferPool bufferPool) {
+		this.channel = channel;
+		this.bufferPool = bufferPool;
+		applicationInput = bufferPool.acquire(DEFAULT_BUFFER_SIZE);
+		applicationOutput = bufferPool.acquire(DEFAULT_BUFFER_SIZE);
+	}
+
+	/**
+	 * Start using TLS on this endpoint. Every byte sent after this call is encrypted
+	 * by the supplied engine, and every byte received is decrypted by it.
+	 * @param engine The SSLEngine, already configured in client or server mode.
+	 * @param initialData Data already received from the network which must be handled by
+	 * the engine before reading from the channel again. May be null.
+	 * @throws SSLException If the handshake could not be started.
+	 */
+	public void startTLS(SSLEngine engine, byte[] initialData) throws SSLException {
+		this.engine = engine;
+		int packetBufferSize = engine.getSession().getPacketBufferSize();
+		int applicationBufferSize = engine.getSession().getApplicationBufferSize();
+		networkInput = bufferPool.acquireDirect(Math.max(packetBufferSize, initialData != null ? initialData.length : 0));
+		networkOutput = bufferPool.acquireDirect(packetBufferSize);
+		applicationInput = ensureCapacity(applicationInput, applicationBufferSize);
+		if (initialData != null) {
+			networkInput.put(initialData);
+		}
+		engine.beginHandshake();
+	}
+
+	/**
+	 * Reads the data available in the channel. If TLS is in use, the data is decrypted
+	 * and the handshake, if any, is processed.
+	 * @return The number of bytes read from the channel, or -1 if the end of stream was reached.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	public int fill() throws IOException {
+		int readResult;
+		if (engine == null) {
+			if (!applicationInput.hasRemaining()) {
+				applicationInput = ensureCapacity(applicationInput, applicationInput.capacity() * 2);
+			}
+			readResult = channel.read(applicationInput);
+		} else {
+			if (!networkInput.hasRemaining()) {
+				networkInput = ensureCapacity(networkInput, networkInput.capacity() * 2);
+			}
+			readResult = channel.read(networkInput);
+			unwrap();
+		}
+		if (readResult < 0) {
+			inputClosed = true;
+		}
+		return readResult;
+	}
+
+	/**
+	 * Moves the data received on this endpoint straight to the channel of another endpoint,
+	 * through a buffer shared by both channels, so the data never goes through the input and
+	 * output buffers. With a direct buffer, the data is copied only by the kernel, between
+	 * the socket buffers and the shared buffer. Both endpoints must not use TLS, and their
+	 * input and output buffers must be empty.
+	 * @param destination The endpoint to which the data is written.
+	 * @param buffer The shared buffer, in "write mode", holding the data not yet accepted by the destination.
+	 * @return The number of bytes written to the destination channel.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	public int transferTo(ChannelEndpoint destination, ByteBuffer buffer) throws IOException {
+		if (!inputClosed && buffer.hasRemaining() && channel.read(buffer) < 0) {
+			inputClosed = true;
+		}
+		if (buffer.position() == 0) {
+			// The destination output may already be shut down
+			return 0;
+		}
+		buffer.flip();
+		try {
+			return destination.channel.write(buffer);
+		} finally {
+			buffer.compact();
+		}
+	}
+
+	/**
+	 * Queues data to be sent through this endpoint. The data is sent when the
+	 * flush method is called.
+	 * @param data Buffer holding the data.
+	 * @param offset Offset from where to start reading the data.
+	 * @param length Length of the data segment.
+	 */
+	public void send(byte[] data, int offset, int length) {
+		applicationOutput = ensureCapacity(applicationOutput, applicationOutput.position() + length);
+		applicationOutput.put(data, offset, length);
+	}
+
+	/**
+	 * Writes as much of the queued data as the channel accepts without blocking.
+	 * @return True if, and only if, there is no data left to be written.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	public boolean flush() throws IOException {
+		if (engine == null) {
+			applicationOutput.flip();
+			try {
+				channel.write(applicationOutput);
+			} finally {
+				applicationOutput.compact();
+			}
+			return applicationOutput.position() == 0;
+		} else {
+			wrap();
+			networkOutput.flip();
+			try {
+				channel.write(networkOutput);
+			} finally {
+				networkOutput.compact();
+			}
+			return networkOutput.position() == 0 && (applicationOutput.position() == 0 || isHandshaking());
+		}
+	}
+
+	/**
+	 * Returns whether there is data waiting to be written on the channel.
+	 * @return True if, and only if, there is data waiting to be written.
+	 */
+	public boolean hasPendingOutput() {
+		if (engine != null && networkOutput.position() > 0) {
+			return true;
+		}
+		return applicationOutput.position() > 0 && !isHandshaking();
+	}
+
+	/**
+	 * Returns whether this endpoint is performing a TLS handshake.
+	 * @return True if, and only if, the TLS handshake is in progress.
+	 */
+	public boolean isHandshaking() {
+		if (engine == null) {
+			return false;
+		}
+		HandshakeStatus status = engine.getHandshakeStatus();
+		return status != HandshakeStatus.NOT_HANDSHAKING && status != HandshakeStatus.FINISHED;
+	}
+
+	/**
+	 * Returns whether the TLS handshake is waiting for data from the peer.
+	 * @return True if, and only if, the handshake needs to read from the channel.
+	 */
+	public boolean isHandshakeWaitingInput() {
+		return engine != null && engine.getHandshakeStatus() == HandshakeStatus.NEED_UNWRAP;
+	}
+
+	/**
+	 * Returns the buffer holding the received data. The buffer is in "write mode";
+	 * callers must flip it before consuming its content and compact it afterwards.
+	 * @return The buffer holding the received data.
+	 */
+	public ByteBuffer getInput() {
+		return applicationInput;
+	}
+
+	/**
+	 * Returns whether the peer has closed its side of the connection.
+	 * @return True if, and only if, the end of stream was reached.
+	 */
+	public boolean isInputClosed() {
+		return inputClosed;
+	}
+
+	/**
+	 * Shuts down the output of the channel, so the peer reaches the end of stream while
+	 * still being able to send data.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	public void shutdownOutput() throws IOException {
+		outputShutdown = true;
+		channel.shutdownOutput();
+	}
+
+	/**
+	 * Returns whether the output of the channel was shut down.
+	 * @return True if, and only if, shutdownOutput was called.
+	 */
+	public boolean isOutputShutdown() {
+		return outputShutdown;
+	}
+
+	/**
+	 * Get the TLS session of this endpoint.
+	 * @return The session, or null if TLS is not in use.
+	 */
+	public SSLSession getSession() {
+		return engine != null ? engine.getSession() : null;
+	}
+
+	public SocketChannel getChannel() {
+		return channel;
+	}
+
+	public SelectionKey getKey() {
+		return key;
+	}
+
+	public void setKey(SelectionKey key) {
+		this.key = key;
+	}
+
+	/**
+	 * Closes the endpoint and returns its buffers to the pool. The TLS close_notify
+	 * alert is not sent, since the connection is about to be discarded.
+	 */
+	public void close() {
+		if (applicationInput == null) {
+			return;
+		}
+		if (key != null) {
+			key.cancel();
+		}
+		if (engine != null) {
+			engine.closeOutbound();
+		}
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		bufferPool.release(applicationInput);
+		bufferPool.release(applicationOutput);
+		bufferPool.release(networkInput);
+		bufferPool.release(networkOutput);
+		applicationInput = null;
+		applicationOutput = null;
+		networkInput = null;
+		networkOutput = null;
+	}
+
+	private void unwrap() throws IOException {
+		networkInput.flip();
+		try {
+			while(true) {
+				SSLEngineResult result = engine.unwrap(networkInput, applicationInput);
+				switch (result.getStatus()) {
+				case BUFFER_OVERFLOW:
+					applicationInput = ensureCapacity(applicationInput, applicationInput.position() + engine.getSession().getApplicationBufferSize());
+					continue;
+				case BUFFER_UNDERFLOW:
+					if (networkInput.limit() == networkInput.capacity()) {
+						networkInput.compact();
+						networkInput = ensureCapacity(networkInput, engine.getSession().getPacketBufferSize());
+						networkInput.flip();
+					}
+					return;
+				case CLOSED:
+					inputClosed = true;
+					return;
+				default:
+					break;
+				}
+				HandshakeStatus handshakeStatus = runDelegatedTasks(result.getHandshakeStatus());
+				if (handshakeStatus == HandshakeStatus.NEED_WRAP) {
+					wrap();
+				}
+				if (!networkInput.hasRemaining() || (result.bytesConsumed() == 0 && result.bytesProduced() == 0)) {
+					return;
+				}
+			}
+		} finally {
+			networkInput.compact();
+		}
+	}
+
+	private void wrap() throws IOException {
+		applicationOutput.flip();
+		try {
+			while(true) {
+				HandshakeStatus handshakeStatus = runDelegatedTasks(engine.getHandshakeStatus());
+				if (handshakeStatus == HandshakeStatus.NEED_UNWRAP) {
+					return;
+				}
+				if (handshakeStatus != HandshakeStatus.NEED_WRAP && !applicationOutput.hasRemaining()) {
+					return;
+				}
+				SSLEngineResult result = engine.wrap(applicationOutput, networkOutput);
+				switch (result.getStatus()) {
+				case BUFFER_OVERFLOW:
+					networkOutput = ensureCapacity(networkOutput, networkOutput.position() + engine.getSession().getPacketBufferSize());
+					continue;
+				case CLOSED:
+					if (applicationOutput.hasRemaining()) {
+						throw new EOFException();
+					}
+					return;
+				default:
+					break;
+				}
+				if (result.bytesConsumed() == 0 && result.bytesProduced() == 0) {
+					return;
+				}
+			}
+		} finally {
+			applicationOutput.compact();
+		}
+	}
+
+	private HandshakeStatus runDelegatedTasks(HandshakeStatus handshakeStatus) {
+		if (handshakeStatus == HandshakeStatus.NEED_TASK) {
+			Runnable task = engine.getDelegatedTask();
+			while(task != null) {
+				task.run();
+				task = engine.getDelegatedTask();
+			}
+			handshakeStatus = engine.getHandshakeStatus();
+		}
+		return handshakeStatus;
+	}
+
+	private ByteBuffer ensureCapacity(ByteBuffer buffer, int capacity) {
+		if (buffer.capacity() >= capacity) {
+			return buffer;
+		}
+		capacity = Math.max(capacity, buffer.capacity() * 2);
+		ByteBuffer newBuffer = buffer.isDirect() ? bufferPool.acquireDirect(capacity) : bufferPool.acquire(capacity);
+		buffer.flip();
+		newBuffer.put(buffer);
+		bufferPool.release(buffer);
+		return newBuffer;
+	}
+
+}
@@ -1,40 +1,91 @@
 import java.io.IOException;
 import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
 import java.util.HashMap;
 import java.util.Map;
 
 /**
- * Processor for chunked-encoded HTTP messages.
+ * Processor for chunked-encoded HTTP messages. The stream is decoded by a state
+ * machine which looks at each byte once and keeps no copy of the data, so the
+ * chunks may be split at any point across the buffers passed to process. The
+ * payload of the chunks is reported to an optional Listener as ranges of the
+ * supplied buffers.
  * @author Juliano
  */
 public class ChunkedStreamProcessor {
-	
-	private static final String LINE_BREAK = "\r\n";
-	private static final int LINE_BREAK_LENGTH = LINE_BREAK.length();
-	
-	private String content;
+
+	/**
+	 * The last chunk followed by an empty trailer, which ends a chunked stream.
+	 */
+	public static final byte[] LAST_CHUNK = "0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * The line break which follows the payload of each chunk.
+	 */
+	public static final byte[] CHUNK_END = "\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	/**
+	 * Maximum length of the chunk header written by encodeChunkHeader.
+	 */
+	public static final int MAX_CHUNK_HEADER_LENGTH = 18;
+
+	private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+	private static final int MAX_TRAILER_SIZE = 1024 * 8;
+
+	private enum State {
+		SIZE,
+		EXTENSIONS,
+		SIZE_LF,
+		DATA,
+		DATA_CR,
+		DATA_LF,
+		TRAILER_START,
+		TRAILER,
+		TRAILER_LF,
+		LAST_LF,
+		DONE
+	}
+
+	/**
+	 * Receiver of the decoded chunks payload.
+	 */
+	public interface Listener {
+
+		/**
+		 * Called for each segment of chunk payload found in the processed data. A chunk
+		 * split across several buffers is reported in several segments.
+		 * @param data Buffer passed to the process method.
+		 * @param offset Offset of the payload segment in the buffer.
+		 * @param length Length of the payload segment.
+		 * @throws IOException If the listener could not handle the data.
+		 */
+		void chunkData(byte[] data, int offset, int length) throws IOException;
+
+	}
+
+	private Listener listener;
+	private State state;
 	private long currentChunkSize;
-	private boolean skipChunkEndingCRLF;
-	private boolean readingChunkData;
-	private boolean readingTrailer;
-	
+	private int sizeDigits;
+
+	private byte[] trailer;
+	private int trailerLength;
 	private Map<String, String> trailers;
-	
-	private int processingOffset;
-	private int processingLength;
-	
+
 	/**
 	 * Constructor.
 	 */
 	public ChunkedStreamProcessor() {
-		content = "";
-		currentChunkSize = 0;
-		skipChunkEndingCRLF = false;
-		readingChunkData = false;
-		readingTrailer = false;
-		trailers = new HashMap<>();
-		processingOffset = 0;
-		processingLength = 0;
+		this(null);
+	}
+
+	/**
+	 * Constructor.
+	 * @param listener Receiver of the chunks payload. May be null.
+	 */
+	public ChunkedStreamProcessor(Listener listener) {
+		this.listener = listener;
+		state = State.SIZE;
 	}
 
 	/**
@@ -43,142 +94,183 @@ public class ChunkedStreamProcessor {
 	 * @param offset Offset from where to start reading the data.
 	 * @param length Length of the data segment
 	 * @return The position in the specified data buffer where the chunked stream ends. If
-	 * the stream end is not found within the supplied data, -1 is returned.
+	 * the stream end is not found within the supplied data, -1 is returned. If the stream
+	 * had already ended, offset is returned.
 	 * @throws IOException If the processed content violates the chunked transfer coding spec.
 	 */
 	public int process(final byte[] data, final int offset, final int length) throws IOException {
-		
-		this.processingOffset = offset;
-		this.processingLength = length;
-
-		while(processingLength > 0 && !readingTrailer) {
-			if (readingChunkData) {
-				processChunkData(data);
-			} else {
-				int dataOffset = content.length();
-				content = content.concat(new String(data, processingOffset, processingLength, "ASCII7"));
-				int crlfIndex = content.indexOf(LINE_BREAK);
-				if (crlfIndex > 0) {
-					Map<String, String> extensions = null;
-					String chunkHeader = content.substring(0, crlfIndex);
-					String chunkSizeText = chunkHeader;
-					int semicolonIndex = chunkHeader.indexOf(';');
-					content = "";
-					if (semicolonIndex > 0) {
-						chunkSizeText = chunkHeader.substring(0, semicolonIndex);
-						String chunkExtensions = chunkHeader.substring(semicolonIndex + 1);
-						extensions = parseExtensions(chunkExtensions);
-						// TODO Do something with extensions
-					}
-					try {
-						currentChunkSize = Long.parseLong(chunkSizeText, 16);
-					} catch (NumberFormatException e) {
+
+		int end = offset + length;
+		int position = offset;
+		while(position < end) {
+			if (state == State.DATA) {
+				int dataLength = (int) Math.min(currentChunkSize, end - position);
+				if (listener != null) {
+					listener.chunkData(data, position, dataLength);
+				}
+				position += dataLength;
+				currentChunkSize -= dataLength;
+				if (currentChunkSize == 0) {
+					state = State.DATA_CR;
+				}
+				continue;
+			}
+			byte b = data[position++];
+			switch (state) {
+			case SIZE:
+				int digit = hexDigit(b);
+				if (digit >= 0) {
+					if (currentChunkSize > (Long.MAX_VALUE >> 4)) {
 						throw new ProtocolException();
 					}
-					int increment = (crlfIndex + LINE_BREAK_LENGTH - dataOffset);
-					processingOffset = processingOffset + increment;
-					processingLength = processingLength - increment;
-					if (currentChunkSize > 0) {
-						processChunkData(data);
-					} else {
-						readingTrailer = true;
-					}
-				} else if (crlfIndex == 0 && skipChunkEndingCRLF) {
-					content = "";
-					int increment = (crlfIndex + LINE_BREAK_LENGTH - dataOffset);
-					processingOffset = processingOffset + increment;
-					processingLength = processingLength - increment;
-					skipChunkEndingCRLF = false;
+					currentChunkSize = (currentChunkSize << 4) | digit;
+					sizeDigits++;
+				} else if (sizeDigits > 0 && (b == ';' || b == ' ' || b == '\t')) {
+					// The chunk extensions are not used by the proxy
+					state = State.EXTENSIONS;
+				} else if (sizeDigits > 0 && b == '\r') {
+					state = State.SIZE_LF;
 				} else {
-					break;
+					throw new ProtocolException();
 				}
+				break;
+			case EXTENSIONS:
+				if (b == '\r') {
+					state = State.SIZE_LF;
+				}
+				break;
+			case SIZE_LF:
+				expect(b, '\n');
+				sizeDigits = 0;
+				state = currentChunkSize > 0 ? State.DATA : State.TRAILER_START;
+				break;
+			case DATA_CR:
+				expect(b, '\r');
+				state = State.DATA_LF;
+				break;
+			case DATA_LF:
+				expect(b, '\n');
+				state = State.SIZE;
+				break;
+			case TRAILER_START:
+				if (b == '\r') {
+					state = State.LAST_LF;
+				} else {
+					trailerLength = 0;
+					appendTrailer(b);
+					state = State.TRAILER;
+				}
+				break;
+			case TRAILER:
+				if (b == '\r') {
+					state = State.TRAILER_LF;
+				} else {
+					appendTrailer(b);
+				}
+				break;
+			case TRAILER_LF:
+				expect(b, '\n');
+				parseTrailer();
+				state = State.TRAILER_START;
+				break;
+			case LAST_LF:
+				expect(b, '\n');
+				state = State.DONE;
+				return position;
+			case DONE:
+				return offset;
+			default:
+				break;
 			}
 		}
-		
-		if (readingTrailer) {
-			int dataOffset = content.length();
-			content = content.concat(new String(data, processingOffset, processingLength, "ASCII7"));
-			int trailerEnd = processTrailer();
-			if (trailerEnd > 0) {
-				return processingOffset + (trailerEnd - dataOffset);
-			}
-		}
-		
-		return -1;
-		
+
+		return state == State.DONE ? offset : -1;
+
 	}
-	
+
 	/**
-	 * Parse the chunk extensions, if any.
-	 * @param chunkExtensions String containing a sequence of chunk extensions.
-	 * @return A Map of the chunk extensions found.
+	 * Returns whether the end of the chunked stream has been processed.
+	 * @return True if, and only if, the last chunk and the trailer were fully processed.
 	 */
-	private Map<String, String> parseExtensions(String chunkExtensions) {
-		Map<String, String> extensions = new HashMap<>();
-		String[] tokens = chunkExtensions.split(";");
-		for (String token : tokens) {
-			int equalSignIndex = token.indexOf('=');
-			if (equalSignIndex > 0) {
-				String extensionName = token.substring(0, equalSignIndex);
-				String value = token.substring(equalSignIndex + 1);
-				extensions.put(extensionName.trim(), value.trim());
-			} else {
-				extensions.put(token.trim(), null);
-			}
-		}
-		return extensions;
+	public boolean isComplete() {
+		return state == State.DONE;
 	}
-	
+
 	/**
-	 * Processes part of the chunk data.
-	 * @param data Buffer holding part of the chunk data.
+	 * Get the fields sent in the trailer of the stream.
+	 * @return The trailer fields, or null if the trailer was empty.
 	 */
-	private void processChunkData(byte[] data) {
-		if (currentChunkSize > processingLength) {
-			// TODO Do something with data
-			currentChunkSize -= processingLength;
-			processingOffset += processingLength;
-			processingLength = 0;
-			readingChunkData = true;
-		} else {
-			// TODO Do something with data
-			processingOffset += (int) currentChunkSize;
-			processingLength -= (int) currentChunkSize;
-			currentChunkSize = 0;
-			skipChunkEndingCRLF = true;
-			readingChunkData = false;
-		}
+	public Map<String, String> getTrailers() {
+		return trailers;
 	}
-	
+
 	/**
-	 * Process the message trailer.
-	 * @return The position within the buffered content where the trailer ends.
-	 * If the buffered content does not contains the end of the chunked stream,
-	 * -1 is returned.
-	 * @throws ProtocolException If the processed content violates the chunked transfer coding spec.
+	 * Writes the header of a chunk (its size in hexadecimal followed by a line break).
+	 * The payload must be followed by CHUNK_END.
+	 * @param size Size of the chunk payload. Zero writes the header of the last chunk.
+	 * @param buffer Buffer where the header is written. At least MAX_CHUNK_HEADER_LENGTH
+	 * bytes must be available from the offset.
+	 * @param offset Offset from where the header is written.
+	 * @return The length of the header.
 	 */
-	private int processTrailer() throws ProtocolException {
-		int processedLength = 0;
-		int lineBreakIndex = content.indexOf(LINE_BREAK);
-		while(lineBreakIndex > 0) {
-			String trailer = content.substring(0, lineBreakIndex);
-			content = content.substring(lineBreakIndex + LINE_BREAK_LENGTH);
-			processedLength += lineBreakIndex + LINE_BREAK_LENGTH;
-			int delimiterIndex = trailer.indexOf(":");
-			if (delimiterIndex > 0) {
-				String name = trailer.substring(0, delimiterIndex);
-				String value = trailer.substring(delimiterIndex + 1);
-				trailers.put(name.trim(), value.trim());
-				lineBreakIndex = content.indexOf(LINE_BREAK);
-			} else {
+	public static int encodeChunkHeader(long size, byte[] buffer, int offset) {
+		int digits = Math.max(1, (64 - Long.numberOfLeadingZeros(size) + 3) / 4);
+		for (int i = digits - 1; i >= 0; i--) {
+			buffer[offset + i] = HEX_DIGITS[(int) (size & 0xf)];
+			size >>>= 4;
+		}
+		buffer[offset + digits] = '\r';
+		buffer[offset + digits + 1] = '\n';
+		return digits + 2;
+	}
+
+	private void appendTrailer(byte b) throws ProtocolException {
+		if (trailer == null) {
+			trailer = new byte[128];
+		} else if (trailerLength == trailer.length) {
+			if (trailer.length >= MAX_TRAILER_SIZE) {
 				throw new ProtocolException();
 			}
+			byte[] newTrailer = new byte[trailer.length * 2];
+			System.arraycopy(trailer, 0, newTrailer, 0, trailerLength);
+			trailer = newTrailer;
+		}
+		trailer[trailerLength++] = b;
+	}
+
+	/**
+	 * Parse the trailer field stored in the trailer buffer.
+	 * @throws ProtocolException If the field has no name.
+	 */
+	private void parseTrailer() throws ProtocolException {
+		String field = new String(trailer, 0, trailerLength, StandardCharsets.ISO_8859_1);
+		int delimiterIndex = field.indexOf(':');
+		if (delimiterIndex <= 0) {
+			throw new ProtocolException();
+		}
+		if (trailers == null) {
+			trailers = new HashMap<>();
 		}
-		if (lineBreakIndex == 0) {
-			processedLength += 2;
-			return processedLength;
+		trailers.put(field.substring(0, delimiterIndex).trim(), field.substring(delimiterIndex + 1).trim());
+	}
+
+	private static void expect(byte b, char expected) throws ProtocolException {
+		if (b != expected) {
+			throw new ProtocolException();
+		}
+	}
+
+	private static int hexDigit(byte b) {
+		if (b >= '0' && b <= '9') {
+			return b - '0';
+		}
+		if (b >= 'a' && b <= 'f') {
+			return b - 'a' + 10;
+		}
+		if (b >= 'A' && b <= 'F') {
+			return b - 'A' + 10;
 		}
 		return -1;
 	}
-	
+
 }
@@ -1,15 +1,30 @@
 import java.io.IOException;
+import java.math.BigInteger;
 import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
-import java.security.Principal;
 import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
 import java.security.SignatureException;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
+import java.util.Date;
 
+import sun.security.util.DerValue;
+import sun.security.x509.AlgorithmId;
 import sun.security.x509.BasicConstraintsExtension;
+import sun.security.x509.CertificateAlgorithmId;
 import sun.security.x509.CertificateExtensions;
+import sun.security.x509.CertificateSerialNumber;
+import sun.security.x509.CertificateValidity;
+import sun.security.x509.CertificateVersion;
+import sun.security.x509.CertificateX509Key;
+import sun.security.x509.DNSName;
+import sun.security.x509.GeneralName;
+import sun.security.x509.GeneralNames;
+import sun.security.x509.IPAddressName;
+import sun.security.x509.SubjectAlternativeNameExtension;
 import sun.security.x509.X500Name;
 import sun.security.x509.X509CertImpl;
 import sun.security.x509.X509CertInfo;
@@ -20,6 +35,8 @@ import sun.security.x509.X509CertInfo;
  */
 public class CommonCertificateUtilities {
 
+	private static final SecureRandom RANDOM = new SecureRandom();
+
 	/**
 	 * Builds a X509Certificate signed with the specified issuerCertificate. The new
 	 * certificate is built using info from the supplied self-signed certificate.
@@ -37,12 +54,11 @@ public class CommonCertificateUtilities {
 	 */
 	static X509Certificate buildSignedCertificate(X509Certificate certificate, X509Certificate issuerCertificate, PrivateKey issuerPrivateKey, boolean leafCert) throws CertificateException, IOException, InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
 		
-		Principal issuerSubjectDN = issuerCertificate.getSubjectDN();
 		String issuerSigAlgName = issuerCertificate.getSigAlgName();
 
 		byte[] certificateData = certificate.getTBSCertificate();
 		X509CertInfo info = new X509CertInfo(certificateData);
-		info.set(X509CertInfo.ISSUER, (X500Name) issuerSubjectDN);
+		info.set(X509CertInfo.ISSUER, getSubjectName(issuerCertificate));
 
 		if (!leafCert) {
 			CertificateExtensions extensions = new CertificateExtensions();
@@ -57,5 +73,76 @@ public class CommonCertificateUtilities {
 		return signedCertificate;
 		
 	}
-	
+
+	/**
+	 * Builds a X509Certificate for the specified public key, signed with the specified issuerCertificate.
+	 * Unlike buildSignedCertificate, this method does not need a self-signed certificate of the new key,
+	 * so the certificate is signed only once.
+	 * @param canonicalName The Canonical Name of the new certificate subject.
+	 * @param alternativeNames Host names (wildcards allowed) or IP addresses added to the Subject Alternative Name extension.
+	 * @param publicKey The public key of the new certificate.
+	 * @param validity Validity of the new certificate, in seconds.
+	 * @param issuerCertificate The issuer certificate which will be used to sign the new certificate.
+	 * @param issuerPrivateKey The corresponding private key of the issuer certificate.
+	 * @return The newly built signed certificate.
+	 * @throws CertificateException
+	 * @throws IOException
+	 * @throws InvalidKeyException
+	 * @throws NoSuchAlgorithmException
+	 * @throws NoSuchProviderException
+	 * @throws SignatureException
+	 */
+	static X509Certificate buildLeafCertificate(String canonicalName, String[] alternativeNames, PublicKey publicKey, long validity, X509Certificate issuerCertificate, PrivateKey issuerPrivateKey) throws CertificateException, IOException, InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, SignatureException {
+
+		String issuerSigAlgName = issuerCertificate.getSigAlgName();
+		Date notBefore = new Date();
+		Date notAfter = new Date(notBefore.getTime() + validity * 1000);
+
+		X509CertInfo info = new X509CertInfo();
+		info.set(X509CertInfo.VERSION, new CertificateVersion(CertificateVersion.V3));
+		info.set(X509CertInfo.SERIAL_NUMBER, new CertificateSerialNumber(new BigInteger(64, RANDOM)));
+		info.set(X509CertInfo.ALGORITHM_ID, new CertificateAlgorithmId(AlgorithmId.get(issuerSigAlgName)));
+		info.set(X509CertInfo.SUBJECT, new X500Name("CN=" + canonicalName));
+		info.set(X509CertInfo.KEY, new CertificateX509Key(publicKey));
+		info.set(X509CertInfo.VALIDITY, new CertificateValidity(notBefore, notAfter));
+		info.set(X509CertInfo.ISSUER, getSubjectName(issuerCertificate));
+
+		GeneralNames generalNames = new GeneralNames();
+		for (String alternativeName : alternativeNames) {
+			if (isIPAddress(alternativeName)) {
+				generalNames.add(new GeneralName(new IPAddressName(alternativeName)));
+			} else {
+				// The DNSName(String) constructor rejects wildcards
+				generalNames.add(new GeneralName(new DNSName(new DerValue(DerValue.tag_IA5String, alternativeName))));
+			}
+		}
+		CertificateExtensions extensions = new CertificateExtensions();
+		extensions.set(SubjectAlternativeNameExtension.NAME, new SubjectAlternativeNameExtension(generalNames));
+		info.set(X509CertInfo.EXTENSIONS, extensions);
+
+		X509CertImpl signedCertificate = new X509CertImpl(info);
+		signedCertificate.sign(issuerPrivateKey, issuerSigAlgName);
+
+		return signedCertificate;
+
+	}
+
+	/**
+	 * Gets the subject name of a certificate, to be used as the issuer name of the certificates it signs.
+	 * @param certificate The certificate.
+	 * @return The subject name.
+	 */
+	private static X500Name getSubjectName(X509Certificate certificate) {
+		return X500Name.asX500Name(certificate.getSubjectX500Principal());
+	}
+
+	/**
+	 * Checks whether the supplied host is an IPv4 or IPv6 address literal.
+	 * @param host The host.
+	 * @return True if, and only if, the host is an IP address.
+	 */
+	static boolean isIPAddress(String host) {
+		return host.indexOf(':') >= 0 || host.matches("[0-9.]+");
+	}
+
 }
@@ -0,0 +1,682 @@
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Disk tier of the ResponseCache, for the response bodies too large to be kept in memory.
+ * The responses are appended to segment files which are mapped in memory, so the bodies are
+ * written as they are relayed, and sent from the page cache without being copied to the
+ * Java heap. Each record holds the fields of the response followed by its body. The index,
+ * an open addressing hash table from the key hash to the record position, lives in a direct
+ * buffer, so the number of stored responses does not weigh on the heap. It is not saved: at
+ * startup, it is rebuilt by walking the record headers of the segments, skipping over the
+ * bodies. Once the segments reach the maximum size, the oldest one is deleted with its
+ * responses, which are found by walking its record headers. A segment file which can't be
+ * deleted yet, e.g. because it is still mapped on Windows, keeps counting against the
+ * maximum size until its deletion succeeds, and is marked so it is not indexed again
+ * after a restart. A body may be written in any order, and over a long time: the room reserved
+ * for a resource of which only some ranges are known is filled in as they arrive, the
+ * untouched pages of the segment file taking no room on the disk.
+ * @author Juliano
+ */
+public class DiskCache implements DiskCacheMBean {
+
+	private static final int MAGIC = 0x48435231;
+
+	/**
+	 * States of a record: its body is being written, it is in the index, or it was replaced or given up.
+	 */
+	private static final byte STATE_RESERVED = 0;
+	private static final byte STATE_COMMITTED = 1;
+	private static final byte STATE_REMOVED = 2;
+
+	/**
+	 * Layout of a record header: magic number, state, key hash, capacity and length of the
+	 * fields, and length of the body. The fields and the body follow the header.
+	 */
+	private static final int MAGIC_OFFSET = 0;
+	private static final int STATE_OFFSET = 4;
+	private static final int HASH_OFFSET = 8;
+	private static final int METADATA_CAPACITY_OFFSET = 16;
+	private static final int METADATA_LENGTH_OFFSET = 20;
+	private static final int BODY_LENGTH_OFFSET = 24;
+	private static final int RECORD_HEADER_LENGTH = 32;
+
+	/**
+	 * Room left after the fields, so the fields of a freshened response can be written over the stored ones.
+	 */
+	private static final int METADATA_SLACK = 256;
+
+	/**
+	 * Layout of an index slot: key hash, zero for a free slot, segment number and record offset.
+	 */
+	private static final int SLOT_HASH_OFFSET = 0;
+	private static final int SLOT_SEGMENT_OFFSET = 8;
+	private static final int SLOT_RECORD_OFFSET = 12;
+	private static final int SLOT_LENGTH = 16;
+	private static final int INITIAL_SLOTS = 1024;
+
+	private static final String SEGMENT_PREFIX = "segment-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+	private static final String DELETED_SUFFIX = ".deleted";
+
+	private File directory;
+	private long maxSize;
+	private int segmentSize;
+
+	// The segments, oldest first, and the index are guarded by this
+	private TreeMap<Integer, Segment> segments;
+	private Segment activeSegment;
+	private int nextSegmentId;
+	private Map<File, Long> undeletedSegments;
+	private long size;
+	private ByteBuffer index;
+	private int slotMask;
+	private int entries;
+
+	private AtomicLong stores;
+	private AtomicLong evictions;
+	private long rebuildTime;
+
+	/**
+	 * Constructor. The responses stored in the directory before a restart are indexed.
+	 * @param directory Directory of the segment files. It is created if it does not exist.
+	 * @param maxSize Maximum number of bytes taken by the segment files.
+	 * @param segmentSize Size of each segment file, which is also the limit of a stored response.
+	 * @throws IOException If the directory could not be created.
+	 */
+	public DiskCache(File directory, long maxSize, int segmentSize) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create the directory " + directory);
+		}
+		this.directory = directory;
+		this.maxSize = maxSize;
+		this.segmentSize = segmentSize;
+		segments = new TreeMap<>();
+		undeletedSegments = new LinkedHashMap<>();
+		index = ByteBuffer.allocateDirect(INITIAL_SLOTS * SLOT_LENGTH);
+		slotMask = INITIAL_SLOTS - 1;
+		stores = new AtomicLong();
+		evictions = new AtomicLong();
+
+		long start = System.currentTimeMillis();
+		File[] files = directory.listFiles();
+		for (File file : files != null ? files : new File[0]) {
+			int id = getSegmentId(file.getName());
+			if (id >= 0) {
+				nextSegmentId = Math.max(nextSegmentId, id + 1);
+				if (getDeletionMarker(file).exists()) {
+					// Evicted before the restart, it is deleted by evict
+					undeletedSegments.put(file, file.length());
+					size += file.length();
+					continue;
+				}
+				try {
+					segments.put(id, openSegment(id, file, false));
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		}
+		synchronized (this) {
+			// The segments are walked in order, so the last record of a key wins
+			for (Segment segment : segments.values()) {
+				scan(segment);
+				size += segment.buffer.capacity();
+			}
+			if (!segments.isEmpty()) {
+				activeSegment = segments.lastEntry().getValue();
+			}
+			evict();
+		}
+		rebuildTime = System.currentTimeMillis() - start;
+		Metrics.register("DiskCache", this);
+	}
+
+	/**
+	 * Reserves the room of a response in the current segment, and writes its fields. The
+	 * body is written by the caller in the returned buffer, and the response is found by
+	 * the lookups only once it is committed.
+	 * @param response The response, whose body is ignored.
+	 * @param bodyLength The length of the body.
+	 * @return The reservation, or null if the response can't be stored.
+	 */
+	public Reservation reserve(CachedResponse response, long bodyLength) {
+		byte[] metadata;
+		try {
+			metadata = serialize(response);
+		} catch (IOException e) {
+			// A field longer than 64 KB
+			return null;
+		}
+		int metadataCapacity = metadata.length + METADATA_SLACK;
+		long recordLength = getRecordLength(metadataCapacity, bodyLength);
+		if (recordLength > segmentSize) {
+			return null;
+		}
+		synchronized (this) {
+			if (activeSegment == null || activeSegment.writePosition + recordLength > activeSegment.buffer.capacity()) {
+				try {
+					activeSegment = createSegment();
+				} catch (IOException e) {
+					e.printStackTrace();
+					return null;
+				}
+			}
+			Segment segment = activeSegment;
+			int offset = segment.writePosition;
+			segment.writePosition += (int) recordLength;
+			ByteBuffer buffer = segment.buffer;
+			long hash = getHash(response.getKey());
+			buffer.put(offset + STATE_OFFSET, STATE_RESERVED);
+			buffer.putLong(offset + HASH_OFFSET, hash);
+			buffer.putInt(offset + METADATA_CAPACITY_OFFSET, metadataCapacity);
+			buffer.putInt(offset + METADATA_LENGTH_OFFSET, metadata.length);
+			buffer.putLong(offset + BODY_LENGTH_OFFSET, bodyLength);
+			slice(buffer, offset + RECORD_HEADER_LENGTH, metadata.length).put(metadata);
+			// Written last, since the walk of the segment stops at the first record without it
+			buffer.putInt(offset + MAGIC_OFFSET, MAGIC);
+			return new Reservation(segment, offset, hash, slice(buffer, offset + RECORD_HEADER_LENGTH + metadataCapacity, (int) bodyLength));
+		}
+	}
+
+	/**
+	 * Adds a response whose body was written to the index, replacing the previous response
+	 * of the same resource.
+	 * @param reservation The reservation of the response.
+	 * @return True if the response was stored, false if its segment was deleted meanwhile.
+	 */
+	public synchronized boolean commit(Reservation reservation) {
+		Segment segment = reservation.segment;
+		if (segments.get(segment.id) != segment) {
+			return false;
+		}
+		segment.buffer.put(reservation.offset + STATE_OFFSET, STATE_COMMITTED);
+		insert(reservation.hash, segment.id, reservation.offset);
+		stores.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Gives up a reservation, whose body could not be written.
+	 * @param reservation The reservation.
+	 */
+	public synchronized void abort(Reservation reservation) {
+		Segment segment = reservation.segment;
+		if (segments.get(segment.id) == segment) {
+			segment.buffer.put(reservation.offset + STATE_OFFSET, STATE_REMOVED);
+		}
+	}
+
+	/**
+	 * Tells whether the room of a reservation is still kept, i.e. its segment was not deleted
+	 * to make room for newer responses.
+	 * @param reservation The reservation.
+	 * @return True if the reservation may still be committed.
+	 */
+	public synchronized boolean isKept(Reservation reservation) {
+		return segments.get(reservation.segment.id) == reservation.segment;
+	}
+
+	/**
+	 * Looks up the response stored for a resource.
+	 * @param key The key of the resource.
+	 * @return The response, whose body is a read-only view of its segment, or null if there is none.
+	 */
+	public CachedResponse get(String key) {
+		ByteBuffer buffer;
+		byte[] metadata;
+		int bodyOffset;
+		long bodyLength;
+		synchronized (this) {
+			int slot = findSlot(getHash(key));
+			if (slot < 0) {
+				return null;
+			}
+			buffer = segments.get(index.getInt(slot * SLOT_LENGTH + SLOT_SEGMENT_OFFSET)).buffer;
+			int offset = index.getInt(slot * SLOT_LENGTH + SLOT_RECORD_OFFSET);
+			// The fields may be written over by update, unlike the body
+			metadata = new byte[buffer.getInt(offset + METADATA_LENGTH_OFFSET)];
+			slice(buffer, offset + RECORD_HEADER_LENGTH, metadata.length).get(metadata);
+			bodyOffset = offset + RECORD_HEADER_LENGTH + buffer.getInt(offset + METADATA_CAPACITY_OFFSET);
+			bodyLength = buffer.getLong(offset + BODY_LENGTH_OFFSET);
+		}
+		try {
+			CachedResponse response = deserialize(metadata, slice(buffer, bodyOffset, (int) bodyLength).asReadOnlyBuffer());
+			// Different keys with the same hash
+			return response.getKey().equals(key) ? response : null;
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Writes the fields of a freshened response over those of the stored one. The response
+	 * is removed if its new fields don't fit in the room of the previous ones.
+	 * @param response The freshened response.
+	 */
+	public void update(CachedResponse response) {
+		byte[] metadata;
+		try {
+			metadata = serialize(response);
+		} catch (IOException e) {
+			metadata = null;
+		}
+		synchronized (this) {
+			int slot = findSlot(getHash(response.getKey()));
+			if (slot < 0) {
+				return;
+			}
+			ByteBuffer buffer = segments.get(index.getInt(slot * SLOT_LENGTH + SLOT_SEGMENT_OFFSET)).buffer;
+			int offset = index.getInt(slot * SLOT_LENGTH + SLOT_RECORD_OFFSET);
+			if (buffer.getLong(offset + BODY_LENGTH_OFFSET) != response.getBodyLength()) {
+				// Another response of the resource was stored meanwhile
+				return;
+			}
+			if (metadata != null && metadata.length <= buffer.getInt(offset + METADATA_CAPACITY_OFFSET)) {
+				slice(buffer, offset + RECORD_HEADER_LENGTH, metadata.length).put(metadata);
+				buffer.putInt(offset + METADATA_LENGTH_OFFSET, metadata.length);
+			} else {
+				buffer.put(offset + STATE_OFFSET, STATE_REMOVED);
+				deleteSlot(slot);
+			}
+		}
+	}
+
+	/**
+	 * Removes the response stored for a resource.
+	 * @param key The key of the resource.
+	 * @return True if a response was removed.
+	 */
+	public synchronized boolean remove(String key) {
+		int slot = findSlot(getHash(key));
+		if (slot < 0) {
+			return false;
+		}
+		ByteBuffer buffer = segments.get(index.getInt(slot * SLOT_LENGTH + SLOT_SEGMENT_OFFSET)).buffer;
+		buffer.put(index.getInt(slot * SLOT_LENGTH + SLOT_RECORD_OFFSET) + STATE_OFFSET, STATE_REMOVED);
+		deleteSlot(slot);
+		return true;
+	}
+
+	@Override
+	public synchronized int getEntries() {
+		return entries;
+	}
+
+	@Override
+	public synchronized long getSize() {
+		return size;
+	}
+
+	@Override
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public synchronized int getSegments() {
+		return segments.size();
+	}
+
+	@Override
+	public long getStores() {
+		return stores.get();
+	}
+
+	@Override
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public long getRebuildTime() {
+		return rebuildTime;
+	}
+
+	/**
+	 * Indexes the committed records of a segment, and finds the end of its written part.
+	 */
+	private void scan(Segment segment) {
+		ByteBuffer buffer = segment.buffer;
+		int offset = 0;
+		while(offset + RECORD_HEADER_LENGTH <= buffer.capacity() && buffer.getInt(offset + MAGIC_OFFSET) == MAGIC) {
+			int metadataCapacity = buffer.getInt(offset + METADATA_CAPACITY_OFFSET);
+			long bodyLength = buffer.getLong(offset + BODY_LENGTH_OFFSET);
+			long recordLength = getRecordLength(metadataCapacity, bodyLength);
+			if (metadataCapacity < 0 || bodyLength < 0 || offset + recordLength > buffer.capacity()) {
+				System.err.println("Damaged record at " + offset + " in " + segment.file);
+				break;
+			}
+			if (buffer.get(offset + STATE_OFFSET) == STATE_COMMITTED) {
+				insert(buffer.getLong(offset + HASH_OFFSET), segment.id, offset);
+			}
+			offset += (int) recordLength;
+		}
+		segment.writePosition = offset;
+	}
+
+	private Segment createSegment() throws IOException {
+		int id = nextSegmentId++;
+		Segment segment = openSegment(id, new File(directory, String.format("%s%08d%s", SEGMENT_PREFIX, id, SEGMENT_SUFFIX)), true);
+		segments.put(id, segment);
+		size += segment.buffer.capacity();
+		evict();
+		return segment;
+	}
+
+	private Segment openSegment(int id, File file, boolean create) throws IOException {
+		try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+			if (create) {
+				randomAccessFile.setLength(segmentSize);
+			}
+			long length = randomAccessFile.length();
+			if (length > Integer.MAX_VALUE) {
+				throw new IOException("Segment too large: " + file);
+			}
+			// The mapping stays valid once the file is closed
+			MappedByteBuffer buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+			return new Segment(id, file, buffer);
+		}
+	}
+
+	/**
+	 * Deletes the oldest segments, and their responses, until the size is below the maximum.
+	 * The current segment is always kept. The responses being sent from a deleted segment
+	 * are not disturbed, since its mapping lasts until their buffers are collected.
+	 */
+	private void evict() {
+		retryDeletions();
+		while(size > maxSize && segments.size() > 1) {
+			Segment oldest = segments.pollFirstEntry().getValue();
+			// The index entries of the segment are found through its records, whose headers hold their key hash
+			ByteBuffer buffer = oldest.buffer;
+			int offset = 0;
+			while(offset < oldest.writePosition) {
+				int slot = findSlot(buffer.getLong(offset + HASH_OFFSET));
+				if (slot >= 0 && index.getInt(slot * SLOT_LENGTH + SLOT_SEGMENT_OFFSET) == oldest.id && index.getInt(slot * SLOT_LENGTH + SLOT_RECORD_OFFSET) == offset) {
+					deleteSlot(slot);
+					evictions.incrementAndGet();
+				}
+				offset += (int) getRecordLength(buffer.getInt(offset + METADATA_CAPACITY_OFFSET), buffer.getLong(offset + BODY_LENGTH_OFFSET));
+			}
+			long length = buffer.capacity();
+			if (oldest.file.delete()) {
+				size -= length;
+			} else {
+				try {
+					getDeletionMarker(oldest.file).createNewFile();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+				undeletedSegments.put(oldest.file, length);
+			}
+		}
+	}
+
+	/**
+	 * Deletes the segment files whose deletion failed before.
+	 */
+	private void retryDeletions() {
+		Iterator<Map.Entry<File, Long>> iterator = undeletedSegments.entrySet().iterator();
+		while(iterator.hasNext()) {
+			Map.Entry<File, Long> segment = iterator.next();
+			File file = segment.getKey();
+			if (file.delete() || !file.exists()) {
+				size -= segment.getValue();
+				getDeletionMarker(file).delete();
+				iterator.remove();
+			}
+		}
+	}
+
+	private static File getDeletionMarker(File segmentFile) {
+		return new File(segmentFile.getPath() + DELETED_SUFFIX);
+	}
+
+	private int getHomeSlot(long hash) {
+		return (int) (hash ^ (hash >>> 32)) & slotMask;
+	}
+
+	/**
+	 * @return The slot of the key hash, or -1 if it is not in the index.
+	 */
+	private int findSlot(long hash) {
+		int slot = getHomeSlot(hash);
+		while(true) {
+			long slotHash = index.getLong(slot * SLOT_LENGTH + SLOT_HASH_OFFSET);
+			if (slotHash == hash) {
+				return slot;
+			}
+			if (slotHash == 0) {
+				return -1;
+			}
+			slot = (slot + 1) & slotMask;
+		}
+	}
+
+	/**
+	 * Points the key hash to a record. The record it pointed to before is marked as removed,
+	 * so it is not indexed again after a restart.
+	 */
+	private void insert(long hash, int segmentId, int offset) {
+		int slot = getHomeSlot(hash);
+		while(true) {
+			long slotHash = index.getLong(slot * SLOT_LENGTH + SLOT_HASH_OFFSET);
+			if (slotHash == 0) {
+				entries++;
+				break;
+			}
+			if (slotHash == hash) {
+				Segment previous = segments.get(index.getInt(slot * SLOT_LENGTH + SLOT_SEGMENT_OFFSET));
+				if (previous != null) {
+					previous.buffer.put(index.getInt(slot * SLOT_LENGTH + SLOT_RECORD_OFFSET) + STATE_OFFSET, STATE_REMOVED);
+				}
+				break;
+			}
+			slot = (slot + 1) & slotMask;
+		}
+		index.putLong(slot * SLOT_LENGTH + SLOT_HASH_OFFSET, hash);
+		index.putInt(slot * SLOT_LENGTH + SLOT_SEGMENT_OFFSET, segmentId);
+		index.putInt(slot * SLOT_LENGTH + SLOT_RECORD_OFFSET, offset);
+		// Half of the slots are kept free, so the probe sequences stay short
+		if (entries * 2 > slotMask + 1) {
+			growIndex();
+		}
+	}
+
+	/**
+	 * Frees a slot, moving back the entries of the same probe sequence which follow it,
+	 * so no tombstone is needed.
+	 */
+	private void deleteSlot(int slot) {
+		entries--;
+		int hole = slot;
+		int next = slot;
+		while(true) {
+			next = (next + 1) & slotMask;
+			long hash = index.getLong(next * SLOT_LENGTH + SLOT_HASH_OFFSET);
+			if (hash == 0) {
+				break;
+			}
+			// The entry may fill the hole if the hole lies between its home slot and its slot
+			int home = getHomeSlot(hash);
+			if (((next - home) & slotMask) >= ((next - hole) & slotMask)) {
+				index.putLong(hole * SLOT_LENGTH + SLOT_HASH_OFFSET, hash);
+				index.putLong(hole * SLOT_LENGTH + SLOT_SEGMENT_OFFSET, index.getLong(next * SLOT_LENGTH + SLOT_SEGMENT_OFFSET));
+				hole = next;
+			}
+		}
+		index.putLong(hole * SLOT_LENGTH + SLOT_HASH_OFFSET, 0);
+	}
+
+	private void growIndex() {
+		ByteBuffer previous = index;
+		int slots = (slotMask + 1) * 2;
+		index = ByteBuffer.allocateDirect(slots * SLOT_LENGTH);
+		slotMask = slots - 1;
+		for (int i = 0; i < previous.capacity(); i += SLOT_LENGTH) {
+			long hash = previous.getLong(i + SLOT_HASH_OFFSET);
+			if (hash != 0) {
+				int slot = getHomeSlot(hash);
+				while(index.getLong(slot * SLOT_LENGTH + SLOT_HASH_OFFSET) != 0) {
+					slot = (slot + 1) & slotMask;
+				}
+				index.putLong(slot * SLOT_LENGTH + SLOT_HASH_OFFSET, hash);
+				index.putLong(slot * SLOT_LENGTH + SLOT_SEGMENT_OFFSET, previous.getLong(i + SLOT_SEGMENT_OFFSET));
+			}
+		}
+	}
+
+	/**
+	 * 64-bit FNV-1a hash of a key. Zero, which marks the free slots, is never returned.
+	 */
+	static long getHash(String key) {
+		long hash = 0xcbf29ce484222325L;
+		for (int i = 0; i < key.length(); i++) {
+			hash ^= key.charAt(i);
+			hash *= 0x100000001b3L;
+		}
+		return hash == 0 ? 1 : hash;
+	}
+
+	private static long getRecordLength(int metadataCapacity, long bodyLength) {
+		// The records are aligned on 8 bytes
+		return (RECORD_HEADER_LENGTH + metadataCapacity + bodyLength + 7) & ~7L;
+	}
+
+	private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+		ByteBuffer view = buffer.duplicate();
+		view.position(offset);
+		view.limit(offset + length);
+		return view.slice();
+	}
+
+	private static int getSegmentId(String name) {
+		if (!name.startsWith(SEGMENT_PREFIX) || !name.endsWith(SEGMENT_SUFFIX)) {
+			return -1;
+		}
+		try {
+			return Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static byte[] serialize(CachedResponse response) throws IOException {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		DataOutputStream output = new DataOutputStream(bytes);
+		output.writeUTF(response.getKey());
+		output.writeInt(response.getStatusCode());
+		output.writeLong(response.getRequestTime());
+		output.writeLong(response.getResponseTime());
+		Map<String, String> varyFields = response.getVaryFields();
+		output.writeInt(varyFields != null ? varyFields.size() : -1);
+		if (varyFields != null) {
+			for (Map.Entry<String, String> field : varyFields.entrySet()) {
+				output.writeUTF(field.getKey());
+				output.writeBoolean(field.getValue() != null);
+				if (field.getValue() != null) {
+					output.writeUTF(field.getValue());
+				}
+			}
+		}
+		output.writeInt(response.getHeaders().size());
+		for (Map.Entry<String, List<String>> field : response.getHeaders().entrySet()) {
+			output.writeUTF(field.getKey());
+			output.writeInt(field.getValue().size());
+			for (String value : field.getValue()) {
+				output.writeUTF(value);
+			}
+		}
+		output.flush();
+		return bytes.toByteArray();
+	}
+
+	private static CachedResponse deserialize(byte[] metadata, ByteBuffer body) throws IOException {
+		DataInputStream input = new DataInputStream(new ByteArrayInputStream(metadata));
+		String key = input.readUTF();
+		int statusCode = input.readInt();
+		long requestTime = input.readLong();
+		long responseTime = input.readLong();
+		Map<String, String> varyFields = null;
+		int varyCount = input.readInt();
+		if (varyCount >= 0) {
+			varyFields = new HashMap<>();
+			for (int i = 0; i < varyCount; i++) {
+				String name = input.readUTF();
+				varyFields.put(name, input.readBoolean() ? input.readUTF() : null);
+			}
+		}
+		Map<String, List<String>> headers = new LinkedHashMap<>();
+		int fieldCount = input.readInt();
+		for (int i = 0; i < fieldCount; i++) {
+			String name = input.readUTF();
+			int valueCount = input.readInt();
+			List<String> values = new ArrayList<>(valueCount);
+			for (int j = 0; j < valueCount; j++) {
+				values.add(input.readUTF());
+			}
+			headers.put(name, values);
+		}
+		return new CachedResponse(key, statusCode, headers, body, varyFields, requestTime, responseTime);
+	}
+
+	/**
+	 * Room of a response in a segment, whose body is being written.
+	 */
+	public static class Reservation {
+
+		private Segment segment;
+		private int offset;
+		private long hash;
+		private ByteBuffer body;
+
+		private Reservation(Segment segment, int offset, long hash, ByteBuffer body) {
+			this.segment = segment;
+			this.offset = offset;
+			this.hash = hash;
+			this.body = body;
+		}
+
+		/**
+		 * @return The buffer in which the body is written, whose capacity is the body length.
+		 */
+		public ByteBuffer getBody() {
+			return body;
+		}
+
+	}
+
+	private static class Segment {
+
+		private int id;
+		private File file;
+		private MappedByteBuffer buffer;
+		private int writePosition;
+
+		private Segment(int id, File file, MappedByteBuffer buffer) {
+			this.id = id;
+			this.file = file;
+			this.buffer = buffer;
+		}
+
+	}
+
+}
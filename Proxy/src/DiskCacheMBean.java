@@ -0,0 +1,42 @@
+/**
+ * Management interface of the DiskCache.
+ * @author Juliano
+ */
+public interface DiskCacheMBean {
+
+	/**
+	 * @return Number of responses stored.
+	 */
+	int getEntries();
+
+	/**
+	 * @return Number of bytes taken by the segment files.
+	 */
+	long getSize();
+
+	/**
+	 * @return Maximum number of bytes taken by the segment files.
+	 */
+	long getMaxSize();
+
+	/**
+	 * @return Number of segment files.
+	 */
+	int getSegments();
+
+	/**
+	 * @return Number of responses stored since the startup.
+	 */
+	long getStores();
+
+	/**
+	 * @return Number of responses dropped with the oldest segment files.
+	 */
+	long getEvictions();
+
+	/**
+	 * @return Time, in milliseconds, taken at startup to rebuild the index from the segment files.
+	 */
+	long getRebuildTime();
+
+}
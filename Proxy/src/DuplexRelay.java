@@ -0,0 +1,96 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+
+/**
+ * Relay used by the blocking engine once a connection is switched to another protocol
+ * (101 Switching Protocols, e.g. WebSockets), and for the CONNECT requests of the hosts
+ * which are not bumped. The messages are not delimited, so the data received from each side is copied to the other one as it arrives, in both
+ * directions at the same time: the data sent by the client is copied by a task submitted
+ * to the executor, while the calling thread copies the data sent by the remote host.
+ * @author Juliano
+ */
+public class DuplexRelay {
+
+	private static final int BUFFER_SIZE = 1024 * 16;
+	private static final long IDLE_TIMEOUT = 5 * 60 * 1000;
+
+	private BufferPool bufferPool;
+	private Executor executor;
+	private RelayStatistics statistics;
+
+	private volatile long lastActivity;
+
+	/**
+	 * Constructor.
+	 * @param bufferPool Pool from which the buffer of the client side is taken.
+	 * @param executor Executor which runs the copy of the client side.
+	 * @param statistics Counters of the relayed data.
+	 */
+	public DuplexRelay(BufferPool bufferPool, Executor executor, RelayStatistics statistics) {
+		this.bufferPool = bufferPool;
+		this.executor = executor;
+		this.statistics = statistics;
+	}
+
+	/**
+	 * Relays the data until the remote host closes its side of the connection, or until
+	 * neither side sends anything for five minutes. When the client closes its side, the
+	 * remote host output is shut down, so the remote host sees the end of the stream too.
+	 * The caller must close both sockets afterwards, which also stops the client side copy.
+	 * @param clientSocket The client socket.
+	 * @param remoteSocket The remote host socket.
+	 * @param buffer Buffer used to copy the data sent by the remote host.
+	 * @throws IOException If the remote host side copy failed.
+	 */
+	public void run(final Socket clientSocket, final Socket remoteSocket, byte[] buffer) throws IOException {
+		lastActivity = System.currentTimeMillis();
+		executor.execute(new Runnable() {
+			public void run() {
+				ByteBuffer clientBuffer = bufferPool.acquire(BUFFER_SIZE);
+				try {
+					pump(clientSocket.getInputStream(), remoteSocket.getOutputStream(), clientBuffer.array(), true);
+					remoteSocket.shutdownOutput();
+				} catch (IOException | UnsupportedOperationException e) {
+					// The relay is over; the sockets are closed by the thread which called run
+				} finally {
+					bufferPool.release(clientBuffer);
+				}
+			}
+		});
+		pump(remoteSocket.getInputStream(), clientSocket.getOutputStream(), buffer, false);
+	}
+
+	/**
+	 * Copies the data from a stream to another one until the end of the input stream.
+	 * The read timeouts of the sockets are ignored while the other direction is active.
+	 */
+	private void pump(InputStream inputStream, OutputStream outputStream, byte[] buffer, boolean upstream) throws IOException {
+		while(true) {
+			int readResult;
+			try {
+				readResult = inputStream.read(buffer, 0, buffer.length);
+			} catch (SocketTimeoutException e) {
+				if (System.currentTimeMillis() - lastActivity < IDLE_TIMEOUT) {
+					continue;
+				}
+				throw e;
+			}
+			if (readResult < 0) {
+				return;
+			}
+			outputStream.write(buffer, 0, readResult);
+			lastActivity = System.currentTimeMillis();
+			if (upstream) {
+				statistics.addUpstreamBytes(readResult);
+			} else {
+				statistics.addDownstreamBytes(readResult);
+			}
+		}
+	}
+
+}
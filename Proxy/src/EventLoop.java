@@ -0,0 +1,126 @@
+import java.io.IOException;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Thread which owns a Selector and dispatches the readiness events of the channels
+ * registered on it. Every channel registered on a loop must only be handled by
+ * the loop thread; other threads interact with it through the execute method.
+ * @author Juliano
+ */
+public class EventLoop extends Thread {
+
+	private static final long SELECT_TIMEOUT = 1000;
+
+	private Selector selector;
+	private Queue<Runnable> tasks;
+	private Runnable periodicTask;
+
+	/**
+	 * Handler of the events of a registered channel.
+	 */
+	public interface Handler {
+
+		/**
+		 * Called by the loop thread when the channel is ready for one or more of the operations
+		 * in its interest set.
+		 * @param key The selection key of the channel.
+		 */
+		void handle(SelectionKey key);
+
+	}
+
+	/**
+	 * Constructor.
+	 * @param name Name of the loop thread.
+	 * @throws IOException If the selector could not be opened.
+	 */
+	public EventLoop(String name) throws IOException {
+		super(name);
+		selector = Selector.open();
+		tasks = new ConcurrentLinkedQueue<>();
+	}
+
+	/**
+	 * Register a channel on this loop. Must be called from the loop thread.
+	 * @param channel The channel, already in non-blocking mode.
+	 * @param operations The initial interest set.
+	 * @param handler The handler of the channel events.
+	 * @return The selection key of the channel.
+	 * @throws ClosedChannelException If the channel is closed.
+	 */
+	public SelectionKey register(SelectableChannel channel, int operations, Handler handler) throws ClosedChannelException {
+		return channel.register(selector, operations, handler);
+	}
+
+	/**
+	 * Schedule a task to be run by the loop thread. This method may be called from any thread.
+	 * @param task The task.
+	 */
+	public void execute(Runnable task) {
+		tasks.add(task);
+		selector.wakeup();
+	}
+
+	/**
+	 * Set a task which will be run by the loop thread about once per second.
+	 * @param periodicTask The task.
+	 */
+	public void setPeriodicTask(Runnable periodicTask) {
+		this.periodicTask = periodicTask;
+	}
+
+	public void run() {
+		long lastPeriodicRun = System.currentTimeMillis();
+		while(selector.isOpen()) {
+			try {
+				selector.select(SELECT_TIMEOUT);
+			} catch (IOException e) {
+				e.printStackTrace();
+				break;
+			}
+			Set<SelectionKey> selectedKeys = selector.selectedKeys();
+			Iterator<SelectionKey> iterator = selectedKeys.iterator();
+			while(iterator.hasNext()) {
+				SelectionKey key = iterator.next();
+				iterator.remove();
+				if (key.isValid()) {
+					dispatch(key);
+				}
+			}
+			Runnable task = tasks.poll();
+			while(task != null) {
+				runTask(task);
+				task = tasks.poll();
+			}
+			long now = System.currentTimeMillis();
+			if (periodicTask != null && now - lastPeriodicRun >= SELECT_TIMEOUT) {
+				lastPeriodicRun = now;
+				runTask(periodicTask);
+			}
+		}
+	}
+
+	private void dispatch(SelectionKey key) {
+		try {
+			((Handler) key.attachment()).handle(key);
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+	private void runTask(Runnable task) {
+		try {
+			task.run();
+		} catch (RuntimeException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
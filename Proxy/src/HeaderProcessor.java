@@ -1,50 +1,92 @@
-import java.io.UnsupportedEncodingException;
 import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
 /**
- * Processor for the HTTP protocol headers.
+ * Processor for the HTTP protocol headers. The received bytes are scanned only once:
+ * each call to processInputData resumes the scan where the previous one stopped, and
+ * the field lines are recorded as offsets in an internal buffer. The well-known field
+ * names are mapped to shared String constants, and the Strings of the names and values
+ * are only built when the headers map is requested.
  * @author Juliano
  */
 public class HeaderProcessor {
 
-	private final static String LINE_BREAK = "\r\n";
-	
+	private static final int INITIAL_BUFFER_SIZE = 1024;
+	private static final int FIELD_SLOTS = 4;
+
+	private static final String CONTENT_LENGTH = "Content-Length";
+	private static final String TRANSFER_ENCODING = "Transfer-Encoding";
+	private static final String CONNECTION = "Connection";
+	private static final String PROXY_CONNECTION = "Proxy-Connection";
+
+	static final String[] KNOWN_FIELD_NAMES = {
+		"Accept", "Accept-Charset", "Accept-Encoding", "Accept-Language", "Accept-Ranges", "Age",
+		"Allow", "Authorization", "Cache-Control", CONNECTION, "Content-Disposition", "Content-Encoding",
+		"Content-Language", CONTENT_LENGTH, "Content-Location", "Content-Range", "Content-Type", "Cookie",
+		"Date", "ETag", "Expect", "Expires", "Host", "If-Match", "If-Modified-Since", "If-None-Match",
+		"If-Range", "If-Unmodified-Since", "Keep-Alive", "Last-Modified", "Location", "Origin", "Pragma",
+		"Proxy-Authenticate", "Proxy-Authorization", PROXY_CONNECTION, "Range", "Referer", "Server",
+		"Set-Cookie", "TE", "Trailer", TRANSFER_ENCODING, "Upgrade", "User-Agent", "Vary", "Via",
+		"WWW-Authenticate"
+	};
+	static final String[] KNOWN_METHODS = {
+		"GET", "HEAD", "POST", "PUT", "DELETE", "CONNECT", "OPTIONS", "TRACE", "PATCH"
+	};
+	private static final String[] KNOWN_PROTOCOLS = {
+		"HTTP/1.1", "HTTP/1.0"
+	};
+
+	/**
+	 * The well-known field names grouped by length, so a name is compared only against
+	 * the constants which have the same length.
+	 */
+	private static final String[][] FIELD_NAMES_BY_LENGTH = groupByLength(KNOWN_FIELD_NAMES);
+
 	private Map<String, List<String>> headers;
-	private String content;
-	
+
+	private byte[] content;
+	private int contentSize;
+	private int lineStart;
+
+	private int[] fields;
+	private String[] fieldNames;
+	private int fieldCount;
+
 	private boolean responseMessage;
-	
+
 	private RequestHeader requestHeader;
 	private ResponseHeader responseHeader;
-	
+
 	private Long contentLength;
 	private boolean chunkedEncoded;
 	private boolean keepConnectionAlive;
-	
-	private byte[] bodyData;
+
+	private ByteBuffer bodyBuffer;
 
 	private boolean gotMainHeader;
-	private boolean firstPass;
-	
+
 	/**
 	 * Constructor.
 	 * @param responseMessage If true, the processor assumes that the header being
 	 * processed is part of a HTTP response. Otherwise, it treats the message as a
-	 * HTTP request. 
+	 * HTTP request.
 	 */
 	public HeaderProcessor(boolean responseMessage) {
 		this.responseMessage = responseMessage;
-		headers = new HashMap<>();
-		content = "";
-		firstPass = true;
+		content = new byte[INITIAL_BUFFER_SIZE];
+		fields = new int[16 * FIELD_SLOTS];
+		fieldNames = new String[16];
 	}
-	
+
 	/**
-	 * Process data received from the network.
+	 * Process data received from the network. Only the header bytes are retained by the
+	 * processor; the data buffer may be reused by the caller once this method returns,
+	 * except for the body bytes exposed by getBodyBuffer.
 	 * @param data Buffer holding the received data.
 	 * @param offset Offset from where to start reading the data.
 	 * @param length Length of the data segment
@@ -52,42 +94,38 @@ public class HeaderProcessor {
 	 * @throws ProtocolException If the processed content violates the HTTP protocol.
 	 */
 	public boolean processInputData(final byte[] data, final int offset, final int length) throws ProtocolException {
-		
-		int bytePosition = 0;
-		int newDataOffset = content.length();
-		try {
-			content = content.concat(new String(data, offset, length, "US-ASCII"));
-		} catch (UnsupportedEncodingException e) {
-			// Ignore this block. According to the J2SE specs, every implementation of the
-			// Java platform is required to support the US-ASCII charset (http://docs.oracle.com/javase/1.5.0/docs/api/java/nio/charset/Charset.html).
-			// Therefore, this exception will never occur.
-		}
-		int lineBreakIndex = content.indexOf(LINE_BREAK);
-		while(lineBreakIndex >= 0) {
-			bytePosition += lineBreakIndex + 2;
-			if (lineBreakIndex == 0 && !firstPass) {
-				parseFields();
-				int bodyDataOffset = bytePosition - newDataOffset;
-				storeBodyData(data, offset + bodyDataOffset, length - bodyDataOffset);
-				return true;
+
+		int end = offset + length;
+		for (int i = offset; i < end; i++) {
+			byte b = data[i];
+			if (contentSize == content.length) {
+				byte[] newContent = new byte[content.length * 2];
+				System.arraycopy(content, 0, newContent, 0, contentSize);
+				content = newContent;
 			}
-			firstPass = false;
-			String header = content.substring(0, lineBreakIndex);
-			if (!header.isEmpty()) {
-				if (!gotMainHeader) {
-					parseMainHeader(header);
+			content[contentSize++] = b;
+			if (b == '\n' && contentSize - lineStart >= 2 && content[contentSize - 2] == '\r') {
+				int lineEnd = contentSize - 2;
+				if (lineEnd == lineStart) {
+					// Empty lines preceding the start line are ignored (RFC 7230, section 3.5)
+					if (gotMainHeader) {
+						parseFields();
+						bodyBuffer = ByteBuffer.wrap(data, i + 1, end - i - 1);
+						return true;
+					}
+				} else if (!gotMainHeader) {
+					parseMainHeader(lineStart, lineEnd);
 					gotMainHeader = true;
 				} else {
-					parseHeader(header);
+					parseHeader(lineStart, lineEnd);
 				}
+				lineStart = contentSize;
 			}
-			content = content.substring(lineBreakIndex + LINE_BREAK.length());
-			lineBreakIndex = content.indexOf(LINE_BREAK);
 		}
 		return false;
-		
+
 	}
-	
+
 	/**
 	 * Returns wheter this processor is operating in response or request mode.
 	 * @return True if, and only if, this processor is operating in response mode.
@@ -95,15 +133,28 @@ public class HeaderProcessor {
 	public boolean isResponseMode() {
 		return responseMessage;
 	}
-	
+
 	/**
-	 * Retrieves the set of headers already processed.
+	 * Retrieves the set of headers already processed. The map is built on the first
+	 * call, and its iteration order is the order in which the fields were received.
 	 * @return The set of headers already processed.
 	 */
 	public Map<String, List<String>> getHeaders() {
+		if (headers == null) {
+			headers = new LinkedHashMap<>();
+			for (int i = 0; i < fieldCount; i++) {
+				String headerName = getFieldName(i);
+				List<String> values = headers.get(headerName);
+				if (values == null) {
+					values = new ArrayList<String>(1);
+					headers.put(headerName, values);
+				}
+				values.add(getFieldValue(i));
+			}
+		}
 		return headers;
 	}
-	
+
 	/**
 	 * Get the processed RequestHeader object. If this processor is operating
 	 * in response mode, this method will always return null. Otherwise, it will
@@ -125,7 +176,7 @@ public class HeaderProcessor {
 	public ResponseHeader getResponseHeader() {
 		return responseHeader;
 	}
-	
+
 	/**
 	 * Get the Content-Length of the message body. If the Content-Length
 	 * field was not specified in the HTTP header, this method will return
@@ -136,7 +187,7 @@ public class HeaderProcessor {
 	public Long getContentLength() {
 		return contentLength;
 	}
-	
+
 	/**
 	 * Get the chunked encoding flag. Is will be true if, and only
 	 * if, the Transfer-Encoding field have been specified with
@@ -146,108 +197,293 @@ public class HeaderProcessor {
 	public boolean isChunkedEncoded() {
 		return chunkedEncoded;
 	}
-	
+
 	/**
 	 * Get the keep connection alive flag. It will be true if, and
 	 * only if, the Connection or Proxy-Connection field have been
-	 * specifieds with the value "keep-alive" in the HTTP header. 
+	 * specifieds with the value "keep-alive" in the HTTP header.
 	 * @return The keep connection alive flag.
 	 */
 	public boolean isKeepConnectionAlive() {
 		return keepConnectionAlive;
 	}
-	
+
+	/**
+	 * Check whether the connection stays open after this message. HTTP/1.1
+	 * connections are persistent unless the Connection or Proxy-Connection
+	 * field has the value "close". Older versions require the value "keep-alive".
+	 * @return True if, and only if, the connection may be reused for another message.
+	 */
+	public boolean isPersistentConnection() {
+		if (keepConnectionAlive) {
+			return true;
+		}
+		String protocol = responseMessage ? responseHeader.getProtocol() : requestHeader.getProtocol();
+		if (!protocol.equalsIgnoreCase("HTTP/1.1")) {
+			return false;
+		}
+		for (String fieldName : new String[] { CONNECTION, PROXY_CONNECTION }) {
+			List<String> values = getHeaders().get(fieldName);
+			if (values != null) {
+				for (String value : values) {
+					if (value.toLowerCase().contains("close")) {
+						return false;
+					}
+				}
+			}
+		}
+		return true;
+	}
+
 	/**
-	 * Get the stored body message data. While processing the HTTP header, part of
-	 * the message body may be passed in the method processInput along with the header
-	 * content. This message body part will be stored in a temporary buffer which can
-	 * be obtained using this method.
-	 * @return The stored message body data.
+	 * Get a view of the message body bytes which were received along with the end of
+	 * the header. The view shares the array passed to the last processInputData call,
+	 * and its position is the index of the first body byte in that array. Therefore,
+	 * it is only valid until the caller writes new data to the array.
+	 * @return The view of the body bytes, or null if the header has not been fully processed.
 	 */
-	public byte[] getBodyData() {
-		return bodyData;
+	public ByteBuffer getBodyBuffer() {
+		return bodyBuffer;
 	}
-	
-	private void parseMainHeader(String header) throws ProtocolException {
+
+	private void parseMainHeader(int start, int end) throws ProtocolException {
+		int index1 = indexOf(' ', start, end);
 		if (responseMessage) {
-			int index1 = header.indexOf(" ");
-			int index2 = header.indexOf(" ", index1 + 1);
-			if (index1 > 0 && index2 > 0) {
-				String token1 = header.substring(0, index1);
-				String token2 = header.substring(index1 + 1, index2);
-				String token3 = header.substring(index2 + 1);
-				try {
-					responseHeader = new ResponseHeader();
-					responseHeader.setProtocol(token1);
-					responseHeader.setStatusCode(Integer.parseInt(token2));
-					responseHeader.setStatusText(token3);
-				} catch (NumberFormatException e) {
+			int index2 = index1 > start ? indexOf(' ', index1 + 1, end) : -1;
+			if (index1 > start && index2 > 0) {
+				long statusCode = parseNumber(index1 + 1, index2);
+				if (statusCode < 0 || statusCode > 999) {
 					throw new ProtocolException();
 				}
+				responseHeader = new ResponseHeader();
+				responseHeader.setProtocol(intern(KNOWN_PROTOCOLS, start, index1));
+				responseHeader.setStatusCode((int) statusCode);
+				responseHeader.setStatusText(newString(index2 + 1, end));
 			} else {
 				throw new ProtocolException();
 			}
 		} else {
-			int index1 = header.indexOf(" ");
-			int index2 = header.lastIndexOf(" ");
-			if (index1 > 0 && index2 > 0) {
-				String token1 = header.substring(0, index1);
-				String token2 = header.substring(index1 + 1, index2);
-				String token3 = header.substring(index2 + 1);
+			int index2 = lastIndexOf(' ', start, end);
+			if (index1 > start && index2 > index1) {
 				requestHeader = new RequestHeader();
-				requestHeader.setMethod(token1);
-				requestHeader.setResource(token2);
-				requestHeader.setProtocol(token3);
+				requestHeader.setMethod(intern(KNOWN_METHODS, start, index1));
+				requestHeader.setResource(newString(index1 + 1, index2));
+				requestHeader.setProtocol(intern(KNOWN_PROTOCOLS, index2 + 1, end));
 			} else {
 				throw new ProtocolException();
 			}
 		}
 	}
-	
-	private void parseHeader(String header) throws ProtocolException {
-		int index = header.indexOf(":");
-		if (index > 0) {
-			String headerName = header.substring(0, index);
-			String headerValue = header.substring(index + 1);
-			headerName = headerName.trim();
-			headerValue = headerValue.trim();
-			List<String> values = headers.get(headerName);
-			if (values == null) {
-				values = new ArrayList<String>();
-				headers.put(headerName, values);
+
+	private void parseHeader(int start, int end) throws ProtocolException {
+		int index = indexOf(':', start, end);
+		if (index > start) {
+			if (fieldCount == fieldNames.length) {
+				int[] newFields = new int[fields.length * 2];
+				System.arraycopy(fields, 0, newFields, 0, fields.length);
+				fields = newFields;
+				String[] newFieldNames = new String[fieldNames.length * 2];
+				System.arraycopy(fieldNames, 0, newFieldNames, 0, fieldNames.length);
+				fieldNames = newFieldNames;
 			}
-			values.add(headerValue);
+			int nameStart = skipWhitespace(start, index);
+			int nameEnd = trimWhitespace(nameStart, index);
+			int valueStart = skipWhitespace(index + 1, end);
+			int valueEnd = trimWhitespace(valueStart, end);
+			int slot = fieldCount * FIELD_SLOTS;
+			fields[slot] = nameStart;
+			fields[slot + 1] = nameEnd;
+			fields[slot + 2] = valueStart;
+			fields[slot + 3] = valueEnd;
+			fieldNames[fieldCount] = internFieldName(nameStart, nameEnd);
+			fieldCount++;
+			headers = null;
 		} else {
 			throw new ProtocolException();
 		}
 	}
-	
-	private void storeBodyData(final byte[] data, int offset, int length) {
-		bodyData = new byte[length];
-		System.arraycopy(data, offset, bodyData, 0, length);
-	}
-	
+
 	private void parseFields() {
-		List<String> contentLengthValues = headers.get("Content-Length");
-		if (contentLengthValues != null && contentLengthValues.size() == 1) {
-			try {
-				contentLength = Long.parseLong(contentLengthValues.get(0));
-			} catch (NumberFormatException e) {
-				//
+		int contentLengthField = findSingleField(CONTENT_LENGTH);
+		if (contentLengthField >= 0) {
+			long value = parseNumber(fields[contentLengthField * FIELD_SLOTS + 2], fields[contentLengthField * FIELD_SLOTS + 3]);
+			if (value >= 0) {
+				contentLength = value;
 			}
 		}
-		List<String> transferEncodingValues = headers.get("Transfer-Encoding");
-		if (transferEncodingValues != null && transferEncodingValues.size() == 1 && transferEncodingValues.get(0).equalsIgnoreCase("chunked")) {
+		int transferEncodingField = findSingleField(TRANSFER_ENCODING);
+		if (transferEncodingField >= 0 && fieldValueEquals(transferEncodingField, "chunked")) {
 			chunkedEncoded = true;
 		}
-		List<String> connectionValues = headers.get("Connection");
-		if (connectionValues != null && connectionValues.size() == 1 && connectionValues.get(0).equalsIgnoreCase("keep-alive")) {
+		int connectionField = findSingleField(CONNECTION);
+		if (connectionField >= 0 && fieldValueEquals(connectionField, "keep-alive")) {
 			keepConnectionAlive = true;
 		}
-		List<String> proxyConnectionValues = headers.get("Proxy-Connection");
-		if (proxyConnectionValues != null && proxyConnectionValues.size() == 1 && proxyConnectionValues.get(0).equalsIgnoreCase("keep-alive")) {
+		int proxyConnectionField = findSingleField(PROXY_CONNECTION);
+		if (proxyConnectionField >= 0 && fieldValueEquals(proxyConnectionField, "keep-alive")) {
 			keepConnectionAlive = true;
 		}
 	}
-	
+
+	/**
+	 * Find the field with the specified well-known name.
+	 * @param name One of the well-known field names constants.
+	 * @return The index of the field, or -1 if the field is absent or appears more than once.
+	 */
+	private int findSingleField(String name) {
+		int found = -1;
+		for (int i = 0; i < fieldCount; i++) {
+			if (fieldNames[i] == name) {
+				if (found >= 0) {
+					return -1;
+				}
+				found = i;
+			}
+		}
+		return found;
+	}
+
+	private String getFieldName(int field) {
+		String name = fieldNames[field];
+		if (name == null) {
+			name = newString(fields[field * FIELD_SLOTS], fields[field * FIELD_SLOTS + 1]);
+			fieldNames[field] = name;
+		}
+		return name;
+	}
+
+	private String getFieldValue(int field) {
+		return newString(fields[field * FIELD_SLOTS + 2], fields[field * FIELD_SLOTS + 3]);
+	}
+
+	private boolean fieldValueEquals(int field, String value) {
+		int start = fields[field * FIELD_SLOTS + 2];
+		int end = fields[field * FIELD_SLOTS + 3];
+		return equalsIgnoreCase(value, start, end);
+	}
+
+	/**
+	 * Map a field name to one of the well-known names constants. The comparison ignores
+	 * the case, so the forwarded names of the well-known fields use their canonical case.
+	 * @return The constant, or null if the name is not a well-known one.
+	 */
+	private String internFieldName(int start, int end) {
+		int length = end - start;
+		if (length < FIELD_NAMES_BY_LENGTH.length) {
+			for (String name : FIELD_NAMES_BY_LENGTH[length]) {
+				if (equalsIgnoreCase(name, start, end)) {
+					return name;
+				}
+			}
+		}
+		return null;
+	}
+
+	private String intern(String[] constants, int start, int end) {
+		for (String constant : constants) {
+			if (constant.length() == end - start) {
+				boolean equal = true;
+				for (int i = 0; i < constant.length() && equal; i++) {
+					equal = content[start + i] == constant.charAt(i);
+				}
+				if (equal) {
+					return constant;
+				}
+			}
+		}
+		return newString(start, end);
+	}
+
+	private boolean equalsIgnoreCase(String value, int start, int end) {
+		if (value.length() != end - start) {
+			return false;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			int b = content[start + i];
+			int c = value.charAt(i);
+			if (b != c && toLowerCase(b) != toLowerCase(c)) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parse a non-negative decimal number.
+	 * @return The number, or -1 if the text is empty, has non digit characters or overflows.
+	 */
+	private long parseNumber(int start, int end) {
+		if (start >= end || end - start > 18) {
+			return -1;
+		}
+		long value = 0;
+		for (int i = start; i < end; i++) {
+			int digit = content[i] - '0';
+			if (digit < 0 || digit > 9) {
+				return -1;
+			}
+			value = value * 10 + digit;
+		}
+		return value;
+	}
+
+	private int indexOf(char c, int start, int end) {
+		for (int i = start; i < end; i++) {
+			if (content[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int lastIndexOf(char c, int start, int end) {
+		for (int i = end - 1; i >= start; i--) {
+			if (content[i] == c) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private int skipWhitespace(int start, int end) {
+		while(start < end && (content[start] == ' ' || content[start] == '\t')) {
+			start++;
+		}
+		return start;
+	}
+
+	private int trimWhitespace(int start, int end) {
+		while(end > start && (content[end - 1] == ' ' || content[end - 1] == '\t')) {
+			end--;
+		}
+		return end;
+	}
+
+	private String newString(int start, int end) {
+		return new String(content, start, end - start, StandardCharsets.ISO_8859_1);
+	}
+
+	private static int toLowerCase(int c) {
+		return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c;
+	}
+
+	private static String[][] groupByLength(String[] names) {
+		int maxLength = 0;
+		for (String name : names) {
+			maxLength = Math.max(maxLength, name.length());
+		}
+		List<List<String>> groups = new ArrayList<>();
+		for (int i = 0; i <= maxLength; i++) {
+			groups.add(new ArrayList<String>());
+		}
+		for (String name : names) {
+			groups.get(name.length()).add(name);
+		}
+		String[][] namesByLength = new String[maxLength + 1][];
+		for (int i = 0; i <= maxLength; i++) {
+			namesByLength[i] = groups.get(i).toArray(new String[0]);
+		}
+		return namesByLength;
+	}
+
 }
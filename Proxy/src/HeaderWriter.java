@@ -0,0 +1,227 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Serializer of HTTP headers. The header is written straight to a byte array which
+ * is reused by every message of a connection, so the only allocation happens when a
+ * header larger than any previous one is written. The request lines, the common
+ * status lines and the well-known field names are encoded once, when the class is
+ * loaded. Characters are written as ISO-8859-1, which is how HeaderProcessor decodes
+ * them, so the forwarded bytes are the ones which were received.
+ * @author Juliano
+ */
+public class HeaderWriter {
+
+	private static final int INITIAL_BUFFER_SIZE = 1024 * 2;
+
+	private static final String PROXY_CONNECTION = "Proxy-Connection";
+
+	private static final byte[] LINE_BREAK = encode("\r\n");
+	private static final byte[] FIELD_SEPARATOR = encode(": ");
+	private static final byte[] REQUEST_LINE_END = encode(" HTTP/1.1\r\n");
+	private static final byte[] CONNECTION_FIELD = encode("Connection: ");
+
+	private static final Object[][] KNOWN_STATUSES = {
+		{ 100, "Continue" }, { 101, "Switching Protocols" }, { 200, "OK" }, { 201, "Created" },
+		{ 202, "Accepted" }, { 204, "No Content" }, { 206, "Partial Content" }, { 301, "Moved Permanently" },
+		{ 302, "Found" }, { 303, "See Other" }, { 304, "Not Modified" }, { 307, "Temporary Redirect" },
+		{ 308, "Permanent Redirect" }, { 400, "Bad Request" }, { 401, "Unauthorized" }, { 403, "Forbidden" },
+		{ 404, "Not Found" }, { 405, "Method Not Allowed" }, { 408, "Request Timeout" }, { 409, "Conflict" },
+		{ 410, "Gone" }, { 412, "Precondition Failed" }, { 413, "Payload Too Large" }, { 416, "Range Not Satisfiable" },
+		{ 429, "Too Many Requests" }, { 500, "Internal Server Error" }, { 501, "Not Implemented" },
+		{ 502, "Bad Gateway" }, { 503, "Service Unavailable" }, { 504, "Gateway Timeout" }
+	};
+
+	/**
+	 * The well-known field names followed by the ": " separator.
+	 */
+	private static final Map<String, byte[]> FIELD_PREFIXES = new HashMap<>();
+
+	/**
+	 * The method names followed by a space.
+	 */
+	private static final Map<String, byte[]> METHOD_PREFIXES = new HashMap<>();
+
+	/**
+	 * The HTTP/1.1 status lines, indexed by status code, for the statuses sent with their standard reason phrase.
+	 */
+	private static final byte[][] STATUS_LINES = new byte[600][];
+	private static final String[] STATUS_TEXTS = new String[600];
+
+	static {
+		for (String name : HeaderProcessor.KNOWN_FIELD_NAMES) {
+			FIELD_PREFIXES.put(name, encode(name + ": "));
+		}
+		for (String method : HeaderProcessor.KNOWN_METHODS) {
+			METHOD_PREFIXES.put(method, encode(method + " "));
+		}
+		for (Object[] status : KNOWN_STATUSES) {
+			int statusCode = (Integer) status[0];
+			STATUS_TEXTS[statusCode] = (String) status[1];
+			STATUS_LINES[statusCode] = encode("HTTP/1.1 " + statusCode + " " + status[1] + "\r\n");
+		}
+	}
+
+	private byte[] buffer;
+	private int length;
+
+	/**
+	 * Constructor.
+	 */
+	public HeaderWriter() {
+		buffer = new byte[INITIAL_BUFFER_SIZE];
+	}
+
+	/**
+	 * Serializes a request header, replacing the content previously written.
+	 * The request is always sent as HTTP/1.1.
+	 * @param method The request method.
+	 * @param resource The requested resource.
+	 * @param headers The header fields.
+	 */
+	public void writeRequestHeader(String method, String resource, Map<String, List<String>> headers) {
+		length = 0;
+		byte[] methodPrefix = METHOD_PREFIXES.get(method);
+		if (methodPrefix != null) {
+			append(methodPrefix);
+		} else {
+			append(method);
+			append((byte) ' ');
+		}
+		append(resource);
+		append(REQUEST_LINE_END);
+		writeFields(headers);
+	}
+
+	/**
+	 * Serializes a response header, replacing the content previously written.
+	 * @param responseHeader The status line of the response.
+	 * @param headers The header fields.
+	 */
+	public void writeResponseHeader(ResponseHeader responseHeader, Map<String, List<String>> headers) {
+		length = 0;
+		int statusCode = responseHeader.getStatusCode();
+		if (statusCode >= 0 && statusCode < STATUS_LINES.length && STATUS_LINES[statusCode] != null
+				&& responseHeader.getProtocol().equals("HTTP/1.1") && responseHeader.getStatusText().equals(STATUS_TEXTS[statusCode])) {
+			append(STATUS_LINES[statusCode]);
+		} else {
+			append(responseHeader.getProtocol());
+			append((byte) ' ');
+			append(Integer.toString(statusCode));
+			append((byte) ' ');
+			append(responseHeader.getStatusText());
+			append(LINE_BREAK);
+		}
+		writeFields(headers);
+	}
+
+	/**
+	 * Serializes an HTTP/1.1 response header, replacing the content previously written. The
+	 * status line has the standard reason phrase of the status, or none if it is unknown.
+	 * @param statusCode The status code.
+	 * @param headers The header fields.
+	 */
+	public void writeResponseHeader(int statusCode, Map<String, List<String>> headers) {
+		length = 0;
+		if (statusCode >= 0 && statusCode < STATUS_LINES.length && STATUS_LINES[statusCode] != null) {
+			append(STATUS_LINES[statusCode]);
+		} else {
+			append("HTTP/1.1 ");
+			append(Integer.toString(statusCode));
+			append((byte) ' ');
+			append(LINE_BREAK);
+		}
+		writeFields(headers);
+	}
+
+	/**
+	 * Get the buffer which holds the serialized header. The buffer is overwritten
+	 * by the next header written.
+	 * @return The buffer. The header starts at the offset zero.
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Get the length of the serialized header.
+	 * @return The number of bytes of the buffer which hold the header.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	/**
+	 * Writes the serialized header to a stream with a single write call.
+	 * @param outputStream The stream.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	public void writeTo(OutputStream outputStream) throws IOException {
+		outputStream.write(buffer, 0, length);
+	}
+
+	/**
+	 * Writes the fields and the empty line which ends the header. The Proxy-Connection
+	 * field is also sent to the remote host as a Connection field.
+	 * @param headers The header fields.
+	 */
+	private void writeFields(Map<String, List<String>> headers) {
+		for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+			String fieldName = entry.getKey();
+			byte[] fieldPrefix = FIELD_PREFIXES.get(fieldName);
+			boolean proxyConnection = fieldName.equals(PROXY_CONNECTION);
+			for (String value : entry.getValue()) {
+				if (proxyConnection) {
+					append(CONNECTION_FIELD);
+					append(value);
+					append(LINE_BREAK);
+				}
+				if (fieldPrefix != null) {
+					append(fieldPrefix);
+				} else {
+					append(fieldName);
+					append(FIELD_SEPARATOR);
+				}
+				append(value);
+				append(LINE_BREAK);
+			}
+		}
+		append(LINE_BREAK);
+	}
+
+	private void append(byte[] data) {
+		ensureCapacity(data.length);
+		System.arraycopy(data, 0, buffer, length, data.length);
+		length += data.length;
+	}
+
+	private void append(byte b) {
+		ensureCapacity(1);
+		buffer[length++] = b;
+	}
+
+	private void append(String text) {
+		int textLength = text.length();
+		ensureCapacity(textLength);
+		for (int i = 0; i < textLength; i++) {
+			buffer[length++] = (byte) text.charAt(i);
+		}
+	}
+
+	private void ensureCapacity(int additionalLength) {
+		if (length + additionalLength > buffer.length) {
+			byte[] newBuffer = new byte[Math.max(length + additionalLength, buffer.length * 2)];
+			System.arraycopy(buffer, 0, newBuffer, 0, length);
+			buffer = newBuffer;
+		}
+	}
+
+	private static byte[] encode(String text) {
+		return text.getBytes(StandardCharsets.ISO_8859_1);
+	}
+
+}
@@ -0,0 +1,90 @@
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Decides, for each host, whether its connections are bumped, tunnelled or blocked.
+ * The rules come from the file set in the proxy.hostRules option, along with the hosts
+ * of the proxy.bypassHosts option, which are tunnelled. The lookups read the current
+ * HostRules index without locking; a reload builds a new index and then replaces the
+ * current one at once, so the requests being handled are never blocked by it and always
+ * see either the old rules or the new ones.
+ * @author Juliano
+ */
+public class HostPolicy implements HostPolicyMBean {
+
+	private File rulesFile;
+	private List<String> bypassHosts;
+
+	private volatile HostRules rules;
+	private volatile long lastReload;
+	private volatile long lastReloadTime;
+
+	private AtomicLong blocked;
+
+	/**
+	 * Constructor. Loads the rules.
+	 * @param configuration The rules file and the bypassed hosts.
+	 * @throws IOException If the rules file could not be loaded.
+	 */
+	public HostPolicy(ProxyConfiguration configuration) throws IOException {
+		rulesFile = configuration.getHostRules();
+		bypassHosts = configuration.getBypassHosts();
+		blocked = new AtomicLong();
+		reload();
+		Metrics.register("HostPolicy", this);
+	}
+
+	/**
+	 * Get the action for the connections to a host.
+	 * @param host The host name.
+	 * @return The action of the most specific rule which matches the host, or BUMP if no rule matches it.
+	 */
+	public HostRules.Action getAction(String host) {
+		HostRules.Action action = rules.lookup(host);
+		if (action == null) {
+			return HostRules.Action.BUMP;
+		}
+		if (action == HostRules.Action.BLOCK) {
+			blocked.incrementAndGet();
+		}
+		return action;
+	}
+
+	@Override
+	public synchronized void reload() throws IOException {
+		long start = System.currentTimeMillis();
+		HostRules newRules = new HostRules();
+		for (String host : bypassHosts) {
+			newRules.add(host, HostRules.Action.TUNNEL);
+		}
+		if (rulesFile != null) {
+			newRules.load(rulesFile);
+		}
+		rules = newRules;
+		lastReload = System.currentTimeMillis();
+		lastReloadTime = lastReload - start;
+	}
+
+	@Override
+	public int getRules() {
+		return rules.size();
+	}
+
+	@Override
+	public long getLastReload() {
+		return lastReload;
+	}
+
+	@Override
+	public long getLastReloadTime() {
+		return lastReloadTime;
+	}
+
+	@Override
+	public long getBlocked() {
+		return blocked.get();
+	}
+
+}
@@ -0,0 +1,35 @@
+import java.io.IOException;
+
+/**
+ * Management interface of the HostPolicy.
+ * @author Juliano
+ */
+public interface HostPolicyMBean {
+
+	/**
+	 * Loads the rules file again, replacing the current rules once the new ones are loaded.
+	 * @throws IOException If the file could not be loaded; the current rules are kept.
+	 */
+	void reload() throws IOException;
+
+	/**
+	 * @return Number of rules in use.
+	 */
+	int getRules();
+
+	/**
+	 * @return Time of the last load of the rules, in milliseconds since the epoch.
+	 */
+	long getLastReload();
+
+	/**
+	 * @return Time taken by the last load of the rules, in milliseconds.
+	 */
+	long getLastReloadTime();
+
+	/**
+	 * @return Number of requests refused because of a rule.
+	 */
+	long getBlocked();
+
+}
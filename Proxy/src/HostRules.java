@@ -0,0 +1,297 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Index of per-host rules, meant for lists with millions of domain names.
+ * A rule applies either to a single host name or, when its pattern starts with "*."
+ * or ".", to every subdomain of the name which follows. When several rules match a
+ * host, the rule of the host name itself wins, followed by the rule of the longest
+ * matching domain.
+ * The names are not stored: each one is reduced to a 64 bit hash of its labels,
+ * kept in an open addressing table along with the actions of the name, which makes
+ * an entry take about 18 bytes of heap. The hash is computed from the last character
+ * to the first one, so a lookup hashes the host once and probes the table at each
+ * label boundary. Distinct names with the same hash are indistinguishable, which for
+ * 64 bit hashes is negligible even with millions of names.
+ * The rules are added while the index is built; once built, the index is not changed
+ * anymore and can be read by any number of threads without locking.
+ * @author Juliano
+ */
+public class HostRules {
+
+	/**
+	 * What the proxy does with the connections to a host.
+	 */
+	public enum Action {
+		/** Intercept the TLS connections (default). */
+		BUMP,
+		/** Relay the CONNECT requests as plain TCP tunnels. */
+		TUNNEL,
+		/** Refuse the requests. */
+		BLOCK
+	}
+
+	private static final Action[] ACTIONS = Action.values();
+
+	private static final long FNV_OFFSET = 0xcbf29ce484222325L;
+	private static final long FNV_PRIME = 0x100000001b3L;
+	private static final int INITIAL_CAPACITY = 1024;
+	private static final int MAX_LINE_LENGTH = 1024;
+
+	/**
+	 * Hashes of the names; zero marks an empty slot.
+	 */
+	private long[] keys;
+
+	/**
+	 * Actions of the names: the low nibble holds the ordinal plus one of the action of the
+	 * name itself, the high nibble the one of its subdomains. Zero means no rule.
+	 */
+	private byte[] values;
+
+	private int mask;
+	private int size;
+	private int ruleCount;
+
+	/**
+	 * Constructor. Creates an empty index.
+	 */
+	public HostRules() {
+		keys = new long[INITIAL_CAPACITY];
+		values = new byte[INITIAL_CAPACITY];
+		mask = INITIAL_CAPACITY - 1;
+	}
+
+	/**
+	 * Adds a rule. A later rule for the same pattern replaces the earlier one.
+	 * @param pattern Host name, or "*.domain" / ".domain" for the subdomains of a domain.
+	 * @param action The action.
+	 */
+	public void add(String pattern, Action action) {
+		int start = 0;
+		boolean subdomains = false;
+		if (pattern.startsWith("*.")) {
+			start = 2;
+			subdomains = true;
+		} else if (pattern.startsWith(".")) {
+			start = 1;
+			subdomains = true;
+		}
+		int end = pattern.length();
+		if (end > start && pattern.charAt(end - 1) == '.') {
+			end--;
+		}
+		if (end <= start) {
+			throw new IllegalArgumentException("Invalid host pattern: " + pattern);
+		}
+		long hash = FNV_OFFSET;
+		for (int i = end - 1; i >= start; i--) {
+			hash = (hash ^ toLowerCase(pattern.charAt(i))) * FNV_PRIME;
+		}
+		put(hash, subdomains, action);
+	}
+
+	/**
+	 * Loads the rules of a text file, adding them to the index. Each line holds an action
+	 * ("bump", "tunnel" or "block", in any case) followed by a pattern, as accepted by the
+	 * add method, separated by spaces or tabs. Empty lines and lines starting with '#' are
+	 * ignored. The file is read as bytes, without creating a string for each line.
+	 * @param file The file.
+	 * @throws IOException If the file could not be read or has an invalid line.
+	 */
+	public void load(File file) throws IOException {
+		try (InputStream inputStream = new FileInputStream(file)) {
+			byte[] buffer = new byte[1024 * 64];
+			byte[] line = new byte[MAX_LINE_LENGTH];
+			int lineLength = 0;
+			int lineNumber = 1;
+			int readResult;
+			while((readResult = inputStream.read(buffer)) > 0) {
+				for (int i = 0; i < readResult; i++) {
+					byte b = buffer[i];
+					if (b == '\n') {
+						addLine(line, lineLength, file, lineNumber++);
+						lineLength = 0;
+					} else if (lineLength < MAX_LINE_LENGTH) {
+						line[lineLength++] = b;
+					} else {
+						throw new IOException(file + ":" + lineNumber + ": line too long");
+					}
+				}
+			}
+			addLine(line, lineLength, file, lineNumber);
+		}
+	}
+
+	/**
+	 * Finds the action of a host.
+	 * @param host The host name.
+	 * @return The action of the most specific rule which matches the host, or null if no rule matches it.
+	 */
+	public Action lookup(String host) {
+		int end = host.length();
+		if (end > 0 && host.charAt(end - 1) == '.') {
+			end--;
+		}
+		if (end == 0 || size == 0) {
+			return null;
+		}
+		int match = 0;
+		long hash = FNV_OFFSET;
+		for (int i = end - 1; i >= 0; i--) {
+			char c = host.charAt(i);
+			if (c == '.') {
+				// The hash covers the labels after this dot, which may be a domain with a subdomains rule
+				int value = get(hash) >>> 4;
+				if (value != 0) {
+					match = value;
+				}
+			}
+			hash = (hash ^ toLowerCase(c)) * FNV_PRIME;
+		}
+		int value = get(hash) & 0x0f;
+		if (value != 0) {
+			match = value;
+		}
+		return match != 0 ? ACTIONS[match - 1] : null;
+	}
+
+	/**
+	 * Get the number of rules in the index.
+	 * @return The number of distinct patterns.
+	 */
+	public int size() {
+		return ruleCount;
+	}
+
+	private void addLine(byte[] line, int length, File file, int lineNumber) throws IOException {
+		int i = skipBlanks(line, 0, length);
+		if (i == length || line[i] == '#') {
+			return;
+		}
+		int actionStart = i;
+		while(i < length && !isBlank(line[i])) {
+			i++;
+		}
+		Action action = parseAction(line, actionStart, i);
+		int patternStart = skipBlanks(line, i, length);
+		int patternEnd = patternStart;
+		while(patternEnd < length && !isBlank(line[patternEnd])) {
+			patternEnd++;
+		}
+		if (action == null || patternStart == patternEnd || skipBlanks(line, patternEnd, length) != length) {
+			throw new IOException(file + ":" + lineNumber + ": invalid rule");
+		}
+		boolean subdomains = false;
+		if (line[patternStart] == '*' && patternStart + 1 < patternEnd && line[patternStart + 1] == '.') {
+			patternStart += 2;
+			subdomains = true;
+		} else if (line[patternStart] == '.') {
+			patternStart++;
+			subdomains = true;
+		}
+		if (patternEnd > patternStart && line[patternEnd - 1] == '.') {
+			patternEnd--;
+		}
+		if (patternEnd <= patternStart) {
+			throw new IOException(file + ":" + lineNumber + ": invalid rule");
+		}
+		long hash = FNV_OFFSET;
+		for (int j = patternEnd - 1; j >= patternStart; j--) {
+			hash = (hash ^ toLowerCase((char) (line[j] & 0xff))) * FNV_PRIME;
+		}
+		put(hash, subdomains, action);
+	}
+
+	private static Action parseAction(byte[] line, int start, int end) {
+		for (Action action : ACTIONS) {
+			String name = action.name();
+			if (name.length() == end - start) {
+				boolean equal = true;
+				for (int i = 0; i < name.length() && equal; i++) {
+					equal = toLowerCase((char) (line[start + i] & 0xff)) == toLowerCase(name.charAt(i));
+				}
+				if (equal) {
+					return action;
+				}
+			}
+		}
+		return null;
+	}
+
+	private static int skipBlanks(byte[] line, int i, int length) {
+		while(i < length && isBlank(line[i])) {
+			i++;
+		}
+		return i;
+	}
+
+	private static boolean isBlank(byte b) {
+		return b == ' ' || b == '\t' || b == '\r';
+	}
+
+	private static char toLowerCase(char c) {
+		return c >= 'A' && c <= 'Z' ? (char) (c + ('a' - 'A')) : c;
+	}
+
+	private void put(long hash, boolean subdomains, Action action) {
+		if (hash == 0) {
+			hash = 1;
+		}
+		if ((size + 1) * 2 > keys.length) {
+			resize(keys.length * 2);
+		}
+		int slot = find(keys, mask, hash);
+		if (keys[slot] == 0) {
+			keys[slot] = hash;
+			size++;
+		}
+		int value = values[slot] & 0xff;
+		int shift = subdomains ? 4 : 0;
+		if (((value >>> shift) & 0x0f) == 0) {
+			ruleCount++;
+		}
+		value = (value & ~(0x0f << shift)) | ((action.ordinal() + 1) << shift);
+		values[slot] = (byte) value;
+	}
+
+	private int get(long hash) {
+		if (hash == 0) {
+			hash = 1;
+		}
+		int slot = find(keys, mask, hash);
+		return keys[slot] != 0 ? values[slot] & 0xff : 0;
+	}
+
+	/**
+	 * Finds the slot of a hash, or the empty slot where it would be stored.
+	 */
+	private static int find(long[] keys, int mask, long hash) {
+		// The bits of the FNV hash are mixed, since its low bits are poorly distributed
+		long mixed = (hash ^ (hash >>> 33)) * 0xff51afd7ed558ccdL;
+		int slot = (int) (mixed ^ (mixed >>> 33)) & mask;
+		while(keys[slot] != 0 && keys[slot] != hash) {
+			slot = (slot + 1) & mask;
+		}
+		return slot;
+	}
+
+	private void resize(int capacity) {
+		long[] newKeys = new long[capacity];
+		byte[] newValues = new byte[capacity];
+		int newMask = capacity - 1;
+		for (int i = 0; i < keys.length; i++) {
+			if (keys[i] != 0) {
+				int slot = find(newKeys, newMask, keys[i]);
+				newKeys[slot] = keys[i];
+				newValues[slot] = values[i];
+			}
+		}
+		keys = newKeys;
+		values = newValues;
+		mask = newMask;
+	}
+
+}
@@ -0,0 +1,117 @@
+import java.net.ProtocolException;
+
+/**
+ * Tables shared by the HPACK (RFC 7541) decoder and encoder: the static table and the
+ * Huffman code of the string literals. The Huffman code is canonical (the codes of each
+ * length are consecutive and follow the symbol order), so it is rebuilt from the code
+ * lengths of Appendix B when the class is loaded.
+ * @author Juliano
+ */
+public class Hpack {
+
+	/**
+	 * The static table of Appendix A. The entry at index zero is unused, so the table is indexed as in the spec.
+	 */
+	static final String[][] STATIC_TABLE = {
+		null,
+		{ ":authority", "" }, { ":method", "GET" }, { ":method", "POST" }, { ":path", "/" },
+		{ ":path", "/index.html" }, { ":scheme", "http" }, { ":scheme", "https" }, { ":status", "200" },
+		{ ":status", "204" }, { ":status", "206" }, { ":status", "304" }, { ":status", "400" },
+		{ ":status", "404" }, { ":status", "500" }, { "accept-charset", "" }, { "accept-encoding", "gzip, deflate" },
+		{ "accept-language", "" }, { "accept-ranges", "" }, { "accept", "" }, { "access-control-allow-origin", "" },
+		{ "age", "" }, { "allow", "" }, { "authorization", "" }, { "cache-control", "" },
+		{ "content-disposition", "" }, { "content-encoding", "" }, { "content-language", "" }, { "content-length", "" },
+		{ "content-location", "" }, { "content-range", "" }, { "content-type", "" }, { "cookie", "" },
+		{ "date", "" }, { "etag", "" }, { "expect", "" }, { "expires", "" },
+		{ "from", "" }, { "host", "" }, { "if-match", "" }, { "if-modified-since", "" },
+		{ "if-none-match", "" }, { "if-range", "" }, { "if-unmodified-since", "" }, { "last-modified", "" },
+		{ "link", "" }, { "location", "" }, { "max-forwards", "" }, { "proxy-authenticate", "" },
+		{ "proxy-authorization", "" }, { "range", "" }, { "referer", "" }, { "refresh", "" },
+		{ "retry-after", "" }, { "server", "" }, { "set-cookie", "" }, { "strict-transport-security", "" },
+		{ "transfer-encoding", "" }, { "user-agent", "" }, { "vary", "" }, { "via", "" },
+		{ "www-authenticate", "" }
+	};
+
+	/**
+	 * Length, in bits, of the Huffman code of each symbol; the last one is the EOS symbol.
+	 */
+	private static final int[] HUFFMAN_LENGTHS = {
+		13, 23, 28, 28, 28, 28, 28, 28, 28, 24, 30, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 30, 28, 28, 28, 28, 28, 28, 28, 28, 28,
+		6, 10, 10, 12, 13, 6, 8, 11, 10, 10, 8, 11, 8, 6, 6, 6, 5, 5, 5, 6, 6, 6, 6, 6, 6, 6, 7, 8, 15, 6, 12, 10,
+		13, 6, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 7, 8, 7, 8, 13, 19, 13, 14, 6,
+		15, 5, 6, 5, 6, 5, 6, 6, 6, 5, 7, 7, 6, 6, 6, 5, 6, 7, 6, 5, 5, 6, 7, 7, 7, 7, 7, 15, 11, 14, 13, 28,
+		20, 22, 20, 20, 22, 22, 22, 23, 22, 23, 23, 23, 23, 23, 24, 23, 24, 24, 22, 23, 24, 23, 23, 23, 23, 21, 22, 23, 22, 23, 23, 24,
+		22, 21, 20, 22, 22, 23, 23, 21, 23, 22, 22, 24, 21, 22, 23, 23, 21, 21, 22, 21, 23, 22, 23, 23, 20, 22, 22, 22, 23, 22, 22, 23,
+		26, 26, 20, 19, 22, 23, 22, 25, 26, 26, 26, 27, 27, 26, 24, 25, 19, 21, 26, 27, 27, 26, 27, 24, 21, 21, 26, 26, 28, 27, 27, 27,
+		20, 24, 20, 21, 22, 21, 21, 23, 22, 22, 25, 25, 24, 24, 26, 23, 26, 27, 26, 26, 27, 27, 27, 27, 27, 28, 27, 27, 27, 27, 27, 26,
+		30
+	};
+
+	private static final int EOS = 256;
+	private static final int MAX_CODE_LENGTH = 30;
+
+	/**
+	 * First code of each length, number of codes of each length, and the symbols sorted by code.
+	 */
+	private static final int[] FIRST_CODES = new int[MAX_CODE_LENGTH + 1];
+	private static final int[] CODE_COUNTS = new int[MAX_CODE_LENGTH + 1];
+	private static final int[] FIRST_SYMBOL_INDEXES = new int[MAX_CODE_LENGTH + 1];
+	private static final int[] SORTED_SYMBOLS = new int[HUFFMAN_LENGTHS.length];
+
+	static {
+		for (int length : HUFFMAN_LENGTHS) {
+			CODE_COUNTS[length]++;
+		}
+		int code = 0;
+		int index = 0;
+		for (int length = 1; length <= MAX_CODE_LENGTH; length++) {
+			FIRST_CODES[length] = code;
+			FIRST_SYMBOL_INDEXES[length] = index;
+			for (int symbol = 0; symbol < HUFFMAN_LENGTHS.length; symbol++) {
+				if (HUFFMAN_LENGTHS[symbol] == length) {
+					SORTED_SYMBOLS[index++] = symbol;
+				}
+			}
+			code = (code + CODE_COUNTS[length]) << 1;
+		}
+	}
+
+	/**
+	 * Decodes a Huffman encoded string literal.
+	 * @param data Buffer holding the encoded string.
+	 * @param offset Offset of the string.
+	 * @param length Length of the encoded string.
+	 * @return The decoded string, each byte being a ISO-8859-1 character.
+	 * @throws ProtocolException If the string is not a valid Huffman encoding.
+	 */
+	static String decodeHuffman(byte[] data, int offset, int length) throws ProtocolException {
+		StringBuilder builder = new StringBuilder(length * 8 / 5);
+		int code = 0;
+		int codeLength = 0;
+		for (int i = offset; i < offset + length; i++) {
+			int b = data[i] & 0xff;
+			for (int bit = 7; bit >= 0; bit--) {
+				code = (code << 1) | ((b >>> bit) & 1);
+				codeLength++;
+				int position = code - FIRST_CODES[codeLength];
+				if (position >= 0 && position < CODE_COUNTS[codeLength]) {
+					int symbol = SORTED_SYMBOLS[FIRST_SYMBOL_INDEXES[codeLength] + position];
+					if (symbol == EOS) {
+						throw new ProtocolException("EOS symbol in Huffman encoded string");
+					}
+					builder.append((char) symbol);
+					code = 0;
+					codeLength = 0;
+				} else if (codeLength == MAX_CODE_LENGTH) {
+					throw new ProtocolException("Invalid Huffman code");
+				}
+			}
+		}
+		// The padding is the beginning of the EOS code, i.e. up to seven 1 bits
+		if (codeLength > 7 || code != (1 << codeLength) - 1) {
+			throw new ProtocolException("Invalid Huffman padding");
+		}
+		return builder.toString();
+	}
+
+}
@@ -0,0 +1,184 @@
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Decoder of HPACK (RFC 7541) header blocks. Keeps the dynamic table of one direction
+ * of an HTTP/2 connection, so an instance must decode every header block received on
+ * that connection, in order. Strings are decoded as ISO-8859-1, like HeaderProcessor does.
+ * @author Juliano
+ */
+public class HpackDecoder {
+
+	/**
+	 * Overhead of each dynamic table entry, added to the lengths of its name and value.
+	 */
+	private static final int ENTRY_OVERHEAD = 32;
+
+	private final int maxTableSizeLimit;
+
+	/**
+	 * Entries of the dynamic table in a circular array, the newest entry at head.
+	 */
+	private String[][] entries = new String[16][];
+	private int head;
+	private int count;
+	private int tableSize;
+	private int maxTableSize;
+
+	/**
+	 * Constructor.
+	 * @param maxTableSize The maximum size of the dynamic table, as announced to the peer in SETTINGS_HEADER_TABLE_SIZE.
+	 */
+	public HpackDecoder(int maxTableSize) {
+		this.maxTableSizeLimit = maxTableSize;
+		this.maxTableSize = maxTableSize;
+	}
+
+	/**
+	 * Decodes a complete header block.
+	 * @param data Buffer holding the block.
+	 * @param offset Offset of the block.
+	 * @param length Length of the block.
+	 * @return The fields, in the order they were received; each one is a {name, value} pair.
+	 * @throws ProtocolException If the block is malformed, which is a connection error (COMPRESSION_ERROR).
+	 */
+	public List<String[]> decode(byte[] data, int offset, int length) throws ProtocolException {
+		List<String[]> fields = new ArrayList<>();
+		int[] position = { offset };
+		int end = offset + length;
+		boolean fieldDecoded = false;
+		while(position[0] < end) {
+			int b = data[position[0]] & 0xff;
+			if ((b & 0x80) != 0) {
+				// Indexed field
+				int index = decodeInteger(data, position, end, 7);
+				fields.add(getEntry(index));
+				fieldDecoded = true;
+			} else if ((b & 0xc0) == 0x40) {
+				// Literal with incremental indexing
+				String[] field = decodeLiteral(data, position, end, 6);
+				add(field);
+				fields.add(field);
+				fieldDecoded = true;
+			} else if ((b & 0xe0) == 0x20) {
+				// Dynamic table size update, only allowed at the start of a block
+				if (fieldDecoded) {
+					throw new ProtocolException("Table size update after a field");
+				}
+				int size = decodeInteger(data, position, end, 5);
+				if (size > maxTableSizeLimit) {
+					throw new ProtocolException("Table size update above the limit: " + size);
+				}
+				maxTableSize = size;
+				evict(size);
+			} else {
+				// Literal without indexing or never indexed
+				fields.add(decodeLiteral(data, position, end, 4));
+				fieldDecoded = true;
+			}
+		}
+		return fields;
+	}
+
+	private String[] decodeLiteral(byte[] data, int[] position, int end, int prefixBits) throws ProtocolException {
+		int index = decodeInteger(data, position, end, prefixBits);
+		String name = index == 0 ? decodeString(data, position, end) : getEntry(index)[0];
+		String value = decodeString(data, position, end);
+		return new String[] { name, value };
+	}
+
+	private static String decodeString(byte[] data, int[] position, int end) throws ProtocolException {
+		if (position[0] >= end) {
+			throw new ProtocolException("Truncated string literal");
+		}
+		boolean huffman = (data[position[0]] & 0x80) != 0;
+		int length = decodeInteger(data, position, end, 7);
+		int start = position[0];
+		if (length > end - start) {
+			throw new ProtocolException("Truncated string literal");
+		}
+		position[0] += length;
+		if (huffman) {
+			return Hpack.decodeHuffman(data, start, length);
+		}
+		char[] chars = new char[length];
+		for (int i = 0; i < length; i++) {
+			chars[i] = (char) (data[start + i] & 0xff);
+		}
+		return new String(chars);
+	}
+
+	private static int decodeInteger(byte[] data, int[] position, int end, int prefixBits) throws ProtocolException {
+		int maxPrefix = (1 << prefixBits) - 1;
+		int value = data[position[0]++] & maxPrefix;
+		if (value < maxPrefix) {
+			return value;
+		}
+		int shift = 0;
+		while(true) {
+			if (position[0] >= end) {
+				throw new ProtocolException("Truncated integer");
+			}
+			int b = data[position[0]++] & 0xff;
+			value += (b & 0x7f) << shift;
+			if (value < 0 || shift > 21) {
+				throw new ProtocolException("Integer overflow");
+			}
+			if ((b & 0x80) == 0) {
+				return value;
+			}
+			shift += 7;
+		}
+	}
+
+	private String[] getEntry(int index) throws ProtocolException {
+		if (index <= 0) {
+			throw new ProtocolException("Invalid index: " + index);
+		}
+		if (index < Hpack.STATIC_TABLE.length) {
+			return Hpack.STATIC_TABLE[index];
+		}
+		int dynamicIndex = index - Hpack.STATIC_TABLE.length;
+		if (dynamicIndex >= count) {
+			throw new ProtocolException("Invalid index: " + index);
+		}
+		return entries[(head - dynamicIndex) & (entries.length - 1)];
+	}
+
+	private void add(String[] field) {
+		int size = field[0].length() + field[1].length() + ENTRY_OVERHEAD;
+		if (size > maxTableSize) {
+			// An entry larger than the table empties it
+			evict(0);
+			return;
+		}
+		evict(maxTableSize - size);
+		if (count == entries.length) {
+			String[][] newEntries = new String[entries.length * 2][];
+			for (int i = 0; i < count; i++) {
+				newEntries[count - 1 - i] = entries[(head - i) & (entries.length - 1)];
+			}
+			entries = newEntries;
+			head = count - 1;
+		}
+		head = (head + 1) & (entries.length - 1);
+		entries[head] = field;
+		count++;
+		tableSize += size;
+	}
+
+	/**
+	 * Removes the oldest entries until the table size is not above the limit.
+	 */
+	private void evict(int limit) {
+		while(tableSize > limit) {
+			int oldest = (head - count + 1) & (entries.length - 1);
+			String[] field = entries[oldest];
+			entries[oldest] = null;
+			count--;
+			tableSize -= field[0].length() + field[1].length() + ENTRY_OVERHEAD;
+		}
+	}
+
+}
@@ -0,0 +1,178 @@
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Encoder of HPACK (RFC 7541) header blocks for the messages sent on an HTTP/2 connection.
+ * The encoder does not use the dynamic table nor the Huffman code: the fields are sent as
+ * literals without indexing, referencing the static table for the names found in it. This
+ * keeps the encoder stateless, so the blocks of concurrent streams can be encoded in any
+ * order, at the cost of a larger block than the one of a full encoder. The block is written
+ * to a byte array which is reused by every header encoded with the instance.
+ * @author Juliano
+ */
+public class HpackEncoder {
+
+	private static final int INITIAL_BUFFER_SIZE = 1024 * 2;
+
+	/**
+	 * Index of the first entry of each name of the static table.
+	 */
+	private static final Map<String, Integer> STATIC_NAME_INDEXES = new HashMap<>();
+
+	/**
+	 * Index of the static table entry of each status code, for the statuses listed in it.
+	 */
+	private static final int[] STATUS_INDEXES = new int[600];
+
+	private static final int AUTHORITY_NAME_INDEX = 1;
+	private static final int METHOD_NAME_INDEX = 2;
+	private static final int METHOD_GET_INDEX = 2;
+	private static final int METHOD_POST_INDEX = 3;
+	private static final int PATH_NAME_INDEX = 4;
+	private static final int PATH_ROOT_INDEX = 4;
+	private static final int SCHEME_NAME_INDEX = 6;
+	private static final int SCHEME_HTTPS_INDEX = 7;
+	private static final int STATUS_NAME_INDEX = 8;
+
+	static {
+		for (int i = Hpack.STATIC_TABLE.length - 1; i > 0; i--) {
+			String[] entry = Hpack.STATIC_TABLE[i];
+			STATIC_NAME_INDEXES.put(entry[0], i);
+			if (entry[0].equals(":status")) {
+				STATUS_INDEXES[Integer.parseInt(entry[1])] = i;
+			}
+		}
+	}
+
+	private byte[] buffer;
+	private int length;
+
+	/**
+	 * Constructor.
+	 */
+	public HpackEncoder() {
+		buffer = new byte[INITIAL_BUFFER_SIZE];
+	}
+
+	/**
+	 * Encodes a response header, replacing the content previously written. Field names are
+	 * lowercased, as HTTP/2 requires.
+	 * @param statusCode The status code.
+	 * @param headers The header fields, already without the connection-specific ones.
+	 */
+	public void writeResponseHeader(int statusCode, Map<String, List<String>> headers) {
+		length = 0;
+		if (statusCode >= 0 && statusCode < STATUS_INDEXES.length && STATUS_INDEXES[statusCode] != 0) {
+			writeInteger(0x80, 7, STATUS_INDEXES[statusCode]);
+		} else {
+			writeInteger(0x00, 4, STATUS_NAME_INDEX);
+			writeString(Integer.toString(statusCode));
+		}
+		writeFields(headers);
+	}
+
+	/**
+	 * Encodes a request header, replacing the content previously written. Field names are
+	 * lowercased, as HTTP/2 requires.
+	 * @param method The request method.
+	 * @param scheme The scheme of the target URI.
+	 * @param authority The authority of the target URI.
+	 * @param path The path and query of the target URI.
+	 * @param headers The header fields, already without the connection-specific ones and the Host field.
+	 */
+	public void writeRequestHeader(String method, String scheme, String authority, String path, Map<String, List<String>> headers) {
+		length = 0;
+		if (method.equals("GET")) {
+			writeInteger(0x80, 7, METHOD_GET_INDEX);
+		} else if (method.equals("POST")) {
+			writeInteger(0x80, 7, METHOD_POST_INDEX);
+		} else {
+			writeInteger(0x00, 4, METHOD_NAME_INDEX);
+			writeString(method);
+		}
+		if (scheme.equals("https")) {
+			writeInteger(0x80, 7, SCHEME_HTTPS_INDEX);
+		} else {
+			writeInteger(0x00, 4, SCHEME_NAME_INDEX);
+			writeString(scheme);
+		}
+		writeInteger(0x00, 4, AUTHORITY_NAME_INDEX);
+		writeString(authority);
+		if (path.equals("/")) {
+			writeInteger(0x80, 7, PATH_ROOT_INDEX);
+		} else {
+			writeInteger(0x00, 4, PATH_NAME_INDEX);
+			writeString(path);
+		}
+		writeFields(headers);
+	}
+
+	/**
+	 * Get the buffer which holds the encoded block. The buffer is overwritten
+	 * by the next header written.
+	 * @return The buffer. The block starts at the offset zero.
+	 */
+	public byte[] getBuffer() {
+		return buffer;
+	}
+
+	/**
+	 * Get the length of the encoded block.
+	 * @return The number of bytes of the buffer which hold the block.
+	 */
+	public int getLength() {
+		return length;
+	}
+
+	private void writeFields(Map<String, List<String>> headers) {
+		for (Map.Entry<String, List<String>> entry : headers.entrySet()) {
+			String name = entry.getKey().toLowerCase(Locale.ROOT);
+			Integer nameIndex = STATIC_NAME_INDEXES.get(name);
+			for (String value : entry.getValue()) {
+				if (nameIndex != null) {
+					writeInteger(0x00, 4, nameIndex);
+				} else {
+					writeInteger(0x00, 4, 0);
+					writeString(name);
+				}
+				writeString(value);
+			}
+		}
+	}
+
+	private void writeInteger(int flags, int prefixBits, int value) {
+		ensureCapacity(6);
+		int maxPrefix = (1 << prefixBits) - 1;
+		if (value < maxPrefix) {
+			buffer[length++] = (byte) (flags | value);
+			return;
+		}
+		buffer[length++] = (byte) (flags | maxPrefix);
+		value -= maxPrefix;
+		while(value >= 0x80) {
+			buffer[length++] = (byte) ((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+		buffer[length++] = (byte) value;
+	}
+
+	private void writeString(String text) {
+		int textLength = text.length();
+		writeInteger(0x00, 7, textLength);
+		ensureCapacity(textLength);
+		for (int i = 0; i < textLength; i++) {
+			buffer[length++] = (byte) text.charAt(i);
+		}
+	}
+
+	private void ensureCapacity(int additionalLength) {
+		if (length + additionalLength > buffer.length) {
+			byte[] newBuffer = new byte[Math.max(length + additionalLength, buffer.length * 2)];
+			System.arraycopy(buffer, 0, newBuffer, 0, length);
+			buffer = newBuffer;
+		}
+	}
+
+}
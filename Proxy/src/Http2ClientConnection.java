@@ -0,0 +1,252 @@
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Client side of an HTTP/2 (RFC 9113) connection with a remote host which negotiated
+ * "h2" through ALPN. The connection is shared by the requests of every client connection
+ * to the same host: each request is sent on its own Http2ClientStream, up to the number
+ * of concurrent streams allowed by the remote host. A daemon thread reads the frames and
+ * hands the response header blocks and bodies to the streams.
+ * @author Juliano
+ */
+public class Http2ClientConnection extends AbstractHttp2Connection<Http2ClientStream> {
+
+	/**
+	 * Concurrency limit assumed until the remote host announces its own.
+	 */
+	private static final int DEFAULT_MAX_CONCURRENT_STREAMS = 100;
+
+	private String key;
+	private String host;
+	private int port;
+
+	// Guarded by the write lock
+	private HpackEncoder encoder;
+	private int nextStreamId;
+
+	// Guarded by this
+	private int maxConcurrentStreams;
+	private int activeStreams;
+	private boolean draining;
+	private long idleSince;
+
+	/**
+	 * Constructor. The connection is not usable until it is started.
+	 * @param key Key of the remote host in the UpstreamConnectionPool.
+	 * @param host Remote host name, the default authority of the requests.
+	 * @param port Remote host port.
+	 * @param socket The TLS socket, after the handshake.
+	 * @param bufferPool Pool from which the buffers are taken.
+	 * @throws IOException If the streams of the socket could not be obtained.
+	 */
+	public Http2ClientConnection(String key, String host, int port, Socket socket, BufferPool bufferPool) throws IOException {
+		super(socket, bufferPool);
+		this.key = key;
+		this.host = host;
+		this.port = port;
+		encoder = new HpackEncoder();
+		nextStreamId = 1;
+		maxConcurrentStreams = DEFAULT_MAX_CONCURRENT_STREAMS;
+		idleSince = System.currentTimeMillis();
+	}
+
+	/**
+	 * Sends the connection preface and starts the thread which reads the frames. The
+	 * connection is closed if the preface could not be sent.
+	 * @throws IOException If the preface could not be sent.
+	 */
+	public void start() throws IOException {
+		try {
+			byte[] settings = new byte[12];
+			putSetting(settings, 0, SETTINGS_ENABLE_PUSH, 0);
+			putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW_SIZE);
+			getWriteLock().lock();
+			try {
+				outputStream.write(PREFACE);
+				writeFrame(TYPE_SETTINGS, 0, 0, settings, 0, settings.length);
+				sendWindowUpdate(0, CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+			} finally {
+				getWriteLock().unlock();
+			}
+		} catch (IOException e) {
+			close();
+			throw e;
+		}
+		Thread thread = new Thread(new Runnable() {
+			public void run() {
+				readResponses();
+			}
+		}, "Http2 " + key);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private void readResponses() {
+		ByteBuffer pooledBuffer = bufferPool.acquire(FRAME_HEADER_LENGTH + MAX_FRAME_SIZE);
+		try {
+			run(pooledBuffer.array());
+		} catch (IOException e) {
+			if (!isClosed()) {
+				e.printStackTrace();
+			}
+		} finally {
+			bufferPool.release(pooledBuffer);
+		}
+	}
+
+	@Override
+	protected void startConnection(byte[] buffer) {
+		// The preface was sent by start, before any stream could be opened
+	}
+
+	/**
+	 * Reserves a stream for a request, if the connection is open and the concurrency limit
+	 * of the remote host was not reached. The reservation must be followed by openStream,
+	 * or given back with cancelReservation.
+	 * @return True if, and only if, a stream was reserved.
+	 */
+	public synchronized boolean reserveStream() {
+		if (isClosed() || draining || activeStreams >= maxConcurrentStreams) {
+			return false;
+		}
+		activeStreams++;
+		return true;
+	}
+
+	/**
+	 * Gives back a stream reserved and not opened.
+	 */
+	public void cancelReservation() {
+		synchronized (this) {
+			activeStreams--;
+			if (activeStreams == 0) {
+				idleSince = System.currentTimeMillis();
+			}
+		}
+	}
+
+	/**
+	 * Sends a request header on a new stream, which takes the place of a reservation made
+	 * with reserveStream. The reservation is given back if the header could not be sent.
+	 * The connection-specific fields are dropped, and the Host field becomes the :authority
+	 * pseudo-header.
+	 * @param method The request method.
+	 * @param path The path and query of the request.
+	 * @param headers The HTTP/1.1 header fields of the request.
+	 * @param endStream Whether the request has no body.
+	 * @return The stream, which must be closed once the exchange is over.
+	 * @throws IOException If the header could not be sent.
+	 */
+	public Http2ClientStream openStream(String method, String path, Map<String, List<String>> headers, boolean endStream) throws IOException {
+		Map<String, List<String>> fields = Http2Stream.translateHeaders(headers);
+		List<String> hostValues = fields.remove("host");
+		String authority = hostValues != null && !hostValues.isEmpty() ? hostValues.get(0) : (port == 443 ? host : host + ":" + port);
+		Http2ClientStream stream = null;
+		try {
+			getWriteLock().lock();
+			try {
+				if (isClosed() || nextStreamId < 0) {
+					throw new IOException("Connection to " + key + " closed");
+				}
+				stream = new Http2ClientStream(this, nextStreamId, endStream);
+				// Stream identifiers must be sent in increasing order, so they are allocated under the write lock
+				lastStreamId = nextStreamId;
+				nextStreamId += 2;
+				addStream(stream);
+				encoder.writeRequestHeader(method, "https", authority, path, fields);
+				writeHeaders(stream.getId(), encoder.getBuffer(), encoder.getLength(), endStream);
+			} finally {
+				getWriteLock().unlock();
+			}
+		} catch (IOException e) {
+			if (stream != null) {
+				stream.close();
+			} else {
+				cancelReservation();
+			}
+			throw e;
+		}
+		return stream;
+	}
+
+	@Override
+	void streamClosed(AbstractHttp2Stream stream) {
+		super.streamClosed(stream);
+		cancelReservation();
+	}
+
+	@Override
+	protected void handleHeaders(List<String[]> fields, int streamId, boolean endStream) throws IOException {
+		Http2ClientStream stream = streams.get(streamId);
+		if (stream == null) {
+			if (streamId > lastStreamId || (streamId & 1) == 0) {
+				throw new Http2Exception(PROTOCOL_ERROR, "HEADERS on idle stream " + streamId);
+			}
+			// The stream was cancelled
+			return;
+		}
+		int errorCode = stream.receiveHeaders(fields, endStream);
+		if (errorCode != NO_ERROR) {
+			resetStream(stream, errorCode);
+		}
+	}
+
+	@Override
+	protected boolean readTimedOut() {
+		// The idle connections are closed by the pool
+		return true;
+	}
+
+	@Override
+	protected void goAwayReceived(int lastProcessedStreamId) {
+		synchronized (this) {
+			draining = true;
+		}
+		// The streams above the last one were not processed, and never will be
+		for (Http2ClientStream stream : streams.values()) {
+			if (stream.getId() > lastProcessedStreamId) {
+				streams.remove(stream.getId());
+				stream.reset();
+			}
+		}
+		wakeUpSenders();
+	}
+
+	@Override
+	protected void settingReceived(int identifier, int value) {
+		if (identifier == SETTINGS_MAX_CONCURRENT_STREAMS) {
+			synchronized (this) {
+				maxConcurrentStreams = value;
+			}
+		}
+	}
+
+	/**
+	 * Returns whether new streams may be opened on the connection.
+	 * @return False if the connection was closed or is being shut down by the remote host.
+	 */
+	public synchronized boolean isUsable() {
+		return !isClosed() && !draining;
+	}
+
+	/**
+	 * Shuts the connection down if no stream was active for some time.
+	 * @param idleTimeout The time, in milliseconds.
+	 * @return True if, and only if, the connection was closed.
+	 */
+	public boolean closeIfIdle(long idleTimeout) {
+		synchronized (this) {
+			if (activeStreams > 0 || System.currentTimeMillis() - idleSince < idleTimeout) {
+				return false;
+			}
+			draining = true;
+		}
+		goAway(NO_ERROR);
+		close();
+		return true;
+	}
+
+}
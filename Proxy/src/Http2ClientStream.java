@@ -0,0 +1,254 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request stream sent to a remote host on an Http2ClientConnection. The response header
+ * blocks and body are received by the reader thread of the connection and buffered here
+ * until they are read by the thread which sent the request. The stream must be closed
+ * once the exchange is over, so it stops counting against the concurrency limit of the
+ * connection.
+ * @author Juliano
+ */
+public class Http2ClientStream extends AbstractHttp2Stream {
+
+	/**
+	 * Time to wait for the response header, like the socket timeout of the HTTP/1.1 connections.
+	 */
+	private static final long RESPONSE_TIMEOUT = 10000;
+
+	private static final byte[] NO_DATA = new byte[0];
+
+	// Response header blocks, the interim ones followed by the final one, guarded by the lock
+	private ArrayDeque<List<String[]>> headerBlocks;
+	private boolean finalResponseReceived;
+
+	private volatile boolean requestEnded;
+	private boolean closed;
+
+	/**
+	 * Constructor.
+	 * @param connection The connection which carries the stream.
+	 * @param id The stream identifier.
+	 * @param requestEnded Whether the request ends with its header.
+	 */
+	Http2ClientStream(Http2ClientConnection connection, int id, boolean requestEnded) {
+		super(connection, id);
+		this.requestEnded = requestEnded;
+		headerBlocks = new ArrayDeque<>();
+	}
+
+	/**
+	 * Stores a response header block. Called by the reader thread.
+	 * @param fields The decoded fields.
+	 * @param endStream Whether the block ends the response.
+	 * @return NO_ERROR, or the error code with which the stream must be reset.
+	 */
+	int receiveHeaders(List<String[]> fields, boolean endStream) {
+		lock.lock();
+		try {
+			if (finalResponseReceived) {
+				// Trailers, which end the response body; they are not forwarded
+				if (!endStream) {
+					return AbstractHttp2Connection.PROTOCOL_ERROR;
+				}
+			} else {
+				int statusCode;
+				try {
+					statusCode = getStatus(fields);
+				} catch (ProtocolException e) {
+					return AbstractHttp2Connection.PROTOCOL_ERROR;
+				}
+				if (statusCode >= 200) {
+					finalResponseReceived = true;
+				} else if (endStream) {
+					return AbstractHttp2Connection.PROTOCOL_ERROR;
+				}
+				headerBlocks.add(fields);
+				stateChanged.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+		return endStream ? receiveData(null, 0, 0, 0, true) : AbstractHttp2Connection.NO_ERROR;
+	}
+
+	/**
+	 * Waits for the next response header block: an interim response, or the final one.
+	 * @return The fields of the block.
+	 * @throws IOException If the stream was reset or the response did not arrive in time.
+	 */
+	public List<String[]> awaitHeaders() throws IOException {
+		lock.lock();
+		try {
+			long timeout = TimeUnit.MILLISECONDS.toNanos(RESPONSE_TIMEOUT);
+			while(headerBlocks.isEmpty() && !reset) {
+				if (timeout <= 0) {
+					throw new SocketTimeoutException("Response not received on stream " + id);
+				}
+				try {
+					timeout = stateChanged.awaitNanos(timeout);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new IOException(e);
+				}
+			}
+			if (headerBlocks.isEmpty()) {
+				throw new IOException("Stream " + id + " reset");
+			}
+			return headerBlocks.poll();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Reads response body data, waiting for the remote host to send it.
+	 * @return The number of bytes read, or -1 at the end of the response.
+	 * @throws IOException If the stream was reset or the data did not arrive in time.
+	 */
+	public int read(byte[] buffer, int offset, int length) throws IOException {
+		return readData(buffer, offset, length);
+	}
+
+	/**
+	 * Sends request body data.
+	 * @throws IOException If the stream was reset, or the data could not be written.
+	 */
+	public void write(byte[] data, int offset, int length) throws IOException {
+		sendData(data, offset, length);
+	}
+
+	/**
+	 * Ends the request body.
+	 * @throws IOException If the frame could not be written.
+	 */
+	public void endRequest() throws IOException {
+		connection.writeFrame(AbstractHttp2Connection.TYPE_DATA, AbstractHttp2Connection.FLAG_END_STREAM, id, NO_DATA, 0, 0);
+		requestEnded = true;
+	}
+
+	/**
+	 * Get a stream through which an HTTP/1.1 request body is sent. A chunked body is
+	 * decoded, since HTTP/2 delimits the body with its frames. The request is ended once
+	 * the whole body was written.
+	 * @param contentLength Length of the body, or null if it is chunked.
+	 * @return The stream.
+	 */
+	public OutputStream getRequestBodyStream(final Long contentLength) {
+		final ChunkedStreamProcessor chunkedProcessor = contentLength != null ? null : new ChunkedStreamProcessor(new ChunkedStreamProcessor.Listener() {
+			public void chunkData(byte[] data, int offset, int length) throws IOException {
+				sendData(data, offset, length);
+			}
+		});
+		return new OutputStream() {
+
+			private long written;
+
+			@Override
+			public void write(int b) throws IOException {
+				write(new byte[] { (byte) b }, 0, 1);
+			}
+
+			@Override
+			public void write(byte[] data, int offset, int length) throws IOException {
+				if (requestEnded || length == 0) {
+					return;
+				}
+				if (chunkedProcessor != null) {
+					if (chunkedProcessor.process(data, offset, length) >= 0) {
+						endRequest();
+					}
+				} else {
+					sendData(data, offset, length);
+					written += length;
+					if (written >= contentLength) {
+						endRequest();
+					}
+				}
+			}
+
+		};
+	}
+
+	/**
+	 * Ends the exchange. If the request or the response is not over, the stream is
+	 * cancelled. May be called more than once.
+	 */
+	public void close() {
+		lock.lock();
+		try {
+			if (closed) {
+				return;
+			}
+			closed = true;
+		} finally {
+			lock.unlock();
+		}
+		if (!reset && (!requestEnded || !isInputEnded())) {
+			try {
+				connection.sendReset(id, AbstractHttp2Connection.CANCEL);
+			} catch (IOException e) {
+				// The connection is closed
+			}
+		}
+		reset();
+		connection.streamClosed(this);
+	}
+
+	/**
+	 * Get the status code of a response header block.
+	 * @param fields The fields of the block.
+	 * @return The status code.
+	 * @throws ProtocolException If the block has no valid :status pseudo-header.
+	 */
+	public static int getStatus(List<String[]> fields) throws ProtocolException {
+		for (String[] field : fields) {
+			if (field[0].equals(":status")) {
+				try {
+					int statusCode = Integer.parseInt(field[1]);
+					if (statusCode >= 100 && statusCode < 600) {
+						return statusCode;
+					}
+				} catch (NumberFormatException e) {
+					// Reported below
+				}
+				break;
+			}
+		}
+		throw new ProtocolException("Invalid response status");
+	}
+
+	/**
+	 * Translates the fields of a response header block into HTTP/1.1 header fields: the
+	 * pseudo-headers are dropped and the well-known names get their usual capitalization.
+	 * @param fields The fields of the block.
+	 * @return The header fields.
+	 */
+	public static Map<String, List<String>> toHttp1Fields(List<String[]> fields) {
+		Map<String, List<String>> headers = new LinkedHashMap<>();
+		for (String[] field : fields) {
+			String name = field[0];
+			if (name.startsWith(":")) {
+				continue;
+			}
+			String canonicalName = Http2Stream.getCanonicalName(name.toLowerCase(Locale.ROOT));
+			List<String> values = headers.get(canonicalName);
+			if (values == null) {
+				values = new ArrayList<>(1);
+				headers.put(canonicalName, values);
+			}
+			values.add(field[1]);
+		}
+		return headers;
+	}
+
+}
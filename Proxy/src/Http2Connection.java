@@ -0,0 +1,150 @@
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Server side of an HTTP/2 (RFC 9113) connection with a client whose TLS connection was
+ * bumped and which negotiated "h2" through ALPN. Each request stream is handed to an
+ * Http2Stream, run on the executor, which forwards it to the remote host.
+ * A stream counts against the concurrency limit until its task ends, even if the client
+ * resets it earlier, and a client which resets too many streams is sent a GOAWAY frame:
+ * otherwise, opening and resetting streams in a loop (the "rapid reset" attack) would
+ * start an unbounded number of tasks and requests to the remote host.
+ * @author Juliano
+ */
+public class Http2Connection extends AbstractHttp2Connection<Http2Stream> {
+
+	private static final int MAX_CONCURRENT_STREAMS = 100;
+
+	/**
+	 * Number of streams the client may reset within a RESET_INTERVAL.
+	 */
+	private static final int MAX_RESETS = 200;
+	private static final long RESET_INTERVAL = 10000;
+
+	private String remoteHost;
+	private int remotePort;
+
+	private UpstreamConnectionPool pool;
+	private Executor executor;
+	private RelayStatistics statistics;
+
+	private boolean goAwayReceived;
+
+	private AtomicInteger runningStreams;
+
+	// Only accessed by the reader thread
+	private int resets;
+	private long resetIntervalStart;
+
+	/**
+	 * Constructor.
+	 * @param socket The TLS socket of the client, after the handshake.
+	 * @param remoteHost Host of the CONNECT request, to which the streams are forwarded.
+	 * @param remotePort Port of the CONNECT request.
+	 * @param pool Pool of the connections to the remote hosts.
+	 * @param bufferPool Pool from which the buffers are taken.
+	 * @param executor Executor on which the streams run.
+	 * @param statistics Counters of the relayed data.
+	 * @throws IOException If the streams of the socket could not be obtained.
+	 */
+	public Http2Connection(Socket socket, String remoteHost, int remotePort, UpstreamConnectionPool pool, BufferPool bufferPool, Executor executor, RelayStatistics statistics) throws IOException {
+		super(socket, bufferPool);
+		this.remoteHost = remoteHost;
+		this.remotePort = remotePort;
+		this.pool = pool;
+		this.executor = executor;
+		this.statistics = statistics;
+		runningStreams = new AtomicInteger();
+	}
+
+	@Override
+	public void run(byte[] buffer) throws IOException {
+		statistics.http2ConnectionOpened();
+		super.run(buffer);
+	}
+
+	@Override
+	protected void startConnection(byte[] buffer) throws IOException {
+		readFully(buffer, 0, PREFACE.length);
+		for (int i = 0; i < PREFACE.length; i++) {
+			if (buffer[i] != PREFACE[i]) {
+				throw new ProtocolException("Invalid HTTP/2 connection preface");
+			}
+		}
+		byte[] settings = new byte[18];
+		putSetting(settings, 0, SETTINGS_MAX_CONCURRENT_STREAMS, MAX_CONCURRENT_STREAMS);
+		putSetting(settings, 6, SETTINGS_INITIAL_WINDOW_SIZE, STREAM_WINDOW_SIZE);
+		putSetting(settings, 12, SETTINGS_HEADER_TABLE_SIZE, HEADER_TABLE_SIZE);
+		writeFrame(TYPE_SETTINGS, 0, 0, settings, 0, settings.length);
+		sendWindowUpdate(0, CONNECTION_WINDOW_SIZE - DEFAULT_WINDOW_SIZE);
+	}
+
+	@Override
+	protected void handleHeaders(List<String[]> fields, int streamId, boolean endStream) throws IOException {
+		Http2Stream stream = streams.get(streamId);
+		if (stream != null) {
+			// Trailers, which end the request body; they are not forwarded
+			if (!endStream || stream.isInputEnded()) {
+				resetStream(stream, PROTOCOL_ERROR);
+			} else {
+				stream.receiveData(null, 0, 0, 0, true);
+			}
+			return;
+		}
+		if (streamId <= lastStreamId) {
+			throw new Http2Exception(STREAM_CLOSED, "HEADERS on closed stream");
+		}
+		if ((streamId & 1) == 0) {
+			throw new Http2Exception(PROTOCOL_ERROR, "Even stream id: " + streamId);
+		}
+		lastStreamId = streamId;
+		if (goAwayReceived || runningStreams.get() >= MAX_CONCURRENT_STREAMS) {
+			sendReset(streamId, REFUSED_STREAM);
+			return;
+		}
+		stream = new Http2Stream(this, streamId, remoteHost, remotePort, pool, bufferPool, executor, statistics);
+		if (!stream.setRequestHeaders(fields, endStream)) {
+			sendReset(streamId, PROTOCOL_ERROR);
+			return;
+		}
+		addStream(stream);
+		statistics.http2StreamOpened();
+		runningStreams.incrementAndGet();
+		executor.execute(stream);
+	}
+
+	@Override
+	void streamClosed(AbstractHttp2Stream stream) {
+		super.streamClosed(stream);
+		runningStreams.decrementAndGet();
+	}
+
+	@Override
+	protected void resetReceived() throws IOException {
+		long now = System.currentTimeMillis();
+		if (now - resetIntervalStart > RESET_INTERVAL) {
+			resetIntervalStart = now;
+			resets = 0;
+		}
+		if (++resets > MAX_RESETS) {
+			throw new Http2Exception(ENHANCE_YOUR_CALM, "Too many streams reset");
+		}
+	}
+
+	@Override
+	protected boolean readTimedOut() {
+		// An idle connection is closed, one with running streams is kept
+		return runningStreams.get() > 0;
+	}
+
+	@Override
+	protected void goAwayReceived(int lastProcessedStreamId) {
+		// The server pushes nothing, so only the new streams are refused
+		goAwayReceived = true;
+	}
+
+}
@@ -0,0 +1,567 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * Request stream of an HTTP/2 connection, forwarded to the remote host on a stream of
+ * a shared HTTP/2 connection, or as an HTTP/1.1 request over a connection taken from the
+ * UpstreamConnectionPool if the remote host does not support HTTP/2. An HTTP/1.1 response
+ * is translated back into a HEADERS frame and DATA frames; a chunked response is decoded,
+ * since HTTP/2 delimits the body with its frames.
+ * The request body is received by the reader thread of the connection and buffered
+ * here, up to the stream receive window, until it is uploaded by a task run on the
+ * executor, so the response can be relayed while the body is still being received.
+ * @author Juliano
+ */
+public class Http2Stream extends AbstractHttp2Stream implements Runnable {
+
+	private static final int BUFFER_SIZE = 1024 * 16;
+	private static final long UPLOAD_GRACE_PERIOD = 1000;
+
+	/**
+	 * Fields which only apply to an HTTP/1.1 connection, and are not translated.
+	 */
+	private static final Set<String> CONNECTION_FIELDS = new HashSet<>(Arrays.asList(
+			"connection", "keep-alive", "proxy-connection", "transfer-encoding", "upgrade", "te"));
+
+	/**
+	 * The well-known field names by their lowercase form, so the requests sent to the remote
+	 * hosts use the usual capitalization (and the names pre-encoded by HeaderWriter).
+	 */
+	private static final Map<String, String> CANONICAL_NAMES = new HashMap<>();
+
+	static {
+		for (String name : HeaderProcessor.KNOWN_FIELD_NAMES) {
+			CANONICAL_NAMES.put(name.toLowerCase(Locale.ROOT), name);
+		}
+	}
+
+	private String remoteHost;
+	private int remotePort;
+	private UpstreamConnectionPool pool;
+	private BufferPool bufferPool;
+	private Executor executor;
+	private RelayStatistics statistics;
+
+	private String method;
+	private String path;
+	private String authority;
+	private Map<String, List<String>> headers;
+	private Long contentLength;
+	private boolean chunkedRequest;
+	private boolean requestBody;
+
+	private HpackEncoder encoder;
+	private volatile UpstreamConnection upstream;
+	private volatile Http2ClientStream upstreamStream;
+
+	private boolean headersSent;
+	private boolean responseEnded;
+
+	/**
+	 * Constructor.
+	 * @param connection The connection which carries the stream.
+	 * @param id The stream identifier.
+	 * @param remoteHost Host to which the request is forwarded.
+	 * @param remotePort Port of the remote host.
+	 * @param pool Pool of the connections to the remote hosts.
+	 * @param bufferPool Pool from which the buffers are taken.
+	 * @param executor Executor on which the request body is uploaded.
+	 * @param statistics Counters of the relayed data.
+	 */
+	public Http2Stream(Http2Connection connection, int id, String remoteHost, int remotePort, UpstreamConnectionPool pool, BufferPool bufferPool, Executor executor, RelayStatistics statistics) {
+		super(connection, id);
+		this.remoteHost = remoteHost;
+		this.remotePort = remotePort;
+		this.pool = pool;
+		this.bufferPool = bufferPool;
+		this.executor = executor;
+		this.statistics = statistics;
+		encoder = new HpackEncoder();
+	}
+
+	/**
+	 * Translates the request header fields into an HTTP/1.1 header. The :authority
+	 * pseudo-header becomes the Host field, the cookie fields are joined in a single one,
+	 * and the connection-specific fields are dropped. A request without a Content-Length
+	 * and with a body is sent to the remote host with the chunked transfer coding.
+	 * @param fields The decoded header fields.
+	 * @param endStream Whether the HEADERS frame ended the stream, i.e. the request has no body.
+	 * @return False if the request is malformed.
+	 */
+	boolean setRequestHeaders(List<String[]> fields, boolean endStream) {
+		StringBuilder cookie = null;
+		Map<String, List<String>> fieldMap = new LinkedHashMap<>();
+		boolean regularField = false;
+		for (String[] field : fields) {
+			String name = field[0];
+			String value = field[1];
+			if (name.startsWith(":")) {
+				// Pseudo-headers must precede the regular fields
+				if (regularField) {
+					return false;
+				}
+				switch (name) {
+				case ":method":
+					method = value;
+					break;
+				case ":path":
+					path = value;
+					break;
+				case ":authority":
+					authority = value;
+					break;
+				case ":scheme":
+					break;
+				default:
+					return false;
+				}
+				continue;
+			}
+			regularField = true;
+			for (int i = 0; i < name.length(); i++) {
+				char c = name.charAt(i);
+				if (c >= 'A' && c <= 'Z') {
+					return false;
+				}
+			}
+			if (CONNECTION_FIELDS.contains(name) || (name.equals("host") && authority != null)) {
+				continue;
+			}
+			if (name.equals("cookie")) {
+				cookie = cookie == null ? new StringBuilder(value) : cookie.append("; ").append(value);
+				continue;
+			}
+			if (name.equals("content-length")) {
+				try {
+					contentLength = Long.parseLong(value.trim());
+				} catch (NumberFormatException e) {
+					return false;
+				}
+			}
+			name = getCanonicalName(name);
+			List<String> values = fieldMap.get(name);
+			if (values == null) {
+				values = new ArrayList<>(1);
+				fieldMap.put(name, values);
+			}
+			values.add(value);
+		}
+		if (method == null || path == null || path.isEmpty() || method.equals("CONNECT")) {
+			return false;
+		}
+		headers = new LinkedHashMap<>();
+		if (authority != null) {
+			headers.put("Host", Collections.singletonList(authority));
+		}
+		headers.putAll(fieldMap);
+		if (cookie != null) {
+			headers.put("Cookie", Collections.singletonList(cookie.toString()));
+		}
+		requestBody = !endStream;
+		expectedLength = contentLength;
+		if (endStream && receiveData(null, 0, 0, 0, true) != Http2Connection.NO_ERROR) {
+			return false;
+		}
+		if (contentLength == null) {
+			if (requestBody) {
+				chunkedRequest = true;
+				headers.put("Transfer-Encoding", Collections.singletonList("chunked"));
+			} else if (method.equals("POST") || method.equals("PUT") || method.equals("PATCH")) {
+				headers.put("Content-Length", Collections.singletonList("0"));
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Marks the stream as reset, waking up the threads waiting for it, and aborts the
+	 * request sent to the remote host.
+	 */
+	@Override
+	void reset() {
+		super.reset();
+		UpstreamConnection upstream = this.upstream;
+		if (upstream != null) {
+			upstream.close();
+		}
+		Http2ClientStream upstreamStream = this.upstreamStream;
+		if (upstreamStream != null) {
+			upstreamStream.close();
+		}
+	}
+
+	public void run() {
+		ByteBuffer pooledBuffer = bufferPool.acquire(BUFFER_SIZE);
+		byte[] buffer = pooledBuffer.array();
+		UpstreamConnection upstream = null;
+		boolean reusable = false;
+		try {
+			if (!isAuthorityRemoteHost()) {
+				// A client may reuse the connection for other hosts covered by the certificate,
+				// but every stream goes to the host of the CONNECT request
+				encoder.writeResponseHeader(421, Collections.singletonMap("content-length", Collections.singletonList("0")));
+				writeHeaders(true);
+				headersSent = true;
+				responseEnded = true;
+				return;
+			}
+			Http2ClientConnection http2Connection = pool.acquireHttp2(remoteHost, remotePort);
+			if (http2Connection != null) {
+				forwardToHttp2(http2Connection, buffer);
+				return;
+			}
+			upstream = pool.acquire(remoteHost, remotePort, true);
+			this.upstream = upstream;
+			if (reset) {
+				throw new IOException("Stream " + id + " reset");
+			}
+			HeaderWriter headerWriter = new HeaderWriter();
+			headerWriter.writeRequestHeader(method, path, headers);
+			headerWriter.writeTo(upstream.getOutputStream());
+			statistics.addUpstreamBytes(headerWriter.getLength());
+			FutureTask<Void> upload = requestBody ? uploadRequestBody(upstream.getOutputStream()) : null;
+
+			// Interim responses are not forwarded; a switch of protocols is not possible in HTTP/2
+			InputStream inputStream = upstream.getInputStream();
+			HeaderProcessor responseHeaderProcessor;
+			int statusCode;
+			do {
+				boolean headerProcessed = false;
+				responseHeaderProcessor = new HeaderProcessor(true);
+				while(!headerProcessed) {
+					int readResult = inputStream.read(buffer, 0, buffer.length);
+					if (readResult > 0) {
+						headerProcessed = responseHeaderProcessor.processInputData(buffer, 0, readResult);
+					} else {
+						throw new ProtocolException();
+					}
+				}
+				statusCode = responseHeaderProcessor.getResponseHeader().getStatusCode();
+				if (statusCode == 101) {
+					throw new ProtocolException("Protocol switch on an HTTP/2 stream");
+				}
+			} while(statusCode >= 100 && statusCode < 200);
+
+			boolean bodyless = method.equals("HEAD") || statusCode == 204 || statusCode == 304;
+			encoder.writeResponseHeader(statusCode, translateHeaders(responseHeaderProcessor.getHeaders()));
+			writeHeaders(bodyless);
+			headersSent = true;
+			if (!bodyless) {
+				ByteBuffer bodyData = responseHeaderProcessor.getBodyBuffer();
+				if (responseHeaderProcessor.getContentLength() != null) {
+					sendBody(bodyData, responseHeaderProcessor.getContentLength(), inputStream, buffer);
+				} else if (responseHeaderProcessor.isChunkedEncoded()) {
+					sendChunkedBody(bodyData, inputStream, buffer);
+				} else {
+					sendData(bodyData.array(), bodyData.position(), bodyData.remaining());
+					int readResult;
+					while((readResult = inputStream.read(buffer, 0, buffer.length)) > 0) {
+						sendData(buffer, 0, readResult);
+					}
+				}
+				connection.writeFrame(Http2Connection.TYPE_DATA, Http2Connection.FLAG_END_STREAM, id, buffer, 0, 0);
+			}
+			responseEnded = true;
+
+			boolean requestBodySent = waitRequestBody(upload);
+			reusable = (bodyless || responseHeaderProcessor.getContentLength() != null || responseHeaderProcessor.isChunkedEncoded())
+					&& requestBodySent && responseHeaderProcessor.isPersistentConnection();
+			if (!requestBodySent && !reset) {
+				// The client is told to stop sending the body, which is no longer needed
+				connection.sendReset(id, Http2Connection.NO_ERROR);
+			}
+		} catch (IOException e) {
+			if (!reset) {
+				e.printStackTrace();
+				try {
+					if (!headersSent) {
+						encoder.writeResponseHeader(502, Collections.singletonMap("content-length", Collections.singletonList("0")));
+						writeHeaders(true);
+					} else if (!responseEnded) {
+						connection.sendReset(id, Http2Connection.INTERNAL_ERROR);
+					}
+				} catch (IOException e1) {
+					// The client connection is closed
+				}
+			}
+		} finally {
+			this.upstream = null;
+			lock.lock();
+			try {
+				// Stops the upload, if it is still waiting for the client
+				reset = true;
+				stateChanged.signalAll();
+			} finally {
+				lock.unlock();
+			}
+			if (upstream != null) {
+				if (reusable) {
+					pool.release(upstream);
+				} else {
+					upstream.close();
+				}
+			}
+			bufferPool.release(pooledBuffer);
+			connection.streamClosed(this);
+		}
+	}
+
+	/**
+	 * Forwards the request on a stream of an HTTP/2 connection to the remote host, relaying
+	 * the response frames as they arrive.
+	 * @param http2Connection The connection, with a stream reserved for the request.
+	 * @param buffer Buffer used to relay the response body.
+	 * @throws IOException If the request could not be forwarded or the response relayed.
+	 */
+	private void forwardToHttp2(Http2ClientConnection http2Connection, byte[] buffer) throws IOException {
+		Http2ClientStream upstreamStream = http2Connection.openStream(method, path, headers, !requestBody);
+		this.upstreamStream = upstreamStream;
+		try {
+			if (reset) {
+				throw new IOException("Stream " + id + " reset");
+			}
+			FutureTask<Void> upload = requestBody ? relayRequestBody(upstreamStream) : null;
+
+			// Interim responses are not forwarded, as on the HTTP/1.1 connections
+			List<String[]> fields;
+			int statusCode;
+			do {
+				fields = upstreamStream.awaitHeaders();
+				statusCode = Http2ClientStream.getStatus(fields);
+				if (statusCode == 101) {
+					throw new ProtocolException("Protocol switch on an HTTP/2 stream");
+				}
+			} while(statusCode < 200);
+
+			boolean bodyless = method.equals("HEAD") || statusCode == 204 || statusCode == 304;
+			encoder.writeResponseHeader(statusCode, Http2ClientStream.toHttp1Fields(fields));
+			writeHeaders(bodyless);
+			headersSent = true;
+			if (!bodyless) {
+				int readResult;
+				while((readResult = upstreamStream.read(buffer, 0, buffer.length)) >= 0) {
+					sendData(buffer, 0, readResult);
+				}
+				connection.writeFrame(Http2Connection.TYPE_DATA, Http2Connection.FLAG_END_STREAM, id, buffer, 0, 0);
+			}
+			responseEnded = true;
+
+			if (!waitRequestBody(upload) && !reset) {
+				// The client is told to stop sending the body, which is no longer needed
+				connection.sendReset(id, Http2Connection.NO_ERROR);
+			}
+		} finally {
+			this.upstreamStream = null;
+			upstreamStream.close();
+		}
+	}
+
+	private boolean isAuthorityRemoteHost() {
+		if (authority == null) {
+			return true;
+		}
+		int portSeparator = authority.lastIndexOf(':');
+		String host = portSeparator > authority.lastIndexOf(']') ? authority.substring(0, portSeparator) : authority;
+		if (host.startsWith("[") && host.endsWith("]")) {
+			host = host.substring(1, host.length() - 1);
+		}
+		return host.equalsIgnoreCase(remoteHost);
+	}
+
+	/**
+	 * Starts the upload of the request body to the remote host.
+	 */
+	private FutureTask<Void> uploadRequestBody(final OutputStream outputStream) {
+		FutureTask<Void> upload = new FutureTask<>(new Callable<Void>() {
+			public Void call() throws IOException {
+				ByteBuffer uploadBuffer = bufferPool.acquire(BUFFER_SIZE);
+				byte[] buffer = uploadBuffer.array();
+				byte[] chunkHeader = new byte[ChunkedStreamProcessor.MAX_CHUNK_HEADER_LENGTH];
+				// Room is left around the data for the chunk header and the line break which follows the chunk
+				int dataOffset = chunkedRequest ? ChunkedStreamProcessor.MAX_CHUNK_HEADER_LENGTH : 0;
+				int dataLength = buffer.length - dataOffset - (chunkedRequest ? ChunkedStreamProcessor.CHUNK_END.length : 0);
+				try {
+					int readResult;
+					while((readResult = readData(buffer, dataOffset, dataLength)) >= 0) {
+						if (chunkedRequest) {
+							int headerLength = ChunkedStreamProcessor.encodeChunkHeader(readResult, chunkHeader, 0);
+							System.arraycopy(chunkHeader, 0, buffer, dataOffset - headerLength, headerLength);
+							System.arraycopy(ChunkedStreamProcessor.CHUNK_END, 0, buffer, dataOffset + readResult, ChunkedStreamProcessor.CHUNK_END.length);
+							outputStream.write(buffer, dataOffset - headerLength, headerLength + readResult + ChunkedStreamProcessor.CHUNK_END.length);
+							statistics.addUpstreamBytes(headerLength + readResult + ChunkedStreamProcessor.CHUNK_END.length);
+						} else {
+							outputStream.write(buffer, 0, readResult);
+							statistics.addUpstreamBytes(readResult);
+						}
+					}
+					if (chunkedRequest) {
+						outputStream.write(ChunkedStreamProcessor.LAST_CHUNK);
+						statistics.addUpstreamBytes(ChunkedStreamProcessor.LAST_CHUNK.length);
+					}
+					return null;
+				} finally {
+					bufferPool.release(uploadBuffer);
+				}
+			}
+		});
+		executor.execute(upload);
+		return upload;
+	}
+
+	/**
+	 * Starts the relay of the request body to a stream of an HTTP/2 connection.
+	 */
+	private FutureTask<Void> relayRequestBody(final Http2ClientStream upstreamStream) {
+		FutureTask<Void> upload = new FutureTask<>(new Callable<Void>() {
+			public Void call() throws IOException {
+				ByteBuffer uploadBuffer = bufferPool.acquire(BUFFER_SIZE);
+				byte[] buffer = uploadBuffer.array();
+				try {
+					int readResult;
+					while((readResult = readData(buffer, 0, buffer.length)) >= 0) {
+						upstreamStream.write(buffer, 0, readResult);
+						statistics.addUpstreamBytes(readResult);
+					}
+					upstreamStream.endRequest();
+					return null;
+				} finally {
+					bufferPool.release(uploadBuffer);
+				}
+			}
+		});
+		executor.execute(upload);
+		return upload;
+	}
+
+	/**
+	 * Waits for the end of the request body upload, which is expected to finish at about
+	 * the same time as the response.
+	 * @return True if, and only if, the request body was fully sent.
+	 */
+	private boolean waitRequestBody(FutureTask<Void> upload) {
+		if (upload == null) {
+			return true;
+		}
+		try {
+			upload.get(UPLOAD_GRACE_PERIOD, TimeUnit.MILLISECONDS);
+			return true;
+		} catch (TimeoutException e) {
+			statistics.earlyResponse();
+		} catch (ExecutionException e) {
+			if (!reset) {
+				e.getCause().printStackTrace();
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+
+	/**
+	 * Get the usual capitalization of a field name.
+	 * @param name The lowercase name.
+	 * @return The canonical name of a well-known field, or the name itself.
+	 */
+	static String getCanonicalName(String name) {
+		String canonicalName = CANONICAL_NAMES.get(name);
+		return canonicalName != null ? canonicalName : name;
+	}
+
+	/**
+	 * Drops the connection-specific fields of an HTTP/1.1 header, including the ones named
+	 * by its Connection field, and lowercases the names of the others.
+	 */
+	static Map<String, List<String>> translateHeaders(Map<String, List<String>> responseHeaders) {
+		Set<String> excluded = new HashSet<>(CONNECTION_FIELDS);
+		for (Map.Entry<String, List<String>> entry : responseHeaders.entrySet()) {
+			if (entry.getKey().equalsIgnoreCase("Connection")) {
+				for (String value : entry.getValue()) {
+					for (String name : value.split(",")) {
+						excluded.add(name.trim().toLowerCase(Locale.ROOT));
+					}
+				}
+			}
+		}
+		Map<String, List<String>> translated = new LinkedHashMap<>();
+		for (Map.Entry<String, List<String>> entry : responseHeaders.entrySet()) {
+			String name = entry.getKey().toLowerCase(Locale.ROOT);
+			if (!excluded.contains(name)) {
+				List<String> values = translated.get(name);
+				if (values == null) {
+					translated.put(name, entry.getValue());
+				} else {
+					values = new ArrayList<>(values);
+					values.addAll(entry.getValue());
+					translated.put(name, values);
+				}
+			}
+		}
+		return translated;
+	}
+
+	private void sendBody(ByteBuffer bodyData, long contentLength, InputStream inputStream, byte[] buffer) throws IOException {
+		int length = (int) Math.min(bodyData.remaining(), contentLength);
+		sendData(bodyData.array(), bodyData.position(), length);
+		long remaining = contentLength - length;
+		while(remaining > 0) {
+			int readResult = inputStream.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+			if (readResult < 0) {
+				throw new EOFException();
+			}
+			sendData(buffer, 0, readResult);
+			remaining -= readResult;
+		}
+	}
+
+	private void sendChunkedBody(ByteBuffer bodyData, InputStream inputStream, byte[] buffer) throws IOException {
+		ChunkedStreamProcessor chunkedProcessor = new ChunkedStreamProcessor(new ChunkedStreamProcessor.Listener() {
+			public void chunkData(byte[] data, int offset, int length) throws IOException {
+				sendData(data, offset, length);
+			}
+		});
+		if (chunkedProcessor.process(bodyData.array(), bodyData.position(), bodyData.remaining()) >= 0) {
+			return;
+		}
+		while(true) {
+			int readResult = inputStream.read(buffer, 0, buffer.length);
+			if (readResult < 0) {
+				throw new EOFException();
+			}
+			if (chunkedProcessor.process(buffer, 0, readResult) >= 0) {
+				return;
+			}
+		}
+	}
+
+	@Override
+	protected void sendData(byte[] data, int offset, int length) throws IOException {
+		super.sendData(data, offset, length);
+		statistics.addDownstreamBytes(length);
+	}
+
+	private void writeHeaders(boolean endStream) throws IOException {
+		connection.writeHeaders(id, encoder.getBuffer(), encoder.getLength(), endStream);
+		statistics.addDownstreamBytes(encoder.getLength());
+	}
+
+}
@@ -1,54 +1,92 @@
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetSocketAddress;
 import java.net.ProtocolException;
 import java.net.Socket;
 import java.net.URL;
 import java.net.UnknownHostException;
-import java.security.InvalidKeyException;
-import java.security.KeyManagementException;
-import java.security.KeyStoreException;
-import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
-import java.security.SignatureException;
-import java.security.UnrecoverableKeyException;
-import java.security.cert.CertificateException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Collections;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
+import javax.net.ssl.SSLParameters;
 import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
 
 
 public class HttpProcessor implements Runnable {
 
+	private static final int BUFFER_SIZE = 1024 * 16;
+	private static final long UPLOAD_GRACE_PERIOD = 1000;
+	private static final int CONNECT_TIMEOUT = 10000;
+	private static final byte[] FORBIDDEN_RESPONSE = "HTTP/1.1 403 Forbidden\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] BAD_GATEWAY_RESPONSE = "HTTP/1.1 502 Bad Gateway\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] GATEWAY_TIMEOUT_RESPONSE = "HTTP/1.1 504 Gateway Timeout\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
 	private SSLSocketFactoryCache cache;
+	private HostPolicy hostPolicy;
+	private UpstreamConnectionPool pool;
+	private ResponseCache responseCache;
+	private BufferPool bufferPool;
+	private Executor executor;
+	private RelayStatistics statistics;
+	private boolean http2;
 	
 	private Socket clientSocket;
 	private InputStream clientInputStream;
 	private OutputStream clientOutputStream;
 	
-	private Socket remoteHostSocket;
+	private String connectHost;
+	private int connectPort;
+	private UpstreamConnection remoteHostConnection;
+	private boolean remoteHostReusable;
 	private InputStream remoteHostInputStream;
 	private OutputStream remoteHostOutputStream;
 	
+	private ByteBuffer pooledBuffer;
 	private byte[] buffer;
+	private ByteBuffer pipelinedData;
+	private HeaderWriter headerWriter;
+	private ConnectRequestData http2Request;
+	private ResponseCache.Fetch fetch;
 	
-	public HttpProcessor(SSLSocketFactoryCache cache, Socket clientSocket) throws IOException {
+	public HttpProcessor(SSLSocketFactoryCache cache, HostPolicy hostPolicy, UpstreamConnectionPool pool, ResponseCache responseCache, BufferPool bufferPool, Executor executor, RelayStatistics statistics, boolean http2, Socket clientSocket) throws IOException {
 		this.cache = cache;
+		this.hostPolicy = hostPolicy;
+		this.pool = pool;
+		this.responseCache = responseCache;
+		this.bufferPool = bufferPool;
+		this.executor = executor;
+		this.statistics = statistics;
+		this.http2 = http2;
 		this.clientSocket = clientSocket;
 		clientSocket.setSoTimeout(10000);
-		buffer = new byte[1024 * 10];
+		headerWriter = new HeaderWriter();
 	}
 	
 	public void run() {
 
+		// The relay buffer is only held while the connection is being handled
+		pooledBuffer = bufferPool.acquire(BUFFER_SIZE);
+		buffer = pooledBuffer.array();
 		try {
 			clientInputStream = clientSocket.getInputStream();
 			clientOutputStream = clientSocket.getOutputStream();
 			boolean useSSL = processConnection(false);
-			if (useSSL) {
+			if (useSSL && http2Request != null) {
+				new Http2Connection(clientSocket, http2Request.getRemoteHost(), http2Request.getPort(), pool, bufferPool, executor, statistics).run(buffer);
+			} else if (useSSL) {
 				processConnection(true);
 			}
 		} catch (IOException e) {
@@ -59,13 +97,9 @@ public class HttpProcessor implements Runnable {
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
-			if (remoteHostSocket != null) {
-				try {
-					remoteHostSocket.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
+			releaseRemoteSocket();
+			buffer = null;
+			bufferPool.release(pooledBuffer);
 		}
 		
 	}
@@ -80,6 +114,11 @@ public class HttpProcessor implements Runnable {
 			
 				boolean headerProcessed = false;
 				HeaderProcessor requestHeaderProcessor = new HeaderProcessor(false);
+				if (pipelinedData != null) {
+					// The client sent this request before receiving the previous response
+					headerProcessed = requestHeaderProcessor.processInputData(pipelinedData.array(), pipelinedData.arrayOffset() + pipelinedData.position(), pipelinedData.remaining());
+					pipelinedData = null;
+				}
 				while(!headerProcessed) {
 					readResult = clientInputStream.read(buffer, 0, buffer.length);
 					if (readResult > 0) {
@@ -92,90 +131,764 @@ public class HttpProcessor implements Runnable {
 				String resource = null;
 				RequestHeader requestHeader = requestHeaderProcessor.getRequestHeader();
 				if (requestHeader.getMethod().equalsIgnoreCase("CONNECT")) {
-					ConnectRequestData data = processConnectRequest(requestHeader);
+					ConnectRequestData data = processConnectRequest(requestHeader, requestHeaderProcessor.getBodyBuffer());
+					if (data == null) {
+						// The host was tunnelled or blocked, and the connection is over
+						return false;
+					}
 					clientSocket = data.getSocket();
 					clientSocket.setSoTimeout(10000);
 					clientInputStream = clientSocket.getInputStream();
 					clientOutputStream = clientSocket.getOutputStream();
-					openRemoteSocket(data.getRemoteHost(), data.getPort(), true);
+					if (http2) {
+						// The protocol is chosen by ALPN during the handshake
+						data.getSocket().startHandshake();
+						if ("h2".equals(data.getSocket().getApplicationProtocol())) {
+							http2Request = data;
+							return true;
+						}
+					}
+					// The remote host is connected by the first request, which may be sent over HTTP/2
+					connectHost = data.getRemoteHost();
+					connectPort = data.getPort();
 					return true;
+				}
+				
+				String remoteHost;
+				int remotePort;
+				if (useSSL) {
+					remoteHost = connectHost;
+					remotePort = connectPort;
+					resource = requestHeader.getResource();
 				} else {
-					if (useSSL) {
-						resource = requestHeader.getResource();
+					// Each request goes to the origin of its own URL, so a client may send the
+					// requests of several origins through the same connection
+					URL url = new URL(requestHeader.getResource());
+					remoteHost = url.getHost();
+					if (hostPolicy.getAction(remoteHost) == HostRules.Action.BLOCK) {
+						clientOutputStream.write(FORBIDDEN_RESPONSE);
+						return false;
+					}
+					remotePort = url.getPort();
+					if (remotePort == -1) {
+						remotePort = 80;
+					}
+					resource = url.getFile().isEmpty() ? "/" : url.getFile();
+				}
+				
+				String method = requestHeader.getMethod();
+				Map<String, List<String>> requestHeaders = requestHeaderProcessor.getHeaders();
+				String cacheKey = responseCache.isEnabled() ? ResponseCache.getKey(remoteHost, remotePort, useSSL, resource) : null;
+				CachedResponse storedResponse = null;
+				long[] range;
+				if (cacheKey != null && !hasBody(requestHeaderProcessor) && (range = responseCache.getCacheableRange(method, requestHeaders)) != null) {
+					// Download managers and media players ask for ranges, which are cut from the stored response or ranges
+					CachedResponse rangeSource = responseCache.getRangeSource(cacheKey, requestHeaders, range);
+					if (rangeSource != null || ResponseCache.isOnlyIfCached(requestHeaders)) {
+						keepPipelinedData(requestHeaderProcessor.getBodyBuffer());
+						if (rangeSource != null) {
+							responseCache.hit();
+							if (!serveRange(rangeSource, range, requestHeader, requestHeaderProcessor)) {
+								break;
+							}
+						} else {
+							responseCache.miss();
+							clientOutputStream.write(GATEWAY_TIMEOUT_RESPONSE);
+							statistics.addDownstreamBytes(GATEWAY_TIMEOUT_RESPONSE.length);
+							if (!requestHeaderProcessor.isPersistentConnection()) {
+								break;
+							}
+						}
+						continue;
+					}
+					responseCache.miss();
+				} else if (cacheKey != null && !hasBody(requestHeaderProcessor) && responseCache.isCacheableRequest(method, requestHeaders)) {
+					storedResponse = responseCache.get(cacheKey, requestHeaders);
+					ResponseCache.Fetch concurrentFetch;
+					if ((storedResponse == null || !responseCache.isFresh(storedResponse, requestHeaders)) && !ResponseCache.isOnlyIfCached(requestHeaders)
+							&& !ResponseCache.isConditional(requestHeaders) && (concurrentFetch = responseCache.getFetch(cacheKey)) != null) {
+						// An identical request is being forwarded: its response is shared, as it arrives
+						ResponseCache.Recording recording = concurrentFetch.await();
+						if (recording != null && ResponseCache.matchesVary(recording.getResponse(), requestHeaders)) {
+							responseCache.collapsed();
+							keepPipelinedData(requestHeaderProcessor.getBodyBuffer());
+							if (!serveRecording(recording, requestHeader, requestHeaderProcessor)) {
+								break;
+							}
+							continue;
+						}
+						// The fetch may have stored or freshened the response
+						storedResponse = responseCache.get(cacheKey, requestHeaders);
+					}
+					if (storedResponse != null && responseCache.isFresh(storedResponse, requestHeaders)) {
+						responseCache.hit();
+						keepPipelinedData(requestHeaderProcessor.getBodyBuffer());
+						if (!serveFromCache(storedResponse, requestHeader, requestHeaderProcessor)) {
+							break;
+						}
+						continue;
+					}
+					if (ResponseCache.isOnlyIfCached(requestHeaders)) {
+						responseCache.miss();
+						keepPipelinedData(requestHeaderProcessor.getBodyBuffer());
+						clientOutputStream.write(GATEWAY_TIMEOUT_RESPONSE);
+						statistics.addDownstreamBytes(GATEWAY_TIMEOUT_RESPONSE.length);
+						if (!requestHeaderProcessor.isPersistentConnection()) {
+							break;
+						}
+						continue;
+					}
+					if (storedResponse != null && method.equals("GET") && storedResponse.hasValidator() && !ResponseCache.isConditional(requestHeaders)) {
+						// The stale response is validated by the remote host instead of being fetched again
+						requestHeaders = ResponseCache.getValidationHeaders(storedResponse, requestHeaders);
+						responseCache.revalidation();
 					} else {
-						if (remoteHostSocket == null) {
-							URL url = new URL(requestHeader.getResource());
-							String remoteHost = url.getHost();
-							int remotePort = url.getPort();
-							if (remotePort == -1) {
-								remotePort = 80;
+						storedResponse = null;
+						responseCache.miss();
+					}
+					if (method.equals("GET") && !ResponseCache.isConditional(requestHeaderProcessor.getHeaders())) {
+						fetch = responseCache.startFetch(cacheKey);
+					}
+				}
+				
+				if (useSSL) {
+					if (remoteHostConnection == null) {
+						Http2ClientConnection http2Connection = requiresHttp1(requestHeaders) ? null : pool.acquireHttp2(connectHost, connectPort);
+						if (http2Connection != null) {
+							if (!forwardToHttp2(http2Connection, requestHeader, requestHeaderProcessor, requestHeaders, cacheKey, storedResponse)) {
+								break;
 							}
-							openRemoteSocket(remoteHost, remotePort, false);
-							resource = url.getFile();
+							continue;
+						}
+						openRemoteSocket(connectHost, connectPort, true);
+					}
+				} else {
+					if (remoteHostConnection != null) {
+						boolean sameOrigin = remoteHostConnection.getKey().equals(UpstreamConnectionPool.getKey(remoteHost, remotePort, false));
+						if (sameOrigin && remoteHostReusable && !pool.isHealthy(remoteHostConnection)) {
+							// The origin closed the connection while the client was idle
+							remoteHostReusable = false;
+						}
+						if (!sameOrigin || !remoteHostReusable) {
+							// The connection to the previous origin is left in the pool for later requests
+							releaseRemoteSocket();
+						}
+					}
+					openRemoteSocket(remoteHost, remotePort, false);
+				}
+				
+				long requestTime = System.currentTimeMillis();
+				remoteHostReusable = false;
+				headerWriter.writeRequestHeader(method, resource, requestHeaders);
+				headerWriter.writeTo(remoteHostOutputStream);
+				statistics.addUpstreamBytes(headerWriter.getLength());
+				FutureTask<ByteBuffer> requestBodyUpload = sendRequestBody(requestHeaderProcessor, remoteHostOutputStream);
+				
+				// Interim responses (e.g. 100 Continue) are forwarded and followed by the final response
+				HeaderProcessor responseHeaderProcessor;
+				int statusCode;
+				do {
+					headerProcessed = false;
+					responseHeaderProcessor = new HeaderProcessor(true);
+					while(!headerProcessed) {
+						readResult = remoteHostInputStream.read(buffer, 0, buffer.length);
+						if (readResult > 0) {
+							headerProcessed = responseHeaderProcessor.processInputData(buffer, 0, readResult);
 						} else {
-							resource = requestHeader.getResource();
+							throw new ProtocolException();
 						}
 					}
+					statusCode = responseHeaderProcessor.getResponseHeader().getStatusCode();
+					if (statusCode >= 100 && statusCode < 200 && statusCode != 101) {
+						headerWriter.writeResponseHeader(responseHeaderProcessor.getResponseHeader(), responseHeaderProcessor.getHeaders());
+						headerWriter.writeTo(clientOutputStream);
+						statistics.addDownstreamBytes(headerWriter.getLength());
+					}
+				} while(statusCode >= 100 && statusCode < 200 && statusCode != 101);
+				long responseTime = System.currentTimeMillis();
+				Map<String, List<String>> responseHeaders = responseHeaderProcessor.getHeaders();
+				
+				if (storedResponse != null && statusCode == 304) {
+					// The stored response is still valid: it is freshened, and sent in place of the 304 response
+					responseCache.notModified();
+					CachedResponse updatedResponse = responseCache.update(storedResponse, responseHeaders, requestTime, responseTime);
+					endFetch();
+					remoteHostReusable = requestHeaderProcessor.isPersistentConnection() && responseHeaderProcessor.isPersistentConnection();
+					if (!serveFromCache(updatedResponse, requestHeader, requestHeaderProcessor)) {
+						break;
+					}
+					continue;
 				}
 				
-				sendRequestHeader(requestHeader.getMethod(), resource, requestHeaderProcessor.getHeaders(), remoteHostOutputStream);
-				if (requestHeaderProcessor.getContentLength() != null) {
-					sendBody(requestHeaderProcessor.getBodyData(), requestHeaderProcessor.getContentLength(), clientInputStream, remoteHostOutputStream);
-				} else if (requestHeaderProcessor.isChunkedEncoded()) {
-					sendChunkedBody(requestHeaderProcessor.getBodyData(), clientInputStream, remoteHostOutputStream);
+				headerWriter.writeResponseHeader(responseHeaderProcessor.getResponseHeader(), responseHeaders);
+				headerWriter.writeTo(clientOutputStream);
+				statistics.addDownstreamBytes(headerWriter.getLength());
+				
+				if (statusCode == 101) {
+					// The connection now carries another protocol, which is relayed until it is closed
+					endFetch();
+					ByteBuffer bodyData = responseHeaderProcessor.getBodyBuffer();
+					clientOutputStream.write(bodyData.array(), bodyData.position(), bodyData.remaining());
+					statistics.addDownstreamBytes(bodyData.remaining());
+					statistics.tunnelOpened();
+					try {
+						new DuplexRelay(bufferPool, executor, statistics).run(clientSocket, remoteHostConnection.getSocket(), buffer);
+					} finally {
+						statistics.tunnelClosed();
+					}
+					break;
 				}
 				
-				headerProcessed = false;
-				HeaderProcessor responseHeaderProcessor = new HeaderProcessor(true);
-				while(!headerProcessed) {
-					readResult = remoteHostInputStream.read(buffer, 0, buffer.length);
-					if (readResult > 0) {
-						headerProcessed = responseHeaderProcessor.processInputData(buffer, 0, readResult);
-					} else {
-						throw new ProtocolException();
+				if (cacheKey != null && !ResponseCache.isSafe(method) && statusCode < 400) {
+					responseCache.invalidate(cacheKey);
+				}
+				
+				// A storable response is copied while it is relayed
+				Long contentLength = responseHeaderProcessor.getContentLength();
+				ResponseCache.Recording recording = null;
+				if (cacheKey != null) {
+					recording = responseCache.startRecording(cacheKey, method, requestHeaderProcessor.getHeaders(), statusCode, responseHeaders,
+							contentLength, contentLength == null && responseHeaderProcessor.isChunkedEncoded(), clientOutputStream, requestTime, responseTime);
+					if (statusCode == 206) {
+						fetchWholeResource(cacheKey, remoteHost, remotePort, useSSL, resource, requestHeaderProcessor.getHeaders(), responseHeaders);
 					}
 				}
+				publishFetch(recording);
+				OutputStream bodyOutputStream = recording != null ? recording : clientOutputStream;
 				
-				sendResponseHeader(responseHeaderProcessor.getResponseHeader(), responseHeaderProcessor.getHeaders(), clientOutputStream);
-				if (responseHeaderProcessor.getContentLength() != null) {
-					sendBody(responseHeaderProcessor.getBodyData(), responseHeaderProcessor.getContentLength(), remoteHostInputStream, clientOutputStream);
+				long bodyLength;
+				boolean bodyless = method.equalsIgnoreCase("HEAD") || statusCode == 204 || statusCode == 304;
+				if (bodyless) {
+					bodyLength = 0;
+				} else if (contentLength != null) {
+					bodyLength = sendBody(responseHeaderProcessor.getBodyBuffer(), contentLength, remoteHostInputStream, bodyOutputStream, buffer);
 				} else if (responseHeaderProcessor.isChunkedEncoded()) {
-					sendChunkedBody(responseHeaderProcessor.getBodyData(), remoteHostInputStream, clientOutputStream);
+					bodyLength = sendChunkedBody(responseHeaderProcessor.getBodyBuffer(), remoteHostInputStream, bodyOutputStream, buffer);
 				} else {
-					sendBody(responseHeaderProcessor.getBodyData(), remoteHostInputStream, clientOutputStream);
+					bodyLength = sendBody(responseHeaderProcessor.getBodyBuffer(), remoteHostInputStream, bodyOutputStream, buffer);
 				}
+				statistics.addDownstreamBytes(bodyLength);
+				if (recording != null) {
+					responseCache.store(recording);
+					endFetch();
+					if (recording.getRelayException() != null) {
+						throw recording.getRelayException();
+					}
+				}
+				
+				boolean requestBodySent = waitRequestBody(requestBodyUpload);
+				// The remote connection may be reused by other clients only if the end of the
+				// response body was delimited by its length, and not by closing the connection
+				remoteHostReusable = (bodyless || contentLength != null || responseHeaderProcessor.isChunkedEncoded())
+						&& requestBodySent && requestHeaderProcessor.isPersistentConnection() && responseHeaderProcessor.isPersistentConnection();
 				
-				if (!responseHeaderProcessor.isKeepConnectionAlive()) {
+				// The next request can't be read while the body of this one is still arriving
+				if (!requestBodySent || !responseHeaderProcessor.isKeepConnectionAlive()) {
 					break;
 				}
 				
 			}
 			
-		} catch (IOException | InvalidKeyException | UnrecoverableKeyException | KeyManagementException | NoSuchAlgorithmException | NoSuchProviderException | CertificateException | SignatureException | KeyStoreException e) {
+		} catch (IOException | GeneralSecurityException e) {
 			e.printStackTrace();
+		} finally {
+			endFetch();
 		}
 		
 		return false;
 		
 	}
 	
+	/**
+	 * Sends the request body to the remote host. The body bytes which came along with the
+	 * header are sent right away. If more bytes are expected, they are copied by a task
+	 * submitted to the executor, so the response can be relayed while the body is still
+	 * being uploaded (e.g. an error response sent before the end of a large upload).
+	 * The bytes received after the end of the body belong to the requests pipelined by the
+	 * client; they are kept in pipelinedData, or returned by the task, and parsed once the
+	 * response is relayed, so the responses are sent in the order of the requests.
+	 * @param requestHeaderProcessor The processor of the request header.
+	 * @param outputStream The stream to which the body is sent.
+	 * @return The task which sends the rest of the body, or null if the body was fully sent.
+	 * @throws IOException If the body could not be sent.
+	 */
+	private FutureTask<ByteBuffer> sendRequestBody(HeaderProcessor requestHeaderProcessor, final OutputStream outputStream) throws IOException {
+		ByteBuffer bodyData = requestHeaderProcessor.getBodyBuffer();
+		final Long contentLength = requestHeaderProcessor.getContentLength();
+		final ChunkedStreamProcessor chunkedProcessor;
+		if (contentLength != null) {
+			if (bodyData.remaining() >= contentLength) {
+				outputStream.write(bodyData.array(), bodyData.position(), contentLength.intValue());
+				statistics.addUpstreamBytes(contentLength);
+				bodyData.position(bodyData.position() + contentLength.intValue());
+				keepPipelinedData(bodyData);
+				return null;
+			}
+			chunkedProcessor = null;
+		} else if (requestHeaderProcessor.isChunkedEncoded()) {
+			chunkedProcessor = new ChunkedStreamProcessor();
+			int streamEndPosition = chunkedProcessor.process(bodyData.array(), bodyData.position(), bodyData.remaining());
+			if (streamEndPosition >= 0) {
+				outputStream.write(bodyData.array(), bodyData.position(), streamEndPosition - bodyData.position());
+				statistics.addUpstreamBytes(streamEndPosition - bodyData.position());
+				bodyData.position(streamEndPosition);
+				keepPipelinedData(bodyData);
+				return null;
+			}
+		} else {
+			keepPipelinedData(bodyData);
+			return null;
+		}
+		outputStream.write(bodyData.array(), bodyData.position(), bodyData.remaining());
+		statistics.addUpstreamBytes(bodyData.remaining());
+		final long remaining = contentLength != null ? contentLength - bodyData.remaining() : 0;
+		final InputStream inputStream = clientInputStream;
+		FutureTask<ByteBuffer> upload = new FutureTask<>(new Callable<ByteBuffer>() {
+			public ByteBuffer call() throws IOException {
+				ByteBuffer uploadBuffer = bufferPool.acquire(BUFFER_SIZE);
+				try {
+					long bodyLength;
+					ByteBuffer excess = null;
+					if (chunkedProcessor != null) {
+						// A chunked body can't be read without reading past its end
+						excess = ByteBuffer.allocate(uploadBuffer.capacity());
+						bodyLength = relayChunkedBody(chunkedProcessor, inputStream, outputStream, uploadBuffer.array(), excess);
+						excess.flip();
+					} else {
+						bodyLength = sendBody(null, remaining, inputStream, outputStream, uploadBuffer.array());
+					}
+					statistics.addUpstreamBytes(bodyLength);
+					return excess;
+				} finally {
+					bufferPool.release(uploadBuffer);
+				}
+			}
+		});
+		executor.execute(upload);
+		return upload;
+	}
+	
+	/**
+	 * Forwards a request of a bumped connection on a stream of an HTTP/2 connection to the
+	 * remote host, and relays the response to the client as HTTP/1.1. A response without a
+	 * length is sent with the chunked transfer coding, so the client connection can carry
+	 * the next request.
+	 * @param connection The connection, with a stream reserved for the request.
+	 * @param requestHeader The request line.
+	 * @param requestHeaderProcessor The processor of the request header.
+	 * @param requestHeaders The header fields sent to the remote host.
+	 * @param cacheKey Key of the resource in the ResponseCache, or null if the cache is disabled.
+	 * @param storedResponse The stored response validated by the request, or null.
+	 * @return True if, and only if, the client connection may carry another request.
+	 * @throws IOException If the response could not be relayed.
+	 */
+	private boolean forwardToHttp2(Http2ClientConnection connection, RequestHeader requestHeader, HeaderProcessor requestHeaderProcessor, Map<String, List<String>> requestHeaders, String cacheKey, CachedResponse storedResponse) throws IOException {
+		Long contentLength = requestHeaderProcessor.getContentLength();
+		String method = requestHeader.getMethod();
+		long requestTime = System.currentTimeMillis();
+		Http2ClientStream stream;
+		try {
+			stream = connection.openStream(method, requestHeader.getResource(), requestHeaders, !hasBody(requestHeaderProcessor));
+		} catch (IOException e) {
+			e.printStackTrace();
+			clientOutputStream.write(BAD_GATEWAY_RESPONSE);
+			return false;
+		}
+		try {
+			FutureTask<ByteBuffer> requestBodyUpload = sendRequestBody(requestHeaderProcessor, stream.getRequestBodyStream(contentLength));
+
+			// Interim responses (e.g. 100 Continue) are forwarded and followed by the final response
+			List<String[]> fields;
+			int statusCode;
+			try {
+				while(true) {
+					fields = stream.awaitHeaders();
+					statusCode = Http2ClientStream.getStatus(fields);
+					if (statusCode >= 200) {
+						break;
+					}
+					if (statusCode == 101) {
+						throw new ProtocolException("Protocol switch on an HTTP/2 stream");
+					}
+					headerWriter.writeResponseHeader(statusCode, Http2ClientStream.toHttp1Fields(fields));
+					headerWriter.writeTo(clientOutputStream);
+					statistics.addDownstreamBytes(headerWriter.getLength());
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+				clientOutputStream.write(BAD_GATEWAY_RESPONSE);
+				return false;
+			}
+
+			long responseTime = System.currentTimeMillis();
+			Map<String, List<String>> headers = Http2ClientStream.toHttp1Fields(fields);
+			if (storedResponse != null && statusCode == 304) {
+				// The stored response is still valid: it is freshened, and sent in place of the 304 response
+				responseCache.notModified();
+				CachedResponse updatedResponse = responseCache.update(storedResponse, headers, requestTime, responseTime);
+				endFetch();
+				return serveFromCache(updatedResponse, requestHeader, requestHeaderProcessor) && waitRequestBody(requestBodyUpload);
+			}
+			if (cacheKey != null && !ResponseCache.isSafe(method) && statusCode < 400) {
+				responseCache.invalidate(cacheKey);
+			}
+			// The body of a storable response is copied as it is read from the stream
+			String responseLength = ResponseCache.getField(headers, "Content-Length");
+			ResponseCache.Recording recording = null;
+			if (cacheKey != null) {
+				Long bodyLength = null;
+				try {
+					bodyLength = responseLength != null ? Long.valueOf(responseLength.trim()) : null;
+				} catch (NumberFormatException e) {
+					// The length is checked by the stream
+				}
+				recording = responseCache.startRecording(cacheKey, method, requestHeaderProcessor.getHeaders(), statusCode, headers, bodyLength, false, null, requestTime, responseTime);
+				if (statusCode == 206) {
+					fetchWholeResource(cacheKey, connectHost, connectPort, true, requestHeader.getResource(), requestHeaderProcessor.getHeaders(), headers);
+				}
+			}
+			publishFetch(recording);
+			boolean bodyless = method.equalsIgnoreCase("HEAD") || statusCode == 204 || statusCode == 304;
+			boolean keepAlive = requestHeaderProcessor.isPersistentConnection();
+			boolean chunked = false;
+			if (!bodyless && !headers.containsKey("Content-Length")) {
+				if (requestHeader.getProtocol().equalsIgnoreCase("HTTP/1.1")) {
+					chunked = true;
+					headers.put("Transfer-Encoding", Collections.singletonList("chunked"));
+				} else {
+					// An HTTP/1.0 client only sees the end of the body when the connection is closed
+					keepAlive = false;
+				}
+			}
+			if (!keepAlive) {
+				headers.put("Connection", Collections.singletonList("close"));
+			} else if (requestHeaderProcessor.isKeepConnectionAlive()) {
+				headers.put("Connection", Collections.singletonList("keep-alive"));
+			}
+			headerWriter.writeResponseHeader(statusCode, headers);
+			headerWriter.writeTo(clientOutputStream);
+			statistics.addDownstreamBytes(headerWriter.getLength());
+
+			if (!bodyless) {
+				// Room is left around the data for the chunk header and the line break which follows the chunk
+				int dataOffset = chunked ? ChunkedStreamProcessor.MAX_CHUNK_HEADER_LENGTH : 0;
+				int dataLength = buffer.length - dataOffset - (chunked ? ChunkedStreamProcessor.CHUNK_END.length : 0);
+				byte[] chunkHeader = new byte[ChunkedStreamProcessor.MAX_CHUNK_HEADER_LENGTH];
+				long bodyLength = 0;
+				int readResult;
+				while((readResult = stream.read(buffer, dataOffset, dataLength)) >= 0) {
+					if (recording != null) {
+						recording.write(buffer, dataOffset, readResult);
+					}
+					bodyLength += writeBodyData(buffer, dataOffset, readResult, chunked, chunkHeader);
+				}
+				if (chunked) {
+					clientOutputStream.write(ChunkedStreamProcessor.LAST_CHUNK);
+					bodyLength += ChunkedStreamProcessor.LAST_CHUNK.length;
+				}
+				statistics.addDownstreamBytes(bodyLength);
+			}
+			if (recording != null) {
+				responseCache.store(recording);
+			}
+			endFetch();
+
+			boolean requestBodySent = waitRequestBody(requestBodyUpload);
+			return keepAlive && requestBodySent;
+		} finally {
+			stream.close();
+		}
+	}
+
+	/**
+	 * Sends a stored response to the client. If the client already has it, as told by the
+	 * If-None-Match or If-Modified-Since field of the request, a 304 (Not Modified)
+	 * response is sent instead.
+	 * @param response The stored response.
+	 * @param requestHeader The request line.
+	 * @param requestHeaderProcessor The processor of the request header.
+	 * @return True if, and only if, the client connection may carry another request.
+	 * @throws IOException If the response could not be sent.
+	 */
+	private boolean serveFromCache(CachedResponse response, RequestHeader requestHeader, HeaderProcessor requestHeaderProcessor) throws IOException {
+		Map<String, List<String>> headers = new LinkedHashMap<>(response.getHeaders());
+		headers.put("Age", Collections.singletonList(Long.toString(response.getAge(System.currentTimeMillis()) / 1000)));
+		int statusCode = response.getStatusCode();
+		ByteBuffer body = response.getBody();
+		if (ResponseCache.isNotModified(response, requestHeaderProcessor.getHeaders())) {
+			statusCode = 304;
+		} else if (statusCode != 204) {
+			headers.put("Content-Length", Collections.singletonList(Integer.toString(body.remaining())));
+		}
+		boolean keepAlive = requestHeaderProcessor.isPersistentConnection();
+		if (!keepAlive) {
+			headers.put("Connection", Collections.singletonList("close"));
+		} else if (requestHeaderProcessor.isKeepConnectionAlive()) {
+			headers.put("Connection", Collections.singletonList("keep-alive"));
+		}
+		headerWriter.writeResponseHeader(statusCode, headers);
+		headerWriter.writeTo(clientOutputStream);
+		statistics.addDownstreamBytes(headerWriter.getLength());
+		if (statusCode != 304 && statusCode != 204 && !requestHeader.getMethod().equals("HEAD")) {
+			long bodyLength = sendBody(body, clientOutputStream, buffer);
+			statistics.addDownstreamBytes(bodyLength);
+			responseCache.addBytesServed(bodyLength);
+		}
+		return keepAlive;
+	}
+
+	/**
+	 * Sends a range of a stored response to the client, as a 206 (Partial Content) response,
+	 * or a 416 (Range Not Satisfiable) response if the range starts beyond the end of the body.
+	 * The whole response is sent if the range doesn't apply to it: if it isn't a 200 (OK)
+	 * response, or if it isn't the one named by the If-Range field of the request.
+	 * @param response The stored response, whose body may only be known in the requested range.
+	 * @param range The requested range, as returned by ResponseCache.parseRange.
+	 * @param requestHeader The request line.
+	 * @param requestHeaderProcessor The processor of the request header.
+	 * @return True if, and only if, the client connection may carry another request.
+	 * @throws IOException If the response could not be sent.
+	 */
+	private boolean serveRange(CachedResponse response, long[] range, RequestHeader requestHeader, HeaderProcessor requestHeaderProcessor) throws IOException {
+		if (response.getStatusCode() != 200 || !ResponseCache.matchesIfRange(response, requestHeaderProcessor.getHeaders())) {
+			return serveFromCache(response, requestHeader, requestHeaderProcessor);
+		}
+		Map<String, List<String>> headers;
+		int statusCode;
+		ByteBuffer body = response.getBody();
+		long length = body.remaining();
+		long[] span = ResponseCache.resolveRange(range, length);
+		if (span != null) {
+			statusCode = 206;
+			headers = new LinkedHashMap<>(response.getHeaders());
+			headers.put("Age", Collections.singletonList(Long.toString(response.getAge(System.currentTimeMillis()) / 1000)));
+			headers.put("Content-Range", Collections.singletonList("bytes " + span[0] + "-" + span[1] + "/" + length));
+			body.limit(body.position() + (int) span[1] + 1);
+			body.position(body.position() + (int) span[0]);
+		} else {
+			statusCode = 416;
+			headers = new LinkedHashMap<>();
+			headers.put("Content-Range", Collections.singletonList("bytes */" + length));
+			body.limit(body.position());
+		}
+		headers.put("Content-Length", Collections.singletonList(Integer.toString(body.remaining())));
+		boolean keepAlive = requestHeaderProcessor.isPersistentConnection();
+		if (!keepAlive) {
+			headers.put("Connection", Collections.singletonList("close"));
+		} else if (requestHeaderProcessor.isKeepConnectionAlive()) {
+			headers.put("Connection", Collections.singletonList("keep-alive"));
+		}
+		headerWriter.writeResponseHeader(statusCode, headers);
+		headerWriter.writeTo(clientOutputStream);
+		statistics.addDownstreamBytes(headerWriter.getLength());
+		long bodyLength = sendBody(body, clientOutputStream, buffer);
+		statistics.addDownstreamBytes(bodyLength);
+		responseCache.addBytesServed(bodyLength);
+		return keepAlive;
+	}
+
+	/**
+	 * Sends to the client the response of a concurrent identical request, as it is received
+	 * from the remote host. A body whose length is unknown is chunked-encoded for an HTTP/1.1
+	 * client, and delimited by the end of the connection for the others.
+	 * @param recording The recording of the response.
+	 * @param requestHeader The request line.
+	 * @param requestHeaderProcessor The processor of the request header.
+	 * @return True if, and only if, the client connection may carry another request.
+	 * @throws IOException If the response could not be sent, or its fetch failed.
+	 */
+	private boolean serveRecording(ResponseCache.Recording recording, RequestHeader requestHeader, HeaderProcessor requestHeaderProcessor) throws IOException {
+		CachedResponse response = recording.getResponse();
+		Map<String, List<String>> headers = new LinkedHashMap<>(response.getHeaders());
+		headers.put("Age", Collections.singletonList(Long.toString(response.getAge(System.currentTimeMillis()) / 1000)));
+		int statusCode = response.getStatusCode();
+		boolean bodyless = statusCode == 204 || requestHeader.getMethod().equals("HEAD");
+		Long contentLength = recording.getExpectedLength();
+		boolean keepAlive = requestHeaderProcessor.isPersistentConnection();
+		boolean chunked = false;
+		if (contentLength != null) {
+			if (statusCode != 204) {
+				headers.put("Content-Length", Collections.singletonList(Long.toString(contentLength)));
+			}
+		} else if (!bodyless) {
+			if (requestHeader.getProtocol().equalsIgnoreCase("HTTP/1.1")) {
+				chunked = true;
+				headers.put("Transfer-Encoding", Collections.singletonList("chunked"));
+			} else {
+				keepAlive = false;
+			}
+		}
+		if (!keepAlive) {
+			headers.put("Connection", Collections.singletonList("close"));
+		} else if (requestHeaderProcessor.isKeepConnectionAlive()) {
+			headers.put("Connection", Collections.singletonList("keep-alive"));
+		}
+		headerWriter.writeResponseHeader(statusCode, headers);
+		headerWriter.writeTo(clientOutputStream);
+		statistics.addDownstreamBytes(headerWriter.getLength());
+		if (!bodyless) {
+			// Room is left around the data for the chunk header and the line break which follows the chunk
+			int dataOffset = chunked ? ChunkedStreamProcessor.MAX_CHUNK_HEADER_LENGTH : 0;
+			int dataLength = buffer.length - dataOffset - (chunked ? ChunkedStreamProcessor.CHUNK_END.length : 0);
+			byte[] chunkHeader = new byte[ChunkedStreamProcessor.MAX_CHUNK_HEADER_LENGTH];
+			long bodyLength = 0;
+			int position = 0;
+			int readResult;
+			while((readResult = recording.read(position, buffer, dataOffset, dataLength)) >= 0) {
+				position += readResult;
+				bodyLength += writeBodyData(buffer, dataOffset, readResult, chunked, chunkHeader);
+			}
+			if (chunked) {
+				clientOutputStream.write(ChunkedStreamProcessor.LAST_CHUNK);
+				bodyLength += ChunkedStreamProcessor.LAST_CHUNK.length;
+			}
+			statistics.addDownstreamBytes(bodyLength);
+			responseCache.addBytesServed(position);
+		}
+		return keepAlive;
+	}
+
+	/**
+	 * Writes body data to the client, as a chunk if the body is chunked-encoded, in which
+	 * case the buffer must have room for the chunk header before the data and for the line
+	 * break after it.
+	 * @return The number of bytes written.
+	 */
+	private int writeBodyData(byte[] buffer, int offset, int length, boolean chunked, byte[] chunkHeader) throws IOException {
+		if (!chunked) {
+			clientOutputStream.write(buffer, offset, length);
+			return length;
+		}
+		int headerLength = ChunkedStreamProcessor.encodeChunkHeader(length, chunkHeader, 0);
+		System.arraycopy(chunkHeader, 0, buffer, offset - headerLength, headerLength);
+		System.arraycopy(ChunkedStreamProcessor.CHUNK_END, 0, buffer, offset + length, ChunkedStreamProcessor.CHUNK_END.length);
+		clientOutputStream.write(buffer, offset - headerLength, headerLength + length + ChunkedStreamProcessor.CHUNK_END.length);
+		return headerLength + length + ChunkedStreamProcessor.CHUNK_END.length;
+	}
+
+	/**
+	 * Hands the response of the current request to the concurrent identical requests, if
+	 * it is being recorded; otherwise, they are released.
+	 */
+	private void publishFetch(ResponseCache.Recording recording) {
+		if (fetch != null && recording != null) {
+			fetch.publish(recording);
+		} else {
+			endFetch();
+		}
+	}
+
+	/**
+	 * Fetches the whole resource in the background, after a range request answered by the
+	 * remote host, if the ResponseCache finds it worth it, so the next ranges can be served
+	 * without contacting the remote host.
+	 */
+	private void fetchWholeResource(String cacheKey, String host, int port, boolean useSSL, String resource, Map<String, List<String>> requestHeaders, Map<String, List<String>> responseHeaders) {
+		ResponseCache.Fetch wholeFetch = responseCache.startWholeFetch(cacheKey, requestHeaders, responseHeaders);
+		if (wholeFetch != null) {
+			executor.execute(new BackgroundFetch(responseCache, wholeFetch, pool, bufferPool, statistics, host, port, useSSL, resource, ResponseCache.getWholeRequestHeaders(requestHeaders)));
+		}
+	}
+
+	/**
+	 * Ends the fetch of the current request, if it is shared with concurrent identical requests.
+	 */
+	private void endFetch() {
+		if (fetch != null) {
+			responseCache.endFetch(fetch);
+			fetch = null;
+		}
+	}
+
+	/**
+	 * Waits for the end of the request body upload, which is expected to finish at about
+	 * the same time as the response.
+	 * @param upload The task returned by sendRequestBody.
+	 * @return True if, and only if, the request body was fully sent.
+	 */
+	private boolean waitRequestBody(FutureTask<ByteBuffer> upload) {
+		if (upload == null) {
+			return true;
+		}
+		try {
+			ByteBuffer excess = upload.get(UPLOAD_GRACE_PERIOD, TimeUnit.MILLISECONDS);
+			if (excess != null) {
+				keepPipelinedData(excess);
+			}
+			return true;
+		} catch (TimeoutException e) {
+			statistics.earlyResponse();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+		return false;
+	}
+	
+	/**
+	 * Tells whether a request must be forwarded over HTTP/1.1: a request to switch protocols
+	 * (e.g. a WebSocket handshake), whose Upgrade and Connection fields have no meaning in
+	 * HTTP/2, or a request which expects an interim response before sending its body.
+	 * @param requestHeaders The request header fields.
+	 * @return True if the request can't be sent on an HTTP/2 stream.
+	 */
+	private static boolean requiresHttp1(Map<String, List<String>> requestHeaders) {
+		return ResponseCache.getField(requestHeaders, "Upgrade") != null || ResponseCache.getField(requestHeaders, "Expect") != null;
+	}
+	
+	private static boolean hasBody(HeaderProcessor requestHeaderProcessor) {
+		Long contentLength = requestHeaderProcessor.getContentLength();
+		return contentLength != null ? contentLength > 0 : requestHeaderProcessor.isChunkedEncoded();
+	}
+	
+	/**
+	 * Keeps the bytes received from the client after the end of a request, which are
+	 * the beginning of the next request. They are copied, since they usually lie in the
+	 * relay buffer, which is overwritten by the response.
+	 * @param data The bytes.
+	 */
+	private void keepPipelinedData(ByteBuffer data) {
+		if (data.hasRemaining()) {
+			pipelinedData = ByteBuffer.allocate(data.remaining());
+			pipelinedData.put(data.duplicate());
+			pipelinedData.flip();
+		} else {
+			pipelinedData = null;
+		}
+	}
+	
 	private void openRemoteSocket(String host, int port, boolean useSSL) throws UnknownHostException, IOException {
-		if (remoteHostSocket == null) {
-			if (useSSL) {
-				SSLSocketFactory factory = (SSLSocketFactory) SSLSocketFactory.getDefault();
-				SSLSocket remoteHostSSLSocket = (SSLSocket) factory.createSocket(host, port);
-				remoteHostSSLSocket.setUseClientMode(true);
-				remoteHostSocket = remoteHostSSLSocket;
+		if (remoteHostConnection == null) {
+			remoteHostConnection = pool.acquire(host, port, useSSL);
+			remoteHostInputStream = remoteHostConnection.getInputStream();
+			remoteHostOutputStream = remoteHostConnection.getOutputStream();
+		}
+	}
+	
+	/**
+	 * Returns the connection to the remote host to the pool, if it can be reused, or closes it.
+	 */
+	private void releaseRemoteSocket() {
+		if (remoteHostConnection != null) {
+			if (remoteHostReusable) {
+				pool.release(remoteHostConnection);
 			} else {
-				remoteHostSocket = new Socket(host, port);
+				remoteHostConnection.close();
 			}
-			remoteHostSocket.setSoTimeout(10000);
-			remoteHostInputStream = remoteHostSocket.getInputStream();
-			remoteHostOutputStream = remoteHostSocket.getOutputStream();
+			remoteHostConnection = null;
+			remoteHostReusable = false;
 		}
 	}
 	
-	private ConnectRequestData processConnectRequest(RequestHeader header) throws InvalidKeyException, UnrecoverableKeyException, KeyManagementException, NoSuchAlgorithmException, NoSuchProviderException, CertificateException, SignatureException, KeyStoreException, IOException {
+	/**
+	 * Handles a CONNECT request. The connection is bumped, unless the rules of the host tell
+	 * to relay it as a plain TCP tunnel, until it is closed, or to refuse it.
+	 * @param header The request header.
+	 * @param earlyData Data sent by the client after the request header, before the response.
+	 * @return The data of the bumped connection, or null if the host was tunnelled or blocked.
+	 */
+	private ConnectRequestData processConnectRequest(RequestHeader header, ByteBuffer earlyData) throws GeneralSecurityException, IOException {
 		SSLSocketFactory factory;
 		String resource = header.getResource();
 		int hostPortSeparator = resource.indexOf(":");
@@ -183,75 +896,108 @@ public class HttpProcessor implements Runnable {
 			String host = resource.substring(0, hostPortSeparator);
 			String portText = resource.substring(hostPortSeparator + 1);
 			int port = Integer.parseInt(portText);
+			HostRules.Action action = hostPolicy.getAction(host);
+			if (action == HostRules.Action.TUNNEL) {
+				tunnel(host, port, earlyData);
+				return null;
+			} else if (action == HostRules.Action.BLOCK) {
+				clientOutputStream.write(FORBIDDEN_RESPONSE);
+				return null;
+			}
 			sendConnectResponse();
-			factory = cache.getSocketFactory(host);
-			SSLSocket sslSocket = (SSLSocket) factory.createSocket(clientSocket, clientSocket.getInetAddress().getHostAddress(), clientSocket.getPort(), false);
+			factory = cache.getSocketFactory();
+			// The certificate is chosen from the SNI extension sent by the client. The requested
+			// host is supplied as the peer host, which is used when the SNI extension is absent.
+			SSLSocket sslSocket = (SSLSocket) factory.createSocket(clientSocket, host, clientSocket.getPort(), false);
 			sslSocket.setUseClientMode(false);
 			sslSocket.setWantClientAuth(false);
+			if (http2) {
+				SSLParameters parameters = sslSocket.getSSLParameters();
+				parameters.setApplicationProtocols(new String[] { "h2", "http/1.1" });
+				sslSocket.setSSLParameters(parameters);
+			}
 			ConnectRequestData data = new ConnectRequestData(sslSocket, host, port);
 			return data;
 		}
 		throw new ProtocolException();
 	}
 	
-	private void sendRequestHeader(String method, String resource, Map<String, List<String>> headers, OutputStream outputStream) throws IOException {
-		String fullHeader = method + " " + resource + " HTTP/1.1\r\n";
-		Set<String> fieldsNamesSet = headers.keySet();
-		for (String fieldName : fieldsNamesSet) {
-			List<String> values = headers.get(fieldName);
-			for (String value : values) {
-				if (fieldName.equals("Proxy-Connection")) {
-					fullHeader += "Connection: " + value + "\r\n";
-				}
-				fullHeader += fieldName + ": " + value + "\r\n";
+	/**
+	 * Relays the bytes of a CONNECT request as they are, without bumping. The remote host is
+	 * connected before the response is sent, so the client is told when it can't be reached.
+	 */
+	private void tunnel(String host, int port, ByteBuffer earlyData) throws IOException {
+		Socket remoteSocket = new Socket();
+		try {
+			try {
+				remoteSocket.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT);
+			} catch (IOException e) {
+				clientOutputStream.write(BAD_GATEWAY_RESPONSE);
+				return;
 			}
+			remoteSocket.setSoTimeout(10000);
+			sendConnectResponse();
+			if (earlyData.hasRemaining()) {
+				remoteSocket.getOutputStream().write(earlyData.array(), earlyData.position(), earlyData.remaining());
+				statistics.addUpstreamBytes(earlyData.remaining());
+			}
+			statistics.bypassOpened();
+			try {
+				new DuplexRelay(bufferPool, executor, statistics).run(clientSocket, remoteSocket, buffer);
+			} finally {
+				statistics.tunnelClosed();
+			}
+		} finally {
+			remoteSocket.close();
 		}
-		fullHeader += "\r\n";
-		outputStream.write(fullHeader.getBytes("ASCII7"));
 	}
 	
-	private void sendResponseHeader(ResponseHeader responseHeader, Map<String, List<String>> headers, OutputStream outputStream) throws IOException {
-		String fullHeader = responseHeader.getProtocol() + " " + responseHeader.getStatusCode() + " " + responseHeader.getStatusText() + "\r\n";
-		Set<String> fieldsNamesSet = headers.keySet();
-		for (String fieldName : fieldsNamesSet) {
-			List<String> values = headers.get(fieldName);
-			for (String value : values) {
-				if (fieldName.equals("Proxy-Connection")) {
-					fullHeader += "Connection: " + value + "\r\n";
-				}
-				fullHeader += fieldName + ": " + value + "\r\n";
+	static long sendChunkedBody(ByteBuffer bodyData, InputStream inputStream, OutputStream outputStream, byte[] buffer) throws IOException {
+		ChunkedStreamProcessor chunkedProcessor = new ChunkedStreamProcessor();
+		long bodyLength = 0;
+		if (bodyData != null && bodyData.hasRemaining()) {
+			int streamEndPosition = chunkedProcessor.process(bodyData.array(), bodyData.position(), bodyData.remaining());
+			int length = streamEndPosition >= 0 ? streamEndPosition - bodyData.position() : bodyData.remaining();
+			outputStream.write(bodyData.array(), bodyData.position(), length);
+			bodyLength += length;
+			if (streamEndPosition >= 0) {
+				return bodyLength;
 			}
 		}
-		fullHeader += "\r\n";
-		outputStream.write(fullHeader.getBytes("ASCII7"));
+		return bodyLength + relayChunkedBody(chunkedProcessor, inputStream, outputStream, buffer, null);
 	}
 	
-	private void sendChunkedBody(byte[] bodyData, InputStream inputStream, OutputStream outputStream) throws IOException {
-		ChunkedStreamProcessor chunkedProcessor = new ChunkedStreamProcessor();
-		int streamEndPosition = -1;
-		if (bodyData != null && bodyData.length > 0) {
-			streamEndPosition = chunkedProcessor.process(bodyData, 0, bodyData.length);
-			outputStream.write(bodyData);
-		}
-		if (streamEndPosition < 0) {
-			int readResult = inputStream.read(buffer);
-			while(readResult > 0) {
-				streamEndPosition = chunkedProcessor.process(buffer, 0, readResult);
-				if (streamEndPosition < 0) {
-					outputStream.write(buffer, 0, readResult);
-					readResult = inputStream.read(buffer);
-				} else {
-					outputStream.write(buffer, 0, readResult);
-					break;
+	/**
+	 * Copies a chunked body until its end.
+	 * @param excess Buffer which receives the bytes read past the end of the body. May be null,
+	 * in which case they are discarded.
+	 * @return The number of bytes of the body copied.
+	 */
+	private static long relayChunkedBody(ChunkedStreamProcessor chunkedProcessor, InputStream inputStream, OutputStream outputStream, byte[] buffer, ByteBuffer excess) throws IOException {
+		long bodyLength = 0;
+		int readResult = inputStream.read(buffer);
+		while(readResult > 0) {
+			int streamEndPosition = chunkedProcessor.process(buffer, 0, readResult);
+			int length = streamEndPosition >= 0 ? streamEndPosition : readResult;
+			outputStream.write(buffer, 0, length);
+			bodyLength += length;
+			if (streamEndPosition >= 0) {
+				if (excess != null) {
+					excess.put(buffer, streamEndPosition, readResult - streamEndPosition);
 				}
+				break;
 			}
+			readResult = inputStream.read(buffer);
 		}
+		return bodyLength;
 	}
 	
-	private void sendBody(byte[] bodyData, long contentLength, InputStream inputStream, OutputStream outputStream) throws IOException {
-		if (bodyData != null && bodyData.length > 0) {
-			outputStream.write(bodyData);
-			contentLength -= bodyData.length;
+	static long sendBody(ByteBuffer bodyData, long contentLength, InputStream inputStream, OutputStream outputStream, byte[] buffer) throws IOException {
+		long bodyLength = 0;
+		if (bodyData != null && bodyData.hasRemaining()) {
+			outputStream.write(bodyData.array(), bodyData.position(), bodyData.remaining());
+			contentLength -= bodyData.remaining();
+			bodyLength += bodyData.remaining();
 		}
 		if (contentLength > 0) {
 			int transferSize = contentLength > buffer.length ? buffer.length : (int) contentLength;
@@ -259,23 +1005,48 @@ public class HttpProcessor implements Runnable {
 			while(readResult > 0 && contentLength > 0) {
 				outputStream.write(buffer, 0, readResult);
 				contentLength -= readResult;
+				bodyLength += readResult;
 				transferSize = contentLength > buffer.length ? buffer.length : (int) contentLength;
 				if (transferSize > 0) {
 					readResult = inputStream.read(buffer, 0, transferSize);
 				}
 			}
 		}
+		return bodyLength;
 	}
 	
-	private void sendBody(byte[] bodyData, InputStream inputStream, OutputStream outputStream) throws IOException {
-		if (bodyData != null && bodyData.length > 0) {
-			outputStream.write(bodyData);
+	static long sendBody(ByteBuffer bodyData, InputStream inputStream, OutputStream outputStream, byte[] buffer) throws IOException {
+		long bodyLength = 0;
+		if (bodyData != null && bodyData.hasRemaining()) {
+			outputStream.write(bodyData.array(), bodyData.position(), bodyData.remaining());
+			bodyLength += bodyData.remaining();
 		}
 		int readResult = inputStream.read(buffer, 0, buffer.length);
 		while(readResult > 0) {
 			outputStream.write(buffer, 0, readResult);
+			bodyLength += readResult;
 			readResult = inputStream.read(buffer, 0, buffer.length);
 		}
+		return bodyLength;
+	}
+	
+	/**
+	 * Sends a stored body. A body held in memory is written at once, while a body mapped
+	 * from a DiskCache segment is copied through the relay buffer straight from the page
+	 * cache, since the sockets of this engine have no channel to transfer it to.
+	 */
+	private static long sendBody(ByteBuffer body, OutputStream outputStream, byte[] buffer) throws IOException {
+		long bodyLength = body.remaining();
+		if (body.hasArray()) {
+			outputStream.write(body.array(), body.arrayOffset() + body.position(), body.remaining());
+			return bodyLength;
+		}
+		while(body.hasRemaining()) {
+			int length = Math.min(buffer.length, body.remaining());
+			body.get(buffer, 0, length);
+			outputStream.write(buffer, 0, length);
+		}
+		return bodyLength;
 	}
 	
 	private void sendConnectResponse() throws IOException {
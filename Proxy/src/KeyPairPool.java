@@ -0,0 +1,136 @@
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded pool of pre-generated key pairs. Background threads keep the pool
+ * topped up, so building a leaf certificate does not have to wait for the
+ * key generation unless the pool has been drained.
+ * @author Juliano
+ */
+public class KeyPairPool implements KeyPairPoolMBean {
+
+	private String algorithm;
+	private int keySize;
+	private int capacity;
+	private BlockingQueue<KeyPair> pool;
+
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private AtomicLong generated;
+	private long startTime;
+
+	/**
+	 * Constructor.
+	 * @param algorithm Key algorithm, as accepted by KeyPairGenerator.getInstance.
+	 * @param keySize Key size, as accepted by KeyPairGenerator.initialize.
+	 * @param capacity Maximum number of key pairs kept in the pool. If zero, every key pair is generated on demand.
+	 * @throws NoSuchAlgorithmException If the algorithm is not supported.
+	 */
+	public KeyPairPool(String algorithm, int keySize, int capacity) throws NoSuchAlgorithmException {
+		this.algorithm = algorithm;
+		this.keySize = keySize;
+		this.capacity = capacity;
+		pool = new ArrayBlockingQueue<>(Math.max(capacity, 1));
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		generated = new AtomicLong();
+		// Fail early if the algorithm is not supported
+		createGenerator();
+	}
+
+	/**
+	 * Starts the threads which fill the pool.
+	 * @param threads Number of threads.
+	 */
+	public void start(int threads) {
+		startTime = System.currentTimeMillis();
+		if (capacity == 0) {
+			return;
+		}
+		for (int i = 0; i < threads; i++) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					refill();
+				}
+			}, "KeyPairPool-" + i);
+			thread.setDaemon(true);
+			thread.setPriority(Thread.MIN_PRIORITY);
+			thread.start();
+		}
+	}
+
+	/**
+	 * Takes a key pair from the pool. If the pool is empty, a new key pair is generated
+	 * by the calling thread.
+	 * @return The key pair.
+	 * @throws NoSuchAlgorithmException If the algorithm is not supported.
+	 */
+	public KeyPair take() throws NoSuchAlgorithmException {
+		KeyPair keyPair = pool.poll();
+		if (keyPair != null) {
+			hits.incrementAndGet();
+			return keyPair;
+		}
+		misses.incrementAndGet();
+		return createGenerator().generateKeyPair();
+	}
+
+	@Override
+	public int getDepth() {
+		return capacity == 0 ? 0 : pool.size();
+	}
+
+	@Override
+	public int getCapacity() {
+		return capacity;
+	}
+
+	@Override
+	public long getHits() {
+		return hits.get();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public long getGenerated() {
+		return generated.get();
+	}
+
+	@Override
+	public double getAverageRefillRate() {
+		long elapsedTime = System.currentTimeMillis() - startTime;
+		if (startTime == 0 || elapsedTime <= 0) {
+			return 0;
+		}
+		return generated.get() * 1000.0 / elapsedTime;
+	}
+
+	private void refill() {
+		try {
+			KeyPairGenerator generator = createGenerator();
+			while(true) {
+				pool.put(generator.generateKeyPair());
+				generated.incrementAndGet();
+			}
+		} catch (NoSuchAlgorithmException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			// Exit
+		}
+	}
+
+	private KeyPairGenerator createGenerator() throws NoSuchAlgorithmException {
+		KeyPairGenerator generator = KeyPairGenerator.getInstance(algorithm);
+		generator.initialize(keySize);
+		return generator;
+	}
+
+}
@@ -0,0 +1,37 @@
+/**
+ * Management interface of the KeyPairPool.
+ * @author Juliano
+ */
+public interface KeyPairPoolMBean {
+
+	/**
+	 * @return Number of key pairs ready to be used.
+	 */
+	int getDepth();
+
+	/**
+	 * @return Maximum number of key pairs kept in the pool.
+	 */
+	int getCapacity();
+
+	/**
+	 * @return Number of key pairs taken from the pool.
+	 */
+	long getHits();
+
+	/**
+	 * @return Number of key pairs generated inline because the pool was empty.
+	 */
+	long getMisses();
+
+	/**
+	 * @return Number of key pairs generated by the background threads.
+	 */
+	long getGenerated();
+
+	/**
+	 * @return Average number of key pairs generated per second by the background threads.
+	 */
+	double getAverageRefillRate();
+
+}
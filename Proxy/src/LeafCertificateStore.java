@@ -0,0 +1,137 @@
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.KeyStoreException;
+import java.security.NoSuchAlgorithmException;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.X509Certificate;
+import java.util.Arrays;
+import java.util.Date;
+
+/**
+ * On-disk store of the leaf certificates built by the CertificateBuilder. Each host
+ * has its own file in the store directory, holding a JKS keystore with the private
+ * key and the certificate chain, so the certificates built before a restart can be
+ * reused instead of being built again. Entries are only read when they are looked up.
+ * @author Juliano
+ */
+public class LeafCertificateStore {
+
+	private static final String ALIAS = "leaf";
+	private static final String EXTENSION = ".jks";
+	private static final long RENEWAL_MARGIN = 24L * 60 * 60 * 1000;
+
+	private File directory;
+	private char[] password;
+
+	/**
+	 * Constructor.
+	 * @param directory Directory where the entries are stored. It is created if it does not exist.
+	 * @param password Password used to protect the stored keys.
+	 * @throws IOException If the directory could not be created.
+	 */
+	public LeafCertificateStore(File directory, char[] password) throws IOException {
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Could not create the directory " + directory);
+		}
+		this.directory = directory;
+		this.password = password;
+	}
+
+	/**
+	 * Loads the entry of the specified host. The entry is discarded if its certificate
+	 * has expired or is about to expire, if it was not issued by the supplied chain,
+	 * or if its key algorithm is not the expected one.
+	 * @param host Host name.
+	 * @param issuerChain The current chain of the issuer certificates, starting with the signer certificate.
+	 * @param keyAlgorithm The expected algorithm of the leaf key.
+	 * @return The stored private key and certificate chain, or null if there is no valid entry.
+	 */
+	public KeyStore.PrivateKeyEntry load(String host, Certificate[] issuerChain, String keyAlgorithm) {
+		File file = getFile(host);
+		if (!file.isFile()) {
+			return null;
+		}
+		try (FileInputStream input = new FileInputStream(file)) {
+			KeyStore keystore = KeyStore.getInstance("JKS");
+			keystore.load(input, password);
+			Key key = keystore.getKey(ALIAS, password);
+			Certificate[] chain = keystore.getCertificateChain(ALIAS);
+			if (key instanceof PrivateKey && chain != null && chain.length == issuerChain.length + 1
+					&& isValid((X509Certificate) chain[0], issuerChain, keyAlgorithm)
+					&& Arrays.equals(Arrays.copyOfRange(chain, 1, chain.length), issuerChain)) {
+				return new KeyStore.PrivateKeyEntry((PrivateKey) key, chain);
+			}
+		} catch (IOException | GeneralSecurityException | ClassCastException e) {
+			e.printStackTrace();
+		}
+		if (!file.delete()) {
+			System.err.println("Could not delete the stale entry " + file);
+		}
+		return null;
+	}
+
+	/**
+	 * Stores the entry of the specified host. The entry is first written to a
+	 * temporary file, which then replaces the previous entry, if any.
+	 * @param host Host name.
+	 * @param key The private key of the leaf certificate.
+	 * @param chain The certificate chain, starting with the leaf certificate.
+	 * @throws IOException If the entry could not be written.
+	 * @throws KeyStoreException
+	 * @throws NoSuchAlgorithmException
+	 * @throws CertificateException
+	 */
+	public void save(String host, PrivateKey key, Certificate[] chain) throws IOException, KeyStoreException, NoSuchAlgorithmException, CertificateException {
+		KeyStore keystore = KeyStore.getInstance("JKS");
+		keystore.load(null, null);
+		keystore.setKeyEntry(ALIAS, key, password, chain);
+		File file = getFile(host);
+		File temporaryFile = new File(directory, file.getName() + ".tmp");
+		try (FileOutputStream output = new FileOutputStream(temporaryFile)) {
+			keystore.store(output, password);
+		}
+		if (!temporaryFile.renameTo(file)) {
+			// Some platforms don't replace the target on rename
+			file.delete();
+			if (!temporaryFile.renameTo(file)) {
+				throw new IOException("Could not store " + file);
+			}
+		}
+	}
+
+	private boolean isValid(X509Certificate certificate, Certificate[] issuerChain, String keyAlgorithm) {
+		try {
+			certificate.checkValidity(new Date(System.currentTimeMillis() + RENEWAL_MARGIN));
+			certificate.verify(issuerChain[0].getPublicKey());
+			for (Certificate issuerCertificate : issuerChain) {
+				((X509Certificate) issuerCertificate).checkValidity();
+			}
+			return certificate.getPublicKey().getAlgorithm().equals(keyAlgorithm);
+		} catch (GeneralSecurityException e) {
+			return false;
+		}
+	}
+
+	private File getFile(String host) {
+		// Host names are case insensitive. Any character which is not expected in a host name
+		// (or in an IP address) is escaped, so the name can't point outside the store directory.
+		StringBuilder fileName = new StringBuilder();
+		for (char c : host.toLowerCase().toCharArray()) {
+			if ((c >= 'a' && c <= 'z') || (c >= '0' && c <= '9') || c == '-' || (c == '.' && fileName.length() > 0)) {
+				fileName.append(c);
+			} else {
+				fileName.append('_').append(Integer.toHexString(c)).append('_');
+			}
+		}
+		fileName.append(EXTENSION);
+		return new File(directory, fileName.toString());
+	}
+
+}
@@ -0,0 +1,35 @@
+import java.lang.management.ManagementFactory;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Publishes the statistics of the proxy components as JMX MBeans, so they can be
+ * observed with jconsole or any other JMX client.
+ * @author Juliano
+ */
+public class Metrics {
+
+	private static final String DOMAIN = "Proxy";
+
+	/**
+	 * Registers an MBean in the platform MBean server. If an MBean of the same type is
+	 * already registered, it is replaced.
+	 * @param type Name which identifies the component.
+	 * @param mbean The MBean.
+	 */
+	public static void register(String type, Object mbean) {
+		try {
+			MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+			ObjectName name = new ObjectName(DOMAIN + ":type=" + type);
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
+			}
+			server.registerMBean(mbean, name);
+		} catch (JMException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
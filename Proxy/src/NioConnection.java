@@ -0,0 +1,719 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import javax.net.ssl.SSLEngine;
+
+/**
+ * Connection handled by the non-blocking engine. This is the event driven counterpart
+ * of the HttpProcessor class: it forwards plain HTTP requests to the remote host and,
+ * after a CONNECT request, performs the TLS handshake with the client using a
+ * certificate built for the requested host and forwards the decrypted requests through
+ * a TLS connection with the remote host. The CONNECT requests of the hosts which the
+ * HostPolicy tells to tunnel are not bumped: their bytes are relayed as they are, straight
+ * from one channel to the other.
+ * All the methods of this class, except the ones of the tasks submitted to the blocking
+ * executor, run on the event loop thread which owns the connection.
+ * @author Juliano
+ */
+public class NioConnection implements EventLoop.Handler {
+
+	private static final long IDLE_TIMEOUT = 10000;
+	private static final long TUNNEL_IDLE_TIMEOUT = 5 * 60 * 1000;
+	private static final int TUNNEL_BUFFER_SIZE = 1024 * 64;
+	private static final byte[] CONNECT_RESPONSE = "HTTP/1.1 200 OK\r\nContent-Length: 0\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+	private static final byte[] FORBIDDEN_RESPONSE = "HTTP/1.1 403 Forbidden\r\nContent-Length: 0\r\nConnection: close\r\n\r\n".getBytes(StandardCharsets.US_ASCII);
+
+	private enum State {
+		READING_REQUEST_HEADER,
+		PREPARING,
+		BUMPING,
+		READING_RESPONSE_HEADER,
+		SENDING_RESPONSE_BODY,
+		TUNNELLING,
+		BYPASSING,
+		CLOSING
+	}
+
+	/**
+	 * Progress of the body of a message being relayed.
+	 */
+	private static class Body {
+
+		private ChunkedStreamProcessor chunkedProcessor;
+		private long remaining;
+		private boolean readUntilClose;
+		private boolean complete;
+
+	}
+
+	private EventLoop loop;
+	private SSLSocketFactoryCache cache;
+	private HostPolicy hostPolicy;
+	private UpstreamSSLContext upstreamContext;
+	private BufferPool bufferPool;
+	private RelayStatistics statistics;
+	private Executor blockingExecutor;
+	private Set<NioConnection> connections;
+
+	private ChannelEndpoint client;
+	private ChannelEndpoint remote;
+	private String remoteHost;
+	private int remotePort;
+	private boolean remoteConnecting;
+	private long remoteHandshakeStart;
+	private boolean useSSL;
+
+	private State state;
+	private HeaderProcessor headerProcessor;
+	private HeaderWriter headerWriter;
+	private String requestMethod;
+	private boolean keepConnectionAlive;
+
+	private Body requestBody;
+	private Body responseBody;
+
+	private InetSocketAddress bumpedAddress;
+	private byte[] bumpedHandshakeData;
+	private boolean tunnelEstablished;
+	private ByteBuffer upstreamTunnelBuffer;
+	private ByteBuffer downstreamTunnelBuffer;
+
+	private long lastActivity;
+	private boolean closed;
+
+	/**
+	 * Constructor.
+	 * @param loop The event loop which will handle the connection.
+	 * @param cache Cache of the certificates used in the TLS handshakes with the clients.
+	 * @param hostPolicy Rules which tell whether the connections to each host are bumped, tunnelled or blocked.
+	 * @param upstreamContext Context of the TLS connections with the remote hosts.
+	 * @param bufferPool Pool of the buffers of the client and remote channels.
+	 * @param statistics Counters of the relayed data.
+	 * @param blockingExecutor Executor used to run the operations which may block, like building certificates
+	 * and resolving host names.
+	 * @param connections Set of the connections handled by the loop, used to detect idle connections.
+	 * @param clientChannel The channel accepted from the client.
+	 */
+	public NioConnection(EventLoop loop, SSLSocketFactoryCache cache, HostPolicy hostPolicy, UpstreamSSLContext upstreamContext, BufferPool bufferPool, RelayStatistics statistics, Executor blockingExecutor, Set<NioConnection> connections, SocketChannel clientChannel) {
+		this.loop = loop;
+		this.cache = cache;
+		this.hostPolicy = hostPolicy;
+		this.upstreamContext = upstreamContext;
+		this.bufferPool = bufferPool;
+		this.statistics = statistics;
+		this.blockingExecutor = blockingExecutor;
+		this.connections = connections;
+		client = new ChannelEndpoint(clientChannel, bufferPool);
+		state = State.READING_REQUEST_HEADER;
+		headerProcessor = new HeaderProcessor(false);
+		headerWriter = new HeaderWriter();
+	}
+
+	/**
+	 * Registers the client channel on the event loop. Must be called from the loop thread.
+	 */
+	public void start() {
+		try {
+			client.getChannel().configureBlocking(false);
+			client.setKey(loop.register(client.getChannel(), SelectionKey.OP_READ, this));
+			connections.add(this);
+			lastActivity = System.currentTimeMillis();
+		} catch (IOException e) {
+			e.printStackTrace();
+			close();
+		}
+	}
+
+	@Override
+	public void handle(SelectionKey key) {
+		if (closed) {
+			return;
+		}
+		lastActivity = System.currentTimeMillis();
+		try {
+			ChannelEndpoint endpoint = key == client.getKey() ? client : remote;
+			if (key.isConnectable()) {
+				if (!remote.getChannel().finishConnect()) {
+					return;
+				}
+				remoteConnecting = false;
+			}
+			if (key.isReadable() && state != State.BYPASSING) {
+				// The bypassed tunnels read from the channels while relaying
+				endpoint.fill();
+			}
+			advance();
+		} catch (IOException | RuntimeException e) {
+			close();
+		}
+	}
+
+	/**
+	 * Closes the connection if it has been idle for too long.
+	 * @param now The current time in milliseconds.
+	 */
+	public void checkIdle(long now) {
+		boolean tunnel = state == State.TUNNELLING || state == State.BYPASSING;
+		if (now - lastActivity > (tunnel ? TUNNEL_IDLE_TIMEOUT : IDLE_TIMEOUT)) {
+			close();
+		}
+	}
+
+	private void advance() throws IOException {
+		boolean progress;
+		do {
+			while(!closed && step()) {
+				// Keep going while there is data to be processed
+			}
+			if (closed) {
+				return;
+			}
+			flush();
+			progress = step();
+		} while(progress);
+		if (checkEndOfStreams()) {
+			return;
+		}
+		if (state == State.CLOSING && !client.hasPendingOutput()) {
+			close();
+			return;
+		}
+		updateInterestOperations();
+	}
+
+	private boolean step() throws IOException {
+		// The request body keeps being relayed while the response is received, so
+		// a response sent before the end of the request body doesn't stall the upload
+		boolean progress = false;
+		switch (state) {
+		case READING_REQUEST_HEADER:
+			if (readHeader(client)) {
+				processRequestHeader();
+				return true;
+			}
+			return false;
+		case READING_RESPONSE_HEADER:
+			progress = relayBody(requestBody, client, remote, true);
+			if (!remoteConnecting && readHeader(remote)) {
+				processResponseHeader();
+				return true;
+			}
+			return progress;
+		case SENDING_RESPONSE_BODY:
+			progress = relayBody(requestBody, client, remote, true);
+			if (relayBody(responseBody, remote, client, false)) {
+				if (responseBody.complete) {
+					finishExchange();
+				}
+				return true;
+			}
+			return progress;
+		case TUNNELLING:
+			progress = relayBody(requestBody, client, remote, true);
+			return relayBody(responseBody, remote, client, false) || progress;
+		case BYPASSING:
+			return relayTunnel();
+		case BUMPING:
+			if (client.hasPendingOutput()) {
+				// The TLS handshake can't start before the CONNECT response is fully sent in clear text
+				return false;
+			}
+			startTLS();
+			return true;
+		default:
+			return false;
+		}
+	}
+
+	private boolean readHeader(ChannelEndpoint endpoint) throws ProtocolException {
+		ByteBuffer input = endpoint.getInput();
+		if (input.position() == 0) {
+			return false;
+		}
+		input.flip();
+		boolean headerProcessed = headerProcessor.processInputData(input.array(), input.arrayOffset() + input.position(), input.remaining());
+		if (headerProcessed) {
+			// The body data which came along with the header is left in the buffer and
+			// processed as if it had just been received
+			input.position(headerProcessor.getBodyBuffer().position() - input.arrayOffset());
+			input.compact();
+		} else {
+			input.clear();
+		}
+		return headerProcessed;
+	}
+
+	private void processRequestHeader() throws IOException {
+		RequestHeader requestHeader = headerProcessor.getRequestHeader();
+		requestMethod = requestHeader.getMethod();
+		if (requestMethod.equalsIgnoreCase("CONNECT")) {
+			if (useSSL) {
+				throw new ProtocolException();
+			}
+			processConnectRequest(requestHeader);
+		} else if (useSSL) {
+			sendRequest(requestHeader.getResource());
+		} else {
+			// Each request goes to the origin of its own URL, so a client may send the
+			// requests of several origins through the same connection
+			URL url = new URL(requestHeader.getResource());
+			final String host = url.getHost();
+			final int port = url.getPort() == -1 ? 80 : url.getPort();
+			final String resource = url.getFile().isEmpty() ? "/" : url.getFile();
+			if (hostPolicy.getAction(host) == HostRules.Action.BLOCK) {
+				refuse();
+				return;
+			}
+			if (remote != null && remotePort == port && remoteHost.equalsIgnoreCase(host) && !remote.isInputClosed()) {
+				sendRequest(resource);
+				return;
+			}
+			closeRemote();
+			state = State.PREPARING;
+			blockingExecutor.execute(new Runnable() {
+				public void run() {
+					final InetSocketAddress address = new InetSocketAddress(host, port);
+					loop.execute(new Runnable() {
+						public void run() {
+							if (closed) {
+								return;
+							}
+							try {
+								openRemoteChannel(address, false);
+								sendRequest(resource);
+								advance();
+							} catch (IOException e) {
+								close();
+							}
+						}
+					});
+				}
+			});
+		}
+	}
+
+	private void processConnectRequest(RequestHeader requestHeader) throws ProtocolException {
+		String resource = requestHeader.getResource();
+		int hostPortSeparator = resource.indexOf(":");
+		if (hostPortSeparator <= 0) {
+			throw new ProtocolException();
+		}
+		final String host = resource.substring(0, hostPortSeparator);
+		final int port = Integer.parseInt(resource.substring(hostPortSeparator + 1));
+		HostRules.Action action = hostPolicy.getAction(host);
+		if (action == HostRules.Action.BLOCK) {
+			refuse();
+			return;
+		}
+		ByteBuffer input = client.getInput();
+		input.flip();
+		final byte[] handshakeData = new byte[input.remaining()];
+		input.get(handshakeData);
+		input.clear();
+		state = State.PREPARING;
+		if (action == HostRules.Action.TUNNEL) {
+			blockingExecutor.execute(new Runnable() {
+				public void run() {
+					final InetSocketAddress address = new InetSocketAddress(host, port);
+					loop.execute(new Runnable() {
+						public void run() {
+							if (closed) {
+								return;
+							}
+							try {
+								startBypassing(address, handshakeData);
+								advance();
+							} catch (IOException e) {
+								close();
+							}
+						}
+					});
+				}
+			});
+			return;
+		}
+		blockingExecutor.execute(new Runnable() {
+			public void run() {
+				try {
+					// The certificate is built here, so the handshake, which runs on the event loop,
+					// finds it in the cache, unless the client asks for another name in the SNI extension
+					cache.getCertificate(host);
+					final InetSocketAddress address = new InetSocketAddress(host, port);
+					loop.execute(new Runnable() {
+						public void run() {
+							if (closed) {
+								return;
+							}
+							try {
+								startBumping(address, handshakeData);
+								advance();
+							} catch (IOException e) {
+								e.printStackTrace();
+								close();
+							}
+						}
+					});
+				} catch (IOException | GeneralSecurityException e) {
+					e.printStackTrace();
+					loop.execute(new Runnable() {
+						public void run() {
+							close();
+						}
+					});
+				}
+			}
+		});
+	}
+
+	/**
+	 * Answers a request refused by the host rules, and closes the connection once the answer is sent.
+	 */
+	private void refuse() {
+		client.send(FORBIDDEN_RESPONSE, 0, FORBIDDEN_RESPONSE.length);
+		state = State.CLOSING;
+	}
+
+	/**
+	 * Answers a CONNECT request which is bumped. The TLS handshake with the client starts once
+	 * the answer is written, which may take several writes of the channel.
+	 */
+	private void startBumping(InetSocketAddress address, byte[] handshakeData) {
+		client.send(CONNECT_RESPONSE, 0, CONNECT_RESPONSE.length);
+		bumpedAddress = address;
+		bumpedHandshakeData = handshakeData;
+		state = State.BUMPING;
+	}
+
+	private void startTLS() throws IOException {
+		InetSocketAddress address = bumpedAddress;
+		// The requested host is supplied as the peer host, which is used when the SNI extension is absent
+		SSLEngine engine = cache.getSSLContext().createSSLEngine(address.getHostString(), address.getPort());
+		engine.setUseClientMode(false);
+		engine.setWantClientAuth(false);
+		client.startTLS(engine, bumpedHandshakeData);
+		bumpedAddress = null;
+		bumpedHandshakeData = null;
+		useSSL = true;
+		openRemoteChannel(address, true);
+		state = State.READING_REQUEST_HEADER;
+		headerProcessor = new HeaderProcessor(false);
+	}
+
+	private void startBypassing(InetSocketAddress address, byte[] handshakeData) throws IOException {
+		openRemoteChannel(address, false);
+		remote.send(handshakeData, 0, handshakeData.length);
+		statistics.addUpstreamBytes(handshakeData.length);
+		upstreamTunnelBuffer = bufferPool.acquireDirect(TUNNEL_BUFFER_SIZE);
+		downstreamTunnelBuffer = bufferPool.acquireDirect(TUNNEL_BUFFER_SIZE);
+		state = State.BYPASSING;
+		statistics.bypassOpened();
+	}
+
+	/**
+	 * Relays the bytes of a bypassed tunnel. The CONNECT response is only sent once the remote
+	 * host is connected; then, as soon as the response and the data sent along with the request
+	 * are written, the bytes are moved from one channel to the other through the tunnel buffers.
+	 * @return True if any data was moved.
+	 * @throws IOException If an I/O error occurs.
+	 */
+	private boolean relayTunnel() throws IOException {
+		if (remoteConnecting) {
+			return false;
+		}
+		if (!tunnelEstablished) {
+			client.send(CONNECT_RESPONSE, 0, CONNECT_RESPONSE.length);
+			tunnelEstablished = true;
+			return true;
+		}
+		if (client.hasPendingOutput() || remote.hasPendingOutput()) {
+			return false;
+		}
+		int upstreamBytes = client.transferTo(remote, upstreamTunnelBuffer);
+		int downstreamBytes = remote.transferTo(client, downstreamTunnelBuffer);
+		statistics.addUpstreamBytes(upstreamBytes);
+		statistics.addDownstreamBytes(downstreamBytes);
+		return upstreamBytes > 0 || downstreamBytes > 0;
+	}
+
+	private void openRemoteChannel(InetSocketAddress address, boolean useSSL) throws IOException {
+		if (address.isUnresolved()) {
+			throw new IOException("Could not resolve " + address.getHostString());
+		}
+		SocketChannel channel = SocketChannel.open();
+		remote = new ChannelEndpoint(channel, bufferPool);
+		remoteHost = address.getHostString();
+		remotePort = address.getPort();
+		channel.configureBlocking(false);
+		remoteConnecting = !channel.connect(address);
+		remote.setKey(loop.register(channel, remoteConnecting ? SelectionKey.OP_CONNECT : 0, this));
+		if (useSSL) {
+			remoteHandshakeStart = System.currentTimeMillis();
+			remote.startTLS(upstreamContext.createSSLEngine(address.getHostString(), address.getPort()), null);
+		}
+	}
+
+	private void sendRequest(String resource) throws IOException {
+		headerWriter.writeRequestHeader(requestMethod, resource, headerProcessor.getHeaders());
+		remote.send(headerWriter.getBuffer(), 0, headerWriter.getLength());
+		statistics.addUpstreamBytes(headerWriter.getLength());
+		requestBody = startBody(false);
+		state = State.READING_RESPONSE_HEADER;
+		headerProcessor = new HeaderProcessor(true);
+	}
+
+	private void processResponseHeader() throws IOException {
+		if (remoteHandshakeStart > 0) {
+			// The handshake with the remote host is surely finished once a response has been received
+			upstreamContext.handshakeCompleted(remote.getSession(), remoteHandshakeStart);
+			remoteHandshakeStart = 0;
+		}
+		ResponseHeader responseHeader = headerProcessor.getResponseHeader();
+		headerWriter.writeResponseHeader(responseHeader, headerProcessor.getHeaders());
+		client.send(headerWriter.getBuffer(), 0, headerWriter.getLength());
+		statistics.addDownstreamBytes(headerWriter.getLength());
+		int statusCode = responseHeader.getStatusCode();
+		if (statusCode == 101) {
+			// The connection now carries another protocol, which is relayed in both directions until it is closed
+			requestBody = new Body();
+			requestBody.readUntilClose = true;
+			responseBody = new Body();
+			responseBody.readUntilClose = true;
+			state = State.TUNNELLING;
+			statistics.tunnelOpened();
+			return;
+		}
+		if (statusCode >= 100 && statusCode < 200) {
+			// Interim responses (e.g. 100 Continue) are followed by the final response
+			headerProcessor = new HeaderProcessor(true);
+			return;
+		}
+		keepConnectionAlive = headerProcessor.isKeepConnectionAlive();
+		boolean bodyless = requestMethod.equalsIgnoreCase("HEAD") || statusCode == 204 || statusCode == 304;
+		responseBody = startBody(!bodyless);
+		if (responseBody.complete) {
+			finishExchange();
+		} else {
+			state = State.SENDING_RESPONSE_BODY;
+		}
+	}
+
+	private Body startBody(boolean mayReadUntilClose) {
+		Body body = new Body();
+		if (headerProcessor.getContentLength() != null) {
+			body.remaining = headerProcessor.getContentLength();
+			body.complete = body.remaining <= 0;
+		} else if (headerProcessor.isChunkedEncoded()) {
+			body.chunkedProcessor = new ChunkedStreamProcessor();
+		} else if (mayReadUntilClose) {
+			body.readUntilClose = true;
+		} else {
+			body.complete = true;
+		}
+		return body;
+	}
+
+	private void finishExchange() {
+		if (!requestBody.complete) {
+			// The next request can't be read while the body of this one is still arriving
+			statistics.earlyResponse();
+			state = State.CLOSING;
+		} else if (keepConnectionAlive && !responseBody.readUntilClose) {
+			state = State.READING_REQUEST_HEADER;
+			headerProcessor = new HeaderProcessor(false);
+		} else {
+			state = State.CLOSING;
+		}
+	}
+
+	/**
+	 * Moves the body data available in the source endpoint to the destination endpoint.
+	 * No data is moved while the destination still has data waiting to be written, so
+	 * a slow reader throttles the writer.
+	 * @param body Progress of the body.
+	 * @param source The endpoint from which the body is received.
+	 * @param destination The endpoint to which the body is sent.
+	 * @param upstream True if the body is sent by the client, false if it is sent by the remote host.
+	 * @return True if any data was moved or the end of the body was reached.
+	 * @throws IOException If the body violates the chunked transfer coding spec.
+	 */
+	private boolean relayBody(Body body, ChannelEndpoint source, ChannelEndpoint destination, boolean upstream) throws IOException {
+		if (body == null || body.complete) {
+			return false;
+		}
+		ByteBuffer input = source.getInput();
+		if (body.readUntilClose && source.isInputClosed() && input.position() == 0) {
+			body.complete = true;
+			return true;
+		}
+		if (input.position() == 0 || destination.hasPendingOutput()) {
+			return false;
+		}
+		input.flip();
+		int offset = input.arrayOffset() + input.position();
+		int length = input.remaining();
+		if (body.chunkedProcessor != null) {
+			int streamEndPosition = body.chunkedProcessor.process(input.array(), offset, length);
+			if (streamEndPosition >= 0) {
+				length = streamEndPosition - offset;
+				body.complete = true;
+			}
+		} else if (!body.readUntilClose) {
+			if (length > body.remaining) {
+				length = (int) body.remaining;
+			}
+			body.remaining -= length;
+			body.complete = body.remaining == 0;
+		}
+		destination.send(input.array(), offset, length);
+		input.position(input.position() + length);
+		input.compact();
+		if (upstream) {
+			statistics.addUpstreamBytes(length);
+		} else {
+			statistics.addDownstreamBytes(length);
+		}
+		return true;
+	}
+
+	private void flush() throws IOException {
+		if (client.hasPendingOutput()) {
+			client.flush();
+		}
+		if (remote != null && !remoteConnecting && (remote.hasPendingOutput() || remote.isHandshaking())) {
+			remote.flush();
+		}
+	}
+
+	/**
+	 * Handles the end of stream of the client and remote channels.
+	 * @return True if the connection was closed.
+	 */
+	private boolean checkEndOfStreams() {
+		if (state == State.BYPASSING) {
+			// The end of stream of each side is passed on to the other one once its data is delivered,
+			// and the tunnel ends when both sides are closed
+			boolean upstreamClosed = client.isInputClosed() && upstreamTunnelBuffer.position() == 0;
+			boolean downstreamClosed = remote.isInputClosed() && downstreamTunnelBuffer.position() == 0;
+			try {
+				if (upstreamClosed && downstreamClosed) {
+					close();
+					return true;
+				}
+				if (upstreamClosed && !remote.isOutputShutdown()) {
+					remote.shutdownOutput();
+				}
+				if (downstreamClosed && !client.isOutputShutdown()) {
+					client.shutdownOutput();
+				}
+			} catch (IOException e) {
+				close();
+				return true;
+			}
+			return false;
+		}
+		if (state == State.TUNNELLING) {
+			// The tunnel ends as soon as one of the sides is closed and the data it sent is delivered
+			if ((requestBody.complete && !remote.hasPendingOutput()) || (responseBody.complete && !client.hasPendingOutput())) {
+				close();
+				return true;
+			}
+			return false;
+		}
+		if (client.isInputClosed() && (state == State.READING_REQUEST_HEADER || state == State.PREPARING || state == State.BUMPING || isRequestBodyPending())) {
+			close();
+			return true;
+		}
+		if (remote != null && remote.isInputClosed() && remote.getInput().position() == 0) {
+			if (state == State.CLOSING) {
+				return false;
+			}
+			if (state == State.READING_REQUEST_HEADER && !useSSL) {
+				// An idle plain connection closed by the origin; the next request opens a new one
+				closeRemote();
+				return false;
+			}
+			if (state != State.SENDING_RESPONSE_BODY || !responseBody.readUntilClose) {
+				close();
+				return true;
+			}
+		}
+		return false;
+	}
+
+	private void updateInterestOperations() {
+		if (state == State.BYPASSING) {
+			if (remoteConnecting) {
+				remote.getKey().interestOps(SelectionKey.OP_CONNECT);
+				setInterestOperations(client, false, false);
+				return;
+			}
+			boolean relaying = !client.hasPendingOutput() && !remote.hasPendingOutput();
+			setInterestOperations(client, relaying && upstreamTunnelBuffer.hasRemaining() && !client.isInputClosed(),
+					client.hasPendingOutput() || downstreamTunnelBuffer.position() > 0);
+			setInterestOperations(remote, relaying && downstreamTunnelBuffer.hasRemaining() && !remote.isInputClosed(),
+					remote.hasPendingOutput() || upstreamTunnelBuffer.position() > 0);
+			return;
+		}
+		boolean readClient = (state == State.READING_REQUEST_HEADER || isRequestBodyPending())
+				&& (remote == null || !remote.hasPendingOutput());
+		// An idle plain remote connection is watched, so it is dropped as soon as the origin closes it
+		boolean readRemote = ((state == State.READING_RESPONSE_HEADER || state == State.SENDING_RESPONSE_BODY || state == State.TUNNELLING)
+				&& !client.hasPendingOutput()) || (state == State.READING_REQUEST_HEADER && !useSSL);
+		setInterestOperations(client, readClient || client.isHandshakeWaitingInput(), client.hasPendingOutput());
+		if (remote != null) {
+			if (remoteConnecting) {
+				remote.getKey().interestOps(SelectionKey.OP_CONNECT);
+			} else {
+				setInterestOperations(remote, readRemote || remote.isHandshakeWaitingInput(), remote.hasPendingOutput());
+			}
+		}
+	}
+
+	private boolean isRequestBodyPending() {
+		return (state == State.READING_RESPONSE_HEADER || state == State.SENDING_RESPONSE_BODY || state == State.TUNNELLING)
+				&& !requestBody.complete;
+	}
+
+	private void setInterestOperations(ChannelEndpoint endpoint, boolean read, boolean write) {
+		int operations = (read ? SelectionKey.OP_READ : 0) | (write ? SelectionKey.OP_WRITE : 0);
+		if (endpoint.getKey().interestOps() != operations) {
+			endpoint.getKey().interestOps(operations);
+		}
+	}
+
+	private void closeRemote() {
+		if (remote != null) {
+			remote.close();
+			remote = null;
+			remoteConnecting = false;
+		}
+	}
+
+	private void close() {
+		if (!closed) {
+			closed = true;
+			if (state == State.TUNNELLING || state == State.BYPASSING) {
+				statistics.tunnelClosed();
+			}
+			bufferPool.release(upstreamTunnelBuffer);
+			bufferPool.release(downstreamTunnelBuffer);
+			upstreamTunnelBuffer = null;
+			downstreamTunnelBuffer = null;
+			connections.remove(this);
+			client.close();
+			if (remote != null) {
+				remote.close();
+			}
+		}
+	}
+
+}
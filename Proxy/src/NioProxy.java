@@ -0,0 +1,91 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Proxy server based on non-blocking I/O. The accepted connections are distributed
+ * among a fixed set of event loops, each one running on its own thread, instead of
+ * being handled by one thread per connection.
+ * @author Juliano
+ */
+public class NioProxy extends Thread {
+
+	private ServerSocketChannel serverChannel;
+	private SSLSocketFactoryCache cache;
+	private HostPolicy hostPolicy;
+	private UpstreamSSLContext upstreamContext;
+	private BufferPool bufferPool;
+	private RelayStatistics statistics;
+
+	private EventLoop[] loops;
+	private List<Set<NioConnection>> loopsConnections;
+	private ExecutorService blockingExecutor;
+
+	/**
+	 * Constructor.
+	 * @param port Port in which the proxy will listen for connections.
+	 * @param cache Cache of the certificates used in the TLS handshakes with the clients.
+	 * @param hostPolicy Rules which tell whether the connections to each host are bumped, tunnelled or blocked.
+	 * @param upstreamContext Context of the TLS connections with the remote hosts.
+	 * @param bufferPool Pool of the buffers of the client and remote channels.
+	 * @param statistics Counters of the relayed data.
+	 * @param ioThreads Number of event loop threads.
+	 * @throws IOException If the server channel or the selectors could not be opened.
+	 */
+	public NioProxy(int port, SSLSocketFactoryCache cache, HostPolicy hostPolicy, UpstreamSSLContext upstreamContext, BufferPool bufferPool, RelayStatistics statistics, int ioThreads) throws IOException {
+		serverChannel = ServerSocketChannel.open();
+		serverChannel.bind(new InetSocketAddress(port));
+		this.cache = cache;
+		this.hostPolicy = hostPolicy;
+		this.upstreamContext = upstreamContext;
+		this.bufferPool = bufferPool;
+		this.statistics = statistics;
+		blockingExecutor = Executors.newCachedThreadPool();
+		loops = new EventLoop[ioThreads];
+		loopsConnections = new ArrayList<>(ioThreads);
+		for (int i = 0; i < ioThreads; i++) {
+			final EventLoop loop = new EventLoop("EventLoop-" + i);
+			final Set<NioConnection> connections = new HashSet<>();
+			loop.setPeriodicTask(new Runnable() {
+				public void run() {
+					long now = System.currentTimeMillis();
+					for (NioConnection connection : new ArrayList<>(connections)) {
+						connection.checkIdle(now);
+					}
+				}
+			});
+			loops[i] = loop;
+			loopsConnections.add(connections);
+		}
+	}
+
+	public void run() {
+		for (EventLoop loop : loops) {
+			loop.start();
+		}
+		int nextLoop = 0;
+		try {
+			while(true) {
+				SocketChannel channel = serverChannel.accept();
+				EventLoop loop = loops[nextLoop];
+				final NioConnection connection = new NioConnection(loop, cache, hostPolicy, upstreamContext, bufferPool, statistics, blockingExecutor, loopsConnections.get(nextLoop), channel);
+				loop.execute(new Runnable() {
+					public void run() {
+						connection.start();
+					}
+				});
+				nextLoop = (nextLoop + 1) % loops.length;
+			}
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
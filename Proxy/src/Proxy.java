@@ -1,8 +1,11 @@
 import java.io.File;
 import java.io.IOException;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.security.InvalidKeyException;
+import java.security.KeyManagementException;
 import java.security.KeyStoreException;
 import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
@@ -16,20 +19,64 @@ public class Proxy extends Thread {
 
 	private ServerSocket serverSocket;
 	private SSLSocketFactoryCache cache;
+	private HostPolicy hostPolicy;
+	private UpstreamConnectionPool pool;
+	private ResponseCache responseCache;
+	private BufferPool bufferPool;
+	private RelayStatistics statistics;
 	
 	private Executor executor;
+	private boolean http2;
 
-	public Proxy(int port, File keystoreFile, char[] password, String[] entriesAliases) throws IOException, InvalidKeyException, KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, NoSuchProviderException, SignatureException {
+	public Proxy(int port, File keystoreFile, char[] password, String[] entriesAliases) throws IOException, InvalidKeyException, KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, NoSuchProviderException, SignatureException, KeyManagementException {
+		this(port, keystoreFile, password, entriesAliases, new ProxyConfiguration());
+	}
+
+	private Proxy(int port, File keystoreFile, char[] password, String[] entriesAliases, ProxyConfiguration configuration) throws IOException, InvalidKeyException, KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, NoSuchProviderException, SignatureException, KeyManagementException {
+		this(port, new SSLSocketFactoryCache(keystoreFile, password, entriesAliases, configuration), configuration, new BufferPool(configuration));
+	}
+
+	private Proxy(int port, SSLSocketFactoryCache cache, ProxyConfiguration configuration, BufferPool bufferPool) throws IOException, NoSuchAlgorithmException, KeyManagementException {
+		this(port, cache, new HostPolicy(configuration), new UpstreamConnectionPool(configuration, new UpstreamSSLContext(configuration), bufferPool), new ResponseCache(configuration), bufferPool, new RelayStatistics(), Executors.newCachedThreadPool(), configuration.isHttp2());
+	}
+
+	public Proxy(int port, SSLSocketFactoryCache cache, HostPolicy hostPolicy, UpstreamConnectionPool pool, ResponseCache responseCache, BufferPool bufferPool, RelayStatistics statistics, Executor executor, boolean http2) throws IOException {
 		serverSocket = new ServerSocket(port);
-		cache = new SSLSocketFactoryCache(keystoreFile, password, entriesAliases);
-		executor = Executors.newCachedThreadPool();
+		this.cache = cache;
+		this.hostPolicy = hostPolicy;
+		this.pool = pool;
+		this.responseCache = responseCache;
+		this.bufferPool = bufferPool;
+		this.statistics = statistics;
+		this.executor = executor;
+		this.http2 = http2;
+	}
+
+	/**
+	 * Creates the executor which runs the HttpProcessors.
+	 * @param threads Kind of thread, as defined in {@link ProxyConfiguration#getThreads()}.
+	 * @return A cached thread pool for platform threads, or an executor which starts a new
+	 * virtual thread for each task.
+	 * @throws UnsupportedOperationException If virtual threads were requested but the runtime does not support them.
+	 */
+	public static Executor createExecutor(String threads) {
+		if (threads.equals(ProxyConfiguration.THREADS_VIRTUAL)) {
+			// Looked up by reflection so the sources still compile for older runtimes
+			try {
+				Method factoryMethod = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+				return (Executor) factoryMethod.invoke(null);
+			} catch (NoSuchMethodException | IllegalAccessException | InvocationTargetException e) {
+				throw new UnsupportedOperationException("Virtual threads are not supported by this runtime", e);
+			}
+		}
+		return Executors.newCachedThreadPool();
 	}
 	
 	public void run() {
 		try {
 			while(true) {
 				Socket socket = serverSocket.accept();
-				HttpProcessor processor = new HttpProcessor(cache, socket);
+				HttpProcessor processor = new HttpProcessor(cache, hostPolicy, pool, responseCache, bufferPool, executor, statistics, http2, socket);
 				executor.execute(processor);
 			}
 		} catch (IOException e) {
@@ -37,7 +84,7 @@ public class Proxy extends Thread {
 		}
 	}
 	
-	public static void main(String[] args) throws InvalidKeyException, KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, NoSuchProviderException, SignatureException, IOException, InterruptedException {
+	public static void main(String[] args) throws InvalidKeyException, KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, NoSuchProviderException, SignatureException, IOException, InterruptedException, KeyManagementException {
 		
 		File keystoreFile = new File(args[0]);
 		String keystorePassword = args[1];
@@ -45,7 +92,20 @@ public class Proxy extends Thread {
 		for (int i = 2; i < args.length; i++) {
 			entriesAliases[i - 2] = args[i];
 		}
-		Proxy proxy = new Proxy(3128, keystoreFile, keystorePassword.toCharArray(), entriesAliases);
+		ProxyConfiguration configuration = ProxyConfiguration.fromSystemProperties();
+		SSLSocketFactoryCache cache = new SSLSocketFactoryCache(keystoreFile, keystorePassword.toCharArray(), entriesAliases, configuration);
+		UpstreamSSLContext upstreamContext = new UpstreamSSLContext(configuration);
+		BufferPool bufferPool = new BufferPool(configuration);
+		RelayStatistics statistics = new RelayStatistics();
+		HostPolicy hostPolicy = new HostPolicy(configuration);
+		Thread proxy;
+		if (configuration.getEngine().equals(ProxyConfiguration.ENGINE_NIO)) {
+			proxy = new NioProxy(3128, cache, hostPolicy, upstreamContext, bufferPool, statistics, configuration.getIoThreads());
+		} else {
+			UpstreamConnectionPool pool = new UpstreamConnectionPool(configuration, upstreamContext, bufferPool);
+			ResponseCache responseCache = new ResponseCache(configuration);
+			proxy = new Proxy(3128, cache, hostPolicy, pool, responseCache, bufferPool, statistics, createExecutor(configuration.getThreads()), configuration.isHttp2());
+		}
 		proxy.start();
 		proxy.join();
 		
@@ -0,0 +1,457 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Startup options of the proxy. The options are read from the system properties,
+ * so they can be supplied in the command line with the -D switch without changing
+ * the positional arguments expected by {@link Proxy#main(String[])}.
+ * @author Juliano
+ */
+public class ProxyConfiguration {
+
+	public static final String ENGINE_BLOCKING = "blocking";
+	public static final String ENGINE_NIO = "nio";
+
+	public static final String THREADS_PLATFORM = "platform";
+	public static final String THREADS_VIRTUAL = "virtual";
+
+	public static final String KEY_ALGORITHM_RSA = "RSA";
+	public static final String KEY_ALGORITHM_EC = "EC";
+
+	private String engine;
+	private int ioThreads;
+	private String threads;
+	private int keyPoolSize;
+	private int keyPoolThreads;
+	private String leafKeyAlgorithm;
+	private int leafKeySize;
+	private boolean sharedLeafKey;
+	private boolean wildcardCertificates;
+	private File leafStore;
+	private int cacheMaxSize;
+	private long cacheTimeToLive;
+	private int upstreamMaxIdle;
+	private int upstreamMaxIdlePerHost;
+	private long upstreamIdleTimeout;
+	private int upstreamSessionCacheSize;
+	private int upstreamSessionTimeout;
+	private boolean upstreamHttp2;
+	private long responseCacheSize;
+	private long responseCacheMaxObjectSize;
+	private File responseCacheDirectory;
+	private long responseCacheDiskSize;
+	private int responseCacheSegmentSize;
+	private int bufferPoolSize;
+	private boolean bufferLeakDetection;
+	private List<String> bypassHosts;
+	private File hostRules;
+	private boolean http2;
+
+	/**
+	 * Constructor. Every option is initialized with its default value.
+	 */
+	public ProxyConfiguration() {
+		engine = ENGINE_BLOCKING;
+		ioThreads = Runtime.getRuntime().availableProcessors();
+		threads = THREADS_PLATFORM;
+		keyPoolSize = 32;
+		keyPoolThreads = 1;
+		leafKeyAlgorithm = KEY_ALGORITHM_RSA;
+		leafKeySize = 2048;
+		sharedLeafKey = false;
+		wildcardCertificates = false;
+		cacheMaxSize = 10000;
+		cacheTimeToLive = 24 * 60 * 60;
+		upstreamMaxIdle = 256;
+		upstreamMaxIdlePerHost = 8;
+		upstreamIdleTimeout = 30;
+		upstreamSessionCacheSize = 10000;
+		upstreamSessionTimeout = 24 * 60 * 60;
+		upstreamHttp2 = false;
+		responseCacheSize = 0;
+		responseCacheMaxObjectSize = 1024;
+		responseCacheDiskSize = 10240;
+		responseCacheSegmentSize = 1024;
+		bufferPoolSize = 64;
+		bufferLeakDetection = false;
+		bypassHosts = new ArrayList<>();
+		http2 = false;
+	}
+
+	/**
+	 * Builds a configuration object from the system properties.
+	 * <ul>
+	 * <li>proxy.engine: "blocking" (default) for one thread per connection or "nio" for the selector based engine.</li>
+	 * <li>proxy.ioThreads: Number of event loop threads used by the "nio" engine. Defaults to the number of available processors.</li>
+	 * <li>proxy.threads: Kind of thread on which the "blocking" engine runs each connection: "platform" (default) or "virtual".
+	 * Virtual threads require a Java 21 or newer runtime.</li>
+	 * <li>proxy.keyPoolSize: Number of pre-generated key pairs kept for the leaf certificates. Defaults to 32; zero disables the pool.</li>
+	 * <li>proxy.keyPoolThreads: Number of background threads which fill the key pairs pool. Defaults to 1; zero disables the pool.</li>
+	 * <li>proxy.leafKeyAlgorithm: Algorithm of the leaf certificates keys: "RSA" (default) or "EC".</li>
+	 * <li>proxy.leafKeySize: Size of the leaf certificates keys. Defaults to 2048 for RSA and 256 (P-256) for EC.</li>
+	 * <li>proxy.sharedLeafKey: If "true", every leaf certificate is issued for a single key pair generated at startup.</li>
+	 * <li>proxy.wildcardCertificates: If "true", a single "*.example.com" certificate is built for all the hosts of the "example.com" domain.</li>
+	 * <li>proxy.leafStore: Directory where the leaf certificates are stored, so they survive restarts. Disabled by default.</li>
+	 * <li>proxy.cacheMaxSize: Maximum number of hosts whose SSLContexts are kept in memory. Defaults to 10000.</li>
+	 * <li>proxy.cacheTimeToLive: Time, in seconds, after which a host SSLContext is built again. Defaults to one day; zero disables the expiration.</li>
+	 * <li>proxy.upstreamMaxIdle: Maximum number of idle connections to the remote hosts kept for reuse. Defaults to 256; zero disables the pool.</li>
+	 * <li>proxy.upstreamMaxIdlePerHost: Maximum number of idle connections kept for each remote host. Defaults to 8.</li>
+	 * <li>proxy.upstreamIdleTimeout: Time, in seconds, after which an idle connection to a remote host is closed. Defaults to 30.</li>
+	 * <li>proxy.upstreamSessionCacheSize: Maximum number of TLS sessions with the remote hosts kept for resumption. Defaults to 10000; zero means no limit.</li>
+	 * <li>proxy.upstreamSessionTimeout: Time, in seconds, during which a TLS session with a remote host may be resumed. Defaults to one day; zero means no limit.</li>
+	 * <li>proxy.upstreamHttp2: If "true", HTTP/2 is offered to the TLS remote hosts of the "blocking" engine, whose requests are otherwise always sent as HTTP/1.1. Disabled by default.</li>
+	 * <li>proxy.responseCacheSize: Maximum size, in megabytes, of the responses kept in memory by the HTTP cache of the "blocking" engine. Zero (default) disables the cache, whose responses are shared by all the clients.</li>
+	 * <li>proxy.responseCacheMaxObjectSize: Maximum size, in kilobytes, of a response stored by the HTTP cache in memory. Defaults to 1024.</li>
+	 * <li>proxy.responseCacheDirectory: Directory where the HTTP cache stores the responses too large to be kept in memory, so they also survive restarts. Disabled by default.</li>
+	 * <li>proxy.responseCacheDiskSize: Maximum size, in megabytes, of the responses stored in the HTTP cache directory. Defaults to 10240.</li>
+	 * <li>proxy.responseCacheSegmentSize: Size, in megabytes, of the files in which the responses are stored in the HTTP cache directory, which is also the limit of the stored responses. Defaults to 1024; at most 2047.</li>
+	 * <li>proxy.bufferPoolSize: Maximum number of free relay buffers kept for each buffer size. Defaults to 64; zero disables the pool.</li>
+	 * <li>proxy.bufferLeakDetection: If "true", the relay buffers which are never returned to the pool are reported. Meant for debugging.</li>
+	 * <li>proxy.bypassHosts: Comma separated list of the hosts which are tunnelled without being bumped, as accepted by {@link HostRules#add}. Empty by default.</li>
+	 * <li>proxy.hostRules: File with the rules which tell, for each host, whether its connections are bumped, tunnelled or blocked, in the format read by {@link HostRules#load}. Disabled by default.</li>
+	 * <li>proxy.http2: If "true", HTTP/2 is offered to the clients whose connections are bumped by the "blocking" engine. Disabled by default.</li>
+	 * </ul>
+	 * @return The configuration object.
+	 */
+	public static ProxyConfiguration fromSystemProperties() {
+		ProxyConfiguration configuration = new ProxyConfiguration();
+		configuration.setEngine(System.getProperty("proxy.engine", configuration.getEngine()));
+		configuration.setIoThreads(Integer.getInteger("proxy.ioThreads", configuration.getIoThreads()));
+		configuration.setThreads(System.getProperty("proxy.threads", configuration.getThreads()));
+		configuration.setKeyPoolSize(Integer.getInteger("proxy.keyPoolSize", configuration.getKeyPoolSize()));
+		configuration.setKeyPoolThreads(Integer.getInteger("proxy.keyPoolThreads", configuration.getKeyPoolThreads()));
+		configuration.setLeafKeyAlgorithm(System.getProperty("proxy.leafKeyAlgorithm", configuration.getLeafKeyAlgorithm()));
+		configuration.setLeafKeySize(Integer.getInteger("proxy.leafKeySize", configuration.getLeafKeySize()));
+		configuration.setSharedLeafKey(Boolean.getBoolean("proxy.sharedLeafKey"));
+		configuration.setWildcardCertificates(Boolean.getBoolean("proxy.wildcardCertificates"));
+		configuration.setCacheMaxSize(Integer.getInteger("proxy.cacheMaxSize", configuration.getCacheMaxSize()));
+		configuration.setCacheTimeToLive(Long.getLong("proxy.cacheTimeToLive", configuration.getCacheTimeToLive()));
+		configuration.setUpstreamMaxIdle(Integer.getInteger("proxy.upstreamMaxIdle", configuration.getUpstreamMaxIdle()));
+		configuration.setUpstreamMaxIdlePerHost(Integer.getInteger("proxy.upstreamMaxIdlePerHost", configuration.getUpstreamMaxIdlePerHost()));
+		configuration.setUpstreamIdleTimeout(Long.getLong("proxy.upstreamIdleTimeout", configuration.getUpstreamIdleTimeout()));
+		configuration.setUpstreamSessionCacheSize(Integer.getInteger("proxy.upstreamSessionCacheSize", configuration.getUpstreamSessionCacheSize()));
+		configuration.setUpstreamSessionTimeout(Integer.getInteger("proxy.upstreamSessionTimeout", configuration.getUpstreamSessionTimeout()));
+		configuration.setUpstreamHttp2(Boolean.getBoolean("proxy.upstreamHttp2"));
+		configuration.setResponseCacheSize(Long.getLong("proxy.responseCacheSize", configuration.getResponseCacheSize()));
+		configuration.setResponseCacheMaxObjectSize(Long.getLong("proxy.responseCacheMaxObjectSize", configuration.getResponseCacheMaxObjectSize()));
+		configuration.setBufferPoolSize(Integer.getInteger("proxy.bufferPoolSize", configuration.getBufferPoolSize()));
+		configuration.setBufferLeakDetection(Boolean.getBoolean("proxy.bufferLeakDetection"));
+		configuration.setHttp2(Boolean.getBoolean("proxy.http2"));
+		String bypassHosts = System.getProperty("proxy.bypassHosts");
+		if (bypassHosts != null) {
+			for (String host : bypassHosts.split(",")) {
+				if (!host.trim().isEmpty()) {
+					configuration.getBypassHosts().add(host.trim());
+				}
+			}
+		}
+		String hostRules = System.getProperty("proxy.hostRules");
+		if (hostRules != null) {
+			configuration.setHostRules(new File(hostRules));
+		}
+		configuration.setResponseCacheDiskSize(Long.getLong("proxy.responseCacheDiskSize", configuration.getResponseCacheDiskSize()));
+		configuration.setResponseCacheSegmentSize(Integer.getInteger("proxy.responseCacheSegmentSize", configuration.getResponseCacheSegmentSize()));
+		String responseCacheDirectory = System.getProperty("proxy.responseCacheDirectory");
+		if (responseCacheDirectory != null) {
+			configuration.setResponseCacheDirectory(new File(responseCacheDirectory));
+		}
+		String leafStore = System.getProperty("proxy.leafStore");
+		if (leafStore != null) {
+			configuration.setLeafStore(new File(leafStore));
+		}
+		return configuration;
+	}
+
+	public String getEngine() {
+		return engine;
+	}
+
+	public void setEngine(String engine) {
+		if (!engine.equals(ENGINE_BLOCKING) && !engine.equals(ENGINE_NIO)) {
+			throw new IllegalArgumentException("Unknown engine: " + engine);
+		}
+		this.engine = engine;
+	}
+
+	public int getIoThreads() {
+		return ioThreads;
+	}
+
+	public void setIoThreads(int ioThreads) {
+		if (ioThreads < 1) {
+			throw new IllegalArgumentException("Invalid number of I/O threads: " + ioThreads);
+		}
+		this.ioThreads = ioThreads;
+	}
+
+	public String getThreads() {
+		return threads;
+	}
+
+	public void setThreads(String threads) {
+		if (!threads.equals(THREADS_PLATFORM) && !threads.equals(THREADS_VIRTUAL)) {
+			throw new IllegalArgumentException("Unknown kind of thread: " + threads);
+		}
+		this.threads = threads;
+	}
+
+	public int getKeyPoolSize() {
+		return keyPoolSize;
+	}
+
+	public void setKeyPoolSize(int keyPoolSize) {
+		if (keyPoolSize < 0) {
+			throw new IllegalArgumentException("Invalid key pool size: " + keyPoolSize);
+		}
+		this.keyPoolSize = keyPoolSize;
+	}
+
+	public int getKeyPoolThreads() {
+		return keyPoolThreads;
+	}
+
+	public void setKeyPoolThreads(int keyPoolThreads) {
+		if (keyPoolThreads < 0) {
+			throw new IllegalArgumentException("Invalid number of key pool threads: " + keyPoolThreads);
+		}
+		this.keyPoolThreads = keyPoolThreads;
+	}
+
+	public String getLeafKeyAlgorithm() {
+		return leafKeyAlgorithm;
+	}
+
+	/**
+	 * Set the algorithm of the leaf certificates keys. The key size is reset to
+	 * the default size of the algorithm.
+	 * @param leafKeyAlgorithm "RSA" or "EC".
+	 */
+	public void setLeafKeyAlgorithm(String leafKeyAlgorithm) {
+		if (leafKeyAlgorithm.equals(KEY_ALGORITHM_RSA)) {
+			leafKeySize = 2048;
+		} else if (leafKeyAlgorithm.equals(KEY_ALGORITHM_EC)) {
+			leafKeySize = 256;
+		} else {
+			throw new IllegalArgumentException("Unknown key algorithm: " + leafKeyAlgorithm);
+		}
+		this.leafKeyAlgorithm = leafKeyAlgorithm;
+	}
+
+	public int getLeafKeySize() {
+		return leafKeySize;
+	}
+
+	public void setLeafKeySize(int leafKeySize) {
+		if (leafKeySize < 1) {
+			throw new IllegalArgumentException("Invalid key size: " + leafKeySize);
+		}
+		this.leafKeySize = leafKeySize;
+	}
+
+	public boolean isSharedLeafKey() {
+		return sharedLeafKey;
+	}
+
+	public void setSharedLeafKey(boolean sharedLeafKey) {
+		this.sharedLeafKey = sharedLeafKey;
+	}
+
+	public boolean isWildcardCertificates() {
+		return wildcardCertificates;
+	}
+
+	public void setWildcardCertificates(boolean wildcardCertificates) {
+		this.wildcardCertificates = wildcardCertificates;
+	}
+
+	public File getLeafStore() {
+		return leafStore;
+	}
+
+	public void setLeafStore(File leafStore) {
+		this.leafStore = leafStore;
+	}
+
+	public int getCacheMaxSize() {
+		return cacheMaxSize;
+	}
+
+	public void setCacheMaxSize(int cacheMaxSize) {
+		if (cacheMaxSize < 1) {
+			throw new IllegalArgumentException("Invalid cache size: " + cacheMaxSize);
+		}
+		this.cacheMaxSize = cacheMaxSize;
+	}
+
+	public long getCacheTimeToLive() {
+		return cacheTimeToLive;
+	}
+
+	public void setCacheTimeToLive(long cacheTimeToLive) {
+		if (cacheTimeToLive < 0) {
+			throw new IllegalArgumentException("Invalid cache time to live: " + cacheTimeToLive);
+		}
+		this.cacheTimeToLive = cacheTimeToLive;
+	}
+
+	public int getUpstreamMaxIdle() {
+		return upstreamMaxIdle;
+	}
+
+	public void setUpstreamMaxIdle(int upstreamMaxIdle) {
+		if (upstreamMaxIdle < 0) {
+			throw new IllegalArgumentException("Invalid maximum number of idle connections: " + upstreamMaxIdle);
+		}
+		this.upstreamMaxIdle = upstreamMaxIdle;
+	}
+
+	public int getUpstreamMaxIdlePerHost() {
+		return upstreamMaxIdlePerHost;
+	}
+
+	public void setUpstreamMaxIdlePerHost(int upstreamMaxIdlePerHost) {
+		if (upstreamMaxIdlePerHost < 0) {
+			throw new IllegalArgumentException("Invalid maximum number of idle connections per host: " + upstreamMaxIdlePerHost);
+		}
+		this.upstreamMaxIdlePerHost = upstreamMaxIdlePerHost;
+	}
+
+	public long getUpstreamIdleTimeout() {
+		return upstreamIdleTimeout;
+	}
+
+	public void setUpstreamIdleTimeout(long upstreamIdleTimeout) {
+		if (upstreamIdleTimeout < 1) {
+			throw new IllegalArgumentException("Invalid idle connection timeout: " + upstreamIdleTimeout);
+		}
+		this.upstreamIdleTimeout = upstreamIdleTimeout;
+	}
+
+	public int getUpstreamSessionCacheSize() {
+		return upstreamSessionCacheSize;
+	}
+
+	public void setUpstreamSessionCacheSize(int upstreamSessionCacheSize) {
+		if (upstreamSessionCacheSize < 0) {
+			throw new IllegalArgumentException("Invalid session cache size: " + upstreamSessionCacheSize);
+		}
+		this.upstreamSessionCacheSize = upstreamSessionCacheSize;
+	}
+
+	public int getUpstreamSessionTimeout() {
+		return upstreamSessionTimeout;
+	}
+
+	public void setUpstreamSessionTimeout(int upstreamSessionTimeout) {
+		if (upstreamSessionTimeout < 0) {
+			throw new IllegalArgumentException("Invalid session timeout: " + upstreamSessionTimeout);
+		}
+		this.upstreamSessionTimeout = upstreamSessionTimeout;
+	}
+
+	public boolean isUpstreamHttp2() {
+		return upstreamHttp2;
+	}
+
+	public void setUpstreamHttp2(boolean upstreamHttp2) {
+		this.upstreamHttp2 = upstreamHttp2;
+	}
+
+	public long getResponseCacheSize() {
+		return responseCacheSize;
+	}
+
+	public void setResponseCacheSize(long responseCacheSize) {
+		if (responseCacheSize < 0) {
+			throw new IllegalArgumentException("Invalid response cache size: " + responseCacheSize);
+		}
+		this.responseCacheSize = responseCacheSize;
+	}
+
+	public long getResponseCacheMaxObjectSize() {
+		return responseCacheMaxObjectSize;
+	}
+
+	public void setResponseCacheMaxObjectSize(long responseCacheMaxObjectSize) {
+		if (responseCacheMaxObjectSize < 1) {
+			throw new IllegalArgumentException("Invalid response cache maximum object size: " + responseCacheMaxObjectSize);
+		}
+		this.responseCacheMaxObjectSize = responseCacheMaxObjectSize;
+	}
+
+	public File getResponseCacheDirectory() {
+		return responseCacheDirectory;
+	}
+
+	public void setResponseCacheDirectory(File responseCacheDirectory) {
+		this.responseCacheDirectory = responseCacheDirectory;
+	}
+
+	public long getResponseCacheDiskSize() {
+		return responseCacheDiskSize;
+	}
+
+	public void setResponseCacheDiskSize(long responseCacheDiskSize) {
+		if (responseCacheDiskSize < 1) {
+			throw new IllegalArgumentException("Invalid response cache disk size: " + responseCacheDiskSize);
+		}
+		this.responseCacheDiskSize = responseCacheDiskSize;
+	}
+
+	public int getResponseCacheSegmentSize() {
+		return responseCacheSegmentSize;
+	}
+
+	public void setResponseCacheSegmentSize(int responseCacheSegmentSize) {
+		// A segment is mapped by a single buffer, whose capacity is an int
+		if (responseCacheSegmentSize < 1 || responseCacheSegmentSize > 2047) {
+			throw new IllegalArgumentException("Invalid response cache segment size: " + responseCacheSegmentSize);
+		}
+		this.responseCacheSegmentSize = responseCacheSegmentSize;
+	}
+
+	public int getBufferPoolSize() {
+		return bufferPoolSize;
+	}
+
+	public void setBufferPoolSize(int bufferPoolSize) {
+		if (bufferPoolSize < 0) {
+			throw new IllegalArgumentException("Invalid buffer pool size: " + bufferPoolSize);
+		}
+		this.bufferPoolSize = bufferPoolSize;
+	}
+
+	public boolean isBufferLeakDetection() {
+		return bufferLeakDetection;
+	}
+
+	public void setBufferLeakDetection(boolean bufferLeakDetection) {
+		this.bufferLeakDetection = bufferLeakDetection;
+	}
+
+	public List<String> getBypassHosts() {
+		return bypassHosts;
+	}
+
+	public void setBypassHosts(List<String> bypassHosts) {
+		this.bypassHosts = bypassHosts;
+	}
+
+	public File getHostRules() {
+		return hostRules;
+	}
+
+	public void setHostRules(File hostRules) {
+		this.hostRules = hostRules;
+	}
+
+	public boolean isHttp2() {
+		return http2;
+	}
+
+	public void setHttp2(boolean http2) {
+		this.http2 = http2;
+	}
+
+}
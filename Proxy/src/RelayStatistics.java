@@ -0,0 +1,134 @@
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the data relayed between the clients and the remote hosts, shared by
+ * every connection of both engines.
+ * @author Juliano
+ */
+public class RelayStatistics implements RelayStatisticsMBean {
+
+	private AtomicLong upstreamBytes;
+	private AtomicLong downstreamBytes;
+	private AtomicLong upgrades;
+	private AtomicLong bypassedTunnels;
+	private AtomicLong activeTunnels;
+	private AtomicLong earlyResponses;
+	private AtomicLong http2Connections;
+	private AtomicLong http2Streams;
+
+	/**
+	 * Constructor.
+	 */
+	public RelayStatistics() {
+		upstreamBytes = new AtomicLong();
+		downstreamBytes = new AtomicLong();
+		upgrades = new AtomicLong();
+		bypassedTunnels = new AtomicLong();
+		activeTunnels = new AtomicLong();
+		earlyResponses = new AtomicLong();
+		http2Connections = new AtomicLong();
+		http2Streams = new AtomicLong();
+		Metrics.register("Relay", this);
+	}
+
+	/**
+	 * Counts data relayed from a client to a remote host.
+	 * @param bytes Number of bytes.
+	 */
+	public void addUpstreamBytes(long bytes) {
+		upstreamBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Counts data relayed from a remote host to a client.
+	 * @param bytes Number of bytes.
+	 */
+	public void addDownstreamBytes(long bytes) {
+		downstreamBytes.addAndGet(bytes);
+	}
+
+	/**
+	 * Counts a connection switched to another protocol, which is relayed as a tunnel until it is closed.
+	 */
+	public void tunnelOpened() {
+		upgrades.incrementAndGet();
+		activeTunnels.incrementAndGet();
+	}
+
+	/**
+	 * Counts a CONNECT request relayed as a plain TCP tunnel, without being bumped, until it is closed.
+	 */
+	public void bypassOpened() {
+		bypassedTunnels.incrementAndGet();
+		activeTunnels.incrementAndGet();
+	}
+
+	/**
+	 * Counts the end of a tunnel opened with tunnelOpened or bypassOpened.
+	 */
+	public void tunnelClosed() {
+		activeTunnels.decrementAndGet();
+	}
+
+	/**
+	 * Counts a response fully relayed before the end of the request body.
+	 */
+	public void earlyResponse() {
+		earlyResponses.incrementAndGet();
+	}
+
+	/**
+	 * Counts a bumped connection on which the client negotiated HTTP/2.
+	 */
+	public void http2ConnectionOpened() {
+		http2Connections.incrementAndGet();
+	}
+
+	/**
+	 * Counts a request stream received on an HTTP/2 connection.
+	 */
+	public void http2StreamOpened() {
+		http2Streams.incrementAndGet();
+	}
+
+	@Override
+	public long getUpstreamBytes() {
+		return upstreamBytes.get();
+	}
+
+	@Override
+	public long getDownstreamBytes() {
+		return downstreamBytes.get();
+	}
+
+	@Override
+	public long getUpgrades() {
+		return upgrades.get();
+	}
+
+	@Override
+	public long getBypassedTunnels() {
+		return bypassedTunnels.get();
+	}
+
+	@Override
+	public long getActiveTunnels() {
+		return activeTunnels.get();
+	}
+
+	@Override
+	public long getEarlyResponses() {
+		return earlyResponses.get();
+	}
+
+	@Override
+	public long getHttp2Connections() {
+		return http2Connections.get();
+	}
+
+	@Override
+	public long getHttp2Streams() {
+		return http2Streams.get();
+	}
+
+}
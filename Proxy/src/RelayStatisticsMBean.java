@@ -0,0 +1,47 @@
+/**
+ * Management interface of the RelayStatistics.
+ * @author Juliano
+ */
+public interface RelayStatisticsMBean {
+
+	/**
+	 * @return Number of bytes relayed from the clients to the remote hosts, headers included.
+	 */
+	long getUpstreamBytes();
+
+	/**
+	 * @return Number of bytes relayed from the remote hosts to the clients, headers included.
+	 */
+	long getDownstreamBytes();
+
+	/**
+	 * @return Number of connections switched to another protocol (101 Switching Protocols).
+	 */
+	long getUpgrades();
+
+	/**
+	 * @return Number of CONNECT requests tunnelled without being bumped.
+	 */
+	long getBypassedTunnels();
+
+	/**
+	 * @return Number of switched or bypassed connections which are still open.
+	 */
+	long getActiveTunnels();
+
+	/**
+	 * @return Number of responses fully relayed while the request body was still being received.
+	 */
+	long getEarlyResponses();
+
+	/**
+	 * @return Number of bumped connections on which the clients negotiated HTTP/2.
+	 */
+	long getHttp2Connections();
+
+	/**
+	 * @return Number of requests received on HTTP/2 connections.
+	 */
+	long getHttp2Streams();
+
+}
@@ -0,0 +1,1327 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeFormatterBuilder;
+import java.time.format.DateTimeParseException;
+import java.time.temporal.ChronoField;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Shared HTTP cache (RFC 9111, which obsoletes RFC 7234) of the responses relayed by the
+ * "blocking" engine. The responses to GET requests are stored in memory, keyed by origin
+ * and resource, as allowed by their Cache-Control and Expires fields, and evicted in least
+ * recently used order once the total size of the stored responses reaches the limit. A
+ * fresh response is served without contacting the remote host; a stale one is validated
+ * with a conditional request built from its ETag and Last-Modified fields. Only one
+ * variant of each resource is kept: a request whose fields don't match the Vary field of
+ * the stored response replaces it. The responses too large to be kept in memory may be
+ * stored in a DiskCache, whose bodies are written as they are relayed. The concurrent
+ * identical requests which miss are collapsed: the first one fetches the response from the
+ * remote host, and the others get it from its recording, as it arrives. A request for a
+ * single byte range is answered with a slice of the stored response; the ranges of a
+ * resource too large for the memory tier are written in the room of its body in the disk
+ * tier as the clients ask for them, until it is complete. A small or often requested
+ * resource is rather fetched whole, in the background, after a range request which missed.
+ * @author Juliano
+ */
+public class ResponseCache implements ResponseCacheMBean {
+
+	/**
+	 * Status codes whose responses may be stored without explicit freshness information (RFC 9110, section 15.1).
+	 */
+	private static final Set<Integer> HEURISTICALLY_CACHEABLE = new HashSet<>(Arrays.asList(200, 203, 204, 206, 300, 301, 308, 404, 405, 410, 414, 501));
+
+	/**
+	 * Fields which are not stored, in lower case: the hop-by-hop fields, and the fields computed when the response is sent.
+	 */
+	private static final Set<String> UNSTORED_FIELDS = new HashSet<>(Arrays.asList("connection", "keep-alive", "proxy-connection",
+			"transfer-encoding", "te", "trailer", "upgrade", "proxy-authenticate", "proxy-authorization", "content-length", "age"));
+
+	private static final ByteBuffer EMPTY_BODY = ByteBuffer.allocate(0);
+
+	/**
+	 * Maximum number of resources of which only some ranges are stored.
+	 */
+	private static final int MAX_PARTIALS = 256;
+
+	/**
+	 * Number of range requests of a large resource forwarded to the remote host, after which
+	 * the rest of the resource is fetched in the background.
+	 */
+	private static final int WHOLE_FETCH_THRESHOLD = 4;
+	private static final DateTimeFormatter ASCTIME_DATE = DateTimeFormatter.ofPattern("EEE MMM ppd HH:mm:ss yyyy", Locale.US);
+
+	private LinkedHashMap<String, CachedResponse> responses;
+	private long size;
+	private long maxSize;
+	private int maxObjectSize;
+	private DiskCache diskCache;
+	private Map<String, Fetch> fetches;
+	private LinkedHashMap<String, PartialResponse> partials;
+
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private AtomicLong revalidations;
+	private AtomicLong notModified;
+	private AtomicLong bytesServed;
+	private AtomicLong stores;
+	private AtomicLong evictions;
+	private AtomicLong invalidations;
+	private AtomicLong collapsed;
+	private AtomicLong backgroundFetches;
+
+	/**
+	 * Constructor.
+	 * @param configuration Limits of the cache. A maximum size of zero disables the memory tier,
+	 * and the cache unless a directory is configured for the disk tier.
+	 * @throws IOException If the directory of the disk tier could not be created.
+	 */
+	public ResponseCache(ProxyConfiguration configuration) throws IOException {
+		// Iterated in access order, so the least recently used response comes first
+		responses = new LinkedHashMap<>(16, 0.75f, true);
+		maxSize = configuration.getResponseCacheSize() * 1024 * 1024;
+		maxObjectSize = (int) Math.min(maxSize, configuration.getResponseCacheMaxObjectSize() * 1024);
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		revalidations = new AtomicLong();
+		notModified = new AtomicLong();
+		bytesServed = new AtomicLong();
+		stores = new AtomicLong();
+		evictions = new AtomicLong();
+		invalidations = new AtomicLong();
+		collapsed = new AtomicLong();
+		backgroundFetches = new AtomicLong();
+		fetches = new HashMap<>();
+		partials = new LinkedHashMap<>(16, 0.75f, true);
+		File directory = configuration.getResponseCacheDirectory();
+		if (directory != null) {
+			diskCache = new DiskCache(directory, configuration.getResponseCacheDiskSize() * 1024 * 1024, configuration.getResponseCacheSegmentSize() * 1024 * 1024);
+		}
+		Metrics.register("ResponseCache", this);
+	}
+
+	public boolean isEnabled() {
+		return maxSize > 0 || diskCache != null;
+	}
+
+	/**
+	 * Builds the key under which the responses of a resource are stored.
+	 * @param host Remote host name.
+	 * @param port Remote host port.
+	 * @param useSSL Whether the remote host is reached through TLS.
+	 * @param resource The path and query of the resource.
+	 * @return The key.
+	 */
+	public static String getKey(String host, int port, boolean useSSL, String resource) {
+		return UpstreamConnectionPool.getKey(host, port, useSSL) + resource;
+	}
+
+	/**
+	 * Tells whether a request may be answered with a stored response. The requests
+	 * with preconditions other than If-None-Match and If-Modified-Since, and the requests
+	 * to switch protocols (e.g. WebSocket handshakes), are always forwarded, and the range
+	 * requests are left to getCacheableRange.
+	 * @param method The request method.
+	 * @param headers The request header fields.
+	 * @return True for the GET and HEAD requests which may use the cache.
+	 */
+	public boolean isCacheableRequest(String method, Map<String, List<String>> headers) {
+		return isEnabled() && (method.equals("GET") || method.equals("HEAD")) && getField(headers, "Range") == null && getField(headers, "Upgrade") == null
+				&& getField(headers, "If-Match") == null && getField(headers, "If-Unmodified-Since") == null && getField(headers, "If-Range") == null;
+	}
+
+	/**
+	 * Looks up the response stored for a request.
+	 * @param key The key of the resource.
+	 * @param requestHeaders The request header fields, matched against the Vary field of the stored response.
+	 * @return The stored response, which may be stale, or null if there is none for the request.
+	 */
+	public CachedResponse get(String key, Map<String, List<String>> requestHeaders) {
+		CachedResponse response;
+		synchronized (this) {
+			response = responses.get(key);
+		}
+		if (response == null && diskCache != null) {
+			response = diskCache.get(key);
+		}
+		return response != null && matchesVary(response, requestHeaders) ? response : null;
+	}
+
+	/**
+	 * Tells whether a response may be used for a request, as far as its Vary field is concerned.
+	 * @param response The response.
+	 * @param requestHeaders The request header fields.
+	 * @return True if the request fields named by the Vary field have the values of the request which got the response.
+	 */
+	public static boolean matchesVary(CachedResponse response, Map<String, List<String>> requestHeaders) {
+		return response.getVaryFields() == null || response.getVaryFields().equals(getVaryFields(response.getVaryFields().keySet(), requestHeaders));
+	}
+
+	/**
+	 * Tells whether a range request may be answered with the stored response, or the stored
+	 * ranges, of its resource: a GET request for a single byte range, without preconditions
+	 * other than If-Range. The other range requests are always forwarded.
+	 * @param method The request method.
+	 * @param headers The request header fields.
+	 * @return The range, as returned by parseRange, or null if the request isn't such a request.
+	 */
+	public long[] getCacheableRange(String method, Map<String, List<String>> headers) {
+		if (!isEnabled() || !method.equals("GET") || getField(headers, "Upgrade") != null || getField(headers, "If-Match") != null
+				|| getField(headers, "If-Unmodified-Since") != null || isConditional(headers)) {
+			return null;
+		}
+		return parseRange(getField(headers, "Range"));
+	}
+
+	/**
+	 * Looks up the stored response which answers a range request: the whole response, or the
+	 * ranges of the resource if they hold the requested one.
+	 * @param key The key of the resource.
+	 * @param requestHeaders The request header fields.
+	 * @param range The requested range, as returned by parseRange.
+	 * @return A fresh response, whose body is the whole body of the resource, of which only the
+	 * requested range may be sent, or null if the request must be forwarded.
+	 */
+	public CachedResponse getRangeSource(String key, Map<String, List<String>> requestHeaders, long[] range) {
+		CachedResponse response = get(key, requestHeaders);
+		if (response != null) {
+			return isFresh(response, requestHeaders) ? response : null;
+		}
+		PartialResponse partial;
+		synchronized (this) {
+			partial = partials.get(key);
+			if (partial == null) {
+				return null;
+			}
+			response = partial.response;
+		}
+		// Without the whole body, the response can't be sent when the If-Range field doesn't match it
+		if (!matchesVary(response, requestHeaders) || !isFresh(response, requestHeaders) || !matchesIfRange(response, requestHeaders) || !diskCache.isKept(partial.reservation)) {
+			return null;
+		}
+		long[] span = resolveRange(range, response.getBodyLength());
+		synchronized (this) {
+			// An unsatisfiable range is answered as well, since the length is known
+			return span == null || partial.covers(span[0], span[1] + 1) ? response : null;
+		}
+	}
+
+	/**
+	 * Registers the fetch of the whole resource in the background, after a range request
+	 * answered by the remote host, if it pays off: the resource is small enough for the memory
+	 * tier, or its ranges were often requested from the remote host. The fetch of a large
+	 * resource completes its stored ranges.
+	 * @param key The key of the resource.
+	 * @param requestHeaders The fields of the range request.
+	 * @param responseHeaders The fields of the 206 (Partial Content) response.
+	 * @return The fetch, which must be run by a BackgroundFetch, or null if the resource isn't fetched.
+	 */
+	public Fetch startWholeFetch(String key, Map<String, List<String>> requestHeaders, Map<String, List<String>> responseHeaders) {
+		long[] contentRange = parseContentRange(getField(responseHeaders, "Content-Range"));
+		if (contentRange == null || !isStorable("GET", requestHeaders, 206, responseHeaders)) {
+			return null;
+		}
+		// A resource which is never fresh would be fetched again after each range request
+		long now = System.currentTimeMillis();
+		if (new CachedResponse(key, 200, responseHeaders, EMPTY_BODY, null, now, now).getFreshnessLifetime() == 0) {
+			return null;
+		}
+		if (contentRange[2] > maxObjectSize) {
+			synchronized (this) {
+				PartialResponse partial = partials.get(key);
+				if (partial == null || ++partial.misses < WHOLE_FETCH_THRESHOLD) {
+					return null;
+				}
+			}
+		}
+		Fetch fetch = startFetch(key);
+		if (fetch != null) {
+			backgroundFetches.incrementAndGet();
+		}
+		return fetch;
+	}
+
+	/**
+	 * Registers the fetch of a resource from the remote host, so the concurrent identical
+	 * requests wait for its response instead of contacting the remote host.
+	 * @param key The key of the resource.
+	 * @return The fetch, which must be ended by endFetch, or null if the resource is already being fetched.
+	 */
+	public synchronized Fetch startFetch(String key) {
+		if (fetches.containsKey(key)) {
+			return null;
+		}
+		Fetch fetch = new Fetch(key);
+		fetches.put(key, fetch);
+		return fetch;
+	}
+
+	/**
+	 * Looks up the fetch in flight of a resource.
+	 * @param key The key of the resource.
+	 * @return The fetch, or null if the resource is not being fetched.
+	 */
+	public synchronized Fetch getFetch(String key) {
+		return fetches.get(key);
+	}
+
+	/**
+	 * Ends a fetch. If its response was not published, the waiting requests look up the
+	 * cache again, which may have been freshened by the fetch; if its body was not fully
+	 * recorded, the requests reading it get an error.
+	 * @param fetch The fetch.
+	 */
+	public void endFetch(Fetch fetch) {
+		synchronized (this) {
+			if (fetches.get(fetch.key) == fetch) {
+				fetches.remove(fetch.key);
+			}
+		}
+		fetch.end();
+	}
+
+	/**
+	 * Tells whether a request method is safe, i.e. leaves the stored responses of its resource valid.
+	 * @param method The request method.
+	 * @return True for GET, HEAD, OPTIONS and TRACE.
+	 */
+	public static boolean isSafe(String method) {
+		return method.equals("GET") || method.equals("HEAD") || method.equals("OPTIONS") || method.equals("TRACE");
+	}
+
+	/**
+	 * Tells whether a stored response may be sent to a client without being validated,
+	 * taking the Cache-Control directives of the request into account.
+	 * @param response The stored response.
+	 * @param requestHeaders The request header fields.
+	 * @return True if the response is fresh enough for the request.
+	 */
+	public boolean isFresh(CachedResponse response, Map<String, List<String>> requestHeaders) {
+		Map<String, String> directives = parseCacheControl(requestHeaders);
+		if (directives.containsKey("no-cache") || response.isNoCache()) {
+			return false;
+		}
+		if (directives.isEmpty() && "no-cache".equalsIgnoreCase(getField(requestHeaders, "Pragma"))) {
+			return false;
+		}
+		long age = response.getAge(System.currentTimeMillis());
+		long maxAge = parseSeconds(directives.get("max-age"));
+		if (maxAge >= 0 && age > maxAge * 1000) {
+			return false;
+		}
+		long lifetime = response.getFreshnessLifetime() - Math.max(0, parseSeconds(directives.get("min-fresh"))) * 1000;
+		if (age < lifetime) {
+			return true;
+		}
+		if (directives.containsKey("max-stale") && !response.isMustRevalidate()) {
+			// Without a value, the client accepts a response however stale it is
+			long maxStale = parseSeconds(directives.get("max-stale"));
+			return directives.get("max-stale") == null || (maxStale >= 0 && age - lifetime <= maxStale * 1000);
+		}
+		return false;
+	}
+
+	/**
+	 * Tells whether the client asked for a response only if it is stored.
+	 * @param requestHeaders The request header fields.
+	 * @return True if the request has the only-if-cached directive.
+	 */
+	public static boolean isOnlyIfCached(Map<String, List<String>> requestHeaders) {
+		return parseCacheControl(requestHeaders).containsKey("only-if-cached");
+	}
+
+	/**
+	 * Tells whether the preconditions of a request are false for a stored response, in
+	 * which case the client gets a 304 (Not Modified) response instead of the stored one.
+	 * @param response The stored response.
+	 * @param requestHeaders The request header fields.
+	 * @return True if the client already has the stored response.
+	 */
+	public static boolean isNotModified(CachedResponse response, Map<String, List<String>> requestHeaders) {
+		String ifNoneMatch = getField(requestHeaders, "If-None-Match");
+		if (ifNoneMatch != null) {
+			if (response.getEntityTag() == null) {
+				return false;
+			}
+			if (ifNoneMatch.trim().equals("*")) {
+				return true;
+			}
+			// Weak comparison (RFC 9110, section 8.8.3.2)
+			String entityTag = getOpaqueTag(response.getEntityTag());
+			for (String tag : ifNoneMatch.split(",")) {
+				if (getOpaqueTag(tag).equals(entityTag)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		long ifModifiedSince = parseDate(getField(requestHeaders, "If-Modified-Since"));
+		long lastModified = parseDate(response.getLastModified());
+		return ifModifiedSince >= 0 && lastModified >= 0 && lastModified <= ifModifiedSince;
+	}
+
+	/**
+	 * Tells whether the If-Range field of a request names a stored response, in which case
+	 * the requested range may be sent instead of the whole response (RFC 9110, section 13.1.5).
+	 * @param response The stored response.
+	 * @param requestHeaders The request header fields.
+	 * @return True if the request has no If-Range field, or if it matches the strong entity
+	 * tag or the last modification date of the response.
+	 */
+	public static boolean matchesIfRange(CachedResponse response, Map<String, List<String>> requestHeaders) {
+		String ifRange = getField(requestHeaders, "If-Range");
+		if (ifRange == null) {
+			return true;
+		}
+		ifRange = ifRange.trim();
+		if (ifRange.startsWith("\"") || ifRange.startsWith("W/")) {
+			// Strong comparison, which no weak tag passes
+			return response.getEntityTag() != null && !ifRange.startsWith("W/") && ifRange.equals(response.getEntityTag().trim());
+		}
+		long date = parseDate(ifRange);
+		return date >= 0 && date == parseDate(response.getLastModified());
+	}
+
+	/**
+	 * Tells whether the client sent validators of its own.
+	 * @param requestHeaders The request header fields.
+	 * @return True if the request has an If-None-Match or If-Modified-Since field.
+	 */
+	public static boolean isConditional(Map<String, List<String>> requestHeaders) {
+		return getField(requestHeaders, "If-None-Match") != null || getField(requestHeaders, "If-Modified-Since") != null;
+	}
+
+	/**
+	 * Builds the header fields of the conditional request which validates a stored response.
+	 * @param response The stored response, which has a validator.
+	 * @param requestHeaders The header fields of the client request, which are not changed.
+	 * @return A copy of the request fields with If-None-Match and If-Modified-Since fields.
+	 */
+	public static Map<String, List<String>> getValidationHeaders(CachedResponse response, Map<String, List<String>> requestHeaders) {
+		Map<String, List<String>> headers = new LinkedHashMap<>(requestHeaders);
+		if (response.getEntityTag() != null) {
+			headers.put("If-None-Match", singleValue(response.getEntityTag()));
+		}
+		if (response.getLastModified() != null) {
+			headers.put("If-Modified-Since", singleValue(response.getLastModified()));
+		}
+		return headers;
+	}
+
+	/**
+	 * Builds the header fields of the request which fetches a whole resource, after a range request.
+	 * @param requestHeaders The header fields of the range request, which are not changed.
+	 * @return A copy of the request fields, without Range and If-Range.
+	 */
+	public static Map<String, List<String>> getWholeRequestHeaders(Map<String, List<String>> requestHeaders) {
+		Map<String, List<String>> headers = new LinkedHashMap<>();
+		for (Map.Entry<String, List<String>> field : requestHeaders.entrySet()) {
+			if (!field.getKey().equalsIgnoreCase("Range") && !field.getKey().equalsIgnoreCase("If-Range")) {
+				headers.put(field.getKey(), field.getValue());
+			}
+		}
+		return headers;
+	}
+
+	/**
+	 * Tells whether a response may be stored (RFC 9111, section 3).
+	 * @param method The request method.
+	 * @param requestHeaders The request header fields.
+	 * @param statusCode The response status code.
+	 * @param responseHeaders The response header fields.
+	 * @return True if the response may be stored once its body is received.
+	 */
+	public boolean isStorable(String method, Map<String, List<String>> requestHeaders, int statusCode, Map<String, List<String>> responseHeaders) {
+		// Not Modified responses have no body of their own
+		if (!isEnabled() || !method.equals("GET") || statusCode == 304) {
+			return false;
+		}
+		Map<String, String> requestDirectives = parseCacheControl(requestHeaders);
+		Map<String, String> directives = parseCacheControl(responseHeaders);
+		if (requestDirectives.containsKey("no-store") || directives.containsKey("no-store") || directives.containsKey("private")) {
+			return false;
+		}
+		String vary = getField(responseHeaders, "Vary");
+		if (vary != null && vary.contains("*")) {
+			return false;
+		}
+		boolean explicitlyShared = directives.containsKey("public") || directives.containsKey("s-maxage") || directives.containsKey("must-revalidate");
+		if (getField(requestHeaders, "Authorization") != null && !explicitlyShared) {
+			return false;
+		}
+		// The cookies set for a client are not handed to the others unless the origin says so
+		if (getField(responseHeaders, "Set-Cookie") != null && !directives.containsKey("public")) {
+			return false;
+		}
+		boolean explicitFreshness = directives.containsKey("max-age") || directives.containsKey("s-maxage")
+				|| directives.containsKey("public") || getField(responseHeaders, "Expires") != null;
+		return explicitFreshness || isHeuristicallyCacheable(statusCode);
+	}
+
+	/**
+	 * Starts the recording of a response body, if the response may be stored. A body of
+	 * unknown length, or not larger than the maximum object size, is recorded in memory; a
+	 * larger one is written to the disk tier, if there is one, in the room of the stored
+	 * ranges of the resource if they belong to the same representation. The range of a 206
+	 * (Partial Content) response is only recorded for a resource larger than the maximum
+	 * object size, in the disk tier.
+	 * @param key The key of the resource.
+	 * @param method The request method.
+	 * @param requestHeaders The request header fields.
+	 * @param statusCode The response status code.
+	 * @param responseHeaders The response header fields.
+	 * @param contentLength The length of the body, or null if it is unknown.
+	 * @param chunked Whether the body is chunked-encoded.
+	 * @param outputStream The stream to which the body is relayed. May be null, in which case the body is only recorded.
+	 * @param requestTime Time at which the request was sent.
+	 * @param responseTime Time at which the response was received.
+	 * @return The stream through which the body must be relayed, to be passed to store once
+	 * the body is sent, or null if the response is not stored.
+	 */
+	public Recording startRecording(String key, String method, Map<String, List<String>> requestHeaders, int statusCode, Map<String, List<String>> responseHeaders,
+			Long contentLength, boolean chunked, OutputStream outputStream, long requestTime, long responseTime) {
+		if (!isStorable(method, requestHeaders, statusCode, responseHeaders)) {
+			return null;
+		}
+		Map<String, String> varyFields = null;
+		String vary = getField(responseHeaders, "Vary");
+		if (vary != null) {
+			Set<String> names = new HashSet<>();
+			for (String name : vary.split(",")) {
+				if (!name.trim().isEmpty()) {
+					names.add(name.trim().toLowerCase(Locale.ROOT));
+				}
+			}
+			varyFields = getVaryFields(names, requestHeaders);
+		}
+		if (statusCode == 206) {
+			return startRangeRecording(key, responseHeaders, contentLength, varyFields, outputStream, requestTime, responseTime);
+		}
+		CachedResponse response = new CachedResponse(key, statusCode, getStoredFields(responseHeaders), EMPTY_BODY, varyFields, requestTime, responseTime);
+		// A response which is never fresh and can't be validated would never be used
+		if (response.getFreshnessLifetime() == 0 && !response.hasValidator()) {
+			return null;
+		}
+		if (contentLength == null) {
+			return new Recording(outputStream, response, maxObjectSize, chunked);
+		}
+		if (contentLength <= maxObjectSize) {
+			return new Recording(outputStream, response, null, ByteBuffer.allocate(contentLength.intValue()));
+		}
+		if (diskCache == null) {
+			return null;
+		}
+		PartialResponse partial = getPartial(response, contentLength, false);
+		if (partial != null) {
+			return new Recording(outputStream, response, partial, 0, contentLength.intValue(), false);
+		}
+		DiskCache.Reservation reservation = diskCache.reserve(response, contentLength);
+		return reservation != null ? new Recording(outputStream, response, reservation, reservation.getBody()) : null;
+	}
+
+	private Recording startRangeRecording(String key, Map<String, List<String>> responseHeaders, Long contentLength, Map<String, String> varyFields,
+			OutputStream outputStream, long requestTime, long responseTime) {
+		long[] contentRange = parseContentRange(getField(responseHeaders, "Content-Range"));
+		if (diskCache == null || contentRange == null || contentRange[2] <= maxObjectSize || contentLength == null || contentLength != contentRange[1] - contentRange[0] + 1) {
+			return null;
+		}
+		// The ranges are kept as the whole response, which is stored once they are all known
+		Map<String, List<String>> headers = getStoredFields(responseHeaders);
+		Iterator<String> names = headers.keySet().iterator();
+		while(names.hasNext()) {
+			if (names.next().equalsIgnoreCase("Content-Range")) {
+				names.remove();
+			}
+		}
+		CachedResponse response = new CachedResponse(key, 200, headers, EMPTY_BODY, varyFields, requestTime, responseTime);
+		// Ranges are only combined when they come from the same representation (RFC 9111, section 3.4)
+		if (response.getEntityTag() == null ? response.getLastModified() == null : response.getEntityTag().trim().startsWith("W/")) {
+			return null;
+		}
+		PartialResponse partial = getPartial(response, contentRange[2], true);
+		return partial != null ? new Recording(outputStream, response, partial, contentRange[0], contentLength.intValue(), true) : null;
+	}
+
+	/**
+	 * Looks up the stored ranges of a resource, which are freshened by a response of the same
+	 * representation. The ranges of another representation are dropped.
+	 * @param response The response, without its body.
+	 * @param length The length of the whole body.
+	 * @param create Whether to reserve the room of the body in the disk tier, if no range is stored.
+	 * @return The stored ranges, or null if there are none.
+	 */
+	private PartialResponse getPartial(CachedResponse response, long length, boolean create) {
+		String key = response.getKey();
+		synchronized (this) {
+			PartialResponse partial = partials.get(key);
+			if (partial != null) {
+				if (partial.response.getBodyLength() == length && isSameRepresentation(partial.response, response) && diskCache.isKept(partial.reservation)) {
+					partial.response = response.withBody(partial.response.getBody());
+					return partial;
+				}
+				discardPartial(key);
+			}
+		}
+		if (!create) {
+			return null;
+		}
+		DiskCache.Reservation reservation = diskCache.reserve(response, length);
+		if (reservation == null) {
+			return null;
+		}
+		PartialResponse partial = new PartialResponse(response.withBody(reservation.getBody().asReadOnlyBuffer()), reservation);
+		synchronized (this) {
+			if (partials.containsKey(key)) {
+				// Another range of the resource arrived meanwhile
+				diskCache.abort(reservation);
+				return getPartial(response, length, false);
+			}
+			partials.put(key, partial);
+			Iterator<String> keys = partials.keySet().iterator();
+			while(partials.size() > MAX_PARTIALS) {
+				String eldest = keys.next();
+				diskCache.abort(partials.get(eldest).reservation);
+				keys.remove();
+				evictions.incrementAndGet();
+			}
+		}
+		return partial;
+	}
+
+	private synchronized void discardPartial(String key) {
+		PartialResponse partial = partials.remove(key);
+		if (partial != null) {
+			diskCache.abort(partial.reservation);
+		}
+	}
+
+	private static boolean isSameRepresentation(CachedResponse response, CachedResponse other) {
+		if (response.getEntityTag() != null || other.getEntityTag() != null) {
+			return response.getEntityTag() != null && other.getEntityTag() != null && !response.getEntityTag().trim().startsWith("W/")
+					&& response.getEntityTag().trim().equals(other.getEntityTag().trim());
+		}
+		return response.getLastModified() != null && response.getLastModified().equals(other.getLastModified());
+	}
+
+	/**
+	 * Stores a recorded response, replacing the previous response of the same resource,
+	 * if its whole body was recorded. In memory, the least recently used responses are
+	 * evicted to make room for it. The recorded part of a range is added to the stored
+	 * ranges of its resource.
+	 * @param recording The recording, whose body was sent.
+	 * @return True if the response, or a part of its range, was stored.
+	 */
+	public boolean store(Recording recording) {
+		recording.finish();
+		String key = recording.response.getKey();
+		if (recording.partial != null) {
+			return storeRange(recording);
+		}
+		if (recording.reservation != null) {
+			if (!recording.isComplete()) {
+				diskCache.abort(recording.reservation);
+				return false;
+			}
+			if (!diskCache.commit(recording.reservation)) {
+				return false;
+			}
+			remove(key);
+			discardPartial(key);
+			stores.incrementAndGet();
+			return true;
+		}
+		if (!recording.isComplete()) {
+			return false;
+		}
+		CachedResponse response = recording.response.withBody(recording.getBody());
+		if (response.getWeight() > maxObjectSize) {
+			return false;
+		}
+		put(response);
+		if (diskCache != null) {
+			diskCache.remove(key);
+			discardPartial(key);
+		}
+		stores.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Adds the recorded part of a range, or of a whole body, to the stored ranges of its
+	 * resource. Once they hold the whole body, the response is committed to the disk tier.
+	 */
+	private boolean storeRange(Recording recording) {
+		PartialResponse partial = recording.partial;
+		String key = partial.response.getKey();
+		int length = recording.getLength();
+		CachedResponse response;
+		synchronized (this) {
+			// Unless the ranges were dropped meanwhile
+			if (partials.get(key) != partial || length == 0) {
+				return false;
+			}
+			partial.add(recording.position, recording.position + length);
+			if (!partial.isComplete()) {
+				return true;
+			}
+			partials.remove(key);
+			response = partial.response;
+		}
+		if (!diskCache.commit(partial.reservation)) {
+			return false;
+		}
+		// The room was reserved with the fields of the first range
+		diskCache.update(response);
+		remove(key);
+		stores.incrementAndGet();
+		return true;
+	}
+
+	/**
+	 * Freshens a stored response with the fields of the 304 (Not Modified) response
+	 * which validated it (RFC 9111, section 4.3.4).
+	 * @param response The stored response.
+	 * @param responseHeaders The fields of the 304 response.
+	 * @param requestTime Time at which the conditional request was sent.
+	 * @param responseTime Time at which the 304 response was received.
+	 * @return The freshened response, which replaces the stored one.
+	 */
+	public CachedResponse update(CachedResponse response, Map<String, List<String>> responseHeaders, long requestTime, long responseTime) {
+		Map<String, List<String>> headers = new LinkedHashMap<>(response.getHeaders());
+		for (Map.Entry<String, List<String>> field : getStoredFields(responseHeaders).entrySet()) {
+			Iterator<String> names = headers.keySet().iterator();
+			while(names.hasNext()) {
+				if (names.next().equalsIgnoreCase(field.getKey())) {
+					names.remove();
+				}
+			}
+			headers.put(field.getKey(), field.getValue());
+		}
+		CachedResponse updated = new CachedResponse(response.getKey(), response.getStatusCode(), headers, response.getBody(), response.getVaryFields(), requestTime, responseTime);
+		synchronized (this) {
+			// Unless it was replaced or evicted meanwhile
+			CachedResponse current = responses.get(response.getKey());
+			if (current == response) {
+				put(updated);
+				return updated;
+			}
+			if (current != null) {
+				return updated;
+			}
+		}
+		if (diskCache != null) {
+			diskCache.update(updated);
+		}
+		return updated;
+	}
+
+	/**
+	 * Removes the stored response of a resource, after a request which may have changed it
+	 * (RFC 9111, section 4.4).
+	 * @param key The key of the resource.
+	 */
+	public void invalidate(String key) {
+		boolean removed = remove(key);
+		if (diskCache != null) {
+			synchronized (this) {
+				if (partials.containsKey(key)) {
+					discardPartial(key);
+					removed = true;
+				}
+			}
+			if (diskCache.remove(key)) {
+				removed = true;
+			}
+		}
+		if (removed) {
+			invalidations.incrementAndGet();
+		}
+	}
+
+	private synchronized boolean remove(String key) {
+		CachedResponse response = responses.remove(key);
+		if (response == null) {
+			return false;
+		}
+		size -= response.getWeight();
+		return true;
+	}
+
+	private synchronized void put(CachedResponse response) {
+		CachedResponse previous = responses.put(response.getKey(), response);
+		if (previous != null) {
+			size -= previous.getWeight();
+		}
+		size += response.getWeight();
+		Iterator<CachedResponse> iterator = responses.values().iterator();
+		while(size > maxSize && iterator.hasNext()) {
+			CachedResponse eldest = iterator.next();
+			iterator.remove();
+			size -= eldest.getWeight();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Counts a request answered with a stored response, without contacting the remote host.
+	 */
+	public void hit() {
+		hits.incrementAndGet();
+	}
+
+	/**
+	 * Counts a cacheable request for which no usable response was stored.
+	 */
+	public void miss() {
+		misses.incrementAndGet();
+	}
+
+	/**
+	 * Counts a conditional request sent to validate a stored response.
+	 */
+	public void revalidation() {
+		revalidations.incrementAndGet();
+	}
+
+	/**
+	 * Counts a validation answered with a 304 (Not Modified) response.
+	 */
+	public void notModified() {
+		notModified.incrementAndGet();
+	}
+
+	/**
+	 * Counts a request answered with the response fetched for a concurrent identical request.
+	 */
+	public void collapsed() {
+		collapsed.incrementAndGet();
+	}
+
+	/**
+	 * Counts the body bytes of a stored response sent to a client.
+	 * @param bytes The number of bytes.
+	 */
+	public void addBytesServed(long bytes) {
+		bytesServed.addAndGet(bytes);
+	}
+
+	@Override
+	public synchronized int getEntries() {
+		return responses.size();
+	}
+
+	@Override
+	public synchronized long getSize() {
+		return size;
+	}
+
+	@Override
+	public long getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public long getHits() {
+		return hits.get();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public long getRevalidations() {
+		return revalidations.get();
+	}
+
+	@Override
+	public long getNotModified() {
+		return notModified.get();
+	}
+
+	@Override
+	public double getHitRate() {
+		long served = hits.get() + notModified.get() + collapsed.get();
+		long total = hits.get() + misses.get() + revalidations.get() + collapsed.get();
+		return total == 0 ? 0 : (double) served / total;
+	}
+
+	@Override
+	public long getBytesServed() {
+		return bytesServed.get();
+	}
+
+	@Override
+	public long getStores() {
+		return stores.get();
+	}
+
+	@Override
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public long getInvalidations() {
+		return invalidations.get();
+	}
+
+	@Override
+	public long getCollapsed() {
+		return collapsed.get();
+	}
+
+	@Override
+	public synchronized int getPartials() {
+		return partials.size();
+	}
+
+	@Override
+	public long getBackgroundFetches() {
+		return backgroundFetches.get();
+	}
+
+	/**
+	 * Copies the fields of a response which are stored: the end-to-end fields, except
+	 * Content-Length and Age.
+	 */
+	private static Map<String, List<String>> getStoredFields(Map<String, List<String>> headers) {
+		Set<String> connectionOptions = new HashSet<>();
+		String connection = getField(headers, "Connection");
+		if (connection != null) {
+			for (String option : connection.split(",")) {
+				connectionOptions.add(option.trim().toLowerCase(Locale.ROOT));
+			}
+		}
+		Map<String, List<String>> storedFields = new LinkedHashMap<>();
+		for (Map.Entry<String, List<String>> field : headers.entrySet()) {
+			String name = field.getKey().toLowerCase(Locale.ROOT);
+			if (!UNSTORED_FIELDS.contains(name) && !connectionOptions.contains(name)) {
+				storedFields.put(field.getKey(), new ArrayList<>(field.getValue()));
+			}
+		}
+		return storedFields;
+	}
+
+	private static Map<String, String> getVaryFields(Set<String> names, Map<String, List<String>> requestHeaders) {
+		Map<String, String> varyFields = new HashMap<>();
+		for (String name : names) {
+			String value = getField(requestHeaders, name);
+			varyFields.put(name, value != null ? value.trim() : null);
+		}
+		return varyFields;
+	}
+
+	private static String getOpaqueTag(String entityTag) {
+		entityTag = entityTag.trim();
+		return entityTag.startsWith("W/") ? entityTag.substring(2) : entityTag;
+	}
+
+	private static List<String> singleValue(String value) {
+		List<String> values = new ArrayList<>(1);
+		values.add(value);
+		return values;
+	}
+
+	static boolean isHeuristicallyCacheable(int statusCode) {
+		return HEURISTICALLY_CACHEABLE.contains(statusCode);
+	}
+
+	/**
+	 * Get the value of a header field, whatever the case of its name. The values of the
+	 * fields repeated in the header are joined by commas.
+	 * @param headers The header fields.
+	 * @param name The field name.
+	 * @return The value, or null if the field is absent.
+	 */
+	static String getField(Map<String, List<String>> headers, String name) {
+		String value = null;
+		for (Map.Entry<String, List<String>> field : headers.entrySet()) {
+			if (field.getKey().equalsIgnoreCase(name)) {
+				for (String fieldValue : field.getValue()) {
+					value = value == null ? fieldValue : value + ", " + fieldValue;
+				}
+			}
+		}
+		return value;
+	}
+
+	/**
+	 * Parses the Cache-Control fields of a header.
+	 * @param headers The header fields.
+	 * @return The directives, keyed by their lower case names, with their unquoted values
+	 * or null for the directives without a value.
+	 */
+	static Map<String, String> parseCacheControl(Map<String, List<String>> headers) {
+		Map<String, String> directives = new HashMap<>();
+		String value = getField(headers, "Cache-Control");
+		if (value == null) {
+			return directives;
+		}
+		int start = 0;
+		boolean quoted = false;
+		for (int i = 0; i <= value.length(); i++) {
+			// The commas inside quoted strings (e.g. no-cache="Set-Cookie, Set-Cookie2") don't separate directives
+			char c = i < value.length() ? value.charAt(i) : ',';
+			if (c == '"') {
+				quoted = !quoted;
+			} else if (c == ',' && (!quoted || i == value.length())) {
+				String directive = value.substring(start, i).trim();
+				start = i + 1;
+				if (directive.isEmpty()) {
+					continue;
+				}
+				int separator = directive.indexOf('=');
+				if (separator < 0) {
+					directives.put(directive.toLowerCase(Locale.ROOT), null);
+				} else {
+					String argument = directive.substring(separator + 1).trim();
+					if (argument.length() >= 2 && argument.startsWith("\"") && argument.endsWith("\"")) {
+						argument = argument.substring(1, argument.length() - 1);
+					}
+					directives.put(directive.substring(0, separator).trim().toLowerCase(Locale.ROOT), argument);
+				}
+			}
+		}
+		return directives;
+	}
+
+	/**
+	 * Parses a number of seconds, as found in the max-age directive and the Age field.
+	 * @return The number, or -1 if the value is absent or invalid.
+	 */
+	static long parseSeconds(String value) {
+		if (value == null) {
+			return -1;
+		}
+		try {
+			long seconds = Long.parseLong(value.trim());
+			// Larger values are capped to about 68 years (RFC 9111, section 1.2.2)
+			return seconds < 0 ? -1 : Math.min(seconds, Integer.MAX_VALUE);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Parses an HTTP date, in the preferred format of RFC 9110 (e.g. "Sun, 06 Nov 1994 08:49:37 GMT")
+	 * or in one of the obsolete ones, RFC 850 (e.g. "Sunday, 06-Nov-94 08:49:37 GMT") and asctime
+	 * (e.g. "Sun Nov  6 08:49:37 1994"), which are still accepted (RFC 9110, section 5.6.7).
+	 * @return The time, in milliseconds, or -1 if the value is absent or invalid.
+	 */
+	static long parseDate(String value) {
+		if (value == null) {
+			return -1;
+		}
+		String date = value.trim();
+		try {
+			return ZonedDateTime.parse(date, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant().toEpochMilli();
+		} catch (DateTimeParseException e) {
+			// Tried in the obsolete formats
+		}
+		try {
+			// A two digit year which would be more than 50 years in the future is in the past century
+			DateTimeFormatter rfc850Date = new DateTimeFormatterBuilder().appendPattern("EEEE, dd-MMM-")
+					.appendValueReduced(ChronoField.YEAR, 2, 2, LocalDate.now(ZoneOffset.UTC).minusYears(49))
+					.appendPattern(" HH:mm:ss 'GMT'").toFormatter(Locale.US);
+			return LocalDateTime.parse(date, rfc850Date).toInstant(ZoneOffset.UTC).toEpochMilli();
+		} catch (DateTimeParseException e) {
+			// Tried in the asctime format
+		}
+		try {
+			return LocalDateTime.parse(date, ASCTIME_DATE).toInstant(ZoneOffset.UTC).toEpochMilli();
+		} catch (DateTimeParseException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Parses the value of a Range field which asks for a single byte range (RFC 9110, section 14.1.2).
+	 * @param value The value.
+	 * @return The first and last positions of the range, the last being -1 if the range goes
+	 * to the end of the body, or, for a suffix range, -1 and the length of the suffix. Null if
+	 * the value is absent, invalid, or asks for several ranges.
+	 */
+	static long[] parseRange(String value) {
+		if (value == null) {
+			return null;
+		}
+		value = value.trim();
+		if (!value.regionMatches(true, 0, "bytes=", 0, 6) || value.indexOf(',') >= 0) {
+			return null;
+		}
+		String spec = value.substring(6).trim();
+		int separator = spec.indexOf('-');
+		if (separator < 0) {
+			return null;
+		}
+		long first = parsePosition(spec.substring(0, separator));
+		long last = parsePosition(spec.substring(separator + 1));
+		if (separator == 0) {
+			return last >= 0 ? new long[] { -1, last } : null;
+		}
+		if (first < 0 || (separator < spec.length() - 1 && (last < 0 || last < first))) {
+			return null;
+		}
+		return new long[] { first, separator < spec.length() - 1 ? last : -1 };
+	}
+
+	/**
+	 * Applies a range to a body.
+	 * @param range The range, as returned by parseRange.
+	 * @param length The length of the body.
+	 * @return The first and last positions of the range in the body, or null if the range is not satisfiable.
+	 */
+	static long[] resolveRange(long[] range, long length) {
+		if (range[0] < 0) {
+			// A suffix longer than the body is the whole body
+			return range[1] > 0 && length > 0 ? new long[] { Math.max(0, length - range[1]), length - 1 } : null;
+		}
+		if (range[0] >= length) {
+			return null;
+		}
+		return new long[] { range[0], range[1] < 0 || range[1] >= length ? length - 1 : range[1] };
+	}
+
+	/**
+	 * Parses the value of the Content-Range field of a 206 (Partial Content) response.
+	 * @param value The value, such as "bytes 0-499/1234".
+	 * @return The first and last positions of the range, and the length of the whole body, or
+	 * null if the value is absent or invalid, or if the length is unknown.
+	 */
+	static long[] parseContentRange(String value) {
+		if (value == null) {
+			return null;
+		}
+		value = value.trim();
+		int separator = value.indexOf('-');
+		int lengthSeparator = value.indexOf('/');
+		if (!value.regionMatches(true, 0, "bytes ", 0, 6) || separator < 0 || lengthSeparator < separator) {
+			return null;
+		}
+		long first = parsePosition(value.substring(6, separator));
+		long last = parsePosition(value.substring(separator + 1, lengthSeparator));
+		long length = parsePosition(value.substring(lengthSeparator + 1));
+		return first >= 0 && last >= first && length > last ? new long[] { first, last, length } : null;
+	}
+
+	private static long parsePosition(String value) {
+		value = value.trim();
+		if (value.isEmpty() || value.length() > 18) {
+			return -1;
+		}
+		for (int i = 0; i < value.length(); i++) {
+			if (value.charAt(i) < '0' || value.charAt(i) > '9') {
+				return -1;
+			}
+		}
+		return Long.parseLong(value);
+	}
+
+	/**
+	 * Recording of a response body by the ResponseCache, along with the fields of the response.
+	 */
+	public static class Recording extends BodyRecorder {
+
+		private CachedResponse response;
+		private DiskCache.Reservation reservation;
+		private PartialResponse partial;
+		private long position;
+		private boolean range;
+
+		private Recording(OutputStream outputStream, CachedResponse response, int maxLength, boolean chunked) {
+			super(outputStream, maxLength, chunked);
+			this.response = response;
+		}
+
+		private Recording(OutputStream outputStream, CachedResponse response, DiskCache.Reservation reservation, ByteBuffer target) {
+			super(outputStream, target);
+			this.response = response;
+			this.reservation = reservation;
+		}
+
+		private Recording(OutputStream outputStream, CachedResponse response, PartialResponse partial, long position, int length, boolean range) {
+			super(outputStream, getRegion(partial.reservation.getBody(), position, length));
+			this.response = response;
+			this.partial = partial;
+			this.position = position;
+			this.range = range;
+		}
+
+		@Override
+		public void write(byte[] buffer, int offset, int length) throws IOException {
+			super.write(buffer, offset, length);
+			// A range is not shared with other clients, so the rest of it is not worth receiving once its client is gone
+			if (range && getRelayException() != null) {
+				throw getRelayException();
+			}
+		}
+
+		private static ByteBuffer getRegion(ByteBuffer body, long position, int length) {
+			ByteBuffer region = body.duplicate();
+			region.limit((int) position + length);
+			region.position((int) position);
+			return region.slice();
+		}
+
+		/**
+		 * @return The response, without its body.
+		 */
+		public CachedResponse getResponse() {
+			return response;
+		}
+
+	}
+
+	/**
+	 * Fetch of a response from the remote host, shared by the concurrent identical requests.
+	 */
+	public static class Fetch {
+
+		/**
+		 * Time, in milliseconds, after which a request stops waiting for the response header
+		 * of the fetch, and is forwarded on its own.
+		 */
+		private static final long WAIT_TIMEOUT = 30 * 1000;
+
+		private String key;
+
+		// Guarded by the lock, which the waiting requests wait on
+		private final ReentrantLock lock = new ReentrantLock();
+		private final Condition published = lock.newCondition();
+		private Recording recording;
+		private boolean ended;
+
+		private Fetch(String key) {
+			this.key = key;
+		}
+
+		/**
+		 * @return The key of the fetched resource.
+		 */
+		public String getKey() {
+			return key;
+		}
+
+		/**
+		 * Hands the response to the waiting requests, once its header is received.
+		 * @param recording The recording of the response body.
+		 */
+		public void publish(Recording recording) {
+			lock.lock();
+			try {
+				this.recording = recording;
+				published.signalAll();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		/**
+		 * Waits until the response is published or the fetch is ended, for a limited time.
+		 * @return The recording of the response, or null if the fetch ended without a response
+		 * to share, or if its response header didn't arrive in time.
+		 * @throws InterruptedIOException If the thread was interrupted.
+		 */
+		public Recording await() throws InterruptedIOException {
+			lock.lock();
+			try {
+				long remaining = TimeUnit.MILLISECONDS.toNanos(WAIT_TIMEOUT);
+				while(recording == null && !ended && remaining > 0) {
+					remaining = published.awaitNanos(remaining);
+				}
+				return recording;
+			} catch (InterruptedException e) {
+				throw new InterruptedIOException();
+			} finally {
+				lock.unlock();
+			}
+		}
+
+		private void end() {
+			Recording recording;
+			lock.lock();
+			try {
+				ended = true;
+				published.signalAll();
+				recording = this.recording;
+			} finally {
+				lock.unlock();
+			}
+			if (recording != null) {
+				// Unless the body was fully received
+				recording.abandon();
+			}
+		}
+
+	}
+
+	/**
+	 * Ranges of a resource stored in the room of its whole body, reserved in the disk tier.
+	 * They are guarded by the ResponseCache.
+	 */
+	private static class PartialResponse {
+
+		/**
+		 * The response of the latest range, as a 200 (OK) response whose body is a read-only view of the reserved room.
+		 */
+		private CachedResponse response;
+		private DiskCache.Reservation reservation;
+		// The stored ranges, keyed by their first position, with the position following their end
+		private TreeMap<Long, Long> ranges;
+		private int misses;
+
+		private PartialResponse(CachedResponse response, DiskCache.Reservation reservation) {
+			this.response = response;
+			this.reservation = reservation;
+			ranges = new TreeMap<>();
+		}
+
+		private void add(long start, long end) {
+			Map.Entry<Long, Long> range = ranges.floorEntry(start);
+			if (range != null && range.getValue() >= start) {
+				start = range.getKey();
+				end = Math.max(end, range.getValue());
+			}
+			// The ranges which overlap or touch the new one are merged with it
+			while((range = ranges.ceilingEntry(start)) != null && range.getKey() <= end) {
+				end = Math.max(end, range.getValue());
+				ranges.remove(range.getKey());
+			}
+			ranges.put(start, end);
+		}
+
+		private boolean covers(long start, long end) {
+			Map.Entry<Long, Long> range = ranges.floorEntry(start);
+			return range != null && range.getValue() >= end;
+		}
+
+		private boolean isComplete() {
+			return covers(0, response.getBodyLength());
+		}
+
+	}
+
+}
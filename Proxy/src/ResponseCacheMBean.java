@@ -0,0 +1,83 @@
+/**
+ * Management interface of the ResponseCache.
+ * @author Juliano
+ */
+public interface ResponseCacheMBean {
+
+	/**
+	 * @return Number of responses stored.
+	 */
+	int getEntries();
+
+	/**
+	 * @return Number of bytes held by the stored responses.
+	 */
+	long getSize();
+
+	/**
+	 * @return Maximum number of bytes held by the stored responses.
+	 */
+	long getMaxSize();
+
+	/**
+	 * @return Number of requests answered with a stored response, without contacting the remote host.
+	 */
+	long getHits();
+
+	/**
+	 * @return Number of cacheable requests forwarded because no usable response was stored.
+	 */
+	long getMisses();
+
+	/**
+	 * @return Number of conditional requests sent to validate a stale response.
+	 */
+	long getRevalidations();
+
+	/**
+	 * @return Number of validations which confirmed that the stored response was still valid.
+	 */
+	long getNotModified();
+
+	/**
+	 * @return Ratio between the requests answered without a fetch of their own, with a stored
+	 * response, validated or not, or with a shared response, and the total number of cacheable requests.
+	 */
+	double getHitRate();
+
+	/**
+	 * @return Number of body bytes sent to the clients from the stored responses.
+	 */
+	long getBytesServed();
+
+	/**
+	 * @return Number of responses stored.
+	 */
+	long getStores();
+
+	/**
+	 * @return Number of responses evicted to make room for others.
+	 */
+	long getEvictions();
+
+	/**
+	 * @return Number of responses removed after a request which may have changed the resource.
+	 */
+	long getInvalidations();
+
+	/**
+	 * @return Number of requests answered with the response fetched for a concurrent identical request.
+	 */
+	long getCollapsed();
+
+	/**
+	 * @return Number of resources of which only some byte ranges are stored.
+	 */
+	int getPartials();
+
+	/**
+	 * @return Number of whole resources fetched in the background after range requests.
+	 */
+	long getBackgroundFetches();
+
+}
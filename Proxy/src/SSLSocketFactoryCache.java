@@ -1,6 +1,8 @@
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.Socket;
+import java.security.GeneralSecurityException;
 import java.security.InvalidKeyException;
 import java.security.KeyManagementException;
 import java.security.KeyStore;
@@ -11,29 +13,60 @@ import java.security.Principal;
 import java.security.PrivateKey;
 import java.security.SignatureException;
 import java.security.UnrecoverableEntryException;
-import java.security.UnrecoverableKeyException;
+import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.cert.X509Certificate;
-import java.util.HashMap;
-import java.util.LinkedList;
-import java.util.List;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
 
+import javax.net.ssl.ExtendedSSLSession;
 import javax.net.ssl.KeyManager;
-import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SNIHostName;
+import javax.net.ssl.SNIServerName;
 import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSocket;
 import javax.net.ssl.SSLSocketFactory;
-import javax.net.ssl.TrustManagerFactory;
-import javax.net.ssl.X509KeyManager;
+import javax.net.ssl.X509ExtendedKeyManager;
 
 /**
- * Cache of SSLSocketFactories.
+ * Cache of the leaf certificates built for the remote hosts, and owner of the SSLContext
+ * used in the TLS handshakes with the clients. A single SSLContext is shared by every host:
+ * its key manager selects the certificate from the server name (SNI) sent by the client
+ * in the handshake, building the certificate if it is not cached yet.
  * @author Juliano
  */
-public class SSLSocketFactoryCache {
+public class SSLSocketFactoryCache implements SSLSocketFactoryCacheMBean {
 
-	private char[] password;
-	private HashMap<String, SSLSocketFactory> factoriesTable;
 	private CertificateBuilder builder;
+	private SSLContext context;
+
+	private ConcurrentHashMap<String, CacheEntry> certificatesTable;
+	private ConcurrentHashMap<String, FutureTask<CacheEntry>> pendingCertificates;
+	private ConcurrentLinkedQueue<CacheEntry> evictionQueue;
+	private AtomicInteger evictionQueueSize;
+	private ReentrantLock evictionLock;
+	private int maxSize;
+	private long timeToLive;
+
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private AtomicLong evictions;
+	private AtomicLong expirations;
+	private AtomicLong mints;
+	private AtomicLong totalMintTime;
+	private AtomicLong maxMintTime;
 
 	/**
 	 * Construtor.
@@ -48,93 +81,384 @@ public class SSLSocketFactoryCache {
 	 * @throws NoSuchProviderException
 	 * @throws SignatureException
 	 * @throws IOException
+	 * @throws KeyManagementException
 	 */
-	public SSLSocketFactoryCache(File keystoreFile, char[] password, String[] entriesAliases) throws InvalidKeyException, KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, NoSuchProviderException, SignatureException, IOException {
-		this.password = password;
-		factoriesTable = new HashMap<>();
-		builder = new CertificateBuilder(keystoreFile, password, entriesAliases);
+	public SSLSocketFactoryCache(File keystoreFile, char[] password, String[] entriesAliases) throws InvalidKeyException, KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, NoSuchProviderException, SignatureException, IOException, KeyManagementException {
+		this(keystoreFile, password, entriesAliases, new ProxyConfiguration());
 	}
-	
+
 	/**
-	 * Get the SSLSocketFactory object corresponding to the supplied hostname. The SSL sockets created by the returned factory,
-	 * when configured to operate in server mode, will send a SSL certificate which has the specified hostname as its Canonical Name
-	 * in the handshake process.
-	 * @param host Host name.
-	 * @return The corresponding SSLSocketFactory.
+	 * Construtor.
+	 * @param keystoreFile File containing the keystore in JKS format.
+	 * @param password Password of the keystore file.
+	 * @param entriesAliases Aliases of the parent certificates which will be used to sign the generated certs.
+	 * @param configuration Options of the certificates generation.
 	 * @throws InvalidKeyException
+	 * @throws KeyStoreException
 	 * @throws NoSuchAlgorithmException
-	 * @throws NoSuchProviderException
 	 * @throws CertificateException
+	 * @throws UnrecoverableEntryException
+	 * @throws NoSuchProviderException
 	 * @throws SignatureException
 	 * @throws IOException
-	 * @throws KeyStoreException
-	 * @throws UnrecoverableKeyException
 	 * @throws KeyManagementException
 	 */
-	public synchronized SSLSocketFactory getSocketFactory(String host) throws InvalidKeyException, NoSuchAlgorithmException, NoSuchProviderException, CertificateException, SignatureException, IOException, KeyStoreException, UnrecoverableKeyException, KeyManagementException {
-		SSLSocketFactory factory = factoriesTable.get(host);
-		if (factory == null) {
-			SSLContext context = SSLContext.getInstance("SSLv3");
-			builder.buildLeafCertificate(host);
-			KeyStore keystore = builder.getKeyStore();
-			KeyManagerFactory kmf = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
-			kmf.init(keystore, password);
-			TrustManagerFactory tmf = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
-			tmf.init(keystore);
-			List<KeyManager> keyManagersList = new LinkedList<KeyManager>();
-			KeyManager[] originalKeyManagers = kmf.getKeyManagers();
-			for (KeyManager originalKeyManager : originalKeyManagers) {
-				if (originalKeyManager instanceof X509KeyManager) {
-					keyManagersList.add(new CustomX509KeyManager((X509KeyManager) originalKeyManager, host));
+	public SSLSocketFactoryCache(File keystoreFile, char[] password, String[] entriesAliases, ProxyConfiguration configuration) throws InvalidKeyException, KeyStoreException, NoSuchAlgorithmException, CertificateException, UnrecoverableEntryException, NoSuchProviderException, SignatureException, IOException, KeyManagementException {
+		builder = new CertificateBuilder(keystoreFile, password, entriesAliases, configuration);
+		context = SSLContext.getInstance("TLS");
+		context.init(new KeyManager[] { new SNIKeyManager() }, null, null);
+		certificatesTable = new ConcurrentHashMap<>();
+		pendingCertificates = new ConcurrentHashMap<>();
+		evictionQueue = new ConcurrentLinkedQueue<>();
+		evictionQueueSize = new AtomicInteger();
+		evictionLock = new ReentrantLock();
+		maxSize = configuration.getCacheMaxSize();
+		timeToLive = configuration.getCacheTimeToLive() * 1000;
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		evictions = new AtomicLong();
+		expirations = new AtomicLong();
+		mints = new AtomicLong();
+		totalMintTime = new AtomicLong();
+		maxMintTime = new AtomicLong();
+		Metrics.register("SSLSocketFactoryCache", this);
+	}
+	
+	/**
+	 * Get the SSLSocketFactory shared by every host. When a socket created by the returned factory with the
+	 * createSocket(Socket, String, int, boolean) method is configured to operate in server mode, it will send
+	 * a SSL certificate which has the host name sent by the client in the SNI extension as its Canonical Name.
+	 * If the client does not send the SNI extension, the host name passed to createSocket is used instead.
+	 * @return The SSLSocketFactory.
+	 */
+	public SSLSocketFactory getSocketFactory() {
+		return context.getSocketFactory();
+	}
+
+	/**
+	 * Get the SSLContext shared by every host. It works like the SSLSocketFactory returned by getSocketFactory;
+	 * for the SSLEngines, the fallback host name is the one passed to createSSLEngine(String, int).
+	 * @return The SSLContext.
+	 */
+	public SSLContext getSSLContext() {
+		return context;
+	}
+
+	/**
+	 * Get the leaf certificate of the supplied hostname.
+	 * Cached hosts are looked up without locking. If the host is not cached, its certificate is built; if another
+	 * thread is already building the certificate of the same host, the calling thread waits for it instead.
+	 * @param host Host name.
+	 * @return The private key and the certificate chain of the host.
+	 * @throws GeneralSecurityException If the certificate could not be built.
+	 * @throws IOException
+	 */
+	public KeyStore.PrivateKeyEntry getCertificate(String host) throws GeneralSecurityException, IOException {
+		return getEntry(host).certificate;
+	}
+
+	@Override
+	public int getSize() {
+		return certificatesTable.size();
+	}
+
+	@Override
+	public int getMaxSize() {
+		return maxSize;
+	}
+
+	@Override
+	public long getHits() {
+		return hits.get();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public long getEvictions() {
+		return evictions.get();
+	}
+
+	@Override
+	public long getExpirations() {
+		return expirations.get();
+	}
+
+	@Override
+	public long getMints() {
+		return mints.get();
+	}
+
+	@Override
+	public double getAverageMintTime() {
+		long count = mints.get();
+		return count == 0 ? 0 : totalMintTime.get() / 1000000.0 / count;
+	}
+
+	@Override
+	public double getMaxMintTime() {
+		return maxMintTime.get() / 1000000.0;
+	}
+
+	private CacheEntry getEntry(String host) throws GeneralSecurityException, IOException {
+		final String name = builder.getCertificateName(host);
+		CacheEntry entry = lookup(name);
+		if (entry != null) {
+			hits.incrementAndGet();
+			return entry;
+		}
+		misses.incrementAndGet();
+		FutureTask<CacheEntry> task = new FutureTask<>(new Callable<CacheEntry>() {
+			public CacheEntry call() throws Exception {
+				// The host may have been added while this thread was registering the task
+				CacheEntry entry = lookup(name);
+				if (entry != null) {
+					return entry;
+				}
+				return mint(name);
+			}
+		});
+		FutureTask<CacheEntry> pendingTask = pendingCertificates.putIfAbsent(name, task);
+		if (pendingTask == null) {
+			try {
+				task.run();
+			} finally {
+				pendingCertificates.remove(name, task);
+			}
+			pendingTask = task;
+		}
+		try {
+			return pendingTask.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException();
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof GeneralSecurityException) {
+				throw (GeneralSecurityException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			} else if (cause instanceof RuntimeException) {
+				throw (RuntimeException) cause;
+			} else if (cause instanceof Error) {
+				throw (Error) cause;
+			}
+			throw new IllegalStateException(cause);
+		}
+	}
+
+	private CacheEntry lookup(String host) {
+		CacheEntry entry = certificatesTable.get(host);
+		if (entry == null) {
+			return null;
+		}
+		if (timeToLive > 0 && System.currentTimeMillis() - entry.creationTime > timeToLive) {
+			if (certificatesTable.remove(host, entry)) {
+				expirations.incrementAndGet();
+			}
+			return null;
+		}
+		entry.referenced = true;
+		return entry;
+	}
+
+	private CacheEntry mint(String host) throws GeneralSecurityException, IOException {
+		long startTime = System.nanoTime();
+		CacheEntry entry = new CacheEntry(host, builder.buildLeafCertificate(host));
+		certificatesTable.put(host, entry);
+		evictionQueue.add(entry);
+		evictionQueueSize.incrementAndGet();
+		evict();
+		long mintTime = System.nanoTime() - startTime;
+		mints.incrementAndGet();
+		totalMintTime.addAndGet(mintTime);
+		long currentMax = maxMintTime.get();
+		while(mintTime > currentMax && !maxMintTime.compareAndSet(currentMax, mintTime)) {
+			currentMax = maxMintTime.get();
+		}
+		return entry;
+	}
+
+	/**
+	 * Removes hosts from the cache until its size is within the limit. The hosts are
+	 * selected with the "second chance" algorithm: the hosts are visited in insertion
+	 * order, and the ones which have been used since the last visit are skipped once.
+	 * The entries of the expired or replaced hosts are dropped from the queue once they
+	 * outnumber the hosts of the cache, so they don't pile up while the cache is small.
+	 */
+	private void evict() {
+		int tableSize = certificatesTable.size();
+		if ((tableSize <= maxSize && evictionQueueSize.get() <= 2 * tableSize) || !evictionLock.tryLock()) {
+			// If another thread is evicting, it will take care of the excess
+			return;
+		}
+		try {
+			if (evictionQueueSize.get() > 2 * certificatesTable.size()) {
+				Iterator<CacheEntry> iterator = evictionQueue.iterator();
+				while(iterator.hasNext()) {
+					CacheEntry entry = iterator.next();
+					if (certificatesTable.get(entry.host) != entry) {
+						iterator.remove();
+						evictionQueueSize.decrementAndGet();
+					}
 				}
 			}
-			context.init(keyManagersList.toArray(new KeyManager[keyManagersList.size()]), tmf.getTrustManagers(), null);
-			factory = context.getSocketFactory();
-			factoriesTable.put(host, factory);
+			while(certificatesTable.size() > maxSize) {
+				CacheEntry entry = evictionQueue.poll();
+				if (entry == null) {
+					break;
+				}
+				evictionQueueSize.decrementAndGet();
+				if (certificatesTable.get(entry.host) != entry) {
+					// Already expired or replaced
+					continue;
+				}
+				if (entry.referenced) {
+					entry.referenced = false;
+					evictionQueue.add(entry);
+					evictionQueueSize.incrementAndGet();
+				} else if (certificatesTable.remove(entry.host, entry)) {
+					evictions.incrementAndGet();
+				}
+			}
+		} finally {
+			evictionLock.unlock();
 		}
-		return factory;
 	}
 
-	private class CustomX509KeyManager implements X509KeyManager {
-		
-		private X509KeyManager originalKeyManager;
-		private String alias;
+	private static class CacheEntry {
+
+		private final String host;
+		private final KeyStore.PrivateKeyEntry certificate;
+		private final X509Certificate[] chain;
+		private final long creationTime;
+		private volatile boolean referenced;
 
-		private CustomX509KeyManager(X509KeyManager originalKeyManager, String alias) {
-			this.originalKeyManager = originalKeyManager;
-			this.alias = alias;
+		private CacheEntry(String host, KeyStore.PrivateKeyEntry certificate) {
+			this.host = host;
+			this.certificate = certificate;
+			Certificate[] certificateChain = certificate.getCertificateChain();
+			chain = new X509Certificate[certificateChain.length];
+			for (int i = 0; i < certificateChain.length; i++) {
+				chain[i] = (X509Certificate) certificateChain[i];
+			}
+			this.creationTime = System.currentTimeMillis();
 		}
-		
+
+		/**
+		 * Returns whether the key of this entry can be used with the key type requested
+		 * by the TLS implementation, like "RSA", "EC" or "EC_RSA" (EC key in a certificate
+		 * signed with RSA).
+		 */
+		private boolean matchesKeyType(String keyType) {
+			String algorithm = certificate.getPrivateKey().getAlgorithm();
+			return keyType.equals(algorithm) || keyType.startsWith(algorithm + "_");
+		}
+
+	}
+
+	/**
+	 * Key manager of the shared SSLContext. The entry of the host is looked up once per
+	 * handshake, and kept in the handshake session. Each alias names the entry chosen for
+	 * one handshake, so the key and the chain always come from the same certificate, even
+	 * if the host expires or is evicted meanwhile. The TLS implementation holds the alias
+	 * until it has read them, then the alias is garbage collected, which drops it from the map.
+	 */
+	private class SNIKeyManager extends X509ExtendedKeyManager {
+
+		private static final String SESSION_ENTRY = "SSLSocketFactoryCache.entry";
+
+		private final Map<String, CacheEntry> chosenEntries = Collections.synchronizedMap(new WeakHashMap<String, CacheEntry>());
+		private final AtomicLong aliasSequence = new AtomicLong();
+
 		@Override
 		public String chooseClientAlias(String[] keyType, Principal[] issuers, Socket socket) {
-			return alias;
+			return null;
 		}
 
 		@Override
 		public String chooseServerAlias(String keyType, Principal[] issuers, Socket socket) {
-			return alias;
+			if (socket instanceof SSLSocket) {
+				return chooseServerAlias(keyType, ((SSLSocket) socket).getHandshakeSession());
+			}
+			return null;
+		}
+
+		@Override
+		public String chooseEngineClientAlias(String[] keyType, Principal[] issuers, SSLEngine engine) {
+			return null;
+		}
+
+		@Override
+		public String chooseEngineServerAlias(String keyType, Principal[] issuers, SSLEngine engine) {
+			return chooseServerAlias(keyType, engine.getHandshakeSession());
 		}
 
 		@Override
 		public X509Certificate[] getCertificateChain(String alias) {
-			return originalKeyManager.getCertificateChain(alias);
+			CacheEntry entry = chosenEntries.get(alias);
+			return entry != null ? entry.chain.clone() : null;
 		}
 
 		@Override
 		public String[] getClientAliases(String keyType, Principal[] issuers) {
-			return originalKeyManager.getClientAliases(keyType, issuers);
+			return null;
 		}
 
 		@Override
 		public PrivateKey getPrivateKey(String alias) {
-			return originalKeyManager.getPrivateKey(alias);
+			CacheEntry entry = chosenEntries.get(alias);
+			return entry != null ? entry.certificate.getPrivateKey() : null;
 		}
 
 		@Override
 		public String[] getServerAliases(String keyType, Principal[] issuers) {
-			return originalKeyManager.getServerAliases(keyType, issuers);
+			return null;
 		}
-		
+
+		private String chooseServerAlias(String keyType, SSLSession handshakeSession) {
+			String host = null;
+			if (handshakeSession instanceof ExtendedSSLSession) {
+				for (SNIServerName serverName : ((ExtendedSSLSession) handshakeSession).getRequestedServerNames()) {
+					if (serverName instanceof SNIHostName) {
+						host = ((SNIHostName) serverName).getAsciiName();
+						break;
+					}
+				}
+			}
+			if (host == null && handshakeSession != null) {
+				// Clients don't send the SNI extension for IP addresses
+				host = handshakeSession.getPeerHost();
+			}
+			if (host == null) {
+				return null;
+			}
+			host = host.toLowerCase();
+			// The TLS implementation may ask once for each key type it supports
+			CacheEntry entry = handshakeSession != null ? (CacheEntry) handshakeSession.getValue(SESSION_ENTRY) : null;
+			if (entry == null) {
+				try {
+					entry = getEntry(host);
+				} catch (GeneralSecurityException | IOException e) {
+					e.printStackTrace();
+					return null;
+				}
+				if (handshakeSession != null) {
+					handshakeSession.putValue(SESSION_ENTRY, entry);
+				}
+			}
+			if (!entry.matchesKeyType(keyType)) {
+				return null;
+			}
+			// A new string, only referenced by the map and the TLS implementation
+			String alias = host + "#" + aliasSequence.incrementAndGet();
+			chosenEntries.put(alias, entry);
+			return alias;
+		}
+
 	}
-	
+
 }
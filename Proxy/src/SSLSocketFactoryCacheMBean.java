@@ -0,0 +1,52 @@
+/**
+ * Management interface of the SSLSocketFactoryCache.
+ * @author Juliano
+ */
+public interface SSLSocketFactoryCacheMBean {
+
+	/**
+	 * @return Number of hosts in the cache.
+	 */
+	int getSize();
+
+	/**
+	 * @return Maximum number of hosts kept in the cache.
+	 */
+	int getMaxSize();
+
+	/**
+	 * @return Number of lookups which found the host in the cache.
+	 */
+	long getHits();
+
+	/**
+	 * @return Number of lookups which did not find the host in the cache.
+	 */
+	long getMisses();
+
+	/**
+	 * @return Number of hosts removed from the cache to respect its maximum size.
+	 */
+	long getEvictions();
+
+	/**
+	 * @return Number of hosts removed from the cache because their time to live elapsed.
+	 */
+	long getExpirations();
+
+	/**
+	 * @return Number of certificates built or loaded from the leaf certificate store.
+	 */
+	long getMints();
+
+	/**
+	 * @return Average time spent building a certificate and its SSLContext, in milliseconds.
+	 */
+	double getAverageMintTime();
+
+	/**
+	 * @return Longest time spent building a certificate and its SSLContext, in milliseconds.
+	 */
+	double getMaxMintTime();
+
+}
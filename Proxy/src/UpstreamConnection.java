@@ -0,0 +1,67 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+
+/**
+ * Connection to a remote host, which may be kept in the UpstreamConnectionPool
+ * between the requests of different clients.
+ * @author Juliano
+ */
+public class UpstreamConnection {
+
+	private String key;
+	private Socket socket;
+	private InputStream inputStream;
+	private OutputStream outputStream;
+	private long idleSince;
+
+	/**
+	 * Constructor.
+	 * @param key Key of the remote host in the pool.
+	 * @param socket The connected socket.
+	 * @throws IOException If the socket streams could not be obtained.
+	 */
+	public UpstreamConnection(String key, Socket socket) throws IOException {
+		this.key = key;
+		this.socket = socket;
+		inputStream = socket.getInputStream();
+		outputStream = socket.getOutputStream();
+	}
+
+	public String getKey() {
+		return key;
+	}
+
+	public Socket getSocket() {
+		return socket;
+	}
+
+	public InputStream getInputStream() {
+		return inputStream;
+	}
+
+	public OutputStream getOutputStream() {
+		return outputStream;
+	}
+
+	public long getIdleSince() {
+		return idleSince;
+	}
+
+	public void setIdleSince(long idleSince) {
+		this.idleSince = idleSince;
+	}
+
+	/**
+	 * Closes the connection, ignoring any error.
+	 */
+	public void close() {
+		try {
+			socket.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+}
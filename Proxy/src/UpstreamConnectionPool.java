@@ -0,0 +1,459 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Pool of idle connections to the remote hosts, shared by every client connection.
+ * The connections are grouped by host, port and protocol (plain or TLS), so a client
+ * may reuse a connection opened by another client instead of paying for new TCP and
+ * TLS handshakes. The most recently released connection of a host is reused first.
+ * HTTP/2 is offered through ALPN to the TLS remote hosts: the HTTP/2 connections are
+ * shared, rather than lent, by the requests sent to a host at the same time, each
+ * request taking a stream of a connection. A host which does not negotiate HTTP/2 gets
+ * HTTP/1.1 connections, and is not offered HTTP/2 again for some time.
+ * @author Juliano
+ */
+public class UpstreamConnectionPool implements UpstreamConnectionPoolMBean {
+
+	private static final int SOCKET_TIMEOUT = 10000;
+	private static final int HEALTH_CHECK_TIMEOUT = 1;
+
+	private static final String[] APPLICATION_PROTOCOLS = { "h2", "http/1.1" };
+
+	/**
+	 * Time, in milliseconds, after which a remote host which did not negotiate HTTP/2 is offered it again.
+	 */
+	private static final long HTTP2_RETRY_INTERVAL = 60 * 60 * 1000;
+
+	private UpstreamSSLContext sslContext;
+	private BufferPool bufferPool;
+	private Map<String, Deque<UpstreamConnection>> idleConnections;
+	private Map<String, Http2Origin> http2Origins;
+	private boolean http2;
+	private int idle;
+	private int maxIdle;
+	private int maxIdlePerHost;
+	private long idleTimeout;
+
+	private AtomicLong hits;
+	private AtomicLong misses;
+	private AtomicLong stale;
+	private AtomicLong expired;
+	private AtomicLong rejected;
+	private AtomicLong http2Streams;
+
+	/**
+	 * Constructor. The thread which closes the expired connections is started if the pool is enabled.
+	 * @param configuration Limits of the pool. A maximum of zero idle connections disables the pool.
+	 * @param sslContext Context of the TLS connections.
+	 * @param bufferPool Pool from which the buffers of the HTTP/2 connections are taken.
+	 */
+	public UpstreamConnectionPool(ProxyConfiguration configuration, UpstreamSSLContext sslContext, BufferPool bufferPool) {
+		this.sslContext = sslContext;
+		this.bufferPool = bufferPool;
+		idleConnections = new HashMap<>();
+		http2Origins = new ConcurrentHashMap<>();
+		http2 = configuration.isUpstreamHttp2();
+		maxIdle = configuration.getUpstreamMaxIdle();
+		maxIdlePerHost = configuration.getUpstreamMaxIdlePerHost();
+		idleTimeout = configuration.getUpstreamIdleTimeout() * 1000;
+		hits = new AtomicLong();
+		misses = new AtomicLong();
+		stale = new AtomicLong();
+		expired = new AtomicLong();
+		rejected = new AtomicLong();
+		http2Streams = new AtomicLong();
+		if (maxIdle > 0 && maxIdlePerHost > 0) {
+			Thread thread = new Thread(new Runnable() {
+				public void run() {
+					closeExpired();
+				}
+			}, "UpstreamConnectionPool");
+			thread.setDaemon(true);
+			thread.start();
+		}
+		Metrics.register("UpstreamConnectionPool", this);
+	}
+
+	/**
+	 * Get a connection to the specified remote host. An idle connection is taken from the pool
+	 * if there is one which passes the health check. Otherwise, a new connection is opened.
+	 * @param host Remote host name.
+	 * @param port Remote host port.
+	 * @param useSSL If true, the connection uses TLS.
+	 * @return The connection.
+	 * @throws IOException If a new connection could not be opened.
+	 */
+	public UpstreamConnection acquire(String host, int port, boolean useSSL) throws IOException {
+		String key = getKey(host, port, useSSL);
+		UpstreamConnection connection = poll(key);
+		while(connection != null) {
+			if (System.currentTimeMillis() - connection.getIdleSince() >= idleTimeout) {
+				expired.incrementAndGet();
+			} else if (isHealthy(connection)) {
+				hits.incrementAndGet();
+				return connection;
+			} else {
+				stale.incrementAndGet();
+			}
+			connection.close();
+			connection = poll(key);
+		}
+		misses.incrementAndGet();
+		Socket socket;
+		if (useSSL) {
+			socket = sslContext.createSocket(host, port);
+		} else {
+			socket = new Socket(host, port);
+		}
+		socket.setSoTimeout(SOCKET_TIMEOUT);
+		return new UpstreamConnection(key, socket);
+	}
+
+	/**
+	 * Get an HTTP/2 connection to the specified TLS remote host, with a stream reserved for
+	 * a request. A connection which allows one more stream is shared if there is one.
+	 * Otherwise, a new connection is opened, offering HTTP/2 through ALPN; the concurrent
+	 * requests to the same host wait for this handshake instead of opening connections of
+	 * their own. If the remote host chooses HTTP/1.1, the connection is left in the pool
+	 * for the caller to acquire.
+	 * @param host Remote host name.
+	 * @param port Remote host port.
+	 * @return The connection, on which the caller must open its stream or cancel the
+	 * reservation, or null if HTTP/2 is disabled or not supported by the remote host.
+	 * @throws IOException If a new connection could not be opened.
+	 */
+	public Http2ClientConnection acquireHttp2(final String host, final int port) throws IOException {
+		if (!http2 || maxIdle == 0 || maxIdlePerHost == 0) {
+			return null;
+		}
+		final String key = getKey(host, port, true);
+		while(true) {
+			Http2Origin origin = http2Origins.get(key);
+			if (origin == null) {
+				origin = new Http2Origin();
+				Http2Origin previous = http2Origins.putIfAbsent(key, origin);
+				if (previous != null) {
+					origin = previous;
+				}
+			}
+			Http2ClientConnection connection = reserveStream(origin);
+			if (connection != null) {
+				return connection;
+			}
+			FutureTask<Http2ClientConnection> handshake;
+			boolean opener = false;
+			synchronized (origin) {
+				if (origin.removed) {
+					continue;
+				}
+				if (System.currentTimeMillis() - origin.refusedAt < HTTP2_RETRY_INTERVAL) {
+					return null;
+				}
+				// Another request may have opened a connection while this one looked
+				connection = reserveStream(origin);
+				if (connection != null) {
+					return connection;
+				}
+				if (origin.handshake == null) {
+					origin.handshake = openHttp2(origin, key, host, port);
+					opener = true;
+				}
+				handshake = origin.handshake;
+			}
+			// The handshake is run outside of the lock, which only guards the state of the origin
+			if (opener) {
+				handshake.run();
+				synchronized (origin) {
+					origin.handshake = null;
+				}
+			}
+			try {
+				connection = handshake.get();
+			} catch (ExecutionException e) {
+				if (opener) {
+					throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+				}
+				// The request opens a connection of its own
+				continue;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException();
+			}
+			if (opener) {
+				// Null if the remote host chose HTTP/1.1
+				return connection;
+			}
+			// The stream reserved on the new connection went to the request which opened it
+		}
+	}
+
+	/**
+	 * Builds the task which opens an HTTP/2 connection to a remote host, and reserves a
+	 * stream of it for the request which runs the task.
+	 */
+	private FutureTask<Http2ClientConnection> openHttp2(final Http2Origin origin, final String key, final String host, final int port) {
+		return new FutureTask<>(new Callable<Http2ClientConnection>() {
+			public Http2ClientConnection call() throws IOException {
+				SSLSocket socket = sslContext.createSocket(host, port, APPLICATION_PROTOCOLS);
+				socket.setSoTimeout(SOCKET_TIMEOUT);
+				if (!"h2".equals(socket.getApplicationProtocol())) {
+					synchronized (origin) {
+						origin.refusedAt = System.currentTimeMillis();
+					}
+					release(new UpstreamConnection(key, socket));
+					return null;
+				}
+				misses.incrementAndGet();
+				Http2ClientConnection connection = new Http2ClientConnection(key, host, port, socket, bufferPool);
+				connection.start();
+				connection.reserveStream();
+				origin.connections.add(connection);
+				http2Streams.incrementAndGet();
+				return connection;
+			}
+		});
+	}
+
+	private Http2ClientConnection reserveStream(Http2Origin origin) {
+		for (Http2ClientConnection connection : origin.connections) {
+			if (connection.reserveStream()) {
+				hits.incrementAndGet();
+				http2Streams.incrementAndGet();
+				return connection;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Get the key which identifies the connections to a remote host.
+	 * @param host Remote host name.
+	 * @param port Remote host port.
+	 * @param useSSL If true, the connection uses TLS.
+	 * @return The key, as returned by {@link UpstreamConnection#getKey()}.
+	 */
+	public static String getKey(String host, int port, boolean useSSL) {
+		return (useSSL ? "https://" : "http://") + host.toLowerCase() + ":" + port;
+	}
+
+	/**
+	 * Return a connection to the pool. The caller must only release a connection whose last
+	 * response was fully read and which the remote host is expected to keep open. If the pool
+	 * is full, the connection is closed.
+	 * @param connection The connection.
+	 */
+	public void release(UpstreamConnection connection) {
+		synchronized (idleConnections) {
+			Deque<UpstreamConnection> connections = idleConnections.get(connection.getKey());
+			if (idle < maxIdle && (connections == null || connections.size() < maxIdlePerHost)) {
+				if (connections == null) {
+					connections = new ArrayDeque<>();
+					idleConnections.put(connection.getKey(), connections);
+				}
+				connection.setIdleSince(System.currentTimeMillis());
+				connections.push(connection);
+				idle++;
+				return;
+			}
+		}
+		rejected.incrementAndGet();
+		connection.close();
+	}
+
+	@Override
+	public int getIdle() {
+		synchronized (idleConnections) {
+			return idle;
+		}
+	}
+
+	@Override
+	public int getMaxIdle() {
+		return maxIdle;
+	}
+
+	@Override
+	public int getMaxIdlePerHost() {
+		return maxIdlePerHost;
+	}
+
+	@Override
+	public long getHits() {
+		return hits.get();
+	}
+
+	@Override
+	public long getMisses() {
+		return misses.get();
+	}
+
+	@Override
+	public double getHitRate() {
+		long hits = this.hits.get();
+		long total = hits + misses.get();
+		return total == 0 ? 0 : (double) hits / total;
+	}
+
+	@Override
+	public long getStale() {
+		return stale.get();
+	}
+
+	@Override
+	public long getExpired() {
+		return expired.get();
+	}
+
+	@Override
+	public long getRejected() {
+		return rejected.get();
+	}
+
+	@Override
+	public int getHttp2Connections() {
+		int connections = 0;
+		for (Http2Origin origin : http2Origins.values()) {
+			connections += origin.connections.size();
+		}
+		return connections;
+	}
+
+	@Override
+	public long getHttp2Streams() {
+		return http2Streams.get();
+	}
+
+	private UpstreamConnection poll(String key) {
+		synchronized (idleConnections) {
+			Deque<UpstreamConnection> connections = idleConnections.get(key);
+			if (connections == null) {
+				return null;
+			}
+			UpstreamConnection connection = connections.pop();
+			if (connections.isEmpty()) {
+				idleConnections.remove(key);
+			}
+			idle--;
+			return connection;
+		}
+	}
+
+	/**
+	 * Check whether an idle connection can still be used, i.e. the remote host has neither
+	 * closed it nor sent anything on it.
+	 * @param connection The connection.
+	 * @return True if, and only if, the connection is usable.
+	 */
+	public boolean isHealthy(UpstreamConnection connection) {
+		Socket socket = connection.getSocket();
+		if (socket.isClosed() || socket.isInputShutdown() || socket.isOutputShutdown()) {
+			return false;
+		}
+		// An idle connection must not have anything to read: either the remote host closed it
+		// or it sent unexpected data. If the read times out, the connection is still usable.
+		try {
+			socket.setSoTimeout(HEALTH_CHECK_TIMEOUT);
+			try {
+				connection.getInputStream().read();
+				return false;
+			} catch (SocketTimeoutException e) {
+				socket.setSoTimeout(SOCKET_TIMEOUT);
+				return true;
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	private void closeExpired() {
+		while(true) {
+			try {
+				Thread.sleep(Math.min(idleTimeout, 1000));
+			} catch (InterruptedException e) {
+				return;
+			}
+			List<UpstreamConnection> expiredConnections = new ArrayList<>();
+			long now = System.currentTimeMillis();
+			synchronized (idleConnections) {
+				Iterator<Deque<UpstreamConnection>> iterator = idleConnections.values().iterator();
+				while(iterator.hasNext()) {
+					Deque<UpstreamConnection> connections = iterator.next();
+					// The oldest connections are at the tail
+					while(!connections.isEmpty() && now - connections.peekLast().getIdleSince() >= idleTimeout) {
+						expiredConnections.add(connections.removeLast());
+						idle--;
+					}
+					if (connections.isEmpty()) {
+						iterator.remove();
+					}
+				}
+			}
+			for (UpstreamConnection connection : expiredConnections) {
+				expired.incrementAndGet();
+				connection.close();
+			}
+			closeExpiredHttp2();
+		}
+	}
+
+	/**
+	 * Closes the HTTP/2 connections without active streams for too long, and forgets the
+	 * remote hosts left without connections.
+	 */
+	private void closeExpiredHttp2() {
+		long now = System.currentTimeMillis();
+		Iterator<Http2Origin> iterator = http2Origins.values().iterator();
+		while(iterator.hasNext()) {
+			Http2Origin origin = iterator.next();
+			synchronized (origin) {
+				for (Http2ClientConnection connection : origin.connections) {
+					if (!connection.isUsable()) {
+						origin.connections.remove(connection);
+					} else if (connection.closeIfIdle(idleTimeout)) {
+						expired.incrementAndGet();
+						origin.connections.remove(connection);
+					}
+				}
+				if (origin.connections.isEmpty() && origin.handshake == null && now - origin.refusedAt >= HTTP2_RETRY_INTERVAL) {
+					origin.removed = true;
+					iterator.remove();
+				}
+			}
+		}
+	}
+
+	/**
+	 * HTTP/2 connections to a remote host. The lock guards the state of the host, and is
+	 * held while the host is being forgotten, but not during the handshake of a new
+	 * connection: the concurrent requests wait for the task which opens it, so the threads
+	 * which wait don't hold a monitor (which would pin the carrier of a virtual thread).
+	 */
+	private static class Http2Origin {
+
+		private final List<Http2ClientConnection> connections = new CopyOnWriteArrayList<>();
+
+		// Guarded by this
+		private long refusedAt;
+		private boolean removed;
+		private FutureTask<Http2ClientConnection> handshake;
+
+	}
+
+}
@@ -0,0 +1,62 @@
+/**
+ * Management interface of the UpstreamConnectionPool.
+ * @author Juliano
+ */
+public interface UpstreamConnectionPoolMBean {
+
+	/**
+	 * @return Number of idle connections kept in the pool.
+	 */
+	int getIdle();
+
+	/**
+	 * @return Maximum number of idle connections kept in the pool.
+	 */
+	int getMaxIdle();
+
+	/**
+	 * @return Maximum number of idle connections kept for each remote host.
+	 */
+	int getMaxIdlePerHost();
+
+	/**
+	 * @return Number of requests served by a connection taken from the pool.
+	 */
+	long getHits();
+
+	/**
+	 * @return Number of requests for which a new connection had to be opened.
+	 */
+	long getMisses();
+
+	/**
+	 * @return Ratio between the hits and the total number of requests.
+	 */
+	double getHitRate();
+
+	/**
+	 * @return Number of pooled connections discarded because they were closed by the remote host.
+	 */
+	long getStale();
+
+	/**
+	 * @return Number of pooled connections closed because they stayed idle for too long.
+	 */
+	long getExpired();
+
+	/**
+	 * @return Number of released connections closed because the pool was full.
+	 */
+	long getRejected();
+
+	/**
+	 * @return Number of open HTTP/2 connections to the remote hosts.
+	 */
+	int getHttp2Connections();
+
+	/**
+	 * @return Number of requests sent on a stream of an HTTP/2 connection.
+	 */
+	long getHttp2Streams();
+
+}
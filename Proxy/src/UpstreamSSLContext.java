@@ -0,0 +1,139 @@
+import java.io.IOException;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+
+/**
+ * Owner of the SSLContext used in the TLS connections with the remote hosts. Every
+ * upstream connection is created by this single context, so the sessions established
+ * with a host are cached, indexed by the host name and port, and resumed by the next
+ * connections to the same host with an abbreviated handshake (session IDs in TLS 1.2,
+ * session tickets in TLS 1.3).
+ * @author Juliano
+ */
+public class UpstreamSSLContext implements UpstreamSSLContextMBean {
+
+	private SSLContext context;
+
+	private AtomicLong fullHandshakes;
+	private AtomicLong resumedHandshakes;
+
+	/**
+	 * Constructor. The context uses the default trust managers of the runtime.
+	 * @param configuration Size and timeout of the client session cache.
+	 * @throws NoSuchAlgorithmException If TLS is not supported by the runtime.
+	 * @throws KeyManagementException If the context could not be initialized.
+	 */
+	public UpstreamSSLContext(ProxyConfiguration configuration) throws NoSuchAlgorithmException, KeyManagementException {
+		context = SSLContext.getInstance("TLS");
+		context.init(null, null, null);
+		SSLSessionContext sessionContext = context.getClientSessionContext();
+		sessionContext.setSessionCacheSize(configuration.getUpstreamSessionCacheSize());
+		sessionContext.setSessionTimeout(configuration.getUpstreamSessionTimeout());
+		fullHandshakes = new AtomicLong();
+		resumedHandshakes = new AtomicLong();
+		Metrics.register("UpstreamSSLContext", this);
+	}
+
+	/**
+	 * Opens a TLS connection with a remote host and performs the handshake.
+	 * @param host Remote host name, also used as the session cache key and sent in the SNI extension.
+	 * @param port Remote host port.
+	 * @return The connected socket.
+	 * @throws IOException If the connection or the handshake failed.
+	 */
+	public SSLSocket createSocket(String host, int port) throws IOException {
+		return createSocket(host, port, null);
+	}
+
+	/**
+	 * Opens a TLS connection with a remote host and performs the handshake, offering
+	 * application protocols through ALPN. The protocol chosen by the remote host is
+	 * returned by {@link SSLSocket#getApplicationProtocol()}.
+	 * @param host Remote host name, also used as the session cache key and sent in the SNI extension.
+	 * @param port Remote host port.
+	 * @param applicationProtocols The protocols offered, in order of preference, or null to offer none.
+	 * @return The connected socket.
+	 * @throws IOException If the connection or the handshake failed.
+	 */
+	public SSLSocket createSocket(String host, int port, String[] applicationProtocols) throws IOException {
+		SSLSocket socket = (SSLSocket) context.getSocketFactory().createSocket(host, port);
+		socket.setUseClientMode(true);
+		if (applicationProtocols != null) {
+			SSLParameters parameters = socket.getSSLParameters();
+			parameters.setApplicationProtocols(applicationProtocols);
+			socket.setSSLParameters(parameters);
+		}
+		long handshakeStart = System.currentTimeMillis();
+		try {
+			socket.startHandshake();
+		} catch (IOException e) {
+			socket.close();
+			throw e;
+		}
+		handshakeCompleted(socket.getSession(), handshakeStart);
+		return socket;
+	}
+
+	/**
+	 * Creates an engine for a TLS connection with a remote host. The caller must report the
+	 * end of the handshake with the handshakeCompleted method.
+	 * @param host Remote host name, also used as the session cache key and sent in the SNI extension.
+	 * @param port Remote host port.
+	 * @return The engine, in client mode.
+	 */
+	public SSLEngine createSSLEngine(String host, int port) {
+		SSLEngine engine = context.createSSLEngine(host, port);
+		engine.setUseClientMode(true);
+		return engine;
+	}
+
+	/**
+	 * Counts a finished handshake as full or resumed. A resumed session was created
+	 * before the handshake started.
+	 * @param session The session negotiated in the handshake.
+	 * @param handshakeStart Time, in milliseconds, when the handshake started.
+	 */
+	public void handshakeCompleted(SSLSession session, long handshakeStart) {
+		if (session.getCreationTime() < handshakeStart) {
+			resumedHandshakes.incrementAndGet();
+		} else {
+			fullHandshakes.incrementAndGet();
+		}
+	}
+
+	@Override
+	public int getSessionCacheSize() {
+		return context.getClientSessionContext().getSessionCacheSize();
+	}
+
+	@Override
+	public int getSessionTimeout() {
+		return context.getClientSessionContext().getSessionTimeout();
+	}
+
+	@Override
+	public long getFullHandshakes() {
+		return fullHandshakes.get();
+	}
+
+	@Override
+	public long getResumedHandshakes() {
+		return resumedHandshakes.get();
+	}
+
+	@Override
+	public double getResumptionRate() {
+		long resumedHandshakes = this.resumedHandshakes.get();
+		long total = resumedHandshakes + fullHandshakes.get();
+		return total == 0 ? 0 : (double) resumedHandshakes / total;
+	}
+
+}
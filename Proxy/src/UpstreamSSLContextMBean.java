@@ -0,0 +1,32 @@
+/**
+ * Management interface of the UpstreamSSLContext.
+ * @author Juliano
+ */
+public interface UpstreamSSLContextMBean {
+
+	/**
+	 * @return Maximum number of sessions kept in the client session cache.
+	 */
+	int getSessionCacheSize();
+
+	/**
+	 * @return Time, in seconds, during which a cached session may be resumed.
+	 */
+	int getSessionTimeout();
+
+	/**
+	 * @return Number of handshakes with the remote hosts which established a new session.
+	 */
+	long getFullHandshakes();
+
+	/**
+	 * @return Number of handshakes with the remote hosts which resumed a cached session.
+	 */
+	long getResumedHandshakes();
+
+	/**
+	 * @return Ratio between the resumed handshakes and the total number of handshakes.
+	 */
+	double getResumptionRate();
+
+}
@@ -0,0 +1,155 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests of the freshness of the CachedResponse objects (RFC 9111, section 4.2): age,
+ * freshness lifetime and its sources, and of the HTTP dates they are computed from.
+ * @author Juliano
+ */
+public class CachedResponseTest {
+
+	private static final String DATE = "Sun, 06 Nov 1994 08:49:37 GMT";
+	private static final long DATE_TIME = 784111777000L;
+	private static final long SECOND = 1000;
+
+	private static Map<String, List<String>> headers(String... namesAndValues) {
+		Map<String, List<String>> headers = new LinkedHashMap<>();
+		for (int i = 0; i < namesAndValues.length; i += 2) {
+			List<String> values = headers.get(namesAndValues[i]);
+			if (values == null) {
+				values = new ArrayList<>();
+				headers.put(namesAndValues[i], values);
+			}
+			values.add(namesAndValues[i + 1]);
+		}
+		return headers;
+	}
+
+	private static CachedResponse response(int statusCode, long requestTime, long responseTime, String... namesAndValues) {
+		return new CachedResponse("http://example.com/", statusCode, headers(namesAndValues), ByteBuffer.allocate(0), null, requestTime, responseTime);
+	}
+
+	private static CachedResponse response(String... namesAndValues) {
+		return response(200, DATE_TIME, DATE_TIME, namesAndValues);
+	}
+
+	@Test
+	public void usesMaxAge() {
+		CachedResponse response = response("Date", DATE, "Cache-Control", "public, max-age=60", "Expires", "Sun, 06 Nov 1994 09:49:37 GMT");
+		assertEquals(60 * SECOND, response.getFreshnessLifetime());
+		assertFalse(response.isMustRevalidate());
+	}
+
+	@Test
+	public void prefersSharedMaxAge() {
+		CachedResponse response = response("Date", DATE, "Cache-Control", "max-age=60, s-maxage=10");
+		assertEquals(10 * SECOND, response.getFreshnessLifetime());
+		assertTrue(response.isMustRevalidate());
+	}
+
+	@Test
+	public void usesExpiresRelativeToDate() {
+		CachedResponse response = response(200, DATE_TIME + 5 * SECOND, DATE_TIME + 5 * SECOND, "Date", DATE, "Expires", "Sun, 06 Nov 1994 09:49:37 GMT");
+		assertEquals(3600 * SECOND, response.getFreshnessLifetime());
+	}
+
+	@Test
+	public void treatsInvalidExpiresAsExpired() {
+		assertEquals(0, response("Date", DATE, "Expires", "0").getFreshnessLifetime());
+		assertEquals(0, response("Date", DATE, "Expires", "Sat, 05 Nov 1994 08:49:37 GMT").getFreshnessLifetime());
+	}
+
+	@Test
+	public void ignoresInvalidMaxAge() {
+		assertEquals(0, response("Date", DATE, "Cache-Control", "max-age=soon", "Expires", DATE).getFreshnessLifetime());
+	}
+
+	@Test
+	public void computesHeuristicLifetime() {
+		// A tenth of the time since the last change
+		assertEquals(360 * SECOND, response("Date", DATE, "Last-Modified", "Sun, 06 Nov 1994 07:49:37 GMT").getFreshnessLifetime());
+		assertEquals(24 * 3600 * SECOND, response("Date", DATE, "Last-Modified", "Sun, 06 Nov 1983 08:49:37 GMT").getFreshnessLifetime());
+		// Only for the statuses which are cacheable by default
+		assertEquals(0, response(302, DATE_TIME, DATE_TIME, "Date", DATE, "Last-Modified", "Sun, 06 Nov 1994 07:49:37 GMT").getFreshnessLifetime());
+	}
+
+	@Test
+	public void hasNoLifetimeWithoutFreshnessInformation() {
+		assertEquals(0, response("Date", DATE).getFreshnessLifetime());
+	}
+
+	@Test
+	public void computesAgeFromDate() {
+		// Received ten seconds after the date, after a one second round trip
+		CachedResponse response = response(200, DATE_TIME + 9 * SECOND, DATE_TIME + 10 * SECOND, "Date", DATE);
+		assertEquals(10 * SECOND, response.getAge(DATE_TIME + 10 * SECOND));
+		assertEquals(15 * SECOND, response.getAge(DATE_TIME + 15 * SECOND));
+	}
+
+	@Test
+	public void computesAgeFromAgeField() {
+		CachedResponse response = response(200, DATE_TIME, DATE_TIME + 2 * SECOND, "Date", DATE, "Age", "100");
+		assertEquals(102 * SECOND, response.getAge(DATE_TIME + 2 * SECOND));
+	}
+
+	@Test
+	public void ignoresDateInTheFuture() {
+		CachedResponse response = response(200, DATE_TIME - 60 * SECOND, DATE_TIME - 60 * SECOND, "Date", DATE);
+		assertEquals(0, response.getAge(DATE_TIME - 60 * SECOND));
+	}
+
+	@Test
+	public void usesResponseTimeWithoutDate() {
+		CachedResponse response = response(200, DATE_TIME, DATE_TIME, "Cache-Control", "max-age=60");
+		assertEquals(0, response.getAge(DATE_TIME));
+		assertEquals(60 * SECOND, response.getFreshnessLifetime());
+	}
+
+	@Test
+	public void readsDirectivesAndValidators() {
+		CachedResponse response = response("Cache-Control", "no-cache=\"Set-Cookie, Set-Cookie2\", proxy-revalidate", "ETag", "\"v1\"");
+		assertTrue(response.isNoCache());
+		assertTrue(response.isMustRevalidate());
+		assertEquals("\"v1\"", response.getEntityTag());
+		assertNull(response.getLastModified());
+		assertTrue(response.hasValidator());
+		assertFalse(response("Date", DATE).hasValidator());
+	}
+
+	@Test
+	public void keepsFreshnessWithAnotherBody() {
+		CachedResponse response = response(200, DATE_TIME, DATE_TIME + SECOND, "Date", DATE, "Cache-Control", "max-age=60");
+		CachedResponse copy = response.withBody(ByteBuffer.wrap(new byte[10]));
+		assertEquals(10, copy.getBodyLength());
+		assertEquals(response.getFreshnessLifetime(), copy.getFreshnessLifetime());
+		assertEquals(response.getAge(DATE_TIME + 5 * SECOND), copy.getAge(DATE_TIME + 5 * SECOND));
+	}
+
+	@Test
+	public void parsesHttpDateFormats() {
+		assertEquals(DATE_TIME, ResponseCache.parseDate(DATE));
+		assertEquals(DATE_TIME, ResponseCache.parseDate(" " + DATE + " "));
+		assertEquals(DATE_TIME, ResponseCache.parseDate("Sunday, 06-Nov-94 08:49:37 GMT"));
+		assertEquals(DATE_TIME, ResponseCache.parseDate("Sun Nov  6 08:49:37 1994"));
+		assertEquals(-1, ResponseCache.parseDate(null));
+		assertEquals(-1, ResponseCache.parseDate("yesterday"));
+		assertEquals(-1, ResponseCache.parseDate("Mon, 06 Nov 1994 08:49:37 GMT"));
+	}
+
+	@Test
+	public void usesObsoleteDateFormats() {
+		CachedResponse response = response("Date", "Sunday, 06-Nov-94 08:49:37 GMT", "Expires", "Sun Nov  6 09:49:37 1994");
+		assertEquals(3600 * SECOND, response.getFreshnessLifetime());
+	}
+
+}
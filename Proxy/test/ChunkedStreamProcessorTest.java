@@ -0,0 +1,180 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Tests of the ChunkedStreamProcessor state machine: streams split at any point,
+ * chunk extensions, trailers, the end of the stream and malformed streams.
+ * @author Juliano
+ */
+public class ChunkedStreamProcessorTest {
+
+	private static final String STREAM = "5\r\nhello\r\n7;name=value\r\n, world\r\n0\r\n\r\n";
+
+	/**
+	 * Collects the chunks payload reported by a processor.
+	 */
+	private static class Collector implements ChunkedStreamProcessor.Listener {
+
+		private ByteArrayOutputStream payload = new ByteArrayOutputStream();
+
+		@Override
+		public void chunkData(byte[] data, int offset, int length) {
+			payload.write(data, offset, length);
+		}
+
+		private String getPayload() {
+			return new String(payload.toByteArray(), StandardCharsets.US_ASCII);
+		}
+
+	}
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	@Test
+	public void decodesStreamInOneBuffer() throws IOException {
+		Collector collector = new Collector();
+		ChunkedStreamProcessor processor = new ChunkedStreamProcessor(collector);
+		byte[] data = bytes(STREAM + "next message");
+		int end = processor.process(data, 0, data.length);
+		assertEquals(STREAM.length(), end);
+		assertTrue(processor.isComplete());
+		assertEquals("hello, world", collector.getPayload());
+		assertNull(processor.getTrailers());
+	}
+
+	@Test
+	public void decodesStreamSplitAtAnyPoint() throws IOException {
+		byte[] data = bytes(STREAM);
+		for (int split = 1; split < data.length; split++) {
+			Collector collector = new Collector();
+			ChunkedStreamProcessor processor = new ChunkedStreamProcessor(collector);
+			assertEquals(-1, processor.process(data, 0, split));
+			assertFalse(processor.isComplete());
+			assertEquals(data.length, processor.process(data, split, data.length - split));
+			assertEquals("hello, world", collector.getPayload());
+		}
+	}
+
+	@Test
+	public void decodesStreamByteByByte() throws IOException {
+		Collector collector = new Collector();
+		ChunkedStreamProcessor processor = new ChunkedStreamProcessor(collector);
+		byte[] data = bytes(STREAM);
+		for (int i = 0; i < data.length - 1; i++) {
+			assertEquals(-1, processor.process(data, i, 1));
+		}
+		assertEquals(data.length, processor.process(data, data.length - 1, 1));
+		assertEquals("hello, world", collector.getPayload());
+	}
+
+	@Test
+	public void returnsOffsetOnceComplete() throws IOException {
+		ChunkedStreamProcessor processor = new ChunkedStreamProcessor();
+		byte[] data = bytes("0\r\n\r\n");
+		assertEquals(data.length, processor.process(data, 0, data.length));
+		assertEquals(2, processor.process(data, 2, 3));
+	}
+
+	@Test
+	public void parsesTrailers() throws IOException {
+		ChunkedStreamProcessor processor = new ChunkedStreamProcessor();
+		byte[] data = bytes("3\r\nabc\r\n0\r\nExpires: never\r\nX-Checksum:  1234 \r\n\r\n");
+		assertEquals(data.length, processor.process(data, 0, data.length));
+		assertEquals(2, processor.getTrailers().size());
+		assertEquals("never", processor.getTrailers().get("Expires"));
+		assertEquals("1234", processor.getTrailers().get("X-Checksum"));
+	}
+
+	@Test
+	public void acceptsUpperCaseSizes() throws IOException {
+		Collector collector = new Collector();
+		byte[] data = bytes("A\r\n0123456789\r\n0\r\n\r\n");
+		assertEquals(data.length, new ChunkedStreamProcessor(collector).process(data, 0, data.length));
+		assertEquals("0123456789", collector.getPayload());
+	}
+
+	@Test
+	public void encodesChunkHeaders() throws IOException {
+		byte[] buffer = new byte[ChunkedStreamProcessor.MAX_CHUNK_HEADER_LENGTH];
+		assertEquals("0\r\n", new String(buffer, 0, ChunkedStreamProcessor.encodeChunkHeader(0, buffer, 0), StandardCharsets.US_ASCII));
+		assertEquals("f\r\n", new String(buffer, 0, ChunkedStreamProcessor.encodeChunkHeader(15, buffer, 0), StandardCharsets.US_ASCII));
+		assertEquals("10\r\n", new String(buffer, 0, ChunkedStreamProcessor.encodeChunkHeader(16, buffer, 0), StandardCharsets.US_ASCII));
+		assertEquals(ChunkedStreamProcessor.MAX_CHUNK_HEADER_LENGTH, ChunkedStreamProcessor.encodeChunkHeader(-1, buffer, 0));
+	}
+
+	@Test
+	public void decodesEncodedChunks() throws IOException {
+		ByteArrayOutputStream stream = new ByteArrayOutputStream();
+		byte[] header = new byte[ChunkedStreamProcessor.MAX_CHUNK_HEADER_LENGTH];
+		byte[] payload = new byte[300];
+		for (int i = 0; i < payload.length; i++) {
+			payload[i] = (byte) i;
+		}
+		stream.write(header, 0, ChunkedStreamProcessor.encodeChunkHeader(payload.length, header, 0));
+		stream.write(payload, 0, payload.length);
+		stream.write(ChunkedStreamProcessor.CHUNK_END, 0, ChunkedStreamProcessor.CHUNK_END.length);
+		stream.write(ChunkedStreamProcessor.LAST_CHUNK, 0, ChunkedStreamProcessor.LAST_CHUNK.length);
+		byte[] data = stream.toByteArray();
+		final ByteArrayOutputStream decoded = new ByteArrayOutputStream();
+		ChunkedStreamProcessor processor = new ChunkedStreamProcessor(new ChunkedStreamProcessor.Listener() {
+			public void chunkData(byte[] data, int offset, int length) {
+				decoded.write(data, offset, length);
+			}
+		});
+		assertEquals(data.length, processor.process(data, 0, data.length));
+		assertArrayEquals(payload, decoded.toByteArray());
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void rejectsMissingSize() throws IOException {
+		byte[] data = bytes("\r\nhello\r\n");
+		new ChunkedStreamProcessor().process(data, 0, data.length);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void rejectsInvalidSize() throws IOException {
+		byte[] data = bytes("5g\r\nhello\r\n");
+		new ChunkedStreamProcessor().process(data, 0, data.length);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void rejectsOverflowingSize() throws IOException {
+		byte[] data = bytes("10000000000000000\r\n");
+		new ChunkedStreamProcessor().process(data, 0, data.length);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void rejectsMissingLineBreakAfterData() throws IOException {
+		byte[] data = bytes("5\r\nhello!\r\n0\r\n\r\n");
+		new ChunkedStreamProcessor().process(data, 0, data.length);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void rejectsTrailerWithoutName() throws IOException {
+		byte[] data = bytes("0\r\n: value\r\n\r\n");
+		new ChunkedStreamProcessor().process(data, 0, data.length);
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void rejectsOversizedTrailer() throws IOException {
+		StringBuilder stream = new StringBuilder("0\r\nX-Large: ");
+		for (int i = 0; i < 1024 * 8; i++) {
+			stream.append('x');
+		}
+		byte[] data = bytes(stream.append("\r\n\r\n").toString());
+		new ChunkedStreamProcessor().process(data, 0, data.length);
+	}
+
+}
@@ -0,0 +1,191 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Tests of the DiskCache: storage of the responses in the segments, rebuilding of the
+ * index from the segment files when the cache is opened again, and eviction of the
+ * oldest segments.
+ * @author Juliano
+ */
+public class DiskCacheTest {
+
+	private static final int SEGMENT_SIZE = 64 * 1024;
+	private static final int BODY_LENGTH = 10 * 1024;
+
+	private File directory;
+
+	@Before
+	public void createDirectory() throws IOException {
+		directory = Files.createTempDirectory("disk-cache").toFile();
+	}
+
+	@After
+	public void deleteDirectory() {
+		File[] files = directory.listFiles();
+		for (File file : files != null ? files : new File[0]) {
+			file.delete();
+		}
+		directory.delete();
+	}
+
+	private static CachedResponse response(String key, String etag) {
+		Map<String, List<String>> headers = new LinkedHashMap<>();
+		headers.put("ETag", new ArrayList<>(Collections.singletonList(etag)));
+		headers.put("Cache-Control", new ArrayList<>(Collections.singletonList("max-age=60")));
+		return new CachedResponse(key, 200, headers, ByteBuffer.allocate(0), null, 1000, 2000);
+	}
+
+	private static byte[] body(String key) {
+		byte[] body = new byte[BODY_LENGTH];
+		Arrays.fill(body, (byte) key.hashCode());
+		return body;
+	}
+
+	private static DiskCache.Reservation reserve(DiskCache cache, String key, String etag) {
+		DiskCache.Reservation reservation = cache.reserve(response(key, etag), BODY_LENGTH);
+		assertNotNull(reservation);
+		reservation.getBody().put(body(key));
+		return reservation;
+	}
+
+	private static void store(DiskCache cache, String key, String etag) {
+		assertTrue(cache.commit(reserve(cache, key, etag)));
+	}
+
+	private static void assertStored(DiskCache cache, String key, String etag) {
+		CachedResponse response = cache.get(key);
+		assertNotNull("No response for " + key, response);
+		assertEquals(key, response.getKey());
+		assertEquals(etag, response.getEntityTag());
+		assertEquals(60 * 1000, response.getFreshnessLifetime());
+		byte[] body = new byte[response.getBodyLength()];
+		response.getBody().get(body);
+		assertArrayEquals(body(key), body);
+	}
+
+	@Test
+	public void storesResponses() throws IOException {
+		DiskCache cache = new DiskCache(directory, 1024 * 1024, SEGMENT_SIZE);
+		store(cache, "http://example.com/a", "\"a1\"");
+		store(cache, "http://example.com/b", "\"b1\"");
+		assertStored(cache, "http://example.com/a", "\"a1\"");
+		assertStored(cache, "http://example.com/b", "\"b1\"");
+		assertNull(cache.get("http://example.com/c"));
+		assertEquals(2, cache.getEntries());
+	}
+
+	@Test
+	public void findsOnlyCommittedResponses() throws IOException {
+		DiskCache cache = new DiskCache(directory, 1024 * 1024, SEGMENT_SIZE);
+		DiskCache.Reservation reservation = reserve(cache, "http://example.com/a", "\"a1\"");
+		assertNull(cache.get("http://example.com/a"));
+		cache.abort(reservation);
+		assertNull(cache.get("http://example.com/a"));
+	}
+
+	@Test
+	public void rebuildsIndexFromSegments() throws IOException {
+		DiskCache cache = new DiskCache(directory, 1024 * 1024, SEGMENT_SIZE);
+		for (int i = 0; i < 20; i++) {
+			store(cache, "http://example.com/" + i, "\"v1\"");
+		}
+		// Replaced, removed, aborted and uncommitted responses
+		store(cache, "http://example.com/0", "\"v2\"");
+		assertTrue(cache.remove("http://example.com/1"));
+		cache.abort(reserve(cache, "http://example.com/2", "\"v2\""));
+		reserve(cache, "http://example.com/3", "\"v2\"");
+		cache.update(response("http://example.com/4", "\"v2\"").withBody(ByteBuffer.allocate(BODY_LENGTH)));
+
+		DiskCache reopenedCache = new DiskCache(directory, 1024 * 1024, SEGMENT_SIZE);
+		assertEquals(cache.getSegments(), reopenedCache.getSegments());
+		assertEquals(19, reopenedCache.getEntries());
+		assertStored(reopenedCache, "http://example.com/0", "\"v2\"");
+		assertNull(reopenedCache.get("http://example.com/1"));
+		assertStored(reopenedCache, "http://example.com/2", "\"v1\"");
+		assertStored(reopenedCache, "http://example.com/3", "\"v1\"");
+		assertStored(reopenedCache, "http://example.com/4", "\"v2\"");
+		for (int i = 5; i < 20; i++) {
+			assertStored(reopenedCache, "http://example.com/" + i, "\"v1\"");
+		}
+	}
+
+	@Test
+	public void evictsOldestSegments() throws IOException {
+		DiskCache cache = new DiskCache(directory, 3 * SEGMENT_SIZE, SEGMENT_SIZE);
+		DiskCache.Reservation firstReservation = reserve(cache, "http://example.com/pending", "\"v1\"");
+		for (int i = 0; i < 50; i++) {
+			store(cache, "http://example.com/" + i, "\"v1\"");
+		}
+		assertEquals(3, cache.getSegments());
+		assertTrue(cache.getSize() <= cache.getMaxSize());
+		assertTrue(cache.getEvictions() > 0);
+		assertFalse(cache.isKept(firstReservation));
+		assertFalse(cache.commit(firstReservation));
+		assertNull(cache.get("http://example.com/0"));
+		assertStored(cache, "http://example.com/49", "\"v1\"");
+		int stored = 0;
+		for (int i = 0; i < 50; i++) {
+			if (cache.get("http://example.com/" + i) != null) {
+				stored++;
+			}
+		}
+		assertEquals(stored, cache.getEntries());
+		assertEquals(3, directory.list().length);
+
+		DiskCache reopenedCache = new DiskCache(directory, 3 * SEGMENT_SIZE, SEGMENT_SIZE);
+		assertEquals(stored, reopenedCache.getEntries());
+	}
+
+	@Test
+	public void evictsToFitSmallerMaximumSize() throws IOException {
+		DiskCache cache = new DiskCache(directory, 1024 * 1024, SEGMENT_SIZE);
+		for (int i = 0; i < 50; i++) {
+			store(cache, "http://example.com/" + i, "\"v1\"");
+		}
+		DiskCache reopenedCache = new DiskCache(directory, 2 * SEGMENT_SIZE, SEGMENT_SIZE);
+		assertEquals(2, reopenedCache.getSegments());
+		assertNull(reopenedCache.get("http://example.com/0"));
+		assertStored(reopenedCache, "http://example.com/49", "\"v1\"");
+	}
+
+	@Test
+	public void skipsSegmentsMarkedDeleted() throws IOException {
+		DiskCache cache = new DiskCache(directory, 1024 * 1024, SEGMENT_SIZE);
+		for (int i = 0; i < 20; i++) {
+			store(cache, "http://example.com/" + i, "\"v1\"");
+		}
+		int segments = cache.getSegments();
+		// A segment evicted, whose file could not be deleted before the restart
+		String[] names = directory.list();
+		Arrays.sort(names);
+		File firstSegment = new File(directory, names[0]);
+		assertTrue(new File(directory, names[0] + ".deleted").createNewFile());
+
+		DiskCache reopenedCache = new DiskCache(directory, 1024 * 1024, SEGMENT_SIZE);
+		assertEquals(segments - 1, reopenedCache.getSegments());
+		assertNull(reopenedCache.get("http://example.com/0"));
+		assertStored(reopenedCache, "http://example.com/19", "\"v1\"");
+		assertFalse(firstSegment.exists());
+		assertEquals(segments - 1, directory.list().length);
+	}
+
+}
@@ -0,0 +1,156 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests of the HeaderProcessor class: parsing of the start line and of the fields,
+ * headers split across several reads and the body bytes received along with them.
+ * @author Juliano
+ */
+public class HeaderProcessorTest {
+
+	private static byte[] bytes(String text) {
+		return text.getBytes(StandardCharsets.US_ASCII);
+	}
+
+	private static HeaderProcessor process(boolean response, String text) throws ProtocolException {
+		HeaderProcessor processor = new HeaderProcessor(response);
+		byte[] data = bytes(text);
+		assertTrue(processor.processInputData(data, 0, data.length));
+		return processor;
+	}
+
+	@Test
+	public void parsesRequest() throws ProtocolException {
+		HeaderProcessor processor = process(false, "GET http://example.com/a?b=c HTTP/1.1\r\nHost: example.com\r\nX-Custom:  value  \r\n\r\n");
+		RequestHeader requestHeader = processor.getRequestHeader();
+		assertSame("GET", requestHeader.getMethod());
+		assertEquals("http://example.com/a?b=c", requestHeader.getResource());
+		assertSame("HTTP/1.1", requestHeader.getProtocol());
+		assertNull(processor.getResponseHeader());
+		Map<String, List<String>> headers = processor.getHeaders();
+		assertEquals(Arrays.asList("Host", "X-Custom"), new ArrayList<>(headers.keySet()));
+		assertEquals(Arrays.asList("value"), headers.get("X-Custom"));
+	}
+
+	@Test
+	public void parsesResponse() throws ProtocolException {
+		HeaderProcessor processor = process(true, "HTTP/1.1 404 Not Found\r\nContent-Length: 12\r\n\r\n");
+		assertTrue(processor.isResponseMode());
+		assertEquals(404, processor.getResponseHeader().getStatusCode());
+		assertEquals("Not Found", processor.getResponseHeader().getStatusText());
+		assertEquals(Long.valueOf(12), processor.getContentLength());
+		assertNull(processor.getRequestHeader());
+	}
+
+	@Test
+	public void usesCanonicalCaseOfKnownFields() throws ProtocolException {
+		HeaderProcessor processor = process(false, "GET / HTTP/1.1\r\ncontent-TYPE: text/plain\r\nx-lower: 1\r\n\r\n");
+		Map<String, List<String>> headers = processor.getHeaders();
+		assertEquals(Arrays.asList("text/plain"), headers.get("Content-Type"));
+		assertEquals(Arrays.asList("1"), headers.get("x-lower"));
+	}
+
+	@Test
+	public void groupsRepeatedFields() throws ProtocolException {
+		HeaderProcessor processor = process(true, "HTTP/1.1 200 OK\r\nSet-Cookie: a=1\r\nVary: Accept\r\nSet-Cookie: b=2\r\n\r\n");
+		assertEquals(Arrays.asList("a=1", "b=2"), processor.getHeaders().get("Set-Cookie"));
+	}
+
+	@Test
+	public void ignoresRepeatedContentLength() throws ProtocolException {
+		HeaderProcessor processor = process(true, "HTTP/1.1 200 OK\r\nContent-Length: 1\r\nContent-Length: 2\r\n\r\n");
+		assertNull(processor.getContentLength());
+	}
+
+	@Test
+	public void ignoresInvalidContentLength() throws ProtocolException {
+		assertNull(process(true, "HTTP/1.1 200 OK\r\nContent-Length: 1x\r\n\r\n").getContentLength());
+		assertNull(process(true, "HTTP/1.1 200 OK\r\nContent-Length: 99999999999999999999\r\n\r\n").getContentLength());
+	}
+
+	@Test
+	public void detectsChunkedEncoding() throws ProtocolException {
+		assertTrue(process(true, "HTTP/1.1 200 OK\r\nTransfer-Encoding: Chunked\r\n\r\n").isChunkedEncoded());
+		assertFalse(process(true, "HTTP/1.1 200 OK\r\nTransfer-Encoding: gzip\r\n\r\n").isChunkedEncoded());
+	}
+
+	@Test
+	public void detectsPersistentConnections() throws ProtocolException {
+		assertTrue(process(false, "GET / HTTP/1.1\r\n\r\n").isPersistentConnection());
+		assertFalse(process(false, "GET / HTTP/1.1\r\nConnection: Close\r\n\r\n").isPersistentConnection());
+		assertFalse(process(false, "GET / HTTP/1.0\r\n\r\n").isPersistentConnection());
+		HeaderProcessor keepAlive = process(false, "GET / HTTP/1.0\r\nProxy-Connection: keep-alive\r\n\r\n");
+		assertTrue(keepAlive.isKeepConnectionAlive());
+		assertTrue(keepAlive.isPersistentConnection());
+	}
+
+	@Test
+	public void parsesHeaderReceivedByteByByte() throws ProtocolException {
+		HeaderProcessor processor = new HeaderProcessor(false);
+		byte[] data = bytes("POST /upload HTTP/1.1\r\nHost: example.com\r\nContent-Length: 4\r\n\r\n");
+		for (int i = 0; i < data.length - 1; i++) {
+			assertFalse(processor.processInputData(data, i, 1));
+		}
+		assertTrue(processor.processInputData(data, data.length - 1, 1));
+		assertSame("POST", processor.getRequestHeader().getMethod());
+		assertEquals(Long.valueOf(4), processor.getContentLength());
+		assertEquals(0, processor.getBodyBuffer().remaining());
+	}
+
+	@Test
+	public void exposesBodyReceivedWithHeader() throws ProtocolException {
+		HeaderProcessor processor = new HeaderProcessor(true);
+		byte[] data = bytes("..HTTP/1.1 200 OK\r\nContent-Length: 5\r\n\r\nhello");
+		assertTrue(processor.processInputData(data, 2, data.length - 2));
+		ByteBuffer body = processor.getBodyBuffer();
+		assertSame(data, body.array());
+		assertEquals(data.length - 5, body.position());
+		assertEquals("hello", new String(data, body.position(), body.remaining(), StandardCharsets.US_ASCII));
+	}
+
+	@Test
+	public void skipsEmptyLinesBeforeStartLine() throws ProtocolException {
+		HeaderProcessor processor = process(false, "\r\n\r\nGET / HTTP/1.1\r\n\r\n");
+		assertEquals("/", processor.getRequestHeader().getResource());
+	}
+
+	@Test
+	public void growsForLongHeaders() throws ProtocolException {
+		StringBuilder header = new StringBuilder("HTTP/1.1 200 OK\r\n");
+		for (int i = 0; i < 100; i++) {
+			header.append("X-Field-").append(i).append(": value of the field number ").append(i).append("\r\n");
+		}
+		HeaderProcessor processor = process(true, header.append("\r\n").toString());
+		assertEquals(100, processor.getHeaders().size());
+		assertEquals(Arrays.asList("value of the field number 99"), processor.getHeaders().get("X-Field-99"));
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void rejectsFieldWithoutColon() throws ProtocolException {
+		process(false, "GET / HTTP/1.1\r\nHost example.com\r\n\r\n");
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void rejectsInvalidStatusCode() throws ProtocolException {
+		process(true, "HTTP/1.1 2000 OK\r\n\r\n");
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void rejectsRequestLineWithoutProtocol() throws ProtocolException {
+		process(false, "GET\r\n\r\n");
+	}
+
+}
@@ -0,0 +1,158 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Tests of the HostRules index: matching of the host names and of the "*." and "."
+ * patterns at the label boundaries, precedence of the rules and loading of rule files.
+ * @author Juliano
+ */
+public class HostRulesTest {
+
+	@Test
+	public void matchesHostName() {
+		HostRules rules = new HostRules();
+		rules.add("example.com", HostRules.Action.BLOCK);
+		assertEquals(HostRules.Action.BLOCK, rules.lookup("example.com"));
+		assertNull(rules.lookup("www.example.com"));
+		assertNull(rules.lookup("example.org"));
+	}
+
+	@Test
+	public void matchesSubdomainsWithWildcard() {
+		HostRules rules = new HostRules();
+		rules.add("*.example.com", HostRules.Action.TUNNEL);
+		assertEquals(HostRules.Action.TUNNEL, rules.lookup("www.example.com"));
+		assertEquals(HostRules.Action.TUNNEL, rules.lookup("a.b.example.com"));
+		assertNull(rules.lookup("example.com"));
+	}
+
+	@Test
+	public void matchesSubdomainsWithLeadingDot() {
+		HostRules rules = new HostRules();
+		rules.add(".example.com", HostRules.Action.TUNNEL);
+		assertEquals(HostRules.Action.TUNNEL, rules.lookup("www.example.com"));
+		assertNull(rules.lookup("example.com"));
+	}
+
+	@Test
+	public void matchesOnlyAtLabelBoundaries() {
+		HostRules rules = new HostRules();
+		rules.add("*.example.com", HostRules.Action.BLOCK);
+		rules.add("example.org", HostRules.Action.BLOCK);
+		assertNull(rules.lookup("badexample.com"));
+		assertNull(rules.lookup("www.badexample.com"));
+		assertNull(rules.lookup("example.com.evil.net"));
+		assertNull(rules.lookup("notexample.org"));
+		assertNull(rules.lookup("www.example.org"));
+	}
+
+	@Test
+	public void ignoresCaseAndTrailingDot() {
+		HostRules rules = new HostRules();
+		rules.add("*.Example.COM.", HostRules.Action.BLOCK);
+		rules.add("Host.Example.Org", HostRules.Action.TUNNEL);
+		assertEquals(HostRules.Action.BLOCK, rules.lookup("WWW.example.com"));
+		assertEquals(HostRules.Action.BLOCK, rules.lookup("www.example.com."));
+		assertEquals(HostRules.Action.TUNNEL, rules.lookup("host.example.org."));
+	}
+
+	@Test
+	public void prefersHostRuleThenLongestDomain() {
+		HostRules rules = new HostRules();
+		rules.add("*.com", HostRules.Action.TUNNEL);
+		rules.add("*.example.com", HostRules.Action.BLOCK);
+		rules.add("www.example.com", HostRules.Action.BUMP);
+		assertEquals(HostRules.Action.TUNNEL, rules.lookup("other.com"));
+		assertEquals(HostRules.Action.BLOCK, rules.lookup("mail.example.com"));
+		assertEquals(HostRules.Action.BLOCK, rules.lookup("a.www.example.com"));
+		assertEquals(HostRules.Action.BUMP, rules.lookup("www.example.com"));
+		assertEquals(HostRules.Action.TUNNEL, rules.lookup("example.com"));
+	}
+
+	@Test
+	public void keepsHostAndSubdomainRulesApart() {
+		HostRules rules = new HostRules();
+		rules.add("example.com", HostRules.Action.BUMP);
+		rules.add("*.example.com", HostRules.Action.BLOCK);
+		rules.add(".example.com", HostRules.Action.TUNNEL);
+		assertEquals(2, rules.size());
+		assertEquals(HostRules.Action.BUMP, rules.lookup("example.com"));
+		assertEquals(HostRules.Action.TUNNEL, rules.lookup("www.example.com"));
+	}
+
+	@Test
+	public void findsRulesAfterGrowing() {
+		HostRules rules = new HostRules();
+		for (int i = 0; i < 10000; i++) {
+			rules.add("host" + i + ".example.com", HostRules.Action.values()[i % 3]);
+		}
+		assertEquals(10000, rules.size());
+		for (int i = 0; i < 10000; i++) {
+			assertEquals(HostRules.Action.values()[i % 3], rules.lookup("host" + i + ".example.com"));
+		}
+		assertNull(rules.lookup("host10000.example.com"));
+	}
+
+	@Test
+	public void findsNothingInEmptyIndex() {
+		HostRules rules = new HostRules();
+		assertNull(rules.lookup("example.com"));
+		assertNull(rules.lookup(""));
+		assertNull(rules.lookup("."));
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsEmptyWildcard() {
+		new HostRules().add("*.", HostRules.Action.BLOCK);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void rejectsLoneDot() {
+		new HostRules().add(".", HostRules.Action.BLOCK);
+	}
+
+	@Test
+	public void loadsRuleFile() throws IOException {
+		File file = writeRules("# Comment\r\n\r\nblock\tads.example.com\r\n  TUNNEL  *.bank.example  \n"
+				+ "Bump .internal.example\nblock *.internal.example");
+		HostRules rules = new HostRules();
+		rules.load(file);
+		assertEquals(3, rules.size());
+		assertEquals(HostRules.Action.BLOCK, rules.lookup("ads.example.com"));
+		assertEquals(HostRules.Action.TUNNEL, rules.lookup("www.bank.example"));
+		assertEquals(HostRules.Action.BLOCK, rules.lookup("host.internal.example"));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsUnknownAction() throws IOException {
+		new HostRules().load(writeRules("allow example.com\n"));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsExtraText() throws IOException {
+		new HostRules().load(writeRules("block example.com example.org\n"));
+	}
+
+	@Test(expected = IOException.class)
+	public void rejectsMissingPattern() throws IOException {
+		new HostRules().load(writeRules("block\n"));
+	}
+
+	private static File writeRules(String text) throws IOException {
+		File file = File.createTempFile("rules", ".txt");
+		file.deleteOnExit();
+		try (OutputStream outputStream = new FileOutputStream(file)) {
+			outputStream.write(text.getBytes(StandardCharsets.US_ASCII));
+		}
+		return file;
+	}
+
+}
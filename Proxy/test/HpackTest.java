@@ -0,0 +1,182 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.net.ProtocolException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+/**
+ * Tests of the HPACK decoder and encoder, using the examples of RFC 7541, Appendix C,
+ * and round trips of the blocks written by the encoder.
+ * @author Juliano
+ */
+public class HpackTest {
+
+	private static byte[] hex(String text) {
+		String digits = text.replace(" ", "");
+		byte[] data = new byte[digits.length() / 2];
+		for (int i = 0; i < data.length; i++) {
+			data[i] = (byte) Integer.parseInt(digits.substring(i * 2, i * 2 + 2), 16);
+		}
+		return data;
+	}
+
+	private static List<String> decode(HpackDecoder decoder, String block) throws ProtocolException {
+		byte[] data = hex(block);
+		return toStrings(decoder.decode(data, 0, data.length));
+	}
+
+	private static List<String> toStrings(List<String[]> fields) {
+		List<String> strings = new ArrayList<>();
+		for (String[] field : fields) {
+			strings.add(field[0] + ": " + field[1]);
+		}
+		return strings;
+	}
+
+	@Test
+	public void decodesRequestsWithoutHuffman() throws ProtocolException {
+		// RFC 7541, Appendix C.3
+		HpackDecoder decoder = new HpackDecoder(4096);
+		assertEquals(Arrays.asList(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com"),
+				decode(decoder, "8286 8441 0f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+		assertEquals(Arrays.asList(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com", "cache-control: no-cache"),
+				decode(decoder, "8286 84be 5808 6e6f 2d63 6163 6865"));
+		assertEquals(Arrays.asList(":method: GET", ":scheme: https", ":path: /index.html", ":authority: www.example.com", "custom-key: custom-value"),
+				decode(decoder, "8287 85bf 400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65"));
+	}
+
+	@Test
+	public void decodesRequestsWithHuffman() throws ProtocolException {
+		// RFC 7541, Appendix C.4
+		HpackDecoder decoder = new HpackDecoder(4096);
+		assertEquals(Arrays.asList(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com"),
+				decode(decoder, "8286 8441 8cf1 e3c2 e5f2 3a6b a0ab 90f4 ff"));
+		assertEquals(Arrays.asList(":method: GET", ":scheme: http", ":path: /", ":authority: www.example.com", "cache-control: no-cache"),
+				decode(decoder, "8286 84be 5886 a8eb 1064 9cbf"));
+		assertEquals(Arrays.asList(":method: GET", ":scheme: https", ":path: /index.html", ":authority: www.example.com", "custom-key: custom-value"),
+				decode(decoder, "8287 85bf 4088 25a8 49e9 5ba9 7d7f 8925 a849 e95b b8e8 b4bf"));
+	}
+
+	@Test
+	public void evictsOldestEntries() throws ProtocolException {
+		// RFC 7541, Appendix C.5: a 256 byte table, which evicts entries from the second response
+		HpackDecoder decoder = new HpackDecoder(256);
+		assertEquals(Arrays.asList(":status: 302", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:21 GMT", "location: https://www.example.com"),
+				decode(decoder, "4803 3330 3258 0770 7269 7661 7465 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133 2032 303a 3133 3a32 3120 474d 546e 1768 7474 7073 3a2f 2f77 7777 2e65 7861 6d70 6c65 2e63 6f6d"));
+		assertEquals(Arrays.asList(":status: 307", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:21 GMT", "location: https://www.example.com"),
+				decode(decoder, "4803 3330 37c1 c0bf"));
+		assertEquals(Arrays.asList(":status: 200", "cache-control: private", "date: Mon, 21 Oct 2013 20:13:22 GMT", "location: https://www.example.com",
+				"content-encoding: gzip", "set-cookie: foo=ASDJKHQKBZXOQWEOPIUAXQWEOIU; max-age=3600; version=1"),
+				decode(decoder, "88c1 611d 4d6f 6e2c 2032 3120 4f63 7420 3230 3133 2032 303a 3133 3a32 3220 474d 54c0 5a04 677a 6970 7738 666f 6f3d 4153 444a 4b48 514b 425a 584f 5157 454f 5049 5541 5851 5745 4f49 553b 206d 6178 2d61 6765 3d33 3630 303b 2076 6572 7369 6f6e 3d31"));
+	}
+
+	@Test
+	public void appliesTableSizeUpdate() throws ProtocolException {
+		HpackDecoder decoder = new HpackDecoder(4096);
+		decode(decoder, "400a 6375 7374 6f6d 2d6b 6579 0c63 7573 746f 6d2d 7661 6c75 65");
+		assertEquals(Arrays.asList("custom-key: custom-value"), decode(decoder, "be"));
+		// A zero size empties the table, and the limit is restored by a later update
+		assertEquals(Arrays.asList(":method: GET"), decode(decoder, "203f e11f 82"));
+		try {
+			decode(decoder, "be");
+			fail("The entry was not evicted");
+		} catch (ProtocolException e) {
+			// Expected
+		}
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void rejectsIndexZero() throws ProtocolException {
+		decode(new HpackDecoder(4096), "80");
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void rejectsIndexBeyondTables() throws ProtocolException {
+		decode(new HpackDecoder(4096), "be");
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void rejectsTableSizeAboveLimit() throws ProtocolException {
+		decode(new HpackDecoder(256), "3fe1 1f");
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void rejectsTableSizeUpdateAfterField() throws ProtocolException {
+		decode(new HpackDecoder(4096), "8220");
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void rejectsTruncatedInteger() throws ProtocolException {
+		decode(new HpackDecoder(4096), "ff80");
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void rejectsTruncatedString() throws ProtocolException {
+		decode(new HpackDecoder(4096), "0f01 0561 62");
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void rejectsHuffmanPaddingWithZeros() throws ProtocolException {
+		// 'a' (00011) followed by 000 instead of 111
+		decode(new HpackDecoder(4096), "0f01 8118");
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void rejectsHuffmanPaddingLongerThanByte() throws ProtocolException {
+		decode(new HpackDecoder(4096), "0f01 83ff ffff");
+	}
+
+	@Test
+	public void decodesHuffmanPadding() throws ProtocolException {
+		assertEquals(Arrays.asList("accept-encoding: a"), decode(new HpackDecoder(4096), "0f01 811f"));
+	}
+
+	@Test
+	public void encodesRequestHeader() throws ProtocolException {
+		Map<String, List<String>> headers = new LinkedHashMap<>();
+		headers.put("Accept", Arrays.asList("*/*"));
+		headers.put("X-Custom", Arrays.asList("1", "2"));
+		HpackEncoder encoder = new HpackEncoder();
+		encoder.writeRequestHeader("GET", "https", "www.example.com", "/", headers);
+		assertEquals(Arrays.asList(":method: GET", ":scheme: https", ":authority: www.example.com", ":path: /",
+				"accept: */*", "x-custom: 1", "x-custom: 2"), toStrings(new HpackDecoder(4096).decode(encoder.getBuffer(), 0, encoder.getLength())));
+		encoder.writeRequestHeader("PUT", "http", "localhost:8080", "/upload?name=a", new LinkedHashMap<String, List<String>>());
+		assertEquals(Arrays.asList(":method: PUT", ":scheme: http", ":authority: localhost:8080", ":path: /upload?name=a"),
+				toStrings(new HpackDecoder(4096).decode(encoder.getBuffer(), 0, encoder.getLength())));
+	}
+
+	@Test
+	public void encodesResponseHeader() throws ProtocolException {
+		Map<String, List<String>> headers = new LinkedHashMap<>();
+		headers.put("Content-Type", Arrays.asList("text/html"));
+		HpackEncoder encoder = new HpackEncoder();
+		encoder.writeResponseHeader(200, headers);
+		// The status and the name of the field are taken from the static table
+		assertEquals(1 + 2 + 1 + "text/html".length(), encoder.getLength());
+		assertEquals(Arrays.asList(":status: 200", "content-type: text/html"), toStrings(new HpackDecoder(4096).decode(encoder.getBuffer(), 0, encoder.getLength())));
+		encoder.writeResponseHeader(418, new LinkedHashMap<String, List<String>>());
+		assertEquals(Arrays.asList(":status: 418"), toStrings(new HpackDecoder(4096).decode(encoder.getBuffer(), 0, encoder.getLength())));
+	}
+
+	@Test
+	public void encodesLongValues() throws ProtocolException {
+		char[] chars = new char[5000];
+		Arrays.fill(chars, 'v');
+		String value = new String(chars);
+		Map<String, List<String>> headers = new LinkedHashMap<>();
+		headers.put("Cookie", Arrays.asList(value));
+		HpackEncoder encoder = new HpackEncoder();
+		encoder.writeResponseHeader(204, headers);
+		List<String[]> fields = new HpackDecoder(4096).decode(encoder.getBuffer(), 0, encoder.getLength());
+		assertEquals(2, fields.size());
+		assertEquals("cookie", fields.get(1)[0]);
+		assertEquals(value, fields.get(1)[1]);
+	}
+
+}
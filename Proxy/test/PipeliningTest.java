@@ -0,0 +1,158 @@
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Regression test of the requests pipelined by a client through the "blocking" engine:
+ * the requests sent in one packet, behind the first one, must survive the relay of the
+ * responses, which are read into the same buffer. The origin keeps its connection alive
+ * and sends header fields long enough to overwrite the queued requests if they were not
+ * copied.
+ * @author Juliano
+ */
+public class PipeliningTest {
+
+	private static final int REQUESTS = 4;
+	private static final int PADDING_LENGTH = 400;
+
+	private ServerSocket origin;
+
+	@Before
+	public void startOrigin() throws IOException {
+		origin = new ServerSocket(0);
+		Thread originThread = new Thread() {
+			public void run() {
+				try {
+					while(true) {
+						final Socket socket = origin.accept();
+						new Thread() {
+							public void run() {
+								serve(socket);
+							}
+						}.start();
+					}
+				} catch (IOException e) {
+					// The test is over
+				}
+			}
+		};
+		originThread.setDaemon(true);
+		originThread.start();
+	}
+
+	@After
+	public void stopOrigin() throws IOException {
+		origin.close();
+	}
+
+	@Test
+	public void pipelinedRequestsAreRelayed() throws Exception {
+		ProxyConfiguration configuration = new ProxyConfiguration();
+		BufferPool bufferPool = new BufferPool(configuration);
+		UpstreamConnectionPool pool = new UpstreamConnectionPool(configuration, new UpstreamSSLContext(configuration), bufferPool);
+		ServerSocket probe = new ServerSocket(0);
+		int proxyPort = probe.getLocalPort();
+		probe.close();
+		Proxy proxy = new Proxy(proxyPort, null, new HostPolicy(configuration), pool, new ResponseCache(configuration), bufferPool, new RelayStatistics(), Executors.newCachedThreadPool(), false);
+		proxy.setDaemon(true);
+		proxy.start();
+		Thread.sleep(200);
+
+		String originUrl = "http://127.0.0.1:" + origin.getLocalPort();
+		StringBuilder requests = new StringBuilder();
+		for (int i = 0; i < REQUESTS; i++) {
+			requests.append("GET ").append(originUrl).append("/resource").append(i).append(" HTTP/1.1\r\nHost: 127.0.0.1\r\nConnection: keep-alive\r\n\r\n");
+		}
+		try (Socket client = new Socket("127.0.0.1", proxyPort)) {
+			client.setSoTimeout(5000);
+			// All the requests in one write, so the proxy reads them at once
+			client.getOutputStream().write(requests.toString().getBytes(StandardCharsets.US_ASCII));
+			InputStream inputStream = new BufferedInputStream(client.getInputStream());
+			for (int i = 0; i < REQUESTS; i++) {
+				String header = readHeader(inputStream);
+				assertNotNull("The connection was closed before response " + i, header);
+				String contentLength = getField(header, "Content-Length");
+				assertNotNull("No Content-Length field in " + header, contentLength);
+				int length = Integer.parseInt(contentLength);
+				byte[] body = new byte[length];
+				int position = 0;
+				while(position < length) {
+					int readResult = inputStream.read(body, position, length - position);
+					assertTrue("The body of response " + i + " is truncated", readResult >= 0);
+					position += readResult;
+				}
+				assertEquals("/resource" + i, new String(body, StandardCharsets.US_ASCII));
+			}
+		}
+	}
+
+	/**
+	 * Answers the requests of a connection, with a Date field and padding fields.
+	 */
+	private static void serve(Socket socket) {
+		char[] padding = new char[PADDING_LENGTH];
+		Arrays.fill(padding, 'x');
+		try {
+			InputStream inputStream = new BufferedInputStream(socket.getInputStream());
+			OutputStream outputStream = socket.getOutputStream();
+			String header;
+			while((header = readHeader(inputStream)) != null) {
+				String resource = header.split(" ")[1];
+				StringBuilder response = new StringBuilder("HTTP/1.1 200 OK\r\n");
+				response.append("Date: Sat, 17 Oct 2026 10:00:00 GMT\r\n");
+				response.append("Connection: keep-alive\r\n");
+				response.append("Cache-Control: no-store\r\n");
+				response.append("X-Padding: ").append(padding).append("\r\n");
+				response.append("Content-Length: ").append(resource.length()).append("\r\n\r\n").append(resource);
+				outputStream.write(response.toString().getBytes(StandardCharsets.US_ASCII));
+				outputStream.flush();
+			}
+		} catch (IOException e) {
+			// The proxy closed the connection
+		} finally {
+			try {
+				socket.close();
+			} catch (IOException e) {
+				// Already closed
+			}
+		}
+	}
+
+	private static String readHeader(InputStream inputStream) throws IOException {
+		ByteArrayOutputStream header = new ByteArrayOutputStream();
+		int b;
+		while((b = inputStream.read()) >= 0) {
+			header.write(b);
+			String text = header.toString("US-ASCII");
+			if (text.endsWith("\r\n\r\n")) {
+				return text;
+			}
+		}
+		return null;
+	}
+
+	private static String getField(String header, String name) {
+		for (String line : header.split("\r\n")) {
+			if (line.regionMatches(true, 0, name + ":", 0, name.length() + 1)) {
+				return line.substring(name.length() + 1).trim();
+			}
+		}
+		return null;
+	}
+
+}
@@ -0,0 +1,78 @@
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Test;
+
+/**
+ * Tests of the parsing of the Range and Content-Range fields by the ResponseCache, and of
+ * the resolution of the requested ranges against the length of a body.
+ * @author Juliano
+ */
+public class ResponseCacheRangeTest {
+
+	@Test
+	public void parsesRanges() {
+		assertArrayEquals(new long[] { 0, 499 }, ResponseCache.parseRange("bytes=0-499"));
+		assertArrayEquals(new long[] { 500, -1 }, ResponseCache.parseRange("bytes=500-"));
+		assertArrayEquals(new long[] { -1, 200 }, ResponseCache.parseRange("bytes=-200"));
+		assertArrayEquals(new long[] { 7, 7 }, ResponseCache.parseRange(" Bytes= 7 - 7 "));
+	}
+
+	@Test
+	public void rejectsInvalidRanges() {
+		assertNull(ResponseCache.parseRange(null));
+		assertNull(ResponseCache.parseRange("items=0-1"));
+		assertNull(ResponseCache.parseRange("bytes=0-1,5-6"));
+		assertNull(ResponseCache.parseRange("bytes=5"));
+		assertNull(ResponseCache.parseRange("bytes=5-4"));
+		assertNull(ResponseCache.parseRange("bytes=-"));
+		assertNull(ResponseCache.parseRange("bytes=a-5"));
+		assertNull(ResponseCache.parseRange("bytes=0-+5"));
+		assertNull(ResponseCache.parseRange("bytes=0-9999999999999999999"));
+	}
+
+	@Test
+	public void resolvesRanges() {
+		assertArrayEquals(new long[] { 0, 499 }, ResponseCache.resolveRange(new long[] { 0, 499 }, 1000));
+		// The last position is capped to the end of the body
+		assertArrayEquals(new long[] { 500, 999 }, ResponseCache.resolveRange(new long[] { 500, 5000 }, 1000));
+		assertArrayEquals(new long[] { 500, 999 }, ResponseCache.resolveRange(new long[] { 500, -1 }, 1000));
+		assertArrayEquals(new long[] { 999, 999 }, ResponseCache.resolveRange(new long[] { 999, -1 }, 1000));
+	}
+
+	@Test
+	public void resolvesSuffixRanges() {
+		assertArrayEquals(new long[] { 800, 999 }, ResponseCache.resolveRange(new long[] { -1, 200 }, 1000));
+		// A suffix longer than the body is the whole body
+		assertArrayEquals(new long[] { 0, 999 }, ResponseCache.resolveRange(new long[] { -1, 5000 }, 1000));
+	}
+
+	@Test
+	public void rejectsUnsatisfiableRanges() {
+		assertNull(ResponseCache.resolveRange(new long[] { 1000, -1 }, 1000));
+		assertNull(ResponseCache.resolveRange(new long[] { 1000, 1500 }, 1000));
+		assertNull(ResponseCache.resolveRange(new long[] { -1, 0 }, 1000));
+		assertNull(ResponseCache.resolveRange(new long[] { -1, 200 }, 0));
+		assertNull(ResponseCache.resolveRange(new long[] { 0, -1 }, 0));
+	}
+
+	@Test
+	public void parsesContentRanges() {
+		assertArrayEquals(new long[] { 0, 499, 1234 }, ResponseCache.parseContentRange("bytes 0-499/1234"));
+		assertArrayEquals(new long[] { 1233, 1233, 1234 }, ResponseCache.parseContentRange(" BYTES 1233-1233/1234 "));
+	}
+
+	@Test
+	public void rejectsInvalidContentRanges() {
+		assertNull(ResponseCache.parseContentRange(null));
+		// Unknown length, and the form of the 416 (Range Not Satisfiable) responses
+		assertNull(ResponseCache.parseContentRange("bytes 0-499/*"));
+		assertNull(ResponseCache.parseContentRange("bytes */1234"));
+		assertNull(ResponseCache.parseContentRange("bytes 0-1234/1234"));
+		assertNull(ResponseCache.parseContentRange("bytes 5-4/10"));
+		assertNull(ResponseCache.parseContentRange("bytes 0-499"));
+		assertNull(ResponseCache.parseContentRange("items 0-499/1234"));
+		assertNull(ResponseCache.parseContentRange("bytes 0/499-1234"));
+	}
+
+}